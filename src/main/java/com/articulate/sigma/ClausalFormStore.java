@@ -0,0 +1,318 @@
+package com.articulate.sigma;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent store of clausal forms, so that formulas that do not change
+ * from one build to the next are clausified only once.
+ * The store is an append-only file of records, each holding the clauses
+ * and the variable rename map of one formula in a compact binary encoding.
+ * Records are keyed by a 64-bit fingerprint of the formula text with
+ * whitespace normalized; the text is kept in the record so that
+ * fingerprint collisions are detected.  An index from fingerprints to file
+ * offsets is rebuilt when the store is opened; a record left incomplete
+ * by an interrupted write is discarded at that point.
+ * Clausal forms are stored with the Skolem terms and definitional literals
+ * of the naming context of their formula (Clausifier.Naming.forFormula()),
+ * which is the same from one build to the next, so that stored clauses
+ * do not share symbols with those of the formulas clausified later.
+ * A store of an earlier version, whose names were drawn otherwise, is emptied.
+ */
+public class ClausalFormStore implements Closeable
+{
+	private static final Logger logger = Logger.getLogger(ClausalFormStore.class.getName());
+
+	private static final int MAGIC = 0x53434653; // SCFS
+
+	private static final int VERSION = 2;
+
+	private static final int HEADER_SIZE = 8;
+
+	private final RandomAccessFile file;
+
+	/**
+	 * Fingerprint to offset of the record
+	 */
+	private final Map<Long, Long> index = new HashMap<>();
+
+	/**
+	 * Open or create a store
+	 *
+	 * @param path file
+	 * @throws IOException if the file cannot be opened or is not a store
+	 */
+	public ClausalFormStore(File path) throws IOException
+	{
+		file = new RandomAccessFile(path, "rw");
+		try
+		{
+			if (file.length() == 0)
+			{
+				file.writeInt(MAGIC);
+				file.writeInt(VERSION);
+			}
+			else
+			{
+				int version = file.length() < HEADER_SIZE || file.readInt() != MAGIC ? -1 : file.readInt();
+				if (version < 1 || version > VERSION)
+					throw new IOException("Not a clausal form store: " + path);
+				if (version < VERSION)
+				{
+					logger.warning("Emptying clausal form store of version " + version + ": " + path);
+					file.setLength(0);
+					file.writeInt(MAGIC);
+					file.writeInt(VERSION);
+				}
+			}
+			load();
+		}
+		catch (IOException ex)
+		{
+			file.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Scan the records and build the index, truncating the file after the last complete record.
+	 */
+	private void load() throws IOException
+	{
+		long length = file.length();
+		long offset = HEADER_SIZE;
+		while (offset < length)
+		{
+			file.seek(offset);
+			byte[] payload = readRecord(length - offset);
+			if (payload == null)
+			{
+				logger.warning("Discarding incomplete record at " + offset + " in clausal form store");
+				file.setLength(offset);
+				break;
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			long fingerprint = in.readLong();
+			if (!index.containsKey(fingerprint))
+				index.put(fingerprint, offset);
+			offset = file.getFilePointer();
+		}
+	}
+
+	/**
+	 * Read the record at the current position
+	 *
+	 * @param available number of bytes left in the file
+	 * @return payload, or null if the record is incomplete or corrupt
+	 */
+	private byte[] readRecord(long available) throws IOException
+	{
+		if (available < 8)
+			return null;
+		int size = file.readInt();
+		if (size < 8 || size > available - 8)
+			return null;
+		byte[] payload = new byte[size];
+		file.readFully(payload);
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		if (file.readInt() != (int) crc.getValue())
+			return null;
+		return payload;
+	}
+
+	/**
+	 * Key of a formula: its text with whitespace normalized outside strings
+	 *
+	 * @param text formula text
+	 * @return key
+	 */
+	public static String key(String text)
+	{
+		Term term = Term.parse(text);
+		return term == null ? text.trim() : term.toString();
+	}
+
+	/**
+	 * Stable 64-bit fingerprint (FNV-1a) of a key
+	 *
+	 * @param key key
+	 * @return fingerprint
+	 */
+	public static long fingerprint(String key)
+	{
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8))
+		{
+			hash ^= (b & 0xff);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Get the stored clausal form of a formula
+	 *
+	 * @param f formula
+	 * @return clauses, the formula and variable renamings as returned by
+	 * Clausifier.toNegAndPosLitsWithRenameInfo(), or null if not stored
+	 */
+	public synchronized Tuple.Triple<List<Clause>, Formula, Map<String, String>> get(Formula f)
+	{
+		String key = key(f.text);
+		Long offset = index.get(fingerprint(key));
+		if (offset == null)
+			return null;
+		try
+		{
+			file.seek(offset);
+			byte[] payload = readRecord(file.length() - offset);
+			if (payload == null)
+				return null;
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			in.readLong();
+			if (!key.equals(readString(in)))
+				return null;
+
+			Tuple.Triple<List<Clause>, Formula, Map<String, String>> result = new Tuple.Triple<>();
+			int clauseCount = in.readInt();
+			if (clauseCount >= 0)
+			{
+				result.first = new ArrayList<>(clauseCount);
+				for (int i = 0; i < clauseCount; i++)
+					result.first.add(new Clause(readLiterals(in), readLiterals(in)));
+			}
+			result.second = new Formula();
+			result.second.set(f.text);
+			int renameCount = in.readInt();
+			result.third = new HashMap<>();
+			for (int i = 0; i < renameCount; i++)
+				result.third.put(readString(in), readString(in));
+			return result;
+		}
+		catch (IOException ex)
+		{
+			logger.warning("Cannot read clausal form store: " + ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Store the clausal form of a formula, unless one is stored already
+	 *
+	 * @param f           formula
+	 * @param clausalForm clauses, the formula and variable renamings as returned by
+	 *                    Clausifier.toNegAndPosLitsWithRenameInfo(), with the naming
+	 *                    context of the formula
+	 */
+	public synchronized void put(Formula f, Tuple.Triple<List<Clause>, Formula, Map<String, String>> clausalForm)
+	{
+		String key = key(f.text);
+		long fingerprint = fingerprint(key);
+		if (index.containsKey(fingerprint))
+			return;
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeLong(fingerprint);
+			writeString(out, key);
+			if (clausalForm.first == null)
+				out.writeInt(-1);
+			else
+			{
+				out.writeInt(clausalForm.first.size());
+				for (Clause clause : clausalForm.first)
+				{
+					writeLiterals(out, clause.negativeLits);
+					writeLiterals(out, clause.positiveLits);
+				}
+			}
+			Map<String, String> renames = clausalForm.third == null ? new HashMap<>() : clausalForm.third;
+			out.writeInt(renames.size());
+			for (Map.Entry<String, String> entry : renames.entrySet())
+			{
+				writeString(out, entry.getKey());
+				writeString(out, entry.getValue());
+			}
+			out.flush();
+
+			byte[] payload = bytes.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			long offset = file.length();
+			file.seek(offset);
+			file.writeInt(payload.length);
+			file.write(payload);
+			file.writeInt((int) crc.getValue());
+			index.put(fingerprint, offset);
+		}
+		catch (IOException ex)
+		{
+			logger.warning("Cannot write clausal form store: " + ex);
+		}
+	}
+
+	/**
+	 * Number of clausal forms stored
+	 *
+	 * @return number of records
+	 */
+	public synchronized int size()
+	{
+		return index.size();
+	}
+
+	@Override public synchronized void close() throws IOException
+	{
+		file.close();
+	}
+
+	private static void writeLiterals(DataOutputStream out, List<Formula> literals) throws IOException
+	{
+		out.writeInt(literals.size());
+		for (Formula literal : literals)
+			writeString(out, literal.text);
+	}
+
+	private static List<Formula> readLiterals(DataInputStream in) throws IOException
+	{
+		int count = in.readInt();
+		List<Formula> result = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+		{
+			Formula literal = new Formula();
+			literal.set(readString(in));
+			result.add(literal);
+		}
+		return result;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		if (s == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,435 @@
+package com.articulate.sigma;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * An index of clauses for subsumption and duplicate detection.
+ * A clause C subsumes a clause D if there is a substitution s of the
+ * variables of C such that the literals of Cs are, as a multiset, among
+ * the literals of D with the same sign.  A subsumed clause is redundant
+ * and need not be given to a prover; two clauses that subsume each other
+ * are duplicates (variants).
+ * Clauses are stored in a feature vector index: a trie over vectors
+ * counting, for each sign, all literals and the literals whose predicate
+ * falls in each of a fixed number of hash buckets.  Subsumption can only
+ * hold if the features of C are, component by component, no greater than
+ * those of D, so that the candidate subsumers of a clause (forward
+ * subsumption) and the candidate clauses it subsumes (backward subsumption)
+ * are found by walking only the branches of the trie that can hold them.
+ * Candidates are then checked by matching.
+ */
+public class ClauseIndex
+{
+	private static final Logger logger = Logger.getLogger(ClauseIndex.class.getName());
+
+	// Number of predicate hash buckets per sign
+	private static final int BUCKETS = 16;
+
+	// Length of feature vectors
+	private static final int FEATURES = 2 + 2 * BUCKETS;
+
+	/**
+	 * An indexed clause
+	 */
+	public static class Entry
+	{
+		/**
+		 * The formula the clause comes from, may be null
+		 */
+		public final Formula formula;
+
+		/**
+		 * The clause
+		 */
+		public final Clause clause;
+
+		// Parsed literals
+		private final List<Term> negativeLits;
+
+		private final List<Term> positiveLits;
+
+		private final int[] features;
+
+		private Entry(Formula formula, Clause clause)
+		{
+			this.formula = formula;
+			this.clause = clause;
+			this.negativeLits = parse(clause.negativeLits);
+			this.positiveLits = parse(clause.positiveLits);
+			this.features = features(negativeLits, positiveLits);
+		}
+
+		/**
+		 * Number of literals
+		 *
+		 * @return number of negative and positive literals
+		 */
+		public int size()
+		{
+			return negativeLits.size() + positiveLits.size();
+		}
+
+		@Override public String toString()
+		{
+			return "-" + negativeLits + " +" + positiveLits;
+		}
+	}
+
+	/**
+	 * Trie node
+	 */
+	private static class Node
+	{
+		final TreeMap<Integer, Node> children = new TreeMap<>();
+
+		final List<Entry> entries = new ArrayList<>();
+	}
+
+	private final Node root = new Node();
+
+	private int size = 0;
+
+	// A D D / R E M O V E
+
+	/**
+	 * Add a clause
+	 *
+	 * @param formula formula the clause comes from, may be null
+	 * @param clause  clause
+	 * @return the index entry
+	 */
+	public Entry add(Formula formula, Clause clause)
+	{
+		Entry entry = new Entry(formula, clause);
+		insert(entry);
+		return entry;
+	}
+
+	private void insert(Entry entry)
+	{
+		Node node = root;
+		for (int feature : entry.features)
+			node = node.children.computeIfAbsent(feature, k -> new Node());
+		node.entries.add(entry);
+		size++;
+	}
+
+	/**
+	 * Remove an entry
+	 *
+	 * @param entry entry, as returned by add()
+	 * @return whether the entry was in the index
+	 */
+	public boolean remove(Entry entry)
+	{
+		Deque<Node> path = new ArrayDeque<>();
+		Node node = root;
+		for (int feature : entry.features)
+		{
+			path.push(node);
+			node = node.children.get(feature);
+			if (node == null)
+				return false;
+		}
+		if (!node.entries.remove(entry))
+			return false;
+		size--;
+
+		// Prune the branches left empty.
+		for (int i = FEATURES - 1; i >= 0 && node.entries.isEmpty() && node.children.isEmpty(); i--)
+		{
+			Node parent = path.pop();
+			parent.children.remove(entry.features[i]);
+			node = parent;
+		}
+		return true;
+	}
+
+	/**
+	 * Number of clauses
+	 *
+	 * @return number of clauses in the index
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	// S E A R C H
+
+	/**
+	 * Forward subsumption: find the indexed clauses that subsume a clause
+	 *
+	 * @param clause clause
+	 * @return entries whose clause subsumes the given clause
+	 */
+	public List<Entry> getSubsuming(Clause clause)
+	{
+		return getSubsuming(new Entry(null, clause));
+	}
+
+	private List<Entry> getSubsuming(Entry query)
+	{
+		List<Entry> result = new ArrayList<>();
+		collect(root, 0, query.features, true, candidate -> {
+			if (subsumes(candidate, query))
+				result.add(candidate);
+		});
+		return result;
+	}
+
+	/**
+	 * Backward subsumption: find the indexed clauses that a clause subsumes
+	 *
+	 * @param clause clause
+	 * @return entries whose clause is subsumed by the given clause
+	 */
+	public List<Entry> getSubsumed(Clause clause)
+	{
+		return getSubsumed(new Entry(null, clause));
+	}
+
+	private List<Entry> getSubsumed(Entry query)
+	{
+		List<Entry> result = new ArrayList<>();
+		collect(root, 0, query.features, false, candidate -> {
+			if (subsumes(query, candidate))
+				result.add(candidate);
+		});
+		return result;
+	}
+
+	/**
+	 * Find the indexed clauses that are variants of a clause
+	 *
+	 * @param clause clause
+	 * @return entries whose clause is equal to the given clause up to variable renaming
+	 */
+	public List<Entry> getDuplicates(Clause clause)
+	{
+		Entry query = new Entry(null, clause);
+		List<Entry> result = new ArrayList<>();
+		for (Entry candidate : getSubsuming(query))
+		{
+			if (candidate.size() == query.size() && subsumes(query, candidate))
+				result.add(candidate);
+		}
+		return result;
+	}
+
+	/**
+	 * Visit the entries whose features are all no greater (generalizations)
+	 * or all no smaller (instances) than the given ones
+	 */
+	private static void collect(Node node, int depth, int[] features, boolean generalizations, Consumer<Entry> consumer)
+	{
+		if (depth == FEATURES)
+		{
+			for (Entry entry : node.entries)
+				consumer.accept(entry);
+			return;
+		}
+		SortedMap<Integer, Node> children = generalizations ? node.children.headMap(features[depth], true) : node.children.tailMap(features[depth], true);
+		for (Node child : children.values())
+			collect(child, depth + 1, features, generalizations, consumer);
+	}
+
+	// B A T C H
+
+	/**
+	 * Clausify the formulas of a KB and prune the redundant clauses:
+	 * clauses are considered shortest first, a clause subsumed by a clause
+	 * already kept is dropped, and a kept clause drops the clauses it
+	 * subsumes.
+	 *
+	 * @param kb knowledge base
+	 * @return irredundant clauses, in the order of the KB formulas
+	 */
+	public static List<Entry> reduce(KB kb)
+	{
+		List<Entry> entries = new ArrayList<>();
+		for (Formula f : kb.formulaMap.values())
+		{
+			Tuple.Triple<List<Clause>, Formula, Map<String, String>> clausalForm = f.getClausalForm();
+			if (clausalForm == null || clausalForm.first == null)
+				continue;
+			for (Clause clause : clausalForm.first)
+				entries.add(new Entry(f, clause));
+		}
+		List<Entry> result = reduce(entries);
+		logger.info(result.size() + " irredundant clauses out of " + entries.size());
+		return result;
+	}
+
+	/**
+	 * Prune redundant clauses
+	 *
+	 * @param entries entries, typically not in any index
+	 * @return irredundant entries, in their original order
+	 */
+	private static List<Entry> reduce(List<Entry> entries)
+	{
+		List<Entry> sorted = new ArrayList<>(entries);
+		sorted.sort(Comparator.comparingInt(Entry::size));
+		ClauseIndex index = new ClauseIndex();
+		Set<Entry> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (Entry entry : sorted)
+		{
+			if (!index.getSubsuming(entry).isEmpty())
+				continue;
+			for (Entry subsumed : index.getSubsumed(entry))
+			{
+				index.remove(subsumed);
+				kept.remove(subsumed);
+			}
+			index.insert(entry);
+			kept.add(entry);
+		}
+		List<Entry> result = new ArrayList<>();
+		for (Entry entry : entries)
+		{
+			if (kept.contains(entry))
+				result.add(entry);
+		}
+		return result;
+	}
+
+	// S U B S U M P T I O N
+
+	/**
+	 * Test subsumption
+	 *
+	 * @param c clause
+	 * @param d clause
+	 * @return whether c subsumes d
+	 */
+	public static boolean subsumes(Clause c, Clause d)
+	{
+		return subsumes(new Entry(null, c), new Entry(null, d));
+	}
+
+	private static boolean subsumes(Entry c, Entry d)
+	{
+		for (int i = 0; i < FEATURES; i++)
+		{
+			if (c.features[i] > d.features[i])
+				return false;
+		}
+		List<Term> cLits = new ArrayList<>(c.negativeLits.size() + c.positiveLits.size());
+		List<Term> dLits = new ArrayList<>(cLits.size());
+		cLits.addAll(c.negativeLits);
+		cLits.addAll(c.positiveLits);
+		dLits.addAll(d.negativeLits);
+		dLits.addAll(d.positiveLits);
+		return subsumes(cLits, c.negativeLits.size(), dLits, d.negativeLits.size(), 0, new boolean[dLits.size()], new HashMap<>());
+	}
+
+	/**
+	 * Backtracking search for an injective mapping of the literals of c
+	 * from index i onwards to unused literals of d with the same sign
+	 */
+	private static boolean subsumes(List<Term> cLits, int cNeg, List<Term> dLits, int dNeg, int i, boolean[] used, Map<String, Term> bindings)
+	{
+		if (i == cLits.size())
+			return true;
+		boolean negative = i < cNeg;
+		int from = negative ? 0 : dNeg;
+		int to = negative ? dNeg : dLits.size();
+		for (int j = from; j < to; j++)
+		{
+			if (used[j])
+				continue;
+			List<String> trail = new ArrayList<>();
+			if (match(cLits.get(i), dLits.get(j), bindings, trail))
+			{
+				used[j] = true;
+				if (subsumes(cLits, cNeg, dLits, dNeg, i + 1, used, bindings))
+					return true;
+				used[j] = false;
+			}
+			for (String var : trail)
+				bindings.remove(var);
+		}
+		return false;
+	}
+
+	/**
+	 * One-way matching: bind the variables of a pattern so that it equals a target
+	 *
+	 * @param pattern  pattern
+	 * @param target   target, whose variables are treated as constants
+	 * @param bindings bindings, extended on success
+	 * @param trail    receives the variables bound by this call
+	 * @return whether the pattern matches
+	 */
+	private static boolean match(Term pattern, Term target, Map<String, Term> bindings, List<String> trail)
+	{
+		if (pattern.isVariable())
+		{
+			Term bound = bindings.get(pattern.getAtom());
+			if (bound != null)
+				return bound.equals(target);
+			bindings.put(pattern.getAtom(), target);
+			trail.add(pattern.getAtom());
+			return true;
+		}
+		if (pattern.isAtom())
+			return pattern.equals(target);
+		if (!target.isList() || pattern.size() != target.size())
+			return false;
+		for (int i = 0; i < pattern.size(); i++)
+		{
+			if (!match(pattern.get(i), target.get(i), bindings, trail))
+				return false;
+		}
+		return true;
+	}
+
+	// F E A T U R E S
+
+	private static List<Term> parse(List<Formula> literals)
+	{
+		List<Term> result = new ArrayList<>(literals.size());
+		for (Formula literal : literals)
+		{
+			Term term = Term.parse(literal.text);
+			result.add(term == null ? Term.EMPTY : term);
+		}
+		return result;
+	}
+
+	private static int[] features(List<Term> negativeLits, List<Term> positiveLits)
+	{
+		int[] result = new int[FEATURES];
+		result[0] = positiveLits.size();
+		result[1] = negativeLits.size();
+		for (Term lit : positiveLits)
+		{
+			int bucket = bucket(lit);
+			if (bucket >= 0)
+				result[2 + bucket]++;
+		}
+		for (Term lit : negativeLits)
+		{
+			int bucket = bucket(lit);
+			if (bucket >= 0)
+				result[2 + BUCKETS + bucket]++;
+		}
+		return result;
+	}
+
+	/**
+	 * Hash bucket of the predicate of a literal
+	 *
+	 * @return bucket, -1 if the predicate is a variable or not an atom
+	 */
+	private static int bucket(Term lit)
+	{
+		String predicate = lit.isAtom() ? lit.getAtom() : lit.head();
+		if (predicate == null || Formula.isVariable(predicate))
+			return -1;
+		return (predicate.hashCode() & 0x7fffffff) % BUCKETS;
+	}
+}
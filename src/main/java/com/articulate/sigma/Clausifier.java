@@ -1,12 +1,12 @@
 /* This code is copyright Articulate Software (c) 2003.
 This software is released under the GNU Public License <http://www.gnu.org/copyleft/gpl.html>.
 Users of this code are also requested, to credit Articulate Software in any
-writings, briefings, publications, presentations, or 
+writings, briefings, publications, presentations, or
 other representations of any software which incorporates,
 builds on, or uses this code. Please cite the following
 article in any publication with references:
 
-Pease, A., (2003). The Sigma Ontology Development Environment, 
+Pease, A., (2003). The Sigma Ontology Development Environment,
 in Working Notes of the IJCAI-2003 Workshop on Ontology and Distributed Systems,
 August 9, Acapulco, Mexico.  See also http://sigmakee.sourceforge.net
 */
@@ -14,6 +14,7 @@ August 9, Acapulco, Mexico.  See also http://sigmakee.sourceforge.net
 package com.articulate.sigma;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The code in the section below implements an algorithm for
@@ -25,26 +26,222 @@ import java.util.*;
  * The result is a single formula in conjunctive normal form
  * (CNF), which is actually a set of (possibly negated) clauses
  * surrounded by an "or".
+ * The formula is parsed once into a Term tree, all the stages work
+ * on the tree, and the result is serialized at the end.
+ * Optionally, subformulas whose distribution would yield more clauses
+ * than a threshold are replaced by definitional literals (structure
+ * preserving, or Tseitin, CNF), so that the number of clauses grows
+ * linearly rather than exponentially.
  */
 public class Clausifier
 {
-	private Formula formula;
+	private final Formula formula;
 
-	// This static variable holds the int value that is used to generate unique variable names.
-	private static int VAR_INDEX = 0;
+	// The naming context shared by variable renamings, whose new variables are unique across formulas.
+	private static final Naming SHARED_NAMING = new Naming();
 
-	// This static variable holds the int value that is used to generate unique Skolem terms.
-	private static int SKOLEM_INDEX = 0;
+	// The source of new variable names and Skolem terms.
+	private final Naming naming;
+
+	// The number of clauses a disjunction may expand to before its conjunctive subformulas are named, 0 for no limit.
+	private final int definitionThreshold;
 
 	/**
-	 * Constructor
+	 * Source of unique variable names and Skolem terms.  Each
+	 * clausification draws its names from a naming context.  Contexts
+	 * are thread-safe, and a context given a scope makes Skolem terms
+	 * that cannot collide with those of another scope, so that formulas
+	 * clausified concurrently with contexts of their own get the same
+	 * names whatever the order they are run in.
+	 */
+	public static class Naming
+	{
+		// The int value that is used to generate unique variable names.
+		private final AtomicInteger varIndex = new AtomicInteger();
+
+		// The int value that is used to generate unique Skolem terms.
+		private final AtomicInteger skolemIndex = new AtomicInteger();
+
+		// The int value that is used to generate unique definitional predicates.
+		private final AtomicInteger definitionIndex = new AtomicInteger();
+
+		// Prefix to Skolem term indexes.
+		private final String scope;
+
+		/**
+		 * Constructor for an unscoped context
+		 */
+		public Naming()
+		{
+			this("");
+		}
+
+		/**
+		 * Constructor
+		 *
+		 * @param scope scope, such as the fingerprint of the formula, that prefixes Skolem term indexes (Sk12_1, (SkFn 12_2 ?X))
+		 */
+		public Naming(String scope)
+		{
+			this.scope = isNonEmpty(scope) ? scope + "_" : "";
+		}
+
+		/**
+		 * Naming context of a formula, scoped by the fingerprint of its
+		 * text, so that the formula gets the same Skolem terms and
+		 * definitional literals whatever the other formulas clausified,
+		 * from one build or process to the next
+		 *
+		 * @param text formula text
+		 * @return naming context
+		 */
+		public static Naming forFormula(String text)
+		{
+			return new Naming(Long.toUnsignedString(ClausalFormStore.fingerprint(ClausalFormStore.key(text))));
+		}
+
+		/**
+		 * This method increments an index and then returns the new int
+		 * value.  If the index is already at Integer.MAX_VALUE, then
+		 * it is reset to 0.
+		 *
+		 * @return An int value between 0 and Integer.MAX_VALUE inclusive.
+		 */
+		private static int inc(AtomicInteger index)
+		{
+			return index.updateAndGet(i -> i == Integer.MAX_VALUE ? 0 : i + 1);
+		}
+
+		/**
+		 * This method returns a new SUO-KIF variable String, modifying
+		 * any digit suffix to ensure that the variable will be unique.
+		 *
+		 * @param prefix An optional variable prefix string.
+		 * @return A new SUO-KIF variable.
+		 */
+		private String newVar(@SuppressWarnings("SameParameterValue") String prefix)
+		{
+			String base = Formula.VX;
+			String varIdx = Integer.toString(inc(varIndex));
+			if (isNonEmpty(prefix))
+			{
+				List<String> woDigitSuffix = KB.getMatches(prefix, "var_with_digit_suffix");
+				if (woDigitSuffix != null)
+					base = woDigitSuffix.get(0);
+				else if (prefix.startsWith(Formula.RVAR))
+					base = Formula.RVAR;
+				else if (prefix.startsWith(Formula.VX))
+					base = Formula.VX;
+				else
+					base = prefix;
+				if (!(base.startsWith(Formula.V_PREF) || base.startsWith(Formula.R_PREF)))
+					base = (Formula.V_PREF + base);
+			}
+			return (base + varIdx);
+		}
+
+		/**
+		 * This method returns a new SUO-KIF variable String, adding a
+		 * digit suffix to ensure that the variable will be unique.
+		 *
+		 * @return A new SUO-KIF variable
+		 */
+		public String newVar()
+		{
+			return newVar(null);
+		}
+
+		/**
+		 * This method returns a new, unique skolem term with each
+		 * invocation.
+		 *
+		 * @param vars A sorted SortedSet of the universally quantified
+		 *             variables that potentially define the skolem term.  The set may
+		 *             be empty.
+		 * @return A Term.  The term will be a skolem functional term
+		 * (a list) if vars contains variables.  Otherwise, it will be an
+		 * atomic constant.
+		 */
+		public Term newSkolemTerm(SortedSet<String> vars)
+		{
+			String idx = scope + inc(skolemIndex);
+			if ((vars != null) && !vars.isEmpty())
+			{
+				List<Term> elements = new ArrayList<>(vars.size() + 2);
+				elements.add(Term.atom(Formula.SKFN));
+				elements.add(Term.atom(idx));
+				for (String var : vars)
+				{
+					elements.add(Term.atom(var));
+				}
+				return Term.list(elements);
+			}
+			return Term.atom(Formula.SK_PREF + idx);
+		}
+
+		/**
+		 * This method returns a new, unique definitional literal with
+		 * each invocation.
+		 *
+		 * @param vars A sorted SortedSet of the variables of the
+		 *             subformula the literal stands for.  The set may be empty.
+		 * @return A Term.  The term will be a list whose head is a new
+		 * predicate if vars contains variables.  Otherwise, it will be an
+		 * atomic constant.
+		 */
+		public Term newDefinition(SortedSet<String> vars)
+		{
+			Term predicate = Term.atom(Formula.DEF_PREF + scope + inc(definitionIndex));
+			if ((vars != null) && !vars.isEmpty())
+			{
+				List<Term> elements = new ArrayList<>(vars.size() + 1);
+				elements.add(predicate);
+				for (String var : vars)
+				{
+					elements.add(Term.atom(var));
+				}
+				return Term.list(elements);
+			}
+			return predicate;
+		}
+	}
+
+	/**
+	 * Constructor, with the naming context of the formula, so that
+	 * clausifying the same formula always yields the same Skolem terms
 	 *
 	 * @param s formula string
 	 */
 	public Clausifier(String s)
+	{
+		this(s, Naming.forFormula(s));
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param s      formula string
+	 * @param naming naming context new variables and Skolem terms are drawn from
+	 */
+	public Clausifier(String s, Naming naming)
+	{
+		this(s, naming, 0);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param s                   formula string
+	 * @param naming              naming context new variables, Skolem terms and definitional literals are drawn from
+	 * @param definitionThreshold number of clauses a disjunction may expand to before its conjunctive
+	 *                            subformulas are replaced by definitional literals, 0 to always distribute
+	 */
+	public Clausifier(String s, Naming naming, int definitionThreshold)
 	{
 		formula = new Formula();
 		formula.set(s);
+		this.naming = naming;
+		this.definitionThreshold = definitionThreshold;
 	}
 
 	/**
@@ -60,27 +257,54 @@ public class Clausifier
 	 * cannot be generated.
 	 */
 	public Tuple.Triple<Formula, Formula, Map<String, String>> clausifyWithRenameInfo()
+	{
+		Tuple.Triple<Term, Formula, Map<String, String>> clausesWithRenameInfo = clausifyTree();
+		Tuple.Triple<Formula, Formula, Map<String, String>> result = new Tuple.Triple<>();
+		if (clausesWithRenameInfo.first != null)
+			result.first = clausesWithRenameInfo.first.toFormula();
+		else if (clausesWithRenameInfo.second != null)
+		{
+			result.first = new Formula();
+			result.first.set(formula.text);
+		}
+		result.second = clausesWithRenameInfo.second;
+		result.third = clausesWithRenameInfo.third;
+		return result;
+	}
+
+	/**
+	 * Clausify to a tree
+	 *
+	 * @return the clausal-form Term (null if the formula is empty), the original Formula, and the variable rename map.
+	 */
+	private Tuple.Triple<Term, Formula, Map<String, String>> clausifyTree()
 	{
 		Formula old = new Formula();
 		old.text = formula.text;
-		Tuple.Triple<Formula, Formula, Map<String, String>> result = new Tuple.Triple<>();
+		Tuple.Triple<Term, Formula, Map<String, String>> result = new Tuple.Triple<>();
 		try
 		{
 			Map<String, String> topLevelVars = new HashMap<>();
 			Map<String, String> scopedRenames = new HashMap<>();
 			Map<String, String> allRenames = new HashMap<>();
 			Map<String, String> standardizedRenames = new HashMap<>();
-			formula = equivalencesOut();
-			formula = implicationsOut();
-			formula = negationsIn();
-			formula = renameVariables(topLevelVars, scopedRenames, allRenames);
-			formula = existentialsOut();
-			formula = universalsOut();
-			formula = disjunctionsIn();
-			formula = standardizeApart(standardizedRenames);
-			allRenames.putAll(standardizedRenames);
-
-			result.first = formula;
+			Term term = Term.parse(formula.text);
+			if (term != null)
+			{
+				term = equivalencesOut(term);
+				term = implicationsOut(term);
+				term = negationsIn(term);
+				term = renameVariables(term, topLevelVars, scopedRenames, allRenames);
+				term = existentialsOut(term);
+				term = universalsOut(term);
+				if (definitionThreshold > 0)
+					term = definitionsOut(term, allRenames);
+				term = disjunctionsIn(term);
+				term = standardizeApart(term, standardizedRenames);
+				allRenames.putAll(standardizedRenames);
+			}
+
+			result.first = term;
 			result.second = old;
 			result.third = allRenames;
 			// resetClausifyIndices();
@@ -138,49 +362,42 @@ public class Clausifier
 		Tuple.Triple<List<Clause>, Formula, Map<String, String>> result = new Tuple.Triple<>();
 		try
 		{
-			Tuple.Triple<Formula, Formula, Map<String, String>> clausesWithRenameInfo = this.clausifyWithRenameInfo();
+			Tuple.Triple<Term, Formula, Map<String, String>> clausesWithRenameInfo = clausifyTree();
 
-			Formula clausalForm = clausesWithRenameInfo.first;
-			Clausifier clausifier = new Clausifier(clausalForm.text);
-			List<Formula> clauses = clausifier.operatorsOut();
+			Term clausalForm = clausesWithRenameInfo.first;
+			List<List<Term>> clauses = operatorsOut(clausalForm);
 			if (!clauses.isEmpty())
 			{
 				List<Clause> newClauses = new ArrayList<>();
-				for (Formula clause : clauses)
+				for (List<Term> clause : clauses)
 				{
 					Clause literals = new Clause();
-					if (clause.listP())
+					for (Term lit : clause)
 					{
-						while (!clause.empty())
+						boolean isNegLit = false;
+						if (lit.isHead(Formula.NOT))
 						{
-							boolean isNegLit = false;
-							String lit = clause.car();
-							Formula litF = new Formula();
-							litF.set(lit);
-							if (litF.listP() && litF.car().equals(Formula.NOT))
-							{
-								litF.set(litF.cadr());
-								isNegLit = true;
-							}
-							if (litF.text.equals(Formula.LOG_FALSE))
-								isNegLit = true;
-							if (isNegLit)
-								literals.negativeLits.add(litF);
-							else
-								literals.positiveLits.add(litF);
-							clause = clause.cdrAsFormula();
+							lit = lit.size() > 1 ? lit.get(1) : Term.atom("");
+							isNegLit = true;
 						}
+						if (Formula.LOG_FALSE.equals(lit.getAtom()))
+							isNegLit = true;
+						if (isNegLit)
+							literals.negativeLits.add(lit.toFormula());
+						else
+							literals.positiveLits.add(lit.toFormula());
 					}
-					else if (clause.text.equals(Formula.LOG_FALSE))
-						literals.negativeLits.add(clause);
-					else
-						literals.positiveLits.add(clause);
 					newClauses.add(literals);
 				}
 				// Collections.sort(negLits);
 				// Collections.sort(posLits);
 				result.first = newClauses;
 			}
+			else if (isNonEmpty(formula.text))
+			{
+				// blank text: a single clause without literals
+				result.first = new ArrayList<>(Collections.singletonList(new Clause()));
+			}
 			result.second = clausesWithRenameInfo.second;
 			result.third = clausesWithRenameInfo.third;
 		}
@@ -192,7 +409,8 @@ public class Clausifier
 	}
 
 	/**
-	 * Convenience method
+	 * Convenience method, with the naming context of the formula, so
+	 * that the same formula always yields the same clauses
 	 *
 	 * @param f formula
 	 * @return A three-element tuple,
@@ -221,7 +439,35 @@ public class Clausifier
 	 */
 	public static Tuple.Triple<List<Clause>, Formula, Map<String, String>> toNegAndPosLitsWithRenameInfo(Formula f)
 	{
-		Clausifier clausifier = new Clausifier(f.text);
+		return toNegAndPosLitsWithRenameInfo(f, Naming.forFormula(f.text));
+	}
+
+	/**
+	 * Convenience method
+	 *
+	 * @param f      formula
+	 * @param naming naming context new variables and Skolem terms are drawn from
+	 * @return A three-element tuple: clauses, the original Formula, a Map of variable renamings,
+	 * as in toNegAndPosLitsWithRenameInfo(Formula)
+	 */
+	public static Tuple.Triple<List<Clause>, Formula, Map<String, String>> toNegAndPosLitsWithRenameInfo(Formula f, Naming naming)
+	{
+		return toNegAndPosLitsWithRenameInfo(f, naming, 0);
+	}
+
+	/**
+	 * Convenience method
+	 *
+	 * @param f                   formula
+	 * @param naming              naming context new variables, Skolem terms and definitional literals are drawn from
+	 * @param definitionThreshold number of clauses a disjunction may expand to before its conjunctive
+	 *                            subformulas are replaced by definitional literals, 0 to always distribute
+	 * @return A three-element tuple: clauses, the original Formula, a Map of variable renamings
+	 * and of definitional predicates to the subformulas they stand for
+	 */
+	public static Tuple.Triple<List<Clause>, Formula, Map<String, String>> toNegAndPosLitsWithRenameInfo(Formula f, Naming naming, int definitionThreshold)
+	{
+		Clausifier clausifier = new Clausifier(f.text, naming, definitionThreshold);
 		return clausifier.toNegAndPosLitsWithRenameInfo();
 	}
 
@@ -262,9 +508,17 @@ public class Clausifier
 		String result = input;
 		try
 		{
-			int[] idxs = { 1, 1 };
-			Map<String, String> varMap = new HashMap<>();
-			result = normalizeVariables_1(input, idxs, varMap, replaceSkolemTerms);
+			Term term = Term.parse(input);
+			if (term != null)
+			{
+				int[] idxs = { 1, 1 };
+				Map<String, String> varMap = new HashMap<>();
+				StringBuilder sb = new StringBuilder();
+				normalizeVariables_1(term, idxs, varMap, replaceSkolemTerms, sb);
+				result = sb.toString();
+			}
+			else if (input != null)
+				result = input.trim();
 		}
 		catch (Exception ex)
 		{
@@ -276,7 +530,7 @@ public class Clausifier
 	/**
 	 * An internal helper method for normalizeVariables(String input).
 	 *
-	 * @param input              A String possibly containing variables to be
+	 * @param term               A Term possibly containing variables to be
 	 *                           normalized
 	 * @param idxs               A two-place int[] in which int[0] is the current
 	 *                           variable index, and int[1] is the current row variable index
@@ -285,147 +539,124 @@ public class Clausifier
 	 * @param replaceSkolemTerms If true, all Skolem terms in input
 	 *                           are treated as variables and are replaced with normalized
 	 *                           variable terms
-	 * @return A String, typically a representing a SUO-KIF Formula or part of a Formula.
+	 * @param sb                 A StringBuilder the normalized text is appended to
 	 */
-	protected static String normalizeVariables_1(String input, int[] idxs, Map<String, String> varMap, boolean replaceSkolemTerms)
+	private static void normalizeVariables_1(Term term, int[] idxs, Map<String, String> varMap, boolean replaceSkolemTerms, StringBuilder sb)
 	{
-		String result = "";
-		try
+		String vBase = Formula.VVAR;
+		String rvBase = (Formula.RVAR + "VAR");
+		if (term.isAtom())
 		{
-			String vBase = Formula.VVAR;
-			String rvBase = (Formula.RVAR + "VAR");
-			StringBuilder sb = new StringBuilder();
-			String fList = input.trim();
-			boolean isSkolem = Formula.isSkolemTerm(fList);
-			if ((replaceSkolemTerms && isSkolem) || Formula.isVariable(fList))
+			String atom = term.getAtom();
+			boolean isSkolem = replaceSkolemTerms && Formula.isSkolemTerm(atom);
+			if (isSkolem || Formula.isVariable(atom))
 			{
-				String newVar = varMap.get(fList);
+				String newVar = varMap.get(atom);
 				if (newVar == null)
 				{
-					newVar = ((fList.startsWith(Formula.V_PREF) || isSkolem) ? (vBase + idxs[0]++) : (rvBase + idxs[1]++));
-					varMap.put(fList, newVar);
+					newVar = ((atom.startsWith(Formula.V_PREF) || isSkolem) ? (vBase + idxs[0]++) : (rvBase + idxs[1]++));
+					varMap.put(atom, newVar);
 				}
 				sb.append(newVar);
 			}
-			else if (Formula.listP(fList))
+			else
+				sb.append(atom);
+		}
+		else
+		{
+			sb.append(Formula.LP);
+			int i = 0;
+			for (Term element : term.elements())
 			{
-				if (Formula.empty(fList))
-					sb.append(fList);
-				else
-				{
-					Formula f = new Formula();
-					f.set(fList);
-
-					List<String> tuple = f.literalToList();
-					sb.append(Formula.LP);
-					int i = 0;
-					for (String s : tuple)
-					{
-						if (i > 0)
-							sb.append(Formula.SPACE);
-						sb.append(normalizeVariables_1(s, idxs, varMap, replaceSkolemTerms));
-						i++;
-					}
-					sb.append(Formula.RP);
-				}
+				if (i > 0)
+					sb.append(Formula.SPACE);
+				normalizeVariables_1(element, idxs, varMap, replaceSkolemTerms, sb);
+				i++;
 			}
-			else
-				sb.append(fList);
-			result = sb.toString();
+			sb.append(Formula.RP);
 		}
-		catch (Exception ex)
+	}
+
+	/**
+	 * Apply a stage to every element of a list
+	 *
+	 * @param term  list
+	 * @param stage stage
+	 * @return new list, or the same list if no element changed
+	 */
+	private static Term map(Term term, Stage stage)
+	{
+		List<Term> elements = term.elements();
+		List<Term> newElements = null;
+		for (int i = 0; i < elements.size(); i++)
 		{
-			ex.printStackTrace();
+			Term element = elements.get(i);
+			Term newElement = stage.apply(element);
+			if (newElement != element && newElements == null)
+				newElements = new ArrayList<>(elements.subList(0, i));
+			if (newElements != null)
+				newElements.add(newElement);
 		}
-		return result;
+		return newElements == null ? term : Term.list(newElements);
+	}
+
+	/**
+	 * A rewriting stage
+	 */
+	private interface Stage
+	{
+		Term apply(Term term);
+	}
+
+	/**
+	 * Element of a list, as in cadr() or caddr(), which is an empty atom if there is none.
+	 */
+	private static Term arg(Term term, int i)
+	{
+		Term result = term.get(i);
+		return result == null ? Term.atom("") : result;
 	}
 
 	/**
 	 * This method converts every occurrence of '<=>' in the Formula
 	 * to a conjunct with two occurrences of '=>'.
 	 *
-	 * @return A Formula with no occurrences of '<=>'.
+	 * @return A Term with no occurrences of '<=>'.
 	 */
-	private Formula equivalencesOut()
+	private static Term equivalencesOut(Term term)
 	{
-		Formula result = formula;
-		if (formula.listP() && !(formula.empty()))
+		if (term.isList() && !term.isEmpty())
 		{
-			String head = formula.car();
-			String newFStr;
-			if (isNonEmpty(head) && Formula.listP(head))
-			{
-				Clausifier headF = new Clausifier(head);
-				String newHead = headF.equivalencesOut().text;
-				Clausifier clausifier = new Clausifier(formula.cdr());
-				newFStr = clausifier.equivalencesOut().cons(newHead).text;
-			}
-			else if (head.equals(Formula.IFF))
-			{
-				String second = formula.cadr();
-				Clausifier secondF = new Clausifier(second);
-				String newSecond = secondF.equivalencesOut().text;
-				String third = formula.caddr();
-				Clausifier thirdF = new Clausifier(third);
-				String newThird = thirdF.equivalencesOut().text;
-				newFStr = ("(and (=> " + newSecond + " " + newThird + ") (=> " + newThird + " " + newSecond + "))");
-			}
-			else
-			{
-				Clausifier fourth = new Clausifier(formula.cdrAsFormula().text);
-				newFStr = fourth.equivalencesOut().cons(head).text;
-			}
-			if (newFStr != null)
+			if (term.isHead(Formula.IFF))
 			{
-				result = new Formula();
-				result.set(newFStr);
+				Term newSecond = equivalencesOut(arg(term, 1));
+				Term newThird = equivalencesOut(arg(term, 2));
+				return Term.list(Term.atom(Formula.AND), Term.list(Term.atom(Formula.IF), newSecond, newThird), Term.list(Term.atom(Formula.IF), newThird, newSecond));
 			}
+			return map(term, Clausifier::equivalencesOut);
 		}
-		return result;
+		return term;
 	}
 
 	/**
 	 * This method converts every occurrence of '(=> LHS RHS' in the
 	 * Formula to a disjunct of the form '(or (not LHS) RHS)'.
 	 *
-	 * @return A Formula with no occurrences of '=>'.
+	 * @return A Term with no occurrences of '=>'.
 	 */
-	private Formula implicationsOut()
+	private static Term implicationsOut(Term term)
 	{
-		Formula result = formula;
-		String newFStr;
-		if (formula.listP() && !formula.empty())
+		if (term.isList() && !term.isEmpty())
 		{
-			String head = formula.car();
-			if (isNonEmpty(head) && Formula.listP(head))
+			if (term.isHead(Formula.IF))
 			{
-				Clausifier headF = new Clausifier(head);
-				String newHead = headF.implicationsOut().text;
-				Clausifier clausifier = new Clausifier(formula.cdr());
-				newFStr = clausifier.implicationsOut().cons(newHead).text;
-			}
-			else if (head.equals(Formula.IF))
-			{
-				String second = formula.cadr();
-				Clausifier secondF = new Clausifier(second);
-				String newSecond = secondF.implicationsOut().text;
-				String third = formula.caddr();
-				Clausifier thirdF = new Clausifier(third);
-				String newThird = thirdF.implicationsOut().text;
-				newFStr = "(or (not " + newSecond + ") " + newThird + ")";
-			}
-			else
-			{
-				Clausifier fourth = new Clausifier(formula.cdrAsFormula().text);
-				newFStr = fourth.implicationsOut().cons(head).text;
-			}
-			if (newFStr != null)
-			{
-				result = new Formula();
-				result.set(newFStr);
+				Term newSecond = implicationsOut(arg(term, 1));
+				Term newThird = implicationsOut(arg(term, 2));
+				return Term.list(Term.atom(Formula.OR), Term.list(Term.atom(Formula.NOT), newSecond), newThird);
 			}
+			return map(term, Clausifier::implicationsOut);
 		}
-		return result;
+		return term;
 	}
 
 	/**
@@ -433,15 +664,15 @@ public class Clausifier
 	 * occurrence has the narrowest possible scope, and also removes
 	 * from the Formula all occurrences of '(not (not ...))'.
 	 *
-	 * @return A Formula with all occurrences of 'not' accorded
+	 * @return A Term with all occurrences of 'not' accorded
 	 * narrowest scope, and no occurrences of '(not (not ...))'.
 	 */
-	private Formula negationsIn()
+	private static Term negationsIn(Term term)
 	{
-		Formula f = formula;
-		Formula result = negationsIn_1();
+		Term f = term;
+		Term result = negationsIn_1(term);
 		// Here we repeatedly apply negationsIn_1() until there are no more changes.
-		while (!f.text.equals(result.text))
+		while (!f.equals(result))
 		{
 			f = result;
 			result = negationsIn_1(f);
@@ -455,214 +686,50 @@ public class Clausifier
 	 * narrowest possible scope, and also removes from the Formula all
 	 * occurrences of '(not (not ...))'.
 	 *
-	 * @return A Formula with all occurrences of 'not' accorded
+	 * @return A Term with all occurrences of 'not' accorded
 	 * narrowest scope, and no occurrences of '(not (not ...))'.
 	 */
-	private Formula negationsIn_1()
+	private static Term negationsIn_1(Term term)
 	{
-		try
+		if (term.isList())
 		{
-			if (formula.listP())
+			if (term.isEmpty())
 			{
-				if (formula.empty())
+				return term;
+			}
+			String arg0 = term.head();
+			Term arg1 = arg(term, 1);
+			if (Formula.NOT.equals(arg0) && arg1.isList())
+			{
+				String arg0_of_arg1 = arg1.head();
+				if (Formula.NOT.equals(arg0_of_arg1))
 				{
-					return formula;
+					return arg(arg1, 1);
 				}
-				String arg0 = formula.car();
-				String arg1 = formula.cadr();
-				if (arg0.equals(Formula.NOT) && Formula.listP(arg1))
+				if (Formula.isCommutative(arg0_of_arg1))
 				{
-					Formula arg1F = new Formula();
-					arg1F.set(arg1);
-					String arg0_of_arg1 = arg1F.car();
-					if (arg0_of_arg1.equals(Formula.NOT))
-					{
-						String arg1_of_arg1 = arg1F.cadr();
-						Formula arg1_of_arg1F = new Formula();
-						arg1_of_arg1F.set(arg1_of_arg1);
-						return arg1_of_arg1F;
-					}
-					if (Formula.isCommutative(arg0_of_arg1))
-					{
-						String newOp = (arg0_of_arg1.equals(Formula.AND) ? Formula.OR : Formula.AND);
-						return listAll(arg1F.cdrAsFormula(), "(not ", ")").cons(newOp);
-					}
-					if (Formula.isQuantifier(arg0_of_arg1))
-					{
-						String vars = arg1F.cadr();
-						String arg2_of_arg1 = arg1F.caddr();
-						String quant = (arg0_of_arg1.equals(Formula.UQUANT) ? Formula.EQUANT : Formula.UQUANT);
-						arg2_of_arg1 = ("(not " + arg2_of_arg1 + ")");
-						Formula arg2_of_arg1F = new Formula();
-						arg2_of_arg1F.set(arg2_of_arg1);
-						String newFStr = ("(" + quant + " " + vars + " " + negationsIn_1(arg2_of_arg1F).text + ")");
-						Formula newF = new Formula();
-						newF.set(newFStr);
-						return newF;
-					}
-					String newFStr = ("(not " + negationsIn_1(arg1F).text + ")");
-					Formula newF = new Formula();
-					newF.set(newFStr);
-					return newF;
-				}
-				if (Formula.isQuantifier(arg0))
-				{
-					String arg2 = formula.caddr();
-					Formula arg2F = new Formula();
-					arg2F.set(arg2);
-					String newArg2 = negationsIn_1(arg2F).text;
-					String newFStr = ("(" + arg0 + " " + arg1 + " " + newArg2 + ")");
-					Formula newF = new Formula();
-					newF.set(newFStr);
-					return newF;
+					String newOp = (arg0_of_arg1.equals(Formula.AND) ? Formula.OR : Formula.AND);
+					List<Term> negated = new ArrayList<>();
+					for (Term element : arg1.rest())
+						negated.add(Term.list(Term.atom(Formula.NOT), element));
+					return Term.list(newOp, negated);
 				}
-				if (Formula.listP(arg0))
+				if (Formula.isQuantifier(arg0_of_arg1))
 				{
-					Formula arg0F = new Formula();
-					arg0F.set(arg0);
-					return negationsIn_1(formula.cdrAsFormula()).cons(negationsIn_1(arg0F).text);
+					Term vars = arg(arg1, 1);
+					Term arg2_of_arg1 = Term.list(Term.atom(Formula.NOT), arg(arg1, 2));
+					String quant = (arg0_of_arg1.equals(Formula.UQUANT) ? Formula.EQUANT : Formula.UQUANT);
+					return Term.list(Term.atom(quant), vars, negationsIn_1(arg2_of_arg1));
 				}
-				return negationsIn_1(formula.cdrAsFormula()).cons(arg0);
-			}
-		}
-		catch (Exception ex)
-		{
-			ex.printStackTrace();
-		}
-		return formula;
-	}
-
-	/**
-	 * convenience method
-	 */
-	private static Formula negationsIn_1(Formula f)
-	{
-		Clausifier temp = new Clausifier(f.text);
-		return temp.negationsIn_1();
-	}
-
-	/**
-	 * This method augments each element of the Formula by
-	 * concatenating optional Strings before and after the element.
-	 * Note that in most cases the input Formula will be simply a
-	 * list, not a well-formed SUO-KIF Formula, and that the output
-	 * will therefore not necessarily be a well-formed Formula.
-	 *
-	 * @param before A String that, if present, is prepended to every
-	 *               element of the Formula.
-	 * @param after  A String that, if present, is postpended to every
-	 *               element of the Formula.
-	 * @return A Formula, or, more likely, simply a list, with the
-	 * String values corresponding to before and after added to each
-	 * element.
-	 */
-	private Formula listAll(String before, String after)
-	{
-		Formula result = formula;
-		if (formula.listP())
-		{
-			StringBuilder sb = new StringBuilder();
-			Formula f = formula;
-			while (!(f.empty()))
-			{
-				String element = f.car();
-				if (isNonEmpty(before))
-					element = (before + element);
-				if (isNonEmpty(after))
-					element += after;
-				sb.append(Formula.SPACE).append(element);
-				f = f.cdrAsFormula();
+				return Term.list(Term.atom(Formula.NOT), negationsIn_1(arg1));
 			}
-			sb = new StringBuilder((Formula.LP + sb.toString().trim() + Formula.RP));
-			if (isNonEmpty(sb.toString()))
+			if (Formula.isQuantifier(arg0))
 			{
-				result = new Formula();
-				result.set(sb.toString());
+				return Term.list(Term.atom(arg0), arg1, negationsIn_1(arg(term, 2)));
 			}
+			return map(term, Clausifier::negationsIn_1);
 		}
-		return result;
-	}
-
-	/**
-	 * Convenience method
-	 */
-	private static Formula listAll(Formula f, @SuppressWarnings("SameParameterValue") String before, @SuppressWarnings("SameParameterValue") String after)
-	{
-		Clausifier clausifier = new Clausifier(f.text);
-		return clausifier.listAll(before, after);
-	}
-
-	/**
-	 * This method increments VAR_INDEX and then returns the new int
-	 * value.  If VAR_INDEX is already at Integer.MAX_VALUE, then
-	 * VAR_INDEX is reset to 0.
-	 *
-	 * @return An int value between 0 and Integer.MAX_VALUE inclusive.
-	 */
-	private static int incVarIndex()
-	{
-		int oldVal = VAR_INDEX;
-		if (oldVal == Integer.MAX_VALUE)
-			VAR_INDEX = 0;
-		else
-			++VAR_INDEX;
-		return VAR_INDEX;
-	}
-
-	/**
-	 * This method increments SKOLEM_INDEX and then returns the new int
-	 * value.  If SKOLEM_INDEX is already at Integer.MAX_VALUE, then
-	 * SKOLEM_INDEX is reset to 0.
-	 *
-	 * @return An int value between 0 and Integer.MAX_VALUE inclusive.
-	 */
-	private static int incSkolemIndex()
-	{
-		int oldVal = SKOLEM_INDEX;
-		if (oldVal == Integer.MAX_VALUE)
-			SKOLEM_INDEX = 0;
-		else
-			++SKOLEM_INDEX;
-		return SKOLEM_INDEX;
-	}
-
-	/**
-	 * This method returns a new SUO-KIF variable String, modifying
-	 * any digit suffix to ensure that the variable will be unique.
-	 *
-	 * @param prefix An optional variable prefix string.
-	 * @return A new SUO-KIF variable.
-	 */
-	private static String newVar(@SuppressWarnings("SameParameterValue") String prefix)
-	{
-		String base = Formula.VX;
-		String varIdx = Integer.toString(incVarIndex());
-		if (isNonEmpty(prefix))
-		{
-			List<String> woDigitSuffix = KB.getMatches(prefix, "var_with_digit_suffix");
-			if (woDigitSuffix != null)
-				base = woDigitSuffix.get(0);
-			else if (prefix.startsWith(Formula.RVAR))
-				base = Formula.RVAR;
-			else if (prefix.startsWith(Formula.VX))
-				base = Formula.VX;
-			else
-				base = prefix;
-			if (!(base.startsWith(Formula.V_PREF) || base.startsWith(Formula.R_PREF)))
-				base = (Formula.V_PREF + base);
-		}
-		return (base + varIdx);
-	}
-
-	/**
-	 * This method returns a new SUO-KIF variable String, adding a
-	 * digit suffix to ensure that the variable will be unique.
-	 *
-	 * @return A new SUO-KIF variable
-	 */
-	private static String newVar()
-	{
-		return newVar(null);
+		return term;
 	}
 
 	/**
@@ -676,134 +743,97 @@ public class Clausifier
 	 */
 	public static Formula renameVariables(Formula f, Map<String, String> topLevelVars, Map<String, String> scopedRenames, Map<String, String> allRenames)
 	{
-		Clausifier clausifier = new Clausifier(f.text);
-		return clausifier.renameVariables(topLevelVars, scopedRenames, allRenames);
+		Term term = Term.parse(f.text);
+		if (term == null)
+			return f;
+		return new Clausifier(f.text, SHARED_NAMING).renameVariables(term, topLevelVars, scopedRenames, allRenames).toFormula();
 	}
 
 	/**
-	 * This method returns a new Formula in which all variables have
+	 * This method returns a new Term in which all variables have
 	 * been renamed to ensure uniqueness.
 	 *
 	 * @param topLevelVars  A Map that is used to track renames of implicitly universally quantified variables.
 	 * @param scopedRenames A Map that is used to track renames of explicitly quantified variables.
 	 * @param allRenames    A Map from all new vars in the Formula to their old counterparts.
-	 * @return A new SUO-KIF Formula with all variables renamed.
+	 * @return A new Term with all variables renamed.
 	 */
-	private Formula renameVariables(Map<String, String> topLevelVars, Map<String, String> scopedRenames, Map<String, String> allRenames)
+	private Term renameVariables(Term term, Map<String, String> topLevelVars, Map<String, String> scopedRenames, Map<String, String> allRenames)
 	{
-		try
+		if (term.isList())
 		{
-			if (formula.listP())
+			if (term.isEmpty())
 			{
-				if (formula.empty())
-				{
-					return formula;
-				}
-				String arg0 = formula.car();
-				if (Formula.isQuantifier(arg0))
+				return term;
+			}
+			String arg0 = term.head();
+			if (Formula.isQuantifier(arg0))
+			{
+				Term oldVars = arg(term, 1);
+				if (!oldVars.isList())
+					return term;
+
+				// Copy the scopedRenames map to protect variable scope as we descend below this quantifier.
+				Map<String, String> newScopedRenames = new HashMap<>(scopedRenames);
+
+				List<Term> newVars = new ArrayList<>();
+				for (Term oldVarT : oldVars.elements())
 				{
-					// Copy the scopedRenames map to protect variable scope as we descend below this quantifier.
-					Map<String, String> newScopedRenames = new HashMap<>(scopedRenames);
-
-					String oldVars = formula.cadr();
-					Formula oldVarsF = new Formula();
-					oldVarsF.set(oldVars);
-					StringBuilder newVars = new StringBuilder();
-					while (!oldVarsF.empty())
-					{
-						String oldVar = oldVarsF.car();
-						String newVar = newVar();
-						newScopedRenames.put(oldVar, newVar);
-						allRenames.put(newVar, oldVar);
-						newVars.append(Formula.SPACE).append(newVar);
-						oldVarsF = oldVarsF.cdrAsFormula();
-					}
-					newVars = new StringBuilder((Formula.LP + newVars.toString().trim() + Formula.RP));
-					String arg2 = formula.caddr();
-					Formula arg2F = new Formula();
-					arg2F.set(arg2);
-					String newArg2 = Clausifier.renameVariables(arg2F, topLevelVars, newScopedRenames, allRenames).text;
-					String newFStr = (Formula.LP + arg0 + Formula.SPACE + newVars + Formula.SPACE + newArg2 + Formula.RP);
-					Formula newF = new Formula();
-					newF.set(newFStr);
-					return newF;
+					String oldVar = oldVarT.toString();
+					String newVar = naming.newVar();
+					newScopedRenames.put(oldVar, newVar);
+					allRenames.put(newVar, oldVar);
+					newVars.add(Term.atom(newVar));
 				}
-				Formula arg0F = new Formula();
-				arg0F.set(arg0);
-				String newArg0 = Clausifier.renameVariables(arg0F, topLevelVars, scopedRenames, allRenames).text;
-				String newRest = Clausifier.renameVariables(formula.cdrAsFormula(), topLevelVars, scopedRenames, allRenames).text;
-				Formula newRestF = new Formula();
-				newRestF.set(newRest);
-				String newFStr = newRestF.cons(newArg0).text;
-				Formula newF = new Formula();
-				newF.set(newFStr);
-				return newF;
+				Term newArg2 = renameVariables(arg(term, 2), topLevelVars, newScopedRenames, allRenames);
+				return Term.list(Term.atom(arg0), Term.list(newVars), newArg2);
 			}
-			if (Formula.isVariable(formula.text))
+			return map(term, t -> renameVariables(t, topLevelVars, scopedRenames, allRenames));
+		}
+		if (term.isVariable())
+		{
+			String var = term.getAtom();
+			String rnv = scopedRenames.get(var);
+			if (!isNonEmpty(rnv))
 			{
-				String rnv = scopedRenames.get(formula.text);
+				rnv = topLevelVars.get(var);
 				if (!isNonEmpty(rnv))
 				{
-					rnv = topLevelVars.get(formula.text);
-					if (!isNonEmpty(rnv))
-					{
-						rnv = newVar();
-						topLevelVars.put(formula.text, rnv);
-						allRenames.put(rnv, formula.text);
-					}
+					rnv = naming.newVar();
+					topLevelVars.put(var, rnv);
+					allRenames.put(rnv, var);
 				}
-				Formula newF = new Formula();
-				newF.set(rnv);
-				return newF;
 			}
+			return Term.atom(rnv);
 		}
-		catch (Exception ex)
-		{
-			ex.printStackTrace();
-		}
-		return formula;
+		return term;
 	}
 
 	/**
-	 * This method returns a new, unique skolem term with each
-	 * invocation.
+	 * The variables of a quantifier variable list
 	 *
-	 * @param vars A sorted SortedSet of the universally quantified
-	 *             variables that potentially define the skolem term.  The set may
-	 *             be empty.
-	 * @return A String.  The string will be a skolem functional term
-	 * (a list) if vars contains variables.  Otherwise, it will be an
-	 * atomic constant.
+	 * @param varList variable list
+	 * @return the text of the elements of the list
 	 */
-	private static String newSkolemTerm(SortedSet<String> vars)
+	private static List<String> quantifiedVars(Term varList)
 	{
-		StringBuilder sb = new StringBuilder(Formula.SK_PREF);
-		int idx = incSkolemIndex();
-		if ((vars != null) && !vars.isEmpty())
-		{
-			sb.append(Formula.FN_SUFF + Formula.SPACE).append(idx);
-			for (String var : vars)
-			{
-				sb.append(Formula.SPACE).append(var);
-			}
-			sb = new StringBuilder((Formula.LP + sb + Formula.RP));
-		}
-		else
-			sb.append(idx);
-		return sb.toString();
+		List<String> result = new ArrayList<>();
+		for (Term var : varList.elements())
+			result.add(var.toString());
+		return result;
 	}
 
 	/**
-	 * This method returns a new Formula in which all existentially
+	 * This method returns a new Term in which all existentially
 	 * quantified variables have been replaced by Skolem terms.
 	 *
-	 * @return A new SUO-KIF Formula without existentially quantified
+	 * @return A new Term without existentially quantified
 	 * variables.
 	 */
-	private Formula existentialsOut()
+	private Term existentialsOut(Term term)
 	{
 		// Existentially quantified variable substitution pairs: var -> skolem term.
-		Map<String, String> evSubs = new HashMap<>();
+		Map<String, Term> evSubs = new HashMap<>();
 
 		// Implicitly universally quantified variables.
 		SortedSet<String> iUQVs = new TreeSet<>();
@@ -815,14 +845,14 @@ public class Clausifier
 		SortedSet<String> scopedUQVs = new TreeSet<>();
 
 		// Collect the implicitly universally qualified variables from the Formula.
-		collectIUQVars(iUQVs, scopedVars);
+		collectIUQVars(term, iUQVs, scopedVars);
 
 		// Do the recursive term replacement, and return the results.
-		return existentialsOut(evSubs, iUQVs, scopedUQVs);
+		return existentialsOut(term, evSubs, iUQVs, scopedUQVs);
 	}
 
 	/**
-	 * This method returns a new Formula in which all existentially
+	 * This method returns a new Term in which all existentially
 	 * quantified variables have been replaced by Skolem terms.
 	 *
 	 * @param evSubs     A Map of variable - skolem term substitution
@@ -831,94 +861,48 @@ public class Clausifier
 	 *                   variables.
 	 * @param scopedUQVs A SortedSet of explicitly universally
 	 *                   quantified variables.
-	 * @return A new SUO-KIF Formula without existentially quantified
+	 * @return A new Term without existentially quantified
 	 * variables.
 	 */
-	private Formula existentialsOut(Map<String, String> evSubs, SortedSet<String> iUQVs, SortedSet<String> scopedUQVs)
+	private Term existentialsOut(Term term, Map<String, Term> evSubs, SortedSet<String> iUQVs, SortedSet<String> scopedUQVs)
 	{
-		try
+		if (term.isList())
 		{
-			if (formula.listP())
+			if (term.isEmpty())
 			{
-				if (formula.empty())
-				{
-					return formula;
-				}
-				String arg0 = formula.car();
-				if (arg0.equals(Formula.UQUANT))
-				{
-					// Copy the scoped variables set to protect variable scope as we descend below this quantifier.
-					SortedSet<String> newScopedUQVs = new TreeSet<>(scopedUQVs);
-					String varList = formula.cadr();
-					Formula varListF = new Formula();
-					varListF.set(varList);
-					while (!(varListF.empty()))
-					{
-						String var = varListF.car();
-						newScopedUQVs.add(var);
-						varListF.set(varListF.cdr());
-					}
-					String arg2 = formula.caddr();
-					Formula arg2F = new Formula();
-					arg2F.set(arg2);
-					String newStr = ("(forall " + varList + " " + existentialsOut(arg2F, evSubs, iUQVs, newScopedUQVs).text + ")");
-					formula.set(newStr);
-					return formula;
-				}
-				if (arg0.equals(Formula.EQUANT))
-				{
-					// Collect the relevant universally quantified variables.
-					SortedSet<String> uQVs = new TreeSet<>(iUQVs);
-					uQVs.addAll(scopedUQVs);
-					// Collect the existentially quantified variables.
-					List<String> eQVs = new ArrayList<>();
-					String varList = formula.cadr();
-					Formula varListF = new Formula();
-					varListF.set(varList);
-					while (!(varListF.empty()))
-					{
-						String var = varListF.car();
-						eQVs.add(var);
-						varListF.set(varListF.cdr());
-					}
-					// For each existentially quantified variable, create a corresponding skolem term, and store the pair in the evSubs map.
-					for (String var : eQVs)
-					{
-						String skTerm = newSkolemTerm(uQVs);
-						evSubs.put(var, skTerm);
-					}
-					String arg2 = formula.caddr();
-					Formula arg2F = new Formula();
-					arg2F.set(arg2);
-					return existentialsOut(arg2F, evSubs, iUQVs, scopedUQVs);
-				}
-				Formula arg0F = new Formula();
-				arg0F.set(arg0);
-				String newArg0 = existentialsOut(arg0F, evSubs, iUQVs, scopedUQVs).text;
-				return existentialsOut(formula.cdrAsFormula(), evSubs, iUQVs, scopedUQVs).cons(newArg0);
+				return term;
+			}
+			String arg0 = term.head();
+			if (Formula.UQUANT.equals(arg0))
+			{
+				// Copy the scoped variables set to protect variable scope as we descend below this quantifier.
+				SortedSet<String> newScopedUQVs = new TreeSet<>(scopedUQVs);
+				Term varList = arg(term, 1);
+				newScopedUQVs.addAll(quantifiedVars(varList));
+				return Term.list(Term.atom(Formula.UQUANT), varList, existentialsOut(arg(term, 2), evSubs, iUQVs, newScopedUQVs));
 			}
-			if (Formula.isVariable(formula.text))
+			if (Formula.EQUANT.equals(arg0))
 			{
-				String newTerm = evSubs.get(formula.text);
-				if (isNonEmpty(newTerm))
-					formula.set(newTerm);
-				return formula;
+				// Collect the relevant universally quantified variables.
+				SortedSet<String> uQVs = new TreeSet<>(iUQVs);
+				uQVs.addAll(scopedUQVs);
+				// For each existentially quantified variable, create a corresponding skolem term, and store the pair in the evSubs map.
+				for (String var : quantifiedVars(arg(term, 1)))
+				{
+					Term skTerm = naming.newSkolemTerm(uQVs);
+					evSubs.put(var, skTerm);
+				}
+				return existentialsOut(arg(term, 2), evSubs, iUQVs, scopedUQVs);
 			}
+			return map(term, t -> existentialsOut(t, evSubs, iUQVs, scopedUQVs));
 		}
-		catch (Exception ex)
+		if (term.isVariable())
 		{
-			ex.printStackTrace();
+			Term newTerm = evSubs.get(term.getAtom());
+			if (newTerm != null)
+				return newTerm;
 		}
-		return formula;
-	}
-
-	/**
-	 * Convenience method
-	 */
-	private static Formula existentialsOut(Formula f, Map<String, String> evSubs, SortedSet<String> iUQVs, SortedSet<String> scopedUQVs)
-	{
-		Clausifier clausifier = new Clausifier(f.text);
-		return clausifier.existentialsOut(evSubs, iUQVs, scopedUQVs);
+		return term;
 	}
 
 	/**
@@ -931,123 +915,71 @@ public class Clausifier
 	 * @param scopedVars A SortedSet containing explicitly quantified
 	 *                   variables.
 	 */
-	private void collectIUQVars(SortedSet<String> iuqvs, SortedSet<String> scopedVars)
+	private static void collectIUQVars(Term term, SortedSet<String> iuqvs, SortedSet<String> scopedVars)
 	{
-		try
+		if (term.isList() && !term.isEmpty())
 		{
-			if (formula.listP() && !formula.empty())
+			String arg0 = term.head();
+			if (Formula.isQuantifier(arg0))
 			{
-				String arg0 = formula.car();
-				if (Formula.isQuantifier(arg0))
-				{
-					// Copy the scopedVars set to protect variable  scope as we descend below this quantifier.
-					SortedSet<String> newScopedVars = new TreeSet<>(scopedVars);
-
-					String varList = formula.cadr();
-					Formula varListF = new Formula();
-					varListF.set(varList);
-					while (!(varListF.empty()))
-					{
-						String var = varListF.car();
-						newScopedVars.add(var);
-						varListF = varListF.cdrAsFormula();
-					}
-					String arg2 = formula.caddr();
-					Formula arg2F = new Formula();
-					arg2F.set(arg2);
-					collectIUQVars(arg2F, iuqvs, newScopedVars);
-				}
-				else
-				{
-					Formula arg0F = new Formula();
-					arg0F.set(arg0);
-					collectIUQVars(arg0F, iuqvs, scopedVars);
-					collectIUQVars(formula.cdrAsFormula(), iuqvs, scopedVars);
-				}
+				// Copy the scopedVars set to protect variable  scope as we descend below this quantifier.
+				SortedSet<String> newScopedVars = new TreeSet<>(scopedVars);
+				newScopedVars.addAll(quantifiedVars(arg(term, 1)));
+				collectIUQVars(arg(term, 2), iuqvs, newScopedVars);
 			}
-			else if (Formula.isVariable(formula.text) && !(scopedVars.contains(formula.text)))
+			else
 			{
-				iuqvs.add(formula.text);
+				for (Term element : term.elements())
+					collectIUQVars(element, iuqvs, scopedVars);
 			}
 		}
-		catch (Exception ex)
+		else if (term.isVariable() && !(scopedVars.contains(term.getAtom())))
 		{
-			ex.printStackTrace();
+			iuqvs.add(term.getAtom());
 		}
 	}
 
 	/**
-	 * Convenience method
-	 */
-	private static void collectIUQVars(Formula f, SortedSet<String> iuqvs, SortedSet<String> scopedVars)
-	{
-		Clausifier temp = new Clausifier(f.text);
-		temp.collectIUQVars(iuqvs, scopedVars);
-	}
-
-	/**
-	 * This method returns a new Formula in which explicit universal
+	 * This method returns a new Term in which explicit universal
 	 * quantifiers have been removed.
 	 *
-	 * @return A new SUO-KIF Formula without explicit universal
+	 * @return A new Term without explicit universal
 	 * quantifiers.
 	 */
-	private Formula universalsOut()
+	private static Term universalsOut(Term term)
 	{
-		try
+		if (term.isList())
 		{
-			if (formula.listP())
+			if (term.isEmpty())
 			{
-				if (formula.empty())
-				{
-					return formula;
-				}
-				String arg0 = formula.car();
-				if (arg0.equals(Formula.UQUANT))
-				{
-					String arg2 = formula.caddr();
-					formula.set(arg2);
-					return universalsOut(formula);
-				}
-				Formula arg0F = new Formula();
-				arg0F.set(arg0);
-				String newArg0 = universalsOut(arg0F).text;
-				return universalsOut(formula.cdrAsFormula()).cons(newArg0);
+				return term;
 			}
+			if (term.isHead(Formula.UQUANT))
+			{
+				return universalsOut(arg(term, 2));
+			}
+			return map(term, Clausifier::universalsOut);
 		}
-		catch (Exception ex)
-		{
-			ex.printStackTrace();
-		}
-		return formula;
+		return term;
 	}
 
 	/**
-	 * Convenience method
-	 */
-	private static Formula universalsOut(Formula f)
-	{
-		Clausifier temp = new Clausifier(f.text);
-		return temp.universalsOut();
-	}
-
-	/**
-	 * This method returns a new Formula in which nested 'and', 'or',
+	 * This method returns a new Term in which nested 'and', 'or',
 	 * and 'not' operators have been unnested:
 	 * (not (not <literal> ...)) -> <literal>
 	 * (and (and <literal-sequence> ...)) -> (and <literal-sequence> ...)
 	 * (or (or <literal-sequence> ...)) -> (or <literal-sequence> ...)
 	 *
-	 * @return A new SUO-KIF Formula in which nested commutative
+	 * @return A new Term in which nested commutative
 	 * operators and 'not' have been unnested.
 	 */
-	private Formula nestedOperatorsOut()
+	private static Term nestedOperatorsOut(Term term)
 	{
-		Formula f = formula;
-		Formula result = nestedOperatorsOut_1();
+		Term f = term;
+		Term result = nestedOperatorsOut_1(term);
 
 		// Here we repeatedly apply nestedOperatorsOut_1() until there are no more changes.
-		while (!f.text.equals(result.text))
+		while (!f.equals(result))
 		{
 			f = result;
 			result = nestedOperatorsOut_1(f);
@@ -1056,112 +988,174 @@ public class Clausifier
 	}
 
 	/**
-	 * convenience method
-	 */
-	private static Formula nestedOperatorsOut(Formula f)
-	{
-		Clausifier temp = new Clausifier(f.text);
-		return temp.nestedOperatorsOut();
-	}
-
-	/**
-	 * @return A new SUO-KIF Formula in which nested commutative
+	 * @return A new Term in which nested commutative
 	 * operators and 'not' have been unnested.
 	 */
-	private Formula nestedOperatorsOut_1()
+	private static Term nestedOperatorsOut_1(Term term)
 	{
-		try
+		if (term.isList())
 		{
-			if (formula.listP())
+			if (term.isEmpty())
 			{
-				if (formula.empty())
-				{
-					return formula;
-				}
-				String arg0 = formula.car();
-				if (Formula.isCommutative(arg0) || arg0.equals(Formula.NOT))
+				return term;
+			}
+			String arg0 = term.head();
+			if (Formula.isCommutative(arg0) || Formula.NOT.equals(arg0))
+			{
+				List<Term> literals = new ArrayList<>();
+				for (Term lit : term.rest())
 				{
-					List<String> literals = new ArrayList<>();
-					Formula restF = formula.cdrAsFormula();
-					while (!(restF.empty()))
+					if (lit.isList())
 					{
-						String lit = restF.car();
-						Formula litF = new Formula();
-						litF.set(lit);
-						if (litF.listP())
+						if (lit.isHead(arg0))
 						{
-							String litFArg0 = litF.car();
-							if (litFArg0.equals(arg0))
+							if (arg0.equals(Formula.NOT))
 							{
-								if (arg0.equals(Formula.NOT))
-								{
-									String newFStr = litF.cadr();
-									Formula newF = new Formula();
-									newF.set(newFStr);
-									return nestedOperatorsOut_1(newF);
-								}
-								Formula rest2F = litF.cdrAsFormula();
-								while (!(rest2F.empty()))
-								{
-									String rest2arg0 = rest2F.car();
-									Formula rest2arg0F = new Formula();
-									rest2arg0F.set(rest2arg0);
-									literals.add(nestedOperatorsOut_1(rest2arg0F).text);
-									rest2F = rest2F.cdrAsFormula();
-								}
+								return nestedOperatorsOut_1(arg(lit, 1));
 							}
-							else
-								literals.add(nestedOperatorsOut_1(litF).text);
+							for (Term rest2arg0 : lit.rest())
+								literals.add(nestedOperatorsOut_1(rest2arg0));
 						}
 						else
-							literals.add(lit);
-						restF = restF.cdrAsFormula();
+							literals.add(nestedOperatorsOut_1(lit));
 					}
-					StringBuilder sb = new StringBuilder((Formula.LP + arg0));
-					for (String literal : literals)
-						sb.append(Formula.SPACE).append(literal);
-					sb.append(Formula.RP);
-					Formula newF = new Formula();
-					newF.set(sb.toString());
-					return newF;
+					else
+						literals.add(lit);
 				}
-				Formula arg0F = new Formula();
-				arg0F.set(arg0);
-				String newArg0 = nestedOperatorsOut_1(arg0F).text;
-				return nestedOperatorsOut_1(formula.cdrAsFormula()).cons(newArg0);
+				return Term.list(arg0, literals);
 			}
+			return map(term, Clausifier::nestedOperatorsOut_1);
 		}
-		catch (Exception ex)
+		return term;
+	}
+
+	/**
+	 * This method returns a new Term in which the conjunctive
+	 * subformulas of a disjunction are replaced by definitional
+	 * literals whenever distributing the disjunction would yield more
+	 * clauses than the definition threshold.  For each subformula G
+	 * named D, the clause (or (not D) G) is conjoined to the result.
+	 * As the formula is in negation normal form, G only occurs
+	 * positively and the converse implication is not needed.
+	 * (or P (and Q R) (and S T)) -> (and (or P D1 (and S T)) (or (not D1) (and Q R)))
+	 *
+	 * @param definitions A Map receiving the correspondences between
+	 *                    definitional predicates and the subformulas they stand for.
+	 * @return A new Term equisatisfiable with the input, whose
+	 * distribution stays within the threshold.
+	 */
+	private Term definitionsOut(Term term, Map<String, String> definitions)
+	{
+		List<Term> definitionClauses = new ArrayList<>();
+		Term result = definitionsOut(nestedOperatorsOut(term), definitionClauses, definitions, new long[1]);
+		if (definitionClauses.isEmpty())
+			return result;
+		List<Term> conjuncts = new ArrayList<>(definitionClauses.size() + 1);
+		conjuncts.add(result);
+		conjuncts.addAll(definitionClauses);
+		return Term.list(Formula.AND, conjuncts);
+	}
+
+	/**
+	 * Bottom-up helper for definitionsOut(term, definitions).
+	 *
+	 * @param definitionClauses A List accumulating the definitions of
+	 *                          the definitional literals introduced.
+	 * @param definitions       A Map receiving the correspondences between
+	 *                          definitional predicates and the subformulas they stand for.
+	 * @param count             A one-place long[] receiving the number of clauses
+	 *                          the returned Term distributes to.
+	 * @return A new Term.
+	 */
+	private Term definitionsOut(Term term, List<Term> definitionClauses, Map<String, String> definitions, long[] count)
+	{
+		boolean isAnd = term.isHead(Formula.AND);
+		if (!isAnd && !term.isHead(Formula.OR))
 		{
-			ex.printStackTrace();
+			count[0] = 1;
+			return term;
+		}
+		List<Term> args = new ArrayList<>();
+		List<Long> counts = new ArrayList<>();
+		for (Term arg : term.rest())
+		{
+			args.add(definitionsOut(arg, definitionClauses, definitions, count));
+			counts.add(count[0]);
+		}
+		if (isAnd)
+		{
+			long sum = 0;
+			for (long c : counts)
+				sum = (sum + c < 0) ? Long.MAX_VALUE : sum + c;
+			count[0] = sum;
+		}
+		else
+		{
+			long product = product(counts);
+			while (product > definitionThreshold)
+			{
+				// Name the disjunct that expands to the most clauses.
+				int max = 0;
+				for (int i = 1; i < counts.size(); i++)
+					if (counts.get(i) > counts.get(max))
+						max = i;
+				if (counts.get(max) <= 1)
+					break;
+				Term subformula = args.get(max);
+				SortedSet<String> vars = new TreeSet<>();
+				collectVars(subformula, vars);
+				Term definition = naming.newDefinition(vars);
+				definitionClauses.add(Term.list(Term.atom(Formula.OR), Term.list(Term.atom(Formula.NOT), definition), subformula));
+				definitions.put(definition.isAtom() ? definition.getAtom() : definition.head(), subformula.toString());
+				args.set(max, definition);
+				counts.set(max, 1L);
+				product = product(counts);
+			}
+			count[0] = product;
 		}
-		return formula;
+		return Term.list(term.head(), args);
 	}
 
 	/**
-	 * convenience method
+	 * Product of clause counts, saturating at Long.MAX_VALUE
 	 */
-	private static Formula nestedOperatorsOut_1(Formula f)
+	private static long product(List<Long> counts)
 	{
-		Clausifier temp = new Clausifier(f.text);
-		return temp.nestedOperatorsOut_1();
+		long result = 1;
+		for (long c : counts)
+			result = (c != 0 && result > Long.MAX_VALUE / c) ? Long.MAX_VALUE : result * c;
+		return result;
 	}
 
 	/**
-	 * This method returns a new Formula in which all occurrences of
+	 * Collect the variables occurring in a term
+	 *
+	 * @param vars A SortedSet accumulating variables.
+	 */
+	private static void collectVars(Term term, SortedSet<String> vars)
+	{
+		if (term.isVariable())
+			vars.add(term.getAtom());
+		else
+			for (Term element : term.elements())
+				collectVars(element, vars);
+	}
+
+	/**
+	 * This method returns a new Term in which all occurrences of
 	 * 'or' have been accorded the least possible scope.
 	 * (or P (and Q R)) -> (and (or P Q) (or P R))
 	 *
-	 * @return A new SUO-KIF Formula in which occurrences of 'or' have
+	 * @return A new Term in which occurrences of 'or' have
 	 * been 'moved in' as far as possible.
 	 */
-	private Formula disjunctionsIn()
+	private static Term disjunctionsIn(Term term)
 	{
-		Formula f = formula;
-		Formula result = disjunctionsIn_1(nestedOperatorsOut());
+		Term f = term;
+		Term result = disjunctionsIn_1(nestedOperatorsOut(term));
 
 		// Here we repeatedly apply disjunctionIn_1() until there are no more changes.
-		while (!f.text.equals(result.text))
+		while (!f.equals(result))
 		{
 			f = result;
 			result = disjunctionsIn_1(nestedOperatorsOut(f));
@@ -1170,225 +1164,131 @@ public class Clausifier
 	}
 
 	/**
-	 * @return A new SUO-KIF Formula in which occurrences of 'or' have
+	 * @return A new Term in which occurrences of 'or' have
 	 * been 'moved in' as far as possible.
 	 */
-	private Formula disjunctionsIn_1()
+	private static Term disjunctionsIn_1(Term term)
 	{
-		try
+		if (term.isList())
 		{
-			if (formula.listP())
+			if (term.isEmpty())
 			{
-				if (formula.empty())
-				{
-					return formula;
-				}
-				String arg0 = formula.car();
-				if (arg0.equals(Formula.OR))
+				return term;
+			}
+			if (term.isHead(Formula.OR))
+			{
+				List<Term> disjuncts = new ArrayList<>();
+				List<Term> conjuncts = new ArrayList<>();
+				boolean distributed = false;
+				for (Term disjunct : term.rest())
 				{
-					List<String> disjuncts = new ArrayList<>();
-					List<String> conjuncts = new ArrayList<>();
-					Formula restF = formula.cdrAsFormula();
-					while (!(restF.empty()))
+					if (disjunct.isHead(Formula.AND) && !distributed)
 					{
-						String disjunct = restF.car();
-						Formula disjunctF = new Formula();
-						disjunctF.set(disjunct);
-						if (disjunctF.listP() && disjunctF.car().equals(Formula.AND) && conjuncts.isEmpty())
-						{
-							Formula rest2F = disjunctionsIn_1(disjunctF.cdrAsFormula());
-							while (!(rest2F.empty()))
-							{
-								conjuncts.add(rest2F.car());
-								rest2F = rest2F.cdrAsFormula();
-							}
-						}
-						else
-							disjuncts.add(disjunct);
-						restF = restF.cdrAsFormula();
+						for (Term conjunct : disjunct.rest())
+							conjuncts.add(disjunctionsIn_1(conjunct));
+						distributed = !conjuncts.isEmpty();
 					}
+					else
+						disjuncts.add(disjunct);
+				}
 
-					if (conjuncts.isEmpty())
-					{
-						return formula;
-					}
+				if (conjuncts.isEmpty())
+				{
+					return term;
+				}
 
-					Formula resultF = new Formula();
-					resultF.set("()");
-					StringBuilder disjunctsString = new StringBuilder();
-					for (String disjunct : disjuncts)
-						disjunctsString.append(Formula.SPACE).append(disjunct);
-					disjunctsString = new StringBuilder((Formula.LP + disjunctsString.toString().trim() + Formula.RP));
-					Formula disjunctsF = new Formula();
-					disjunctsF.set(disjunctsString.toString());
-					for (String conjunct : conjuncts)
-					{
-						String newDisjuncts = disjunctionsIn_1(disjunctsF.cons(conjunct).cons(Formula.OR)).text;
-						resultF = resultF.cons(newDisjuncts);
-					}
-					resultF = resultF.cons(Formula.AND);
-					return resultF;
+				// As in the LISP original, the new conjunction lists the distributed disjunctions in reverse order.
+				List<Term> result = new ArrayList<>(conjuncts.size() + 1);
+				result.add(Term.atom(Formula.AND));
+				for (int i = conjuncts.size() - 1; i >= 0; i--)
+				{
+					List<Term> newDisjuncts = new ArrayList<>(disjuncts.size() + 2);
+					newDisjuncts.add(Term.atom(Formula.OR));
+					newDisjuncts.add(conjuncts.get(i));
+					newDisjuncts.addAll(disjuncts);
+					result.add(disjunctionsIn_1(Term.list(newDisjuncts)));
 				}
-				Formula arg0F = new Formula();
-				arg0F.set(arg0);
-				String newArg0 = disjunctionsIn_1(arg0F).text;
-				return disjunctionsIn_1(formula.cdrAsFormula()).cons(newArg0);
+				return Term.list(result);
 			}
+			return map(term, Clausifier::disjunctionsIn_1);
 		}
-		catch (Exception ex)
-		{
-			ex.printStackTrace();
-		}
-		return formula;
-	}
-
-	/**
-	 * convenience method
-	 */
-	private static Formula disjunctionsIn_1(Formula f)
-	{
-		Clausifier temp = new Clausifier(f.text);
-		return temp.disjunctionsIn_1();
+		return term;
 	}
 
 	/**
 	 * This method returns an List of clauses.  Each clause is a
-	 * LISP list (really, a Formula) containing one or more Formulas.
-	 * The LISP list is assumed to be a disjunction, but there is no
-	 * 'or' at the head.
+	 * List of literals.  The List is assumed to be a disjunction,
+	 * but there is no 'or' at the head.
 	 *
-	 * @return An List of LISP lists, each of which contains one
-	 * or more Formulas.
+	 * @return An List of Lists, each of which contains one
+	 * or more Terms.
 	 */
-	private List<Formula> operatorsOut()
+	private static List<List<Term>> operatorsOut(Term term)
 	{
-		List<Formula> result = new ArrayList<>();
-		try
+		List<List<Term>> result = new ArrayList<>();
+		if (term == null)
+			return result;
+		List<Term> clauses = new ArrayList<>();
+		if (term.isHead(Formula.AND))
+			clauses.addAll(term.rest());
+		if (clauses.isEmpty())
+			clauses.add(term);
+		for (Term f : clauses)
 		{
-			List<Formula> clauses = new ArrayList<>();
-			if (isNonEmpty(formula.text))
+			// Literals come in reverse order, as the original LISP implementation conses them.
+			List<Term> clause = new ArrayList<>();
+			if (f.isHead(Formula.OR))
 			{
-				if (formula.listP())
-				{
-					String arg0 = formula.car();
-					if (arg0.equals(Formula.AND))
-					{
-						Formula restF = formula.cdrAsFormula();
-						while (!(restF.empty()))
-						{
-							String fStr = restF.car();
-							Formula newF = new Formula();
-							newF.set(fStr);
-							clauses.add(newF);
-							restF = restF.cdrAsFormula();
-						}
-					}
-				}
-				if (clauses.isEmpty())
-					clauses.add(formula);
-				for (Formula f : clauses)
-				{
-					Formula clauseF = new Formula();
-					clauseF.set("()");
-					if (f.listP())
-					{
-						if (f.car().equals(Formula.OR))
-						{
-							f = f.cdrAsFormula();
-							while (!(f.empty()))
-							{
-								String lit = f.car();
-								clauseF = clauseF.cons(lit);
-								f = f.cdrAsFormula();
-							}
-						}
-					}
-					if (clauseF.empty())
-						clauseF = clauseF.cons(f.text);
-					result.add(clauseF);
-				}
+				List<Term> lits = f.rest();
+				for (int i = lits.size() - 1; i >= 0; i--)
+					clause.add(lits.get(i));
+				if (clause.isEmpty())
+					clause.add(Term.EMPTY);
 			}
-		}
-		catch (Exception ex)
-		{
-			ex.printStackTrace();
+			if (clause.isEmpty())
+				clause.add(f);
+			result.add(clause);
 		}
 		return result;
 	}
 
 	/**
-	 * This method returns a Formula in which variables for separate
+	 * This method returns a Term in which variables for separate
 	 * clauses have been 'standardized apart'.
 	 *
 	 * @param renameMap A Map for capturing one-to-one variable rename
 	 *                  correspondences.  Keys are new variables.  Values are old
 	 *                  variables.
-	 * @return A Formula.
+	 * @return A Term.
 	 */
-	private Formula standardizeApart(Map<String, String> renameMap)
+	private Term standardizeApart(Term term, Map<String, String> renameMap)
 	{
-		Formula result = formula;
-		try
-		{
-			Map<String, String> reverseRenames;
-			if (renameMap != null)
-				reverseRenames = renameMap;
-			else
-				reverseRenames = new HashMap<>();
-
-			// First, break the Formula into separate clauses, if necessary.
-			List<Formula> clauses = new ArrayList<>();
-			if (isNonEmpty(formula.text))
-			{
-				if (formula.listP())
-				{
-					String arg0 = formula.car();
-					if (arg0.equals(Formula.AND))
-					{
-						Formula restF = formula.cdrAsFormula();
-						while (!(restF.empty()))
-						{
-							String fStr = restF.car();
-							Formula newF = new Formula();
-							newF.set(fStr);
-							clauses.add(newF);
-							restF = restF.cdrAsFormula();
-						}
-					}
-				}
-				if (clauses.isEmpty())
-					clauses.add(formula);
-				// 'Standardize apart' by renaming the variables in each clause.
-				int n = clauses.size();
-				for (int i = 0; i < n; i++)
-				{
-					Map<String, String> renames = new HashMap<>();
-					Formula oldClause = clauses.remove(0);
-					clauses.add(standardizeApart_1(oldClause, renames, reverseRenames));
-				}
-
-				// Construct the new Formula to return.
-				if (n > 1)
-				{
-					StringBuilder newFStr = new StringBuilder("(and");
-					for (Formula f : clauses)
-					{
-						newFStr.append(Formula.SPACE).append(f.text);
-					}
-					newFStr.append(Formula.RP);
-					Formula newF = new Formula();
-					newF.set(newFStr.toString());
-					result = newF;
-				}
-				else
-					result = clauses.get(0);
-			}
-		}
-		catch (Exception ex)
+		Map<String, String> reverseRenames;
+		if (renameMap != null)
+			reverseRenames = renameMap;
+		else
+			reverseRenames = new HashMap<>();
+
+		// First, break the Formula into separate clauses, if necessary.
+		List<Term> clauses = new ArrayList<>();
+		if (term.isHead(Formula.AND))
+			clauses.addAll(term.rest());
+		if (clauses.isEmpty())
+			clauses.add(term);
+
+		// 'Standardize apart' by renaming the variables in each clause.
+		List<Term> newClauses = new ArrayList<>(clauses.size() + 1);
+		newClauses.add(Term.atom(Formula.AND));
+		for (Term clause : clauses)
 		{
-			ex.printStackTrace();
+			Map<String, String> renames = new HashMap<>();
+			newClauses.add(standardizeApart_1(clause, renames, reverseRenames));
 		}
-		return result;
+
+		// Construct the new Term to return.
+		if (clauses.size() > 1)
+			return Term.list(newClauses);
+		return newClauses.get(1);
 	}
 
 	/**
@@ -1399,42 +1299,26 @@ public class Clausifier
 	 *                       and new variables.
 	 * @param reverseRenames A Map of correspondences between new
 	 *                       variables and old variables.
-	 * @return A Formula
+	 * @return A Term
 	 */
-	private Formula standardizeApart_1(Map<String, String> renames, Map<String, String> reverseRenames)
+	private Term standardizeApart_1(Term term, Map<String, String> renames, Map<String, String> reverseRenames)
 	{
-		Formula result = formula;
-		if (formula.listP() && !(formula.empty()))
+		if (term.isList() && !term.isEmpty())
 		{
-			String arg0 = formula.car();
-			Formula arg0F = new Formula();
-			arg0F.set(arg0);
-			arg0F = standardizeApart_1(arg0F, renames, reverseRenames);
-			result = standardizeApart_1(formula.cdrAsFormula(), renames, reverseRenames).cons(arg0F.text);
+			return map(term, t -> standardizeApart_1(t, renames, reverseRenames));
 		}
-		else if (Formula.isVariable(formula.text))
+		else if (term.isVariable())
 		{
-			String rnv = renames.get(formula.text);
+			String rnv = renames.get(term.getAtom());
 			if (!isNonEmpty(rnv))
 			{
-				rnv = newVar();
-				renames.put(formula.text, rnv);
-				reverseRenames.put(rnv, formula.text);
+				rnv = naming.newVar();
+				renames.put(term.getAtom(), rnv);
+				reverseRenames.put(rnv, term.getAtom());
 			}
-			Formula rnvF = new Formula();
-			rnvF.set(rnv);
-			result = rnvF;
+			return Term.atom(rnv);
 		}
-		return result;
-	}
-
-	/**
-	 * Convenience method
-	 */
-	private static Formula standardizeApart_1(Formula f, Map<String, String> renames, Map<String, String> reverseRenames)
-	{
-		Clausifier clausifier = new Clausifier(f.text);
-		return clausifier.standardizeApart_1(renames, reverseRenames);
+		return term;
 	}
 
 	/**
@@ -1469,5 +1353,3 @@ public class Clausifier
 		return str != null && !str.isEmpty();
 	}
 }
-
-
@@ -0,0 +1,179 @@
+package com.articulate.sigma;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A daemon that reloads the constituents of a KB when their files change.
+ * The directories of the constituents are watched; a change to a
+ * constituent file is acted upon once the directory has been quiet for a
+ * settling delay, so that an editor saving a file in several steps causes
+ * one reload.  Constituents added to the KB after the watcher was started
+ * are watched if they are in a watched directory.  Deleted files are not
+ * acted upon, as editors may delete a file before writing it anew; use
+ * KB.removeConstituent() to remove a constituent.
+ */
+public class ConstituentWatcher implements Closeable
+{
+	private static final Logger logger = Logger.getLogger(ConstituentWatcher.class.getName());
+
+	/**
+	 * Default settling delay, in milliseconds
+	 */
+	public static final long DEFAULT_DELAY = 500;
+
+	private final KB kb;
+
+	private final long delay;
+
+	private final WatchService watchService;
+
+	private final Thread thread;
+
+	/**
+	 * Start watching the constituents of a KB
+	 *
+	 * @param kb    knowledge base
+	 * @param delay settling delay, in milliseconds
+	 * @throws IOException if the directories cannot be watched
+	 */
+	public ConstituentWatcher(KB kb, long delay) throws IOException
+	{
+		this.kb = kb;
+		this.delay = delay;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		try
+		{
+			Set<Path> dirs = new HashSet<>();
+			for (String constituent : getConstituents())
+				dirs.add(Paths.get(constituent).getParent());
+			for (Path dir : dirs)
+			{
+				dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+				logger.info("Watching " + dir + " for changes to constituents of " + kb.name);
+			}
+		}
+		catch (IOException ex)
+		{
+			watchService.close();
+			throw ex;
+		}
+		this.thread = new Thread(this::run, "constituent-watcher-" + kb.name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Start watching the constituents of a KB, with the default settling delay
+	 *
+	 * @param kb knowledge base
+	 * @throws IOException if the directories cannot be watched
+	 */
+	public ConstituentWatcher(KB kb) throws IOException
+	{
+		this(kb, DEFAULT_DELAY);
+	}
+
+	private void run()
+	{
+		Set<String> pending = new LinkedHashSet<>();
+		while (true)
+		{
+			try
+			{
+				// Wait for a change, then until changes settle
+				WatchKey key = pending.isEmpty() ? watchService.take() : watchService.poll(delay, TimeUnit.MILLISECONDS);
+				if (key == null)
+				{
+					List<String> changed = new ArrayList<>(pending);
+					pending.clear();
+					for (String constituent : changed)
+						reload(constituent);
+					continue;
+				}
+				Path dir = (Path) key.watchable();
+				Set<String> constituents = getConstituents();
+				for (WatchEvent<?> event : key.pollEvents())
+				{
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+					{
+						// Events were lost: any constituent of the directory may have changed.
+						for (String constituent : constituents)
+							if (dir.equals(Paths.get(constituent).getParent()))
+								pending.add(constituent);
+						continue;
+					}
+					String path = dir.resolve((Path) event.context()).toString();
+					if (constituents.contains(path))
+						pending.add(path);
+					else
+					{
+						String canonicalPath = new File(path).getCanonicalPath();
+						if (constituents.contains(canonicalPath))
+							pending.add(canonicalPath);
+					}
+				}
+				key.reset();
+			}
+			catch (InterruptedException | ClosedWatchServiceException ex)
+			{
+				logger.info("Stopped watching constituents of " + kb.name);
+				return;
+			}
+			catch (Exception ex)
+			{
+				logger.warning(Arrays.toString(ex.getStackTrace()));
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Reload a changed constituent.  A constituent that fails to reload is
+	 * logged and the watcher goes on.
+	 *
+	 * @param constituent full path of the constituent
+	 */
+	private void reload(String constituent)
+	{
+		logger.info("Constituent " + constituent + " changed");
+		try
+		{
+			kb.reloadConstituent(constituent);
+		}
+		catch (Exception ex)
+		{
+			logger.warning("Cannot reload constituent " + constituent + ": " + ex);
+			logger.warning(Arrays.toString(ex.getStackTrace()));
+		}
+	}
+
+	/**
+	 * The constituents of the KB, copied under its lock, as they are changed by reloads
+	 *
+	 * @return constituents
+	 */
+	private Set<String> getConstituents()
+	{
+		synchronized (kb)
+		{
+			return new HashSet<>(kb.constituents);
+		}
+	}
+
+	/**
+	 * Stop watching
+	 *
+	 * @throws IOException if the watch service cannot be closed
+	 */
+	@Override public void close() throws IOException
+	{
+		watchService.close();
+		thread.interrupt();
+	}
+}
@@ -0,0 +1,330 @@
+package com.articulate.sigma;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A memory-bounded cache of data derived from formulas: clausal forms,
+ * parsed trees and normalized texts.  Entries are evicted in least
+ * recently used order once their estimated size exceeds a byte budget,
+ * so that a long-running process can use, say, clausal forms without
+ * keeping all of them resident.  An entry is valid as long as the text
+ * of its formula is the text it was derived from.
+ * Hits, misses and evictions are counted.
+ */
+public class DerivedDataCache
+{
+	/**
+	 * Clausal form, as returned by Clausifier.toNegAndPosLitsWithRenameInfo()
+	 */
+	public static final int CLAUSAL_FORM = 0;
+
+	/**
+	 * Parsed Term
+	 */
+	public static final int TERM = 1;
+
+	/**
+	 * Text with variables normalized, as returned by Clausifier.normalizeVariables()
+	 */
+	public static final int NORMALIZED = 2;
+
+	/**
+	 * Cache key: a formula, compared by identity, and a kind of data
+	 */
+	private static class Key
+	{
+		final Formula formula;
+
+		final int kind;
+
+		Key(Formula formula, int kind)
+		{
+			this.formula = formula;
+			this.kind = kind;
+		}
+
+		@Override public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+			Key that = (Key) o;
+			return formula == that.formula && kind == that.kind;
+		}
+
+		@Override public int hashCode()
+		{
+			return 31 * System.identityHashCode(formula) + kind;
+		}
+	}
+
+	/**
+	 * Cache entry
+	 */
+	private static class Entry
+	{
+		final String text;
+
+		final Object value;
+
+		final long size;
+
+		Entry(String text, Object value, long size)
+		{
+			this.text = text;
+			this.value = value;
+			this.size = size;
+		}
+	}
+
+	// Entries in access order, least recently used first
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(256, 0.75F, true);
+
+	private final long budget;
+
+	private long bytes = 0;
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	private long evictions = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param budget maximum estimated size in bytes of the data held
+	 */
+	public DerivedDataCache(long budget)
+	{
+		this.budget = budget;
+	}
+
+	/**
+	 * Get data derived from a formula
+	 *
+	 * @param f    formula
+	 * @param kind CLAUSAL_FORM, TERM or NORMALIZED
+	 * @param <T>  type of data
+	 * @return data, or null if not cached or derived from another text
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized <T> T get(Formula f, int kind)
+	{
+		Key key = new Key(f, kind);
+		Entry entry = entries.get(key);
+		if (entry != null && entry.text == f.text)
+		{
+			hits++;
+			return (T) entry.value;
+		}
+		if (entry != null)
+			remove(key);
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Cache data derived from a formula, evicting least recently used entries as needed
+	 *
+	 * @param f     formula
+	 * @param kind  CLAUSAL_FORM, TERM or NORMALIZED
+	 * @param value data
+	 */
+	public synchronized void put(Formula f, int kind, Object value)
+	{
+		Key key = new Key(f, kind);
+		remove(key);
+		long size = sizeOf(value);
+		if (value == null || size > budget)
+			return;
+		entries.put(key, new Entry(f.text, value, size));
+		bytes += size;
+		Iterator<Entry> it = entries.values().iterator();
+		while (bytes > budget && it.hasNext())
+		{
+			bytes -= it.next().size;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Get data derived from a formula, deriving it if it is not cached.
+	 * The derivation runs outside the cache lock: if another thread
+	 * caches data for the formula meanwhile, that data is kept and
+	 * returned, so that all callers get the same data.  Derivations are
+	 * expected to be deterministic, so that data evicted and derived
+	 * anew is the same as before.
+	 *
+	 * @param f       formula
+	 * @param kind    CLAUSAL_FORM, TERM or NORMALIZED
+	 * @param derive  derivation
+	 * @param <T>     type of data
+	 * @return data
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T computeIfAbsent(Formula f, int kind, Supplier<T> derive)
+	{
+		T result = get(f, kind);
+		if (result == null)
+		{
+			T derived = derive.get();
+			synchronized (this)
+			{
+				Key key = new Key(f, kind);
+				Entry entry = entries.get(key);
+				if (entry != null && entry.text == f.text)
+					return (T) entry.value;
+				put(f, kind, derived);
+			}
+			result = derived;
+		}
+		return result;
+	}
+
+	private void remove(Key key)
+	{
+		Entry old = entries.remove(key);
+		if (old != null)
+			bytes -= old.size;
+	}
+
+	/**
+	 * Drop all entries
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Number of entries
+	 *
+	 * @return number of entries
+	 */
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Estimated size of the data held
+	 *
+	 * @return bytes
+	 */
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * Byte budget
+	 *
+	 * @return maximum estimated size in bytes of the data held
+	 */
+	public long getBudget()
+	{
+		return budget;
+	}
+
+	/**
+	 * Number of lookups that found data
+	 *
+	 * @return count
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * Number of lookups that found no data
+	 *
+	 * @return count
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * Number of entries evicted to stay within the budget
+	 *
+	 * @return count
+	 */
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	@Override public synchronized String toString()
+	{
+		return "entries=" + entries.size() + " bytes=" + bytes + "/" + budget + " hits=" + hits + " misses=" + misses + " evictions=" + evictions;
+	}
+
+	// S I Z E
+
+	/**
+	 * Estimate the heap size of derived data
+	 *
+	 * @param value String, Term, or clausal form triple
+	 * @return estimated size in bytes
+	 */
+	private static long sizeOf(Object value)
+	{
+		if (value == null)
+			return 0;
+		if (value instanceof String)
+			return sizeOf((String) value);
+		if (value instanceof Term)
+			return sizeOf((Term) value);
+		if (value instanceof Tuple.Triple)
+		{
+			Tuple.Triple<?, ?, ?> triple = (Tuple.Triple<?, ?, ?>) value;
+			long size = 64;
+			if (triple.first instanceof List)
+			{
+				for (Object clause : (List<?>) triple.first)
+				{
+					size += 48;
+					if (clause instanceof Clause)
+					{
+						for (Formula lit : ((Clause) clause).negativeLits)
+							size += 64 + sizeOf(lit.text);
+						for (Formula lit : ((Clause) clause).positiveLits)
+							size += 64 + sizeOf(lit.text);
+					}
+				}
+			}
+			if (triple.second instanceof Formula)
+				size += 64;
+			if (triple.third instanceof Map)
+			{
+				for (Map.Entry<?, ?> entry : ((Map<?, ?>) triple.third).entrySet())
+					size += 48 + sizeOf((String) entry.getKey()) + sizeOf((String) entry.getValue());
+			}
+			return size;
+		}
+		return 64;
+	}
+
+	private static long sizeOf(String s)
+	{
+		return s == null ? 0 : 40 + 2L * s.length();
+	}
+
+	private static long sizeOf(Term term)
+	{
+		if (term.isAtom())
+			return 24 + sizeOf(term.getAtom());
+		long size = 48 + 8L * term.size();
+		for (Term element : term.elements())
+			size += sizeOf(element);
+		return size;
+	}
+}
@@ -22,6 +22,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Handle operations on an individual formula.  This includes formatting.
@@ -51,6 +53,7 @@ public class Formula implements Comparable<Formula>, Serializable
 	protected static final String DIVIDEFN = "DivisionFn";
 	protected static final String SKFN = "SkFn";
 	protected static final String SK_PREF = "Sk";
+	protected static final String DEF_PREF = "Def";
 	protected static final String FN_SUFF = "Fn";
 	protected static final String V_PREF = "?";
 	protected static final String R_PREF = "@";
@@ -92,6 +95,11 @@ public class Formula implements Comparable<Formula>, Serializable
 	 */
 	protected static final int MAX_PREDICATE_ARITY = 7;
 
+	/**
+	 * Innermost list, as matched by hasCorrectArity()
+	 */
+	private static final Pattern INNERMOST_LIST_PATTERN = Pattern.compile("(\\([^(]+?\\))");
+
 	// M E M B E R S
 
 	/**
@@ -101,8 +109,30 @@ public class Formula implements Comparable<Formula>, Serializable
 
 	/**
 	 * A list of clausal (resolution) forms generated from this Formula.
+	 * Computed once, on demand, and safely published to other threads.
 	 */
-	private Tuple.Triple<List<Clause>, Formula, Map<String, String>> clausalForm = null;
+	private volatile Tuple.Triple<List<Clause>, Formula, Map<String, String>> clausalForm = null;
+
+	/**
+	 * Persistent store consulted before clausifying, null if none.
+	 */
+	private static volatile ClausalFormStore clausalFormStore = null;
+
+	/**
+	 * Memory-bounded cache of clausal forms and other derived data, null if none.
+	 * When set, clausal forms are held there rather than in the Formula.
+	 */
+	private static volatile DerivedDataCache derivedDataCache = null;
+
+	/**
+	 * Structural features of the formula, valid as long as their text is the formula text.
+	 */
+	private FormulaFeatures features = null;
+
+	/**
+	 * The text validate() found balanced, so that isBalancedList() need not validate it again.
+	 */
+	private String balancedText = null;
 
 	/**
 	 * The source file in which the formula appears.
@@ -143,13 +173,133 @@ public class Formula implements Comparable<Formula>, Serializable
 	public Tuple.Triple<List<Clause>, Formula, Map<String, String>> getClausalForm()
 	{
 		logger.entering("Formula", "getClausalForm");
-		if (clausalForm == null)
+		Tuple.Triple<List<Clause>, Formula, Map<String, String>> result = clausalForm;
+		if (result == null)
+		{
+			DerivedDataCache cache = derivedDataCache;
+			if (cache != null)
+				result = isNonEmpty(this.text) ? cache.computeIfAbsent(this, DerivedDataCache.CLAUSAL_FORM, this::computeClausalForm) : null;
+			else
+			{
+				synchronized (this)
+				{
+					result = clausalForm;
+					if (result == null && isNonEmpty(this.text))
+						this.clausalForm = result = computeClausalForm();
+				}
+			}
+		}
+		logger.exiting("Formula", "getClausalForm", result);
+		return result;
+	}
+
+	/**
+	 * Computes the clausal form, or gets it from the persistent store
+	 *
+	 * @return clauses, this Formula and variable renamings
+	 */
+	private Tuple.Triple<List<Clause>, Formula, Map<String, String>> computeClausalForm()
+	{
+		ClausalFormStore store = clausalFormStore;
+		Tuple.Triple<List<Clause>, Formula, Map<String, String>> result = null;
+		if (store != null)
+			result = store.get(this);
+		if (result == null)
+		{
+			result = Clausifier.toNegAndPosLitsWithRenameInfo(this);
+			if (store != null)
+				store.put(this, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Sets the memory-bounded cache that holds clausal forms, parsed
+	 * terms and normalized texts.  Clausal forms already held by
+	 * formulas are kept.
+	 *
+	 * @param cache cache, null for none, in which case clausal forms are held by the formulas
+	 */
+	public static void setDerivedDataCache(DerivedDataCache cache)
+	{
+		derivedDataCache = cache;
+	}
+
+	/**
+	 * Gets the memory-bounded cache of derived data
+	 *
+	 * @return cache, null if none
+	 */
+	public static DerivedDataCache getDerivedDataCache()
+	{
+		return derivedDataCache;
+	}
+
+	/**
+	 * Returns the parsed tree of this Formula, cached if a derived data cache is set
+	 *
+	 * @return Term, null if the text is empty
+	 */
+	public Term getTerm()
+	{
+		DerivedDataCache cache = derivedDataCache;
+		if (cache == null)
+			return Term.parse(this.text);
+		return cache.computeIfAbsent(this, DerivedDataCache.TERM, () -> Term.parse(this.text));
+	}
+
+	/**
+	 * Returns the text with variables normalized, cached if a derived data cache is set
+	 *
+	 * @return normalized text
+	 */
+	private String getNormalized()
+	{
+		DerivedDataCache cache = derivedDataCache;
+		if (cache == null)
+			return Clausifier.normalizeVariables(this.text).trim();
+		return cache.computeIfAbsent(this, DerivedDataCache.NORMALIZED, () -> Clausifier.normalizeVariables(this.text).trim());
+	}
+
+	/**
+	 * Sets the persistent store of clausal forms that getClausalForm()
+	 * consults before clausifying and that it saves new clausal forms to.
+	 *
+	 * @param store store, null for none
+	 */
+	public static void setClausalFormStore(ClausalFormStore store)
+	{
+		clausalFormStore = store;
+	}
+
+	/**
+	 * Gets the persistent store of clausal forms
+	 *
+	 * @return store, null if none
+	 */
+	public static ClausalFormStore getClausalFormStore()
+	{
+		return clausalFormStore;
+	}
+
+	/**
+	 * Sets the clausal form, as computed by a batch run over the KB
+	 *
+	 * @param clausalForm clauses, this Formula and variable renamings, as returned by
+	 *                    Clausifier.toNegAndPosLitsWithRenameInfo()
+	 */
+	public void setClausalForm(Tuple.Triple<List<Clause>, Formula, Map<String, String>> clausalForm)
+	{
+		DerivedDataCache cache = derivedDataCache;
+		if (cache != null)
+		{
+			cache.put(this, DerivedDataCache.CLAUSAL_FORM, clausalForm);
+			return;
+		}
+		synchronized (this)
 		{
-			if (isNonEmpty(this.text))
-				this.clausalForm = Clausifier.toNegAndPosLitsWithRenameInfo(this);
+			this.clausalForm = clausalForm;
 		}
-		logger.exiting("Formula", "getClausalForm", clausalForm);
-		return this.clausalForm;
 	}
 
 	/**
@@ -187,6 +337,45 @@ public class Formula implements Comparable<Formula>, Serializable
 		return clausesWithVarMap.third;
 	}
 
+	/**
+	 * Returns the structural features of this Formula.  They are set
+	 * by KIF.parse() or else computed on demand, and recomputed when
+	 * the text has been changed since.
+	 *
+	 * @return features
+	 */
+	public FormulaFeatures getFeatures()
+	{
+		FormulaFeatures result = this.features;
+		if (result == null || result.text != this.text)
+		{
+			result = FormulaFeatures.compute(this.text);
+			this.features = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Set the structural features of this Formula, as computed while parsing
+	 *
+	 * @param features features, computed from this Formula's text
+	 */
+	public void setFeatures(FormulaFeatures features)
+	{
+		this.features = features;
+	}
+
+	/**
+	 * Test structural features
+	 *
+	 * @param features FormulaFeatures bits
+	 * @return whether this Formula has all the given features
+	 */
+	public boolean hasFeatures(int features)
+	{
+		return getFeatures().has(features);
+	}
+
 	// A C C E S S
 
 	/**
@@ -276,8 +465,8 @@ public class Formula implements Comparable<Formula>, Serializable
 	 */
 	public boolean equals(Formula other)
 	{
-		String s = Clausifier.normalizeVariables(this.text).trim();
-		String s2 = Clausifier.normalizeVariables(other.text).trim();
+		String s = getNormalized();
+		String s2 = other.getNormalized();
 		return s.equals(s2);
 	}
 
@@ -306,6 +495,8 @@ public class Formula implements Comparable<Formula>, Serializable
 
 	/**
 	 * If equals is overridden, hashCode must use the same "significant" fields.
+	 * The normalized text is not taken from the derived data cache, so that
+	 * hashing does not contend for its lock.
 	 */
 	public int hashCode()
 	{
@@ -769,121 +960,45 @@ public class Formula implements Comparable<Formula>, Serializable
 
 	/**
 	 * Returns true if the Formula contains no unbalanced parentheses
-	 * or unbalanced quote characters, otherwise returns false.
+	 * or unbalanced quote characters, otherwise returns false.  The text
+	 * is validated again only if it has been changed since validate()
+	 * found it balanced.
 	 *
 	 * @return boolean
 	 */
 	public boolean isBalancedList()
 	{
-		boolean result = false;
-		if (this.listP())
-		{
-			if (this.empty())
-				result = true;
-			else
-			{
-				List<Character> quoteChars = Arrays.asList('"', '\'');
-				int pLevel = 0;
-				int qLevel = 0;
-				char prev = '0';
-				boolean insideQuote = false;
-				char quoteCharInForce = '0';
-
-				String input = this.text.trim();
-				int len = input.length();
-				for (int i = 0; i < len; i++)
-				{
-					char ch = input.charAt(i);
-					if (!insideQuote)
-					{
-						if (ch == '(')
-							pLevel++;
-						else if (ch == ')')
-							pLevel--;
-						else if (quoteChars.contains(ch) && (prev != '\\'))
-						{
-							insideQuote = true;
-							quoteCharInForce = ch;
-							qLevel++;
-						}
-					}
-					else if (quoteChars.contains(ch) && (ch == quoteCharInForce) && (prev != '\\'))
-					{
-						insideQuote = false;
-						quoteCharInForce = '0';
-						qLevel--;
-					}
-					prev = ch;
-				}
-				result = ((pLevel == 0) && (qLevel == 0));
-				// logger.finest("qLevel == " + qLevel);
-				// logger.finest("pLevel == " + pLevel);
-			}
-		}
-		return result;
+		String text = this.text;
+		return this.listP() && (text == this.balancedText || FormulaValidator.validate(text).isBalanced());
 	}
 
 	/**
-	 * @see #validArgs() validArgs below for documentation
+	 * Validate the Formula in a single pass: balanced parentheses and
+	 * quotes, number of arguments of logical operators and equal, and
+	 * well-formed quantifier variable lists.  Warnings, such as more
+	 * arguments than MAX_PREDICATE_ARITY, are added to this Formula's
+	 * errors.
+	 *
+	 * @param filename If not null, denotes the name of the file being
+	 *                 parsed.
+	 * @param lineNo   If not null, indicates the location of the
+	 *                 expression (formula) being parsed in the file being read.
+	 * @return the errors found, each with its position in the text, or an empty list if there are none.
 	 */
-	private String validArgsRecurse(Formula f, String filename, Integer lineNo)
+	public List<FormulaValidator.Problem> validate(String filename, Integer lineNo)
 	{
-		// logger.finest("Formula: " + f.text);
-		if (f.text.isEmpty() || !f.listP() || f.atom() || f.empty())
-			return "";
-		String pred = f.car();
-		String rest = f.cdr();
-		Formula restF = new Formula();
-		restF.set(rest);
-		int argCount = 0;
-		while (!restF.empty())
-		{
-			argCount++;
-			String arg = restF.car();
-			Formula argF = new Formula();
-			argF.set(arg);
-			String result = validArgsRecurse(argF, filename, lineNo);
-			if (!result.isEmpty())
-				return result;
-			restF.text = restF.cdr();
-		}
-		if (pred.equals(AND) || pred.equals(OR))
+		String location = "";
+		if ((filename != null) && (lineNo != null))
 		{
-			if (argCount < 2)
-				return "Too few arguments for 'and' or 'or' in formula: \n" + f.toString() + "\n";
+			location = (" near line " + lineNo + " in " + filename);
 		}
-		else if (pred.equals(UQUANT) || pred.equals(EQUANT))
-		{
-			if (argCount != 2)
-				return "Wrong number of arguments for 'exists' or 'forall' in formula: \n" + f.toString() + "\n";
-			else
-			{
-				Formula quantF = new Formula();
-				quantF.set(rest);
-				if (!listP(quantF.car()))
-					return "No parenthesized variable list for 'exists' or 'forall' " + "in formula: \n" + f.toString() + "\n";
-			}
-		}
-		else if (pred.equals(IFF) || pred.equals(IF))
-		{
-			if (argCount != 2)
-				return "Wrong number of arguments for '<=>' or '=>' in formula: \n" + f.toString() + "\n";
-		}
-		else if (pred.equals(EQUAL))
-		{
-			if (argCount != 2)
-				return "Wrong number of arguments for 'equals' in formula: \n" + f.toString() + "\n";
-		}
-		else if (!(isVariable(pred)) && (argCount > (MAX_PREDICATE_ARITY + 1)))
-		{
-			String location = "";
-			if ((filename != null) && (lineNo != null))
-			{
-				location = (" near line " + lineNo + " in " + filename);
-			}
-			this.errors.add("Maybe too many arguments " + location + ": " + f.toString() + "\n");
-		}
-		return "";
+		String text = this.text;
+		FormulaValidator validator = FormulaValidator.validate(text, location);
+		if (validator.isBalanced())
+			this.balancedText = text;
+		for (FormulaValidator.Problem warning : validator.getWarnings())
+			this.errors.add(warning.message);
+		return validator.getErrors(0);
 	}
 
 	/**
@@ -905,12 +1020,12 @@ public class Formula implements Comparable<Formula>, Serializable
 	{
 		if (this.text == null || this.text.isEmpty())
 			return "";
-		Formula f = new Formula();
-		f.set(this.text);
-
-		// logger.finest("Result: " + result);
-
-		return validArgsRecurse(f, filename, lineNo);
+		for (FormulaValidator.Problem error : validate(filename, lineNo))
+		{
+			if (error.kind == FormulaValidator.ARITY)
+				return error.message;
+		}
+		return "";
 	}
 
 	/**
@@ -930,16 +1045,17 @@ public class Formula implements Comparable<Formula>, Serializable
 	}
 
 	/**
-	 * Not yet implemented!  Test whether the Formula has variables that are not properly
-	 * quantified.  The case tested for is whether a quantified variable
-	 * in the antecedent appears in the consequent or vice versa.
+	 * Test whether the Formula has malformed quantifiers, that is
+	 * quantifiers whose variable list is empty or contains something
+	 * other than variables.
 	 *
 	 * @return an empty String if there are no problems or an error message
 	 * if there are.
 	 */
-	@SuppressWarnings("SameReturnValue") public String badQuantification()
+	public String badQuantification()
 	{
-		return "";
+		List<FormulaValidator.Problem> errors = FormulaValidator.validate(this.text).getErrors(FormulaValidator.QUANTIFIER);
+		return errors.isEmpty() ? "" : errors.get(0).message;
 	}
 
 	// P A R S E
@@ -1436,86 +1552,162 @@ public class Formula implements Comparable<Formula>, Serializable
 	{
 		logger.entering("Formula", "expandRowVars", kb.name);
 		List<Formula> result = new ArrayList<>();
+		rowVarExpansions(kb, Integer.MAX_VALUE).forEachRemaining(result::add);
+		logger.exiting("Formula", "expandRowVars", result);
+		return result;
+	}
+
+	/**
+	 * Expand row variables lazily, as expandRowVars() does.  Expansions
+	 * are produced on demand, depth first, so that they need not be held
+	 * in memory and that no more are computed than the consumer takes.
+	 *
+	 * @param kb     knowledge base
+	 * @param budget maximum number of expansions produced
+	 * @return stream of Formulas
+	 */
+	public Stream<Formula> streamRowVarExpansions(KB kb, int budget)
+	{
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(rowVarExpansions(kb, budget), Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+	/**
+	 * Expand row variables lazily, as expandRowVars() does.
+	 *
+	 * @param kb     knowledge base
+	 * @param budget maximum number of expansions produced
+	 * @return iterator over Formulas
+	 */
+	public Iterator<Formula> rowVarExpansions(KB kb, int budget)
+	{
 		SortedSet<String> rowVars = (this.text.contains(R_PREF) ? this.findRowVars() : null);
-		// If this Formula contains no row vars to expand, we just add it to resultList and quit.
+		// If this Formula contains no row vars to expand, it is its only expansion.
 		if ((rowVars == null) || rowVars.isEmpty())
+			return budget > 0 ? Collections.singletonList(this).iterator() : Collections.emptyIterator();
+		return new RowVarExpansions(kb, new ArrayList<>(rowVars), budget);
+	}
+
+	/**
+	 * Depth-first iterator over the expansions of the row variables of this
+	 * Formula, one row variable after the other.  A partial expansion that
+	 * no longer contains row variables, or that contains strings, is
+	 * produced as is.  Row variables are substituted structurally.
+	 */
+	private class RowVarExpansions implements Iterator<Formula>
+	{
+		private final KB kb;
+
+		private final List<String> rowVars;
+
+		private int budget;
+
+		// Pending partial expansions, with the index of the next row var to expand
+		private final Deque<Tuple.Pair<Formula, Integer>> pending = new ArrayDeque<>();
+
+		private Formula next;
+
+		RowVarExpansions(KB kb, List<String> rowVars, int budget)
 		{
-			result.add(this);
-		}
-		else
-		{
+			this.kb = kb;
+			this.rowVars = rowVars;
+			this.budget = budget;
 			Formula f = new Formula();
-			f.set(this.text);
+			f.set(Formula.this.text);
+			push(f, 0);
+		}
 
-			Set<Formula> accumulator = new LinkedHashSet<>();
-			accumulator.add(f);
+		private void push(Formula f, int rowVarIndex)
+		{
+			Tuple.Pair<Formula, Integer> item = new Tuple.Pair<>();
+			item.first = f;
+			item.second = rowVarIndex;
+			pending.push(item);
+		}
 
-			// Iterate through the row variables
-			for (String rowVar : rowVars)
+		@Override public boolean hasNext()
+		{
+			while (next == null && budget > 0 && !pending.isEmpty())
 			{
-				List<Formula> working = new ArrayList<>(accumulator);
-				accumulator.clear();
-
-				for (Formula f2 : working)
+				Tuple.Pair<Formula, Integer> item = pending.pop();
+				Formula f2 = item.first;
+				int rowVarIndex = item.second;
+				f2.sourceFile = Formula.this.sourceFile;
+				if (!f2.text.contains(R_PREF) || f2.text.contains("\""))
 				{
-					String f2Str = f2.text;
-					if (!f2Str.contains(R_PREF) || (f2Str.contains("\"")))
-					{
-						f2.sourceFile = this.sourceFile;
-						result.add(f2);
-					}
-					else
-					{
-						int[] range = f2.getRowVarExpansionRange(kb, rowVar);
+					next = f2;
+					budget--;
+				}
+				else if (rowVarIndex < rowVars.size())
+				{
+					List<Formula> expansions = expand(f2, rowVars.get(rowVarIndex));
+					for (int i = expansions.size() - 1; i >= 0; i--)
+						push(expansions.get(i), rowVarIndex + 1);
+				}
+				else
+					logger.warning("Row variables left after expansion in " + f2.text);
+			}
+			if (next == null && budget <= 0 && !pending.isEmpty())
+				logger.warning("Row variable expansion budget exhausted for " + Formula.this.text);
+			return next != null;
+		}
 
-						boolean hasVariableArityRelation = (range[0] == 0);
-						range[1] = adjustExpansionCount(hasVariableArityRelation, range[1], rowVar);
+		@Override public Formula next()
+		{
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Formula result = next;
+			next = null;
+			return result;
+		}
 
-						StringBuilder varRepl = new StringBuilder();
-						for (int j = 1; j < range[1]; j++)
-						{
-							if (varRepl.length() > 0)
-								varRepl.append(" ");
-							varRepl.append("?");
-							varRepl.append(rowVar.substring(1));
-							varRepl.append(j);
-							if (hasVariableArityRelation)
-							{
-								String f2Str2 = f2Str.replaceAll(rowVar, varRepl.toString());
-								Formula newF = new Formula();
-								newF.set(f2Str2);
+		/**
+		 * Expand one row variable of a partial expansion
+		 */
+		private List<Formula> expand(Formula f2, String rowVar)
+		{
+			List<Formula> result = new ArrayList<>();
+			Term term = Term.parse(f2.text);
+			if (term == null)
+				return result;
+			int[] range = f2.getRowVarExpansionRange(kb, rowVar);
 
-								// Copy the source file information for each expanded formula.
-								newF.sourceFile = this.sourceFile;
-								if (newF.text.contains(R_PREF) && (!newF.text.contains("\"")))
-								{
-									accumulator.add(newF);
-								}
-								else
-									result.add(newF);
-							}
-						}
-						if (!hasVariableArityRelation)
-						{
-							String f2Str2 = f2Str.replaceAll(rowVar, varRepl.toString());
-							Formula newF = new Formula();
-							newF.set(f2Str2);
+			boolean hasVariableArityRelation = (range[0] == 0);
+			range[1] = adjustExpansionCount(hasVariableArityRelation, range[1], rowVar);
 
-							// Copy the source file information for each expanded formula.
-							newF.sourceFile = this.sourceFile;
-							if (newF.text.contains(R_PREF) && (newF.text.indexOf('"') == -1))
-							{
-								accumulator.add(newF);
-							}
-							else
-								result.add(newF);
-						}
-					}
-				}
+			List<Term> vars = new ArrayList<>();
+			for (int j = 1; j < range[1]; j++)
+			{
+				vars.add(Term.atom(V_PREF + rowVar.substring(1) + j));
+				if (hasVariableArityRelation)
+					result.add(substitute(term, rowVar, vars).toFormula());
 			}
+			if (!hasVariableArityRelation)
+				result.add(substitute(term, rowVar, vars).toFormula());
+			return result;
 		}
-		logger.exiting("Formula", "expandRowVars", result);
-		return result;
+	}
+
+	/**
+	 * Replace a row variable by a sequence of terms
+	 *
+	 * @param term   term
+	 * @param rowVar row variable
+	 * @param vars   terms to splice in place of the row variable
+	 * @return term with the row variable replaced
+	 */
+	private static Term substitute(Term term, String rowVar, List<Term> vars)
+	{
+		if (!term.isList())
+			return term;
+		List<Term> elements = new ArrayList<>(term.size() + vars.size());
+		for (Term element : term.elements())
+		{
+			if (element.isAtom() && element.getAtom().equals(rowVar))
+				elements.addAll(vars);
+			else
+				elements.add(substitute(element, rowVar, vars));
+		}
+		return Term.list(elements);
 	}
 
 	/**
@@ -1655,9 +1847,8 @@ public class Formula implements Comparable<Formula>, Serializable
 				// First we get the neg lits.  It may be that we should use *only* the neg lits for this
 				// task, but we will start by combining the neg lits and pos lits into one list of literals
 				// and see how that works.
-				List<Formula> literals = clause.negativeLits;
-				List<Formula> posLits = clause.positiveLits;
-				literals.addAll(posLits);
+				List<Formula> literals = new ArrayList<>(clause.negativeLits);
+				literals.addAll(clause.positiveLits);
 				for (Formula litF : literals)
 				{
 					litF.computeRowVarsWithRelations(rowVarRelns, varMap);
@@ -1840,29 +2031,7 @@ public class Formula implements Comparable<Formula>, Serializable
 	 */
 	public boolean isHigherOrder()
 	{
-		if (this.listP())
-		{
-			String pred = this.car();
-			boolean logOp = isLogicalOperator(pred);
-			List<String> al = literalToList();
-			for (int i = 1; i < al.size(); i++)
-			{
-				String arg = al.get(i);
-				Formula f = new Formula();
-				f.set(arg);
-				if (!atom(arg) && !f.isFunctionalTerm())
-				{
-					if (logOp)
-					{
-						if (f.isHigherOrder())
-							return true;
-					}
-					else
-						return true;
-				}
-			}
-		}
-		return false;
+		return hasFeatures(FormulaFeatures.HIGHER_ORDER);
 	}
 
 	/**
@@ -1897,26 +2066,7 @@ public class Formula implements Comparable<Formula>, Serializable
 	 */
 	public boolean isRule()
 	{
-		boolean result = false;
-		if (this.listP())
-		{
-			String arg0 = this.car();
-			if (isQuantifier(arg0))
-			{
-				String arg2 = this.getArgument(2);
-				if (Formula.listP(arg2))
-				{
-					Formula newF = new Formula();
-					newF.set(arg2);
-					result = newF.isRule();
-				}
-			}
-			else
-			{
-				result = Arrays.asList(IF, IFF).contains(arg0);
-			}
-		}
-		return result;
+		return hasFeatures(FormulaFeatures.RULE);
 	}
 
 	/**
@@ -2006,6 +2156,16 @@ public class Formula implements Comparable<Formula>, Serializable
 		return true;
 	}
 
+	/**
+	 * Test whether this formula is valid with no variable
+	 *
+	 * @return true if formula is a valid formula with no variables, else returns false.
+	 */
+	public boolean isGround()
+	{
+		return hasFeatures(FormulaFeatures.GROUND);
+	}
+
 	/**
 	 * Test whether term is a logical quantifier
 	 *
@@ -2095,10 +2255,14 @@ public class Formula implements Comparable<Formula>, Serializable
 	private List<String> getTypeList(String pred, KB kb)
 	{
 		List<String> result;
+		RelationSignature signature = kb.getRelationSignature(pred);
+		if (signature != null)
+			return signature.getDeclaredTypes();
 
 		// build the sortalTypeCache key.
 		String key = "gtl" + pred + kb.name;
-		Map<String, List<String>> stc = kb.getSortalTypeCache();
+		SortalTypeCache stc = kb.getSortalTypeCacheInstance();
+		long version = stc.getVersion();
 		result = stc.get(key);
 		if (result == null)
 		{
@@ -2125,7 +2289,7 @@ public class Formula implements Comparable<Formula>, Serializable
 			addToTypeList(pred, al4, r, true);
 			result = new ArrayList<>(Arrays.asList(r));
 
-			stc.put(key, result);
+			stc.put(key, result, version);
 		}
 		return result;
 	}
@@ -2199,11 +2363,19 @@ public class Formula implements Comparable<Formula>, Serializable
 			logger.entering("Formula", "findType", params);
 		}
 		String result;
+		RelationSignature signature = kb.getRelationSignature(pred);
+		if (signature != null)
+		{
+			result = signature.getArgType(argIdx);
+			logger.exiting("Formula", "findType", result);
+			return result;
+		}
 
 		// build the sortalTypeCache key.
 		String key = "ft" + argIdx + pred + kb.name;
 
-		Map<String, List<String>> stc = kb.getSortalTypeCache();
+		SortalTypeCache stc = kb.getSortalTypeCacheInstance();
+		long version = stc.getVersion();
 		List<String> results = stc.get(key);
 		boolean isCached = results != null && !results.isEmpty();
 		result = isCached ? results.get(0) : null;
@@ -2282,7 +2454,7 @@ public class Formula implements Comparable<Formula>, Serializable
 				}
 			}
 			if (cacheResult && (result != null))
-				stc.put(key, Collections.singletonList(result));
+				stc.put(key, Collections.singletonList(result), version);
 		}
 		logger.exiting("Formula", "findType", result);
 		return result;
@@ -3090,9 +3262,8 @@ public class Formula implements Comparable<Formula>, Serializable
 				accumulator.clear();
 				for (Formula f : working)
 				{
-					accumulator.addAll(f.expandRowVars(kb));
-					// logger.finest("f == " + f);
-					// logger.finest("accumulator == " + accumulator);
+					// Expand lazily, taking no more than the limit allows.
+					f.rowVarExpansions(kb, AXIOM_EXPANSION_LIMIT + 1 - accumulator.size()).forEachRemaining(accumulator::add);
 					if (accumulator.size() > AXIOM_EXPANSION_LIMIT)
 					{
 						logger.warning("  AXIOM_EXPANSION_LIMIT EXCEEDED: " + AXIOM_EXPANSION_LIMIT);
@@ -3122,6 +3293,30 @@ public class Formula implements Comparable<Formula>, Serializable
 	 * the input List, variableReplacements, or could be empty.
 	 */
 	List<Formula> addInstancesOfSetOrClass(KB kb, boolean isQuery, List<Formula> variableReplacements)
+	{
+		return addInstancesOfSetOrClass(kb, isQuery, variableReplacements, null);
+	}
+
+	/**
+	 * Adds statements of the form (instance &lt;Entity> &lt;SetOrClass>) if
+	 * they are not already in the KB.
+	 *
+	 * @param kb                   The KB to be used for processing the input Formulae
+	 *                             in variableReplacements
+	 * @param isQuery              If true, this method just returns the initial
+	 *                             input List, variableReplacements, with no additions
+	 * @param variableReplacements A List of Formulae in which
+	 *                             predicate variables and row variables have already been
+	 *                             replaced, and to which (instance <Entity> <SetOrClass>)
+	 *                             Formulae might be added
+	 * @param added                If not null, a Map from statement text to statement
+	 *                             that receives the statements added, which are only checked
+	 *                             against this Map rather than against those added for earlier
+	 *                             formulas, recorded in the KB
+	 * @return an List of Formula(s), which could be larger than
+	 * the input List, variableReplacements, or could be empty.
+	 */
+	List<Formula> addInstancesOfSetOrClass(KB kb, boolean isQuery, List<Formula> variableReplacements, Map<String, Formula> added)
 	{
 		List<Formula> result = new ArrayList<>();
 		if ((variableReplacements != null) && !variableReplacements.isEmpty())
@@ -3164,11 +3359,15 @@ public class Formula implements Comparable<Formula>, Serializable
 									ioF.sourceFile = this.sourceFile;
 									if (!kb.formulaMap.containsKey(ioStr))
 									{
-										Map<String, List<String>> stc = kb.getSortalTypeCache();
-										if (stc.get(ioStr) == null)
+										if (added != null)
+										{
+											if (added.putIfAbsent(ioStr, ioF) == null)
+												formulae.add(ioF);
+										}
+										else
 										{
-											stc.put(ioStr, Collections.singletonList(ioStr));
-											formulae.add(ioF);
+											if (kb.addSetOrClassInstance(ioStr))
+												formulae.add(ioF);
 										}
 									}
 								}
@@ -3252,6 +3451,13 @@ public class Formula implements Comparable<Formula>, Serializable
 		return hasCorrectArity(this.text, kb);
 	}
 
+	/**
+	 * Test the arity of each relation in a formula against its valence
+	 *
+	 * @param formula formula text
+	 * @param kb      knowledge base
+	 * @return false if a relation is applied to a number of arguments other than its valence
+	 */
 	public boolean hasCorrectArity(String formula, KB kb)
 	{
 		boolean arityCorrect = true;
@@ -3259,7 +3465,7 @@ public class Formula implements Comparable<Formula>, Serializable
 		formula = formula.replaceAll("exists\\s+(\\([^(]+?\\))", "");
 		formula = formula.replaceAll("forall\\s+(\\([^(]+?\\))", "");
 		formula = formula.replaceAll("\".*?\"", "?MATCH");
-		Pattern p = Pattern.compile("(\\([^(]+?\\))");
+		Pattern p = INNERMOST_LIST_PATTERN;
 
 		Matcher m = p.matcher(formula);
 		while (m.find() && arityCorrect)
@@ -3309,7 +3515,10 @@ public class Formula implements Comparable<Formula>, Serializable
 	/**
 	 * Returns an List of the Formulae that result from replacing
 	 * all arg0 predicate variables in the input Formula with
-	 * predicate names.
+	 * predicate names.  The query literals gathered for the predicate
+	 * variables are joined, see PredVarJoin, and each answer of the join
+	 * yields one Formula, in which all the variables the literals bind
+	 * are replaced, unless they are explicitly quantified.
 	 *
 	 * @param kb A KB that is used for processing the Formula.
 	 * @return An List of Formulas, or an empty List if no instantiations can be generated.
@@ -3324,7 +3533,7 @@ public class Formula implements Comparable<Formula>, Serializable
 			{
 				String arg0 = this.getArgument(0);
 				// First we do some checks to see if it is worth processing the formula.
-				if (isLogicalOperator(arg0) && this.text.matches(".*\\(\\s*\\?\\w+.*"))
+				if (isLogicalOperator(arg0) && hasFeatures(FormulaFeatures.PRED_VARS))
 				{
 					// Get all pred vars, and then compute query lits for the pred vars, indexed by var.
 					Map<String, List<String>> varsWithTypes = gatherPredVars(kb);
@@ -3336,113 +3545,50 @@ public class Formula implements Comparable<Formula>, Serializable
 					else
 					{
 						List<Tuple.Pair<String, List<List<String>>>> indexedQueryLits = prepareIndexedQueryLiterals(kb, varsWithTypes);
-						List<Tuple.Triple<List<List<String>>, List<String>, List<List<String>>>> substForms = new ArrayList<>();
 
-						// First, gather all substitutions.
-						for (Tuple.Pair<String, List<List<String>>> varQueryTuples : indexedQueryLits)
-						{
-							Tuple.Triple<List<List<String>>, List<String>, List<List<String>>> substTuples = computeSubstitutionTuples(kb, varQueryTuples);
-							if (substTuples != null)
-							{
-								if (substForms.isEmpty())
-									substForms.add(substTuples);
-								else
-								{
-									int stSize = substTuples.third.size();
-
-									int sfSize = substForms.size();
-									int sfLast = (sfSize - 1);
-									for (int i = 0; i < sfSize; i++)
-									{
-										int iSize = substForms.get(i).third.size();
-										if (stSize < iSize)
-										{
-											substForms.add(i, substTuples);
-											break;
-										}
-										if (i == sfLast)
-											substForms.add(substTuples);
-									}
-								}
-							}
-						}
-
-						if (!substForms.isEmpty())
+						// Join the query literals of all pred vars.
+						Set<List<String>> queryLits = new LinkedHashSet<>();
+						for (Tuple.Pair<String, List<List<String>>> varQueryLits : indexedQueryLits)
+							queryLits.addAll(varQueryLits.second);
+						PredVarJoin join = new PredVarJoin(kb, queryLits);
+						if (join.isSatisfiable())
 						{
 							// Try to simplify the Formula.
 							Formula f = this;
-							for (Tuple.Triple<List<List<String>>, List<String>, List<List<String>>> substTuples : substForms)
+							for (List<String> lit : join.getSatisfiedLiterals())
 							{
-								List<List<String>> litsToRemove = substTuples.first;
-								for (List<String> lit : litsToRemove)
-								{
-									f = f.maybeRemoveMatchingLits(lit);
-								}
+								f = f.maybeRemoveMatchingLits(lit);
 							}
+							String template = f.text;
 
-							// Now generate pred var instantiations from the possibly simplified formula.
-							List<String> templates = new ArrayList<>();
-							templates.add(f.text);
+							// Don't replace variables that are explicitly quantified.
+							List<String> quantVars = f.collectVariables().first;
+							Map<String, List<Pattern>> varPatterns = new HashMap<>();
 
-							// Iterate over all var plus query lits forms, getting a list of substitution literals.
-							Set<String> accumulator = new HashSet<>();
-							for (Tuple.Triple<List<List<String>>, List<String>, List<List<String>>> substTuples : substForms)
-							{
-								if ((substTuples != null))
+							// Now generate pred var instantiations from the possibly simplified formula, one per substitution.
+							Set<String> accumulator = new LinkedHashSet<>();
+							join.stream().forEachOrdered(substitution -> {
+								String instance = template;
+								for (Map.Entry<String, String> entry : substitution.entrySet())
 								{
-									// Iterate over all ground lits ...
-									// Do not use litsToRemove, which we have already used above.
-									// List<List<String>> litsToRemove = substTuples.first;
-
-									// Remove and hold the tuple that indicates the variable substitution pattern.
-									List<String> varTuple = substTuples.second;
-
-									for (List<String> groundLit : substTuples.third)
+									String var = entry.getKey();
+									if (quantVars.contains(var))
+										continue;
+									List<Pattern> patterns = varPatterns.computeIfAbsent(var, v -> Arrays.asList( //
+											Pattern.compile("(\\W*\\()(\\s*holds\\s+\\" + v + ")(\\W+)"), //
+											Pattern.compile("(\\W*)(\\" + v + ")(\\W+)")));
+									for (Pattern pattern : patterns)
 									{
-										// Iterate over all formula templates, substituting terms from each ground lit for vars in the template.
-										Formula templateF = new Formula();
-										for (String template : templates)
-										{
-											templateF.set(template);
-											List<String> quantVars = templateF.collectVariables().first;
-											for (int i = 0; i < varTuple.size(); i++)
-											{
-												String var = varTuple.get(i);
-												if (isVariable(var))
-												{
-													String term = groundLit.get(i);
-													// Don't replace variables that are explicitly quantified.
-													if (!quantVars.contains(var))
-													{
-														List<Pattern> patterns = new ArrayList<>();
-														List<String> patternStrings = Arrays.asList("(\\W*\\()(\\s*holds\\s+\\" + var + ")(\\W+)",
-																// "(\\W*\\()(\\s*\\" + var + ")(\\W+)",
-																"(\\W*)(\\" + var + ")(\\W+)");
-														for (String patternString : patternStrings)
-															patterns.add(Pattern.compile(patternString));
-														for (Pattern pattern : patterns)
-														{
-															Matcher m = pattern.matcher(template);
-															template = m.replaceAll("$1" + term + "$3");
-														}
-													}
-												}
-											}
-											if (hasCorrectArity(template, kb))
-												accumulator.add(template);
-											else
-											{
-												logger.info("FORMULA REJECTED because of incorrect arity: " + template);
-												break;
-											}
-										}
+										Matcher m = pattern.matcher(instance);
+										instance = m.replaceAll("$1" + Matcher.quoteReplacement(entry.getValue()) + "$3");
 									}
-									templates.clear();
-									templates.addAll(accumulator);
-									accumulator.clear();
 								}
-							}
-							result.addAll(KB.stringsToFormulas(templates));
+								if (hasCorrectArity(instance, kb))
+									accumulator.add(instance);
+								else
+									logger.info("FORMULA REJECTED because of incorrect arity: " + instance);
+							});
+							result.addAll(KB.stringsToFormulas(new ArrayList<>(accumulator)));
 						}
 						if (result.isEmpty())
 							throw new Reject();
@@ -3458,148 +3604,6 @@ public class Formula implements Comparable<Formula>, Serializable
 		return result;
 	}
 
-	/**
-	 * Returns the number of SUO-KIF variables (only ? variables, not
-	 *
-	 * @param queryLiteral A List representing a Formula.
-	 * @return An int.
-	 * @ROW variables) in the input query literal.
-	 */
-	private static int getVarCount(List<String> queryLiteral)
-	{
-		int result = 0;
-		if (queryLiteral != null)
-		{
-			for (String term : queryLiteral)
-			{
-				if (term.startsWith("?"))
-					result++;
-			}
-		}
-		return result;
-	}
-
-	/**
-	 * This method returns an triplet of query answer literals.
-	 * The first element is an List of query literals that might be
-	 * used to simplify the Formula to be instantiated.
-	 * The second element is the query literal (List) that will be used as a
-	 * template for doing the variable substitutions.
-	 * All subsequent elements are ground literals (Lists).
-	 *
-	 * @param kb        A KB to query for answers.
-	 * @param queryLits A List of query literals.  The first item in
-	 *                  the list will be a SUO-KIF variable (String), which indexes the
-	 *                  list.  Each subsequent item is a query literal (List).
-	 * @return An List of literals, or null if no query answers can be found.
-	 */
-	private static Tuple.Triple<List<List<String>>, List<String>, List<List<String>>> computeSubstitutionTuples(KB kb,
-			Tuple.Pair<String, List<List<String>>> queryLits)
-	{
-		if (kb != null && queryLits != null)
-		{
-			// Variable
-			String idxVar = queryLits.first;
-
-			// Sort the query lits by number of variables.
-			List<List<String>> sortedQLits = new ArrayList<>(queryLits.second);
-			sortedQLits.remove(0);
-			if (sortedQLits.size() > 1)
-			{
-				Comparator<List<String>> comp = (o1, o2) -> {
-					Integer c1 = getVarCount(o1);
-					Integer c2 = getVarCount(o2);
-					return c1.compareTo(c2);
-				};
-				sortedQLits.sort(Collections.reverseOrder(comp));
-			}
-
-			// Put instance literals last.
-			List<List<String>> ioLits = new ArrayList<>();
-			List<List<String>> qLits = new ArrayList<>(sortedQLits);
-			sortedQLits.clear();
-
-			for (List<String> ql : qLits)
-			{
-				if (ql.get(0).equals("instance"))
-					ioLits.add(ql);
-				else
-					sortedQLits.add(ql);
-			}
-			sortedQLits.addAll(ioLits);
-
-			// Literals that will be used to try to simplify the formula before pred var instantiation.
-			List<List<String>> simplificationLits = new ArrayList<>();
-
-			// The literal that will serve as the pattern for extracting var replacement terms from answer/ literals.
-			List<String> keyLit = null;
-
-			// The list of answer literals retrieved using the query lits, possibly built up via a sequence of multiple queries.
-			List<List<String>> answers = null;
-
-			Set<String> working = new HashSet<>();
-
-			boolean satisfiable = true;
-			boolean tryNextQueryLiteral = true;
-
-			// The first query lit for which we get an answer is the key lit.
-			for (int i = 0; i < sortedQLits.size() && tryNextQueryLiteral; i++)
-			{
-				List<String> ql = sortedQLits.get(i);
-				List<Formula> accumulator = kb.askWithLiteral(ql);
-				satisfiable = ((accumulator != null) && !accumulator.isEmpty());
-				tryNextQueryLiteral = (satisfiable || (getVarCount(ql) > 1));
-				// !((String)(ql.get(0))).equals("instance")
-				if (satisfiable)
-				{
-					simplificationLits.add(ql);
-					if (keyLit == null)
-					{
-						keyLit = ql;
-						answers = KB.formulasToLists(accumulator);
-					}
-					else
-					{  // if (accumulator.size() < answers.size()) {
-						List<List<String>> accumulator2 = KB.formulasToLists(accumulator);
-
-						// Winnow the answers list.
-						working.clear();
-						int varPos = ql.indexOf(idxVar);
-						for (List<String> ql2 : accumulator2)
-						{
-							String term = ql2.get(varPos);
-							// if (!term.endsWith("Fn")) {
-							working.add(term);
-							// }
-						}
-
-						accumulator2.clear();
-						accumulator2.addAll(answers);
-						answers.clear();
-						varPos = keyLit.indexOf(idxVar);
-						for (List<String> ql2 : accumulator2)
-						{
-							String term = ql2.get(varPos);
-							if (working.contains(term))
-							{
-								answers.add(ql2);
-							}
-						}
-					}
-				}
-			}
-			if (satisfiable && (keyLit != null))
-			{
-				Tuple.Triple<List<List<String>>, List<String>, List<List<String>>> result = new Tuple.Triple<>();
-				result.first = simplificationLits;
-				result.second = keyLit;
-				result.third = answers;
-				return result;
-			}
-		}
-		return null;
-	}
-
     /*
       This method returns an List in which each element is
       another List.  The head of each element is a variable.
@@ -3891,6 +3895,7 @@ public class Formula implements Comparable<Formula>, Serializable
 	private Tuple.Pair<String, List<List<String>>> gatherPredVarQueryLits(KB kb, List<String> varWithTypes)
 	{
 		Tuple.Pair<String, List<List<String>>> result = new Tuple.Pair<>();
+		result.second = new ArrayList<>();
 		String var = varWithTypes.get(0);
 		Set<String> added = new HashSet<>();
 		Map<String, String> varMap = getVarMap();
@@ -4000,7 +4005,7 @@ public class Formula implements Comparable<Formula>, Serializable
 		// Add the variable to the pair
 		result.first = var;
 		// return null if it does not contain any query literals.
-		if (!result.second.isEmpty())
+		if (result.second.isEmpty())
 			return null;
 		return result;
 	}
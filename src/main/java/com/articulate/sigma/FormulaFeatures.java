@@ -0,0 +1,307 @@
+package com.articulate.sigma;
+
+import com.articulate.sigma.kif.KifTokenizer;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Structural features of a formula, held as a bit mask.
+ * The features are computed in a single pass over the tokens of the formula,
+ * either while KIF.parse() reads it or lazily from the text, so that tests
+ * such as isRule() or isHigherOrder() do not need to rescan the text.
+ * An instance is immutable and remembers the text it was computed from.
+ */
+public final class FormulaFeatures implements Serializable
+{
+	private static final long serialVersionUID = -2619304317523811947L;
+
+	/**
+	 * Starts with "=&gt;" or "&lt;=&gt;", possibly under quantifiers (see Formula.isRule())
+	 */
+	public static final int RULE = 1;
+
+	/**
+	 * Contains no variable outside strings (see Formula.isGround())
+	 */
+	public static final int GROUND = 1 << 1;
+
+	/**
+	 * Contains a formula as argument to other than a logical operator (see Formula.isHigherOrder())
+	 */
+	public static final int HIGHER_ORDER = 1 << 2;
+
+	/**
+	 * Contains a row variable
+	 */
+	public static final int ROW_VARS = 1 << 3;
+
+	/**
+	 * Contains a variable in predicate position (quantifier variable lists excepted)
+	 */
+	public static final int PRED_VARS = 1 << 4;
+
+	/**
+	 * Contains a quantifier
+	 */
+	public static final int QUANTIFIERS = 1 << 5;
+
+	/**
+	 * Contains a quoted string
+	 */
+	public static final int STRINGS = 1 << 6;
+
+	/**
+	 * Contains a logical operator as argument to a logical operator
+	 */
+	public static final int NESTED_OPERATORS = 1 << 7;
+
+	/**
+	 * Number of features
+	 */
+	public static final int COUNT = 8;
+
+	private static final String[] NAMES = { "rule", "ground", "higherOrder", "rowVars", "predVars", "quantifiers", "strings", "nestedOperators" };
+
+	/**
+	 * The text the features were computed from
+	 */
+	public final String text;
+
+	/**
+	 * The feature bits
+	 */
+	public final int mask;
+
+	/**
+	 * Constructor
+	 *
+	 * @param text text the features were computed from
+	 * @param mask feature bits
+	 */
+	public FormulaFeatures(String text, int mask)
+	{
+		this.text = text;
+		this.mask = mask;
+	}
+
+	/**
+	 * Test features
+	 *
+	 * @param features feature bits
+	 * @return whether all the given features are present
+	 */
+	public boolean has(int features)
+	{
+		return (mask & features) == features;
+	}
+
+	/**
+	 * Compute the features of a formula text
+	 *
+	 * @param text formula text
+	 * @return features
+	 */
+	public static FormulaFeatures compute(String text)
+	{
+		Builder builder = new Builder();
+		KifTokenizer st = new KifTokenizer(text);
+		while (st.nextToken() != KifTokenizer.TT_EOF)
+		{
+			switch (st.ttype)
+			{
+				case KifTokenizer.TT_OPEN:
+					builder.open();
+					break;
+				case KifTokenizer.TT_CLOSE:
+					builder.close();
+					break;
+				case KifTokenizer.TT_STRING:
+					builder.string(st.sval);
+					break;
+				default:
+					builder.atom(st.sval);
+					break;
+			}
+		}
+		return builder.build(text);
+	}
+
+	/**
+	 * Feature name
+	 *
+	 * @param feature feature bit
+	 * @return name of the feature
+	 */
+	public static String getName(int feature)
+	{
+		return NAMES[Integer.numberOfTrailingZeros(feature)];
+	}
+
+	@Override public String toString()
+	{
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < COUNT; i++)
+		{
+			if ((mask & (1 << i)) != 0)
+			{
+				if (sb.length() > 1)
+					sb.append(" ");
+				sb.append(NAMES[i]);
+			}
+		}
+		return sb.append("]").toString();
+	}
+
+	/**
+	 * Accumulates features from a stream of tokens.  Feed it the
+	 * tokens of one formula, then call build().
+	 */
+	public static class Builder
+	{
+		/**
+		 * An open list
+		 */
+		private static class Frame
+		{
+			String head = null;
+
+			int argCount = 0;
+
+			boolean logOp = false;
+
+			boolean quant = false;
+
+			// (?X ?Y) after a quantifier
+			boolean varList = false;
+
+			// may be a rule if its head is => or <=>
+			boolean ruleCandidate = false;
+
+			// reached from the top through logical operators only
+			boolean reachable = false;
+
+			// argument of a non-logical relation: higher order unless a functional term
+			boolean checkHigherOrder = false;
+
+			// argument of a logical operator
+			boolean inLogical = false;
+		}
+
+		private final Deque<Frame> stack = new ArrayDeque<>();
+
+		private int mask = 0;
+
+		private boolean hasVariables = false;
+
+		/**
+		 * Open parenthesis
+		 */
+		public void open()
+		{
+			Frame frame = new Frame();
+			Frame parent = stack.peek();
+			if (parent == null)
+			{
+				frame.ruleCandidate = true;
+				frame.reachable = true;
+			}
+			else
+			{
+				int idx = parent.argCount++;
+				if (idx == 0)
+					head(parent, Formula.LP);
+				else
+				{
+					frame.varList = parent.quant && idx == 1;
+					frame.ruleCandidate = parent.ruleCandidate && parent.quant && idx == 2;
+					frame.reachable = parent.reachable && parent.logOp;
+					frame.checkHigherOrder = parent.reachable && !parent.logOp;
+					frame.inLogical = parent.logOp && !frame.varList;
+				}
+			}
+			stack.push(frame);
+		}
+
+		/**
+		 * Close parenthesis
+		 */
+		public void close()
+		{
+			Frame frame = stack.poll();
+			if (frame != null && frame.head == null && frame.checkHigherOrder)
+				mask |= HIGHER_ORDER;
+		}
+
+		/**
+		 * Atom
+		 *
+		 * @param token atom
+		 */
+		public void atom(String token)
+		{
+			Frame frame = stack.peek();
+			if (Formula.isVariable(token))
+			{
+				hasVariables = true;
+				if (token.startsWith(Formula.R_PREF))
+					mask |= ROW_VARS;
+				if (frame != null && frame.argCount == 0 && !frame.varList)
+					mask |= PRED_VARS;
+			}
+			if (frame != null && frame.argCount++ == 0)
+				head(frame, token);
+		}
+
+		/**
+		 * Quoted string
+		 *
+		 * @param token string including quotes
+		 */
+		public void string(String token)
+		{
+			mask |= STRINGS;
+			Frame frame = stack.peek();
+			if (frame != null && frame.argCount++ == 0)
+				head(frame, token);
+		}
+
+		private void head(Frame frame, String token)
+		{
+			frame.head = token;
+			frame.logOp = Formula.isLogicalOperator(token);
+			frame.quant = Formula.isQuantifier(token);
+			if (frame.quant)
+				mask |= QUANTIFIERS;
+			if (frame.ruleCandidate && (Formula.IF.equals(token) || Formula.IFF.equals(token)))
+				mask |= RULE;
+			if (frame.checkHigherOrder && !(token.length() > 2 && token.endsWith(Formula.FN_SUFF)))
+				mask |= HIGHER_ORDER;
+			if (frame.inLogical && frame.logOp)
+				mask |= NESTED_OPERATORS;
+		}
+
+		/**
+		 * Build features
+		 *
+		 * @param text formula text the tokens were read from
+		 * @return features
+		 */
+		public FormulaFeatures build(String text)
+		{
+			int result = hasVariables || text == null || text.isEmpty() ? mask : mask | GROUND;
+			return new FormulaFeatures(text, result);
+		}
+
+		/**
+		 * Reset for a new formula
+		 */
+		public void reset()
+		{
+			stack.clear();
+			mask = 0;
+			hasVariables = false;
+		}
+	}
+}
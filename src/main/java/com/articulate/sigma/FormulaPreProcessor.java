@@ -2,6 +2,7 @@ package com.articulate.sigma;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -18,14 +19,14 @@ public class FormulaPreProcessor
 	 * mathematical operators, quoting higher-order formulas, expanding
 	 * row variables and prepending the 'holds__' predicate.
 	 *
+	 * @param options preprocessing options
 	 * @return an List of Formula(s)
 	 */
-	static private String preProcessRecurse(Formula f, String previousPred, boolean ignoreStrings, boolean translateIneq, boolean translateMath)
+	static private String preProcessRecurse(Formula f, String previousPred, PreProcessOptions options)
 	{
 		if (logger.isLoggable(Level.FINER))
 		{
-			String[] params = { "f = " + f, "previousPred = " + previousPred, "ignoreStrings = " + ignoreStrings, "translateIneq = " + translateIneq,
-					"translateMath = " + translateMath };
+			String[] params = { "f = " + f, "previousPred = " + previousPred, "options = " + options };
 			logger.entering("Formula", "preProcessRecurse", params);
 		}
 		StringBuilder sb = new StringBuilder();
@@ -47,7 +48,7 @@ public class FormulaPreProcessor
 					Formula nextF = new Formula();
 					nextF.set(next);
 					sb.append(" ");
-					sb.append(preProcessRecurse(nextF, "", ignoreStrings, translateIneq, translateMath));
+					sb.append(preProcessRecurse(nextF, "", options));
 				}
 				else
 				{
@@ -62,7 +63,7 @@ public class FormulaPreProcessor
 						argF.set(arg);
 						if (argF.listP())
 						{
-							String res = preProcessRecurse(argF, pred, ignoreStrings, translateIneq, translateMath);
+							String res = preProcessRecurse(argF, pred, options);
 							sb.append(" ");
 							if (!Formula.isLogicalOperator(pred) && !Formula.isComparisonOperator(pred) && !Formula.isMathFunction(pred) && !argF
 									.isFunctionalTerm())
@@ -75,30 +76,15 @@ public class FormulaPreProcessor
 							sb.append(" ").append(arg);
 						restF.text = restF.cdr();
 					}
-					if (KBManager.getMgr().getPref("holdsPrefix").equals("yes"))
+					if (options.holdsPrefix)
 					{
-						if (!Formula.isLogicalOperator(pred) && !Formula.isQuantifierList(pred, previousPred))
-							prefix = "holds_";
-						if (f.isFunctionalTerm())
-							prefix = "apply_";
 						if (pred.equals("holds"))
 						{
+							prefix = holdsPrefix(f, pred, previousPred, argCount - 1);
 							pred = "";
-							argCount--;
-							prefix = prefix + argCount + "__ ";
 						}
 						else
-						{
-							if (!Formula.isLogicalOperator(pred) && //
-									!Formula.isQuantifierList(pred, previousPred) && //
-									!Formula.isMathFunction(pred) && //
-									!Formula.isComparisonOperator(pred))
-							{
-								prefix = prefix + argCount + "__ ";
-							}
-							else
-								prefix = "";
-						}
+							prefix = holdsPrefix(f, pred, previousPred, argCount);
 					}
 				}
 				sb.insert(0, pred);
@@ -116,6 +102,36 @@ public class FormulaPreProcessor
 		return sb.toString();
 	}
 
+	/**
+	 * The prefix prepended to a predicate in holds prefix mode:
+	 * 'holds_' (or 'apply_' for a functional term) followed by the argument
+	 * count, none for logical, math and comparison operators.
+	 *
+	 * @param f            list whose head is pred
+	 * @param pred         predicate
+	 * @param previousPred predicate of the enclosing list
+	 * @param argCount     argument count, the predicate included
+	 * @return prefix
+	 */
+	private static String holdsPrefix(Formula f, String pred, String previousPred, int argCount)
+	{
+		String prefix = "";
+		if (!Formula.isLogicalOperator(pred) && !Formula.isQuantifierList(pred, previousPred))
+			prefix = "holds_";
+		if (f.isFunctionalTerm())
+			prefix = "apply_";
+		if (pred.equals("holds"))
+			return prefix + argCount + "__ ";
+		if (!Formula.isLogicalOperator(pred) && //
+				!Formula.isQuantifierList(pred, previousPred) && //
+				!Formula.isMathFunction(pred) && //
+				!Formula.isComparisonOperator(pred))
+		{
+			return prefix + argCount + "__ ";
+		}
+		return "";
+	}
+
 	/**
 	 * Pre-process a formula before sending it to the theorem
 	 * prover. This includes ignoring meta-knowledge like
@@ -131,10 +147,52 @@ public class FormulaPreProcessor
 	 * @return an List of Formula(s), which could be empty.
 	 */
 	static public List<Formula> preProcess(Formula f0, boolean isQuery, KB kb)
+	{
+		return preProcess(f0, isQuery, kb, PreProcessOptions.fromPreferences());
+	}
+
+	/**
+	 * Pre-process a formula before sending it to the theorem
+	 * prover, with the given options rather than those of the KBManager
+	 * preferences.  Results are memoized in the preprocessing memo of the KB,
+	 * if enabled, until the KB version changes.
+	 *
+	 * @param f0      formula to preprocess
+	 * @param isQuery If true the Formula is a query and should be
+	 *                existentially quantified, else the Formula is a
+	 *                statement and should be universally quantified
+	 * @param kb      The KB to be used for processing this Formula
+	 * @param options preprocessing options
+	 * @return an List of Formula(s), which could be empty.
+	 */
+	static public List<Formula> preProcess(Formula f0, boolean isQuery, KB kb, PreProcessOptions options)
+	{
+		PreProcessCache cache = kb.getPreProcessCache();
+		if (cache != null)
+			return cache.preProcess(f0, isQuery, kb, options);
+		return preProcess(f0, isQuery, kb, options, null);
+	}
+
+	/**
+	 * Pre-process a formula before sending it to the theorem
+	 * prover, as preProcess(f0, isQuery, kb) does.
+	 *
+	 * @param f0                  formula to preprocess
+	 * @param isQuery             If true the Formula is a query and should be
+	 *                            existentially quantified, else the Formula is a
+	 *                            statement and should be universally quantified
+	 * @param kb                  The KB to be used for processing this Formula
+	 * @param options             preprocessing options
+	 * @param setOrClassInstances If not null, a Map that receives the (instance &lt;Entity&gt; &lt;SetOrClass&gt;)
+	 *                            statements added for this formula, by text.  They are then added whether
+	 *                            or not they were added for an earlier formula, which is left to the caller to check.
+	 * @return an List of Formula(s), which could be empty.
+	 */
+	static List<Formula> preProcess(Formula f0, boolean isQuery, KB kb, PreProcessOptions options, Map<String, Formula> setOrClassInstances)
 	{
 		if (logger.isLoggable(Level.FINER))
 		{
-			String[] params = { "isQuery = " + isQuery, "kb = " + kb.name };
+			String[] params = { "isQuery = " + isQuery, "kb = " + kb.name, "options = " + options };
 			logger.entering("Formula", "preProcess", params);
 		}
 		List<Formula> results = new ArrayList<>();
@@ -142,7 +200,6 @@ public class FormulaPreProcessor
 		{
 			if (f0.text != null && !f0.text.isEmpty())
 			{
-				KBManager mgr = KBManager.getMgr();
 				if (!f0.isBalancedList())
 				{
 					String errStr = "Unbalanced parentheses or quotes in " + f0.text;
@@ -151,31 +208,26 @@ public class FormulaPreProcessor
 					f0.errors.add(errStr);
 					return results;
 				}
-				boolean ignoreStrings = false;
-				boolean translateIneq = true;
-				boolean translateMath = true;
 				Formula f = new Formula();
 				f.set(f0.text);
 				if (StringUtil.containsNonAsciiChars(f.text))
 					f.text = StringUtil.replaceNonAsciiChars(f.text);
 
-				boolean addHoldsPrefix = mgr.getPref("holdsPrefix").equalsIgnoreCase("yes");
-				List<Formula> variableReplacements = f.replacePredVarsAndRowVars(kb, addHoldsPrefix);
+				List<Formula> variableReplacements = f.replacePredVarsAndRowVars(kb, options.holdsPrefix);
 				f0.errors.addAll(f.getErrors());
 
-				List<Formula> accumulator = f0.addInstancesOfSetOrClass(kb, isQuery, variableReplacements);
+				List<Formula> accumulator = f0.addInstancesOfSetOrClass(kb, isQuery, variableReplacements, setOrClassInstances);
 				// Iterate over the formulae resulting from predicate variable instantiation and row variable expansion,
 				// passing each to preProcessRecurse for further processing.
 				if (!accumulator.isEmpty())
 				{
-					boolean addSortals = mgr.getPref("typePrefix").equalsIgnoreCase("yes");
+					boolean addSortals = options.typePrefix && !isQuery;
 					for (Formula newF : accumulator)
 					{
-						if (addSortals && !isQuery && newF.text.matches(".*\\?\\w+.*"))  // isLogicalOperator(arg0) ||
+						if (addSortals && !newF.isGround())  // isLogicalOperator(arg0) ||
 							newF.set(newF.addTypeRestrictions(kb));
 
-						//noinspection ConstantConditions
-						String newFStr = preProcessRecurse(newF, "", ignoreStrings, translateIneq, translateMath);
+						String newFStr = preProcessRecurse(newF, "", options);
 						newF.set(newFStr);
 						f0.errors.addAll(newF.getErrors());
 						if (newF.isOkForInference(isQuery))
@@ -0,0 +1,358 @@
+package com.articulate.sigma;
+
+import com.articulate.sigma.kif.KifTokenizer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Syntactic validation of a formula in a single pass over its tokens.
+ * This checks that parentheses and quotes are balanced, that logical
+ * operators and equal have the right number of arguments, and that
+ * quantifiers have a well-formed variable list.  Unlike a check that
+ * stops at the first problem, all problems are collected, each with the
+ * character offset in the formula text at which it was found.
+ */
+public class FormulaValidator
+{
+	/**
+	 * Parentheses or quotes are not balanced
+	 */
+	public static final int BALANCE = 1;
+
+	/**
+	 * Wrong number of arguments
+	 */
+	public static final int ARITY = 2;
+
+	/**
+	 * Malformed quantifier
+	 */
+	public static final int QUANTIFIER = 3;
+
+	/**
+	 * A problem found in a formula
+	 */
+	public static class Problem
+	{
+		/**
+		 * BALANCE, ARITY or QUANTIFIER
+		 */
+		public final int kind;
+
+		/**
+		 * Offset in the formula text
+		 */
+		public final int position;
+
+		/**
+		 * Description
+		 */
+		public final String message;
+
+		/**
+		 * Whether this only deserves a warning
+		 */
+		public final boolean warning;
+
+		public Problem(int kind, int position, String message, boolean warning)
+		{
+			this.kind = kind;
+			this.position = position;
+			this.message = message;
+			this.warning = warning;
+		}
+
+		@Override public String toString()
+		{
+			return message.trim() + " (at character " + position + ")";
+		}
+	}
+
+	/**
+	 * An open list
+	 */
+	private static class Frame
+	{
+		final int start;
+
+		final boolean varList;
+
+		String head = null;
+
+		int argCount = 0;
+
+		boolean varListSeen = false;
+
+		Frame(int start, boolean varList)
+		{
+			this.start = start;
+			this.varList = varList;
+		}
+	}
+
+	/**
+	 * The text validated
+	 */
+	private final String text;
+
+	/**
+	 * Location of the formula, such as " near line 12 in Merge.kif", used in warnings
+	 */
+	private final String location;
+
+	/**
+	 * Problems found, in the order they were found
+	 */
+	private final List<Problem> problems = new ArrayList<>();
+
+	private FormulaValidator(String text, String location)
+	{
+		this.text = text;
+		this.location = location;
+	}
+
+	/**
+	 * Validate a formula
+	 *
+	 * @param text formula text
+	 * @return validator holding the problems found
+	 */
+	public static FormulaValidator validate(String text)
+	{
+		return validate(text, "");
+	}
+
+	/**
+	 * Validate a formula
+	 *
+	 * @param text     formula text
+	 * @param location location of the formula, such as " near line 12 in Merge.kif", or an empty string
+	 * @return validator holding the problems found
+	 */
+	public static FormulaValidator validate(String text, String location)
+	{
+		FormulaValidator validator = new FormulaValidator(text, location);
+		validator.run();
+		return validator;
+	}
+
+	private void run()
+	{
+		if (text == null || text.isEmpty())
+			return;
+		Deque<Frame> stack = new ArrayDeque<>();
+		int topLevelCount = 0;
+		KifTokenizer st = new KifTokenizer(text);
+		while (st.nextToken() != KifTokenizer.TT_EOF)
+		{
+			Frame frame = stack.peek();
+			if (frame == null && st.ttype != KifTokenizer.TT_CLOSE && topLevelCount++ > 0)
+				problems.add(new Problem(BALANCE, st.start, "Extra text after the end of the formula", false));
+			switch (st.ttype)
+			{
+				case KifTokenizer.TT_OPEN:
+					boolean varList = false;
+					if (frame != null)
+					{
+						int idx = frame.argCount++;
+						if (frame.varList)
+							problems.add(new Problem(QUANTIFIER, st.start, "Non-variable in variable list for 'exists' or 'forall' in formula: \n" + format(frame.start, -1) + "\n", false));
+						else if (idx == 0)
+							frame.head = "";
+						else if (idx == 1 && Formula.isQuantifier(frame.head))
+						{
+							varList = true;
+							frame.varListSeen = true;
+						}
+					}
+					stack.push(new Frame(st.start, varList));
+					break;
+
+				case KifTokenizer.TT_CLOSE:
+					if (frame == null)
+						problems.add(new Problem(BALANCE, st.start, "Extra closing parenthesis", false));
+					else
+					{
+						stack.pop();
+						check(frame, st.getPosition());
+					}
+					break;
+
+				case KifTokenizer.TT_STRING:
+					if (!st.isTerminatedString())
+						problems.add(new Problem(BALANCE, st.start, "Unbalanced quotes", false));
+					atom(frame, st.sval, st.start);
+					break;
+
+				default:
+					atom(frame, st.sval, st.start);
+					break;
+			}
+		}
+		for (Frame frame : stack)
+			problems.add(new Problem(BALANCE, frame.start, "Missing closing parenthesis", false));
+	}
+
+	/**
+	 * Add an atom, a string or any other token but a parenthesis, to the open list
+	 *
+	 * @param frame    open list, null if the atom is at top level
+	 * @param token    atom
+	 * @param position offset of the atom in the text
+	 */
+	private void atom(Frame frame, String token, int position)
+	{
+		if (frame == null)
+			return;
+		if (frame.varList && !Formula.isVariable(token))
+			problems.add(new Problem(QUANTIFIER, position, "Non-variable " + token + " in variable list for 'exists' or 'forall' in formula: \n" + format(frame.start, -1) + "\n", false));
+		if (frame.argCount++ == 0)
+			frame.head = token;
+	}
+
+	/**
+	 * Check a list once it is closed
+	 *
+	 * @param frame list
+	 * @param end   offset of the character following the closing parenthesis
+	 */
+	private void check(Frame frame, int end)
+	{
+		String pred = frame.head;
+		int argCount = frame.argCount - 1;
+		if (pred == null || frame.varList)
+		{
+			if (frame.varList && frame.argCount == 0)
+				problems.add(new Problem(QUANTIFIER, frame.start, "Empty variable list for 'exists' or 'forall'", false));
+			return;
+		}
+		if (pred.equals(Formula.AND) || pred.equals(Formula.OR))
+		{
+			if (argCount < 2)
+				problems.add(new Problem(ARITY, frame.start, "Too few arguments for 'and' or 'or' in formula: \n" + format(frame.start, end) + "\n", false));
+		}
+		else if (pred.equals(Formula.UQUANT) || pred.equals(Formula.EQUANT))
+		{
+			if (argCount != 2)
+				problems.add(new Problem(ARITY, frame.start, "Wrong number of arguments for 'exists' or 'forall' in formula: \n" + format(frame.start, end) + "\n", false));
+			else if (!frame.varListSeen)
+				problems.add(new Problem(ARITY, frame.start, "No parenthesized variable list for 'exists' or 'forall' " + "in formula: \n" + format(frame.start, end) + "\n", false));
+		}
+		else if (pred.equals(Formula.IFF) || pred.equals(Formula.IF))
+		{
+			if (argCount != 2)
+				problems.add(new Problem(ARITY, frame.start, "Wrong number of arguments for '<=>' or '=>' in formula: \n" + format(frame.start, end) + "\n", false));
+		}
+		else if (pred.equals(Formula.EQUAL))
+		{
+			if (argCount != 2)
+				problems.add(new Problem(ARITY, frame.start, "Wrong number of arguments for 'equals' in formula: \n" + format(frame.start, end) + "\n", false));
+		}
+		else if (!Formula.isVariable(pred) && (argCount > (Formula.MAX_PREDICATE_ARITY + 1)))
+		{
+			problems.add(new Problem(ARITY, frame.start, "Maybe too many arguments " + location + ": " + format(frame.start, end) + "\n", true));
+		}
+	}
+
+	/**
+	 * Text of the sub-formula starting at a given offset, as it is in the
+	 * formula
+	 *
+	 * @param start offset of the opening parenthesis
+	 * @param end   offset following the closing parenthesis, or -1 if not known yet
+	 * @return text of the sub-formula
+	 */
+	private String format(int start, int end)
+	{
+		if (end < 0)
+		{
+			int level = 0;
+			KifTokenizer st = new KifTokenizer(text.substring(start));
+			while (st.nextToken() != KifTokenizer.TT_EOF)
+			{
+				if (st.ttype == KifTokenizer.TT_OPEN)
+					level++;
+				else if (st.ttype == KifTokenizer.TT_CLOSE && --level == 0)
+					break;
+			}
+			end = start + st.getPosition();
+		}
+		return text.substring(start, end);
+	}
+
+	/**
+	 * Whether the formula is well-formed
+	 *
+	 * @return true if no error (as opposed to warning) was found
+	 */
+	public boolean isValid()
+	{
+		for (Problem problem : problems)
+		{
+			if (!problem.warning)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Whether parentheses and quotes are balanced
+	 *
+	 * @return true if no BALANCE problem was found
+	 */
+	public boolean isBalanced()
+	{
+		for (Problem problem : problems)
+		{
+			if (problem.kind == BALANCE)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Get all problems
+	 *
+	 * @return problems, errors and warnings, in text order of detection
+	 */
+	public List<Problem> getProblems()
+	{
+		return problems;
+	}
+
+	/**
+	 * Get errors
+	 *
+	 * @param kind BALANCE, ARITY, QUANTIFIER or 0 for all
+	 * @return errors of the given kind
+	 */
+	public List<Problem> getErrors(int kind)
+	{
+		List<Problem> result = new ArrayList<>();
+		for (Problem problem : problems)
+		{
+			if (!problem.warning && (kind == 0 || problem.kind == kind))
+				result.add(problem);
+		}
+		return result;
+	}
+
+	/**
+	 * Get warnings
+	 *
+	 * @return warnings
+	 */
+	public List<Problem> getWarnings()
+	{
+		List<Problem> result = new ArrayList<>();
+		for (Problem problem : problems)
+		{
+			if (problem.warning)
+				result.add(problem);
+		}
+		return result;
+	}
+}
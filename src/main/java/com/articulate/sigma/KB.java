@@ -18,11 +18,23 @@ package com.articulate.sigma;
 import com.articulate.sigma.kif.KIF;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -62,6 +74,22 @@ public class KB implements Serializable
 	 */
 	public static final String _cacheFileSuffix = "_Cache.kif";
 
+	/**
+	 * The String constant that is the suffix for the file told formulas
+	 * are attributed to.
+	 */
+	public static final String _userAssertionsSuffix = "_UserAssertions.kif";
+
+	/**
+	 * Predicates whose assertions make relation signatures.
+	 */
+	private static final List<String> SIGNATURE_PREDICATES = Arrays.asList("domain", "domainSubclass", "range", "rangeSubclass", "subrelation", "valence");
+
+	/**
+	 * Prefixes of the names of the classes that determine valences.
+	 */
+	private static final List<String> VALENCE_CLASS_PREFIXES = Arrays.asList("VariableArity", "Unary", "Binary", "Ternary", "Quaternary", "Quintary");
+
 	/**
 	 * The name of the knowledge base.
 	 */
@@ -89,9 +117,9 @@ public class KB implements Serializable
 
 	/**
 	 * A Map of all the Formula objects in the KB.  Each key is a String representation of a Formula.  Each value is the Formula
-	 * object corresponding to the key.
+	 * object corresponding to the key.  Changing it increments the version stamp.
 	 */
-	public final Map<String, Formula> formulaMap = new LinkedHashMap<>();
+	public final Map<String, Formula> formulaMap = new FormulaMap();
 
 	/**
 	 * A Map of Lists of String formulae, containing all the formulae in the KB.  Keys are the formula itself, a formula ID, and term
@@ -99,6 +127,12 @@ public class KB implements Serializable
 	 */
 	public final Map<String, List<Formula>> formulas = new HashMap<>();
 
+	/**
+	 * Posting lists of formulas in the KB, one per structural feature.  Keys are FormulaFeatures bits,
+	 * values are the texts, ie the formulaMap keys, of the formulas that have that feature.
+	 */
+	private final Map<Integer, Set<String>> featureIndex = new HashMap<>();
+
 	/**
 	 * The natural language formatting strings for relations in the KB. It is a Map of language keys and Map values.
 	 * The interior Map is term name keys and String values.
@@ -134,7 +168,22 @@ public class KB implements Serializable
 	/**
 	 * Relation valences
 	 */
-	private final Map<String, int[]> relationValences = new HashMap<>();
+	private final Map<String, int[]> relationValences = new ConcurrentHashMap<>();
+
+	/**
+	 * Relation signatures, built with the relation caches, and the version they are valid for
+	 */
+	private transient volatile Tuple.Pair<Long, Map<String, RelationSignature>> relationSignatures;
+
+	/**
+	 * Last published snapshot
+	 */
+	private transient volatile KBSnapshot snapshot;
+
+	/**
+	 * Changes since the last published snapshot
+	 */
+	private transient KBSnapshot.Changes changes = new KBSnapshot.Changes();
 
 	/**
 	 * A List of the names of cached transitive relations.
@@ -157,7 +206,7 @@ public class KB implements Serializable
 	/**
 	 * An List of RelationCache objects.
 	 */
-	private final List<RelationCache> relationCaches = new ArrayList<>();
+	private final List<RelationCache> relationCaches = new CopyOnWriteArrayList<>();
 
 	/**
 	 * If true, assertions of the form (predicate x x) will be included in the relation cache tables.
@@ -174,6 +223,26 @@ public class KB implements Serializable
 	 */
 	private int genSym = 0;
 
+	/**
+	 * Version stamp, incremented whenever formulas or caches change.
+	 */
+	private final AtomicLong version = new AtomicLong();
+
+	/**
+	 * Memo of preprocessing results, valid for the current version.
+	 */
+	private transient volatile PreProcessCache preProcessCache;
+
+	/**
+	 * Whether the memo of preprocessing results is disabled.
+	 */
+	private volatile boolean preProcessCacheDisabled = false;
+
+	/**
+	 * Cache of parsed constituents, shared with other KBs, or null.
+	 */
+	private transient volatile ParseCache parseCache;
+
 	// C O N S T R U C T O R
 
 	/**
@@ -321,7 +390,7 @@ public class KB implements Serializable
 	 *
 	 * @return An List of relation names (Strings).
 	 */
-	private List<String> getCachedRelationNames()
+	List<String> getCachedRelationNames()
 	{
 		List<String> relationNames = new ArrayList<>();
 		try
@@ -343,7 +412,7 @@ public class KB implements Serializable
 	 *
 	 * @return An List of relation names (Strings).
 	 */
-	private List<String> getCachedTransitiveRelationNames()
+	List<String> getCachedTransitiveRelationNames()
 	{
 		List<String> result = new ArrayList<>(cachedTransitiveRelationNames);
 		Set<String> trSet = getAllInstancesWithPredicateSubsumption("TransitiveRelation");
@@ -360,7 +429,7 @@ public class KB implements Serializable
 	 *
 	 * @return An List of relation names (Strings).
 	 */
-	private List<String> getCachedSymmetricRelationNames()
+	List<String> getCachedSymmetricRelationNames()
 	{
 		Set<String> symmSet = getAllInstancesWithPredicateSubsumption("SymmetricRelation");
 		// symmSet.addAll(getTermsViaPredicateSubsumption("subrelation",2,"inverse",1,true));
@@ -373,7 +442,7 @@ public class KB implements Serializable
 	 *
 	 * @return An List of relation names (Strings).
 	 */
-	private List<String> getCachedReflexiveRelationNames()
+	List<String> getCachedReflexiveRelationNames()
 	{
 		List<String> result = new ArrayList<>();
 		List<String> reflexives = new ArrayList<>(cachedReflexiveRelationNames);
@@ -405,27 +474,340 @@ public class KB implements Serializable
 	 * This Map is used to cache sortal predicate argument type data
 	 * whenever Formula.findType() or Formula.getTypeList() will be
 	 * called hundreds of times inside KB.preProcess(), or to
-	 * accomplish another expensive computation tasks.  The Map is
-	 * cleared after each use in KB.preProcess(), but may retain its
-	 * contents when used in other contexts.
+	 * accomplish another expensive computation tasks.  It is bounded,
+	 * shared by parallel preprocessing threads, and emptied when the KB
+	 * version changes.
+	 */
+	private transient volatile SortalTypeCache sortalTypeCache;
+
+	/**
+	 * The (instance &lt;Entity&gt; SetOrClass) statements added by
+	 * preprocessing, which are added once only.
 	 */
-	private Map<String, List<String>> sortalTypeCache = null;
+	private final Set<String> setOrClassInstances = ConcurrentHashMap.newKeySet();
 
 	/**
 	 * Returns the Map is used to cache sortal predicate argument type
 	 * data whenever Formula.findType() or Formula.getTypeList() will
 	 * be called hundreds of times inside KB.preProcess(), or to
-	 * accomplish another expensive computation tasks.  The Map is
-	 * cleared after each use in KB.preProcess(), but may retain its
-	 * contents when used in other contexts.
+	 * accomplish another expensive computation tasks.  Its entries are
+	 * dropped when the KB changes.
 	 *
 	 * @return the Map is used to cache sortal predicate argument type data.
 	 */
 	public Map<String, List<String>> getSortalTypeCache()
 	{
-		if (sortalTypeCache == null)
-			sortalTypeCache = new HashMap<>();
-		return sortalTypeCache;
+		return getSortalTypeCacheInstance();
+	}
+
+	/**
+	 * Returns the sortal type cache as a SortalTypeCache, to put data
+	 * with the KB version it was computed at, or to read its statistics.
+	 *
+	 * @return the sortal type cache
+	 */
+	public SortalTypeCache getSortalTypeCacheInstance()
+	{
+		SortalTypeCache cache = sortalTypeCache;
+		if (cache == null)
+		{
+			synchronized (this)
+			{
+				cache = sortalTypeCache;
+				if (cache == null)
+					sortalTypeCache = cache = new SortalTypeCache(SortalTypeCache.DEFAULT_CAPACITY, this::getVersion);
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Record an (instance &lt;Entity&gt; SetOrClass) statement added by preprocessing
+	 *
+	 * @param statement statement text
+	 * @return true if it was not added before
+	 */
+	boolean addSetOrClassInstance(String statement)
+	{
+		return setOrClassInstances.add(statement);
+	}
+
+	// V E R S I O N
+
+	/**
+	 * Version stamp of the KB.  It changes whenever formulas are added or
+	 * removed or caches are rebuilt, so that data derived from the KB at one
+	 * version is known to be stale at another.
+	 *
+	 * @return version
+	 */
+	public long getVersion()
+	{
+		return version.get();
+	}
+
+	/**
+	 * Increment the version stamp.  This is done by the KB methods that
+	 * change formulas or caches, and by formulaMap when it is changed;
+	 * code that changes formulas or caches directly should call it.
+	 */
+	public void incrementVersion()
+	{
+		version.incrementAndGet();
+	}
+
+	/**
+	 * The map of formulas by text, which increments the version stamp
+	 * whenever it is changed through its methods, so that data derived
+	 * from the KB, such as preprocessing results, is known to be stale
+	 * after a direct change.  Calls that leave the map as it was do not
+	 * change the version.  Changes through its key, value and entry
+	 * views are not seen.
+	 */
+	private class FormulaMap extends LinkedHashMap<String, Formula>
+	{
+		private static final long serialVersionUID = 3371489284765310512L;
+
+		@Override public Formula put(String key, Formula value)
+		{
+			boolean present = containsKey(key);
+			Formula result = super.put(key, value);
+			if (!present || result != value)
+				changed(key);
+			return result;
+		}
+
+		@Override public void putAll(Map<? extends String, ? extends Formula> m)
+		{
+			for (Map.Entry<? extends String, ? extends Formula> entry : m.entrySet())
+				put(entry.getKey(), entry.getValue());
+		}
+
+		@Override public Formula putIfAbsent(String key, Formula value)
+		{
+			boolean present = containsKey(key);
+			Formula result = super.putIfAbsent(key, value);
+			if (!present || result != get(key))
+				changed(key);
+			return result;
+		}
+
+		@Override public Formula remove(Object key)
+		{
+			boolean present = containsKey(key);
+			Formula result = super.remove(key);
+			if (present)
+				changed((String) key);
+			return result;
+		}
+
+		@Override public boolean remove(Object key, Object value)
+		{
+			boolean result = super.remove(key, value);
+			if (result)
+				changed((String) key);
+			return result;
+		}
+
+		@Override public Formula replace(String key, Formula value)
+		{
+			boolean present = containsKey(key);
+			Formula result = super.replace(key, value);
+			if (present && result != value)
+				changed(key);
+			return result;
+		}
+
+		@Override public boolean replace(String key, Formula oldValue, Formula newValue)
+		{
+			boolean result = super.replace(key, oldValue, newValue);
+			if (result && oldValue != newValue)
+				changed(key);
+			return result;
+		}
+
+		@Override public void replaceAll(BiFunction<? super String, ? super Formula, ? extends Formula> function)
+		{
+			super.replaceAll((key, value) -> {
+				Formula result = function.apply(key, value);
+				if (result != value)
+					changed(key);
+				return result;
+			});
+		}
+
+		@Override public Formula computeIfAbsent(String key, Function<? super String, ? extends Formula> mappingFunction)
+		{
+			boolean present = containsKey(key);
+			Formula before = get(key);
+			Formula result = super.computeIfAbsent(key, mappingFunction);
+			if (present != containsKey(key) || result != before)
+				changed(key);
+			return result;
+		}
+
+		@Override public Formula computeIfPresent(String key, BiFunction<? super String, ? super Formula, ? extends Formula> remappingFunction)
+		{
+			boolean present = containsKey(key);
+			Formula before = get(key);
+			Formula result = super.computeIfPresent(key, remappingFunction);
+			if (present != containsKey(key) || result != before)
+				changed(key);
+			return result;
+		}
+
+		@Override public Formula compute(String key, BiFunction<? super String, ? super Formula, ? extends Formula> remappingFunction)
+		{
+			boolean present = containsKey(key);
+			Formula before = get(key);
+			Formula result = super.compute(key, remappingFunction);
+			if (present != containsKey(key) || result != before)
+				changed(key);
+			return result;
+		}
+
+		@Override public Formula merge(String key, Formula value, BiFunction<? super Formula, ? super Formula, ? extends Formula> remappingFunction)
+		{
+			boolean present = containsKey(key);
+			Formula before = get(key);
+			Formula result = super.merge(key, value, remappingFunction);
+			if (present != containsKey(key) || result != before)
+				changed(key);
+			return result;
+		}
+
+		@Override public void clear()
+		{
+			if (isEmpty())
+				return;
+			for (String key : keySet())
+				changes.text(key);
+			super.clear();
+			incrementVersion();
+		}
+
+		/**
+		 * Record the change of the formula of a text for the next
+		 * snapshot, and increment the version stamp
+		 *
+		 * @param key formula text
+		 */
+		private void changed(String key)
+		{
+			changes.text(key);
+			incrementVersion();
+		}
+	}
+
+	// S N A P S H O T
+
+	/**
+	 * The last snapshot of the KB published.  Snapshots are immutable, and
+	 * may be read without locking while the KB is being changed.  The
+	 * first snapshot is made on demand; from then on the KB methods that
+	 * change formulas or caches publish a snapshot when they are done, so
+	 * that readers never see a change in progress.
+	 *
+	 * @return snapshot
+	 */
+	public KBSnapshot getSnapshot()
+	{
+		KBSnapshot result = snapshot;
+		return result != null ? result : publishSnapshot();
+	}
+
+	/**
+	 * Publish a snapshot of the current state of the KB.  Only the parts
+	 * changed since the last snapshot are made anew.  Code that changes
+	 * formulaMap, formulas, terms or caches directly should call it.
+	 *
+	 * @return snapshot
+	 */
+	public synchronized KBSnapshot publishSnapshot()
+	{
+		KBSnapshot previous = snapshot;
+		if (previous != null && previous.getVersion() == getVersion() && changes.isEmpty())
+			return previous;
+		// The version moved with no change recorded: the KB was changed
+		// directly, and nothing of the previous snapshot is known valid
+		if (changes.isEmpty())
+			changes.all();
+		long start = System.currentTimeMillis();
+		KBSnapshot result = makeSnapshot(previous, changes);
+		snapshot = result;
+		logger.fine("Published snapshot " + result + " in " + (System.currentTimeMillis() - start) + " ms");
+		return result;
+	}
+
+	/**
+	 * Make the snapshot of the current state of the KB, from the previous
+	 * snapshot and what changed since, and clear the changes.  Called by
+	 * publishSnapshot() with the KB lock held.
+	 *
+	 * @param previous previous snapshot, or null if none
+	 * @param changes  changes since the previous snapshot
+	 * @return snapshot
+	 */
+	KBSnapshot makeSnapshot(KBSnapshot previous, KBSnapshot.Changes changes)
+	{
+		Tuple.Pair<Long, Map<String, RelationSignature>> signatures = relationSignatures;
+		return KBSnapshot.publish(previous, this, changes, signatures != null && signatures.first == getVersion() ? signatures.second : null);
+	}
+
+	/**
+	 * Read a serialized KB.  Nothing of its snapshots is serialized, so
+	 * the first snapshot of the KB read is made anew.
+	 *
+	 * @param in object stream
+	 * @throws IOException            if the KB cannot be read
+	 * @throws ClassNotFoundException if a class of the KB is not found
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		changes = new KBSnapshot.Changes();
+	}
+
+	/**
+	 * Publish a snapshot after a change, unless no snapshot was ever taken:
+	 * the first is made on demand.
+	 */
+	void updateSnapshot()
+	{
+		if (snapshot != null)
+			publishSnapshot();
+	}
+
+	/**
+	 * Memo of preprocessing results used by FormulaPreProcessor.preProcess(),
+	 * created with the default capacity on first use.
+	 *
+	 * @return memo, or null if disabled
+	 */
+	public PreProcessCache getPreProcessCache()
+	{
+		PreProcessCache cache = preProcessCache;
+		if (cache == null && !preProcessCacheDisabled)
+		{
+			synchronized (this)
+			{
+				cache = preProcessCache;
+				if (cache == null && !preProcessCacheDisabled)
+					preProcessCache = cache = new PreProcessCache(PreProcessCache.DEFAULT_CAPACITY);
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Set the memo of preprocessing results
+	 *
+	 * @param cache memo, null to disable memoization
+	 */
+	public synchronized void setPreProcessCache(PreProcessCache cache)
+	{
+		preProcessCache = cache;
+		preProcessCacheDisabled = cache == null;
 	}
 
 	/**
@@ -434,7 +816,8 @@ public class KB implements Serializable
 	 * RelationCache objects if clearExistingCaches is true.
 	 *
 	 * @param clearExistingCaches If true, all existing RelationCache
-	 *                            maps are cleared and the List of RelationCaches is cleared, else
+	 *                            maps are cleared and the List of RelationCaches is cleared,
+	 *                            and so are the valences computed from them, else
 	 *                            all existing RelationCache objects and their contents are
 	 *                            reused
 	 */
@@ -449,6 +832,10 @@ public class KB implements Serializable
 				rc.clear();
 			}
 			getRelationCaches().clear();  // Discard all cache maps.
+			// Valences asked for since, as when arity is checked, are those of the formulas then in the KB
+			relationValences.clear();
+			changes.allCaches();
+			incrementVersion();
 		}
 		List<String> symmetric = getCachedSymmetricRelationNames();
 		for (String reln : getCachedRelationNames())
@@ -498,9 +885,17 @@ public class KB implements Serializable
 				}
 				if (result == null)
 				{
-					cache = new RelationCache(relName, keyArg, valueArg);
-					getRelationCaches().add(cache);
-					result = cache;
+					synchronized (relationCaches)
+					{
+						for (RelationCache relationCache : getRelationCaches())
+						{
+							if (relationCache.getRelationName().equals(relName) && (relationCache.getKeyArgument() == keyArg) && (relationCache.getValueArgument() == valueArg))
+								return relationCache;
+						}
+						cache = new RelationCache(relName, keyArg, valueArg);
+						getRelationCaches().add(cache);
+						result = cache;
+					}
 				}
 			}
 		}
@@ -527,7 +922,10 @@ public class KB implements Serializable
 		{
 			Set<String> valueSet = cache.computeIfAbsent(keyTerm, k -> new HashSet<>());
 			if (valueSet.add(valueTerm))
+			{
+				changes.cacheKey(cache, keyTerm);
 				count++;
+			}
 		}
 		return count;
 	}
@@ -575,43 +973,299 @@ public class KB implements Serializable
 				}
 			}
 		}
-		for (String s : toRemove)
-			formulaMap.remove(s);
+		if (!toRemove.isEmpty())
+		{
+			Set<String> texts = new HashSet<>(toRemove);
+			retractAll(f -> texts.contains(f.text));
+		}
 	}
 
 	/**
-	 * This method computes the transitive closure for the relation
-	 * identified by relationName.  The results are stored in the
-	 * RelationCache object for the relation and "direction" (looking
-	 * from the arg1 keys toward arg2 parents, or looking from the
-	 * arg2 keys toward arg1 children).
+	 * Add a formula to the feature posting lists
 	 *
-	 * @param relationName The name of a relation
+	 * @param f formula
 	 */
-	private void computeTransitiveCacheClosure(String relationName)
+	void indexFeatures(Formula f)
 	{
-		logger.entering("KB", "computerTransitiveCacheClosure", "relationName = " + relationName);
-		long count = 0L;
+		int mask = f.getFeatures().mask;
+		for (int i = 0; i < FormulaFeatures.COUNT; i++)
+		{
+			if ((mask & (1 << i)) != 0)
+				featureIndex.computeIfAbsent(1 << i, k -> new LinkedHashSet<>()).add(f.text);
+		}
+	}
+
+	/**
+	 * Remove a formula from the feature posting lists
+	 *
+	 * @param f formula
+	 */
+	private void unindexFeatures(Formula f)
+	{
+		for (Set<String> texts : featureIndex.values())
+			texts.remove(f.text);
+	}
+
+	/**
+	 * Get the formulas that have all the given structural features,
+	 * for instance all rules or all formulas with row variables.
+	 * This is a lookup in the feature posting lists, the shortest of
+	 * which is scanned.
+	 *
+	 * @param features FormulaFeatures bits
+	 * @return list of formulas, sorted by text, so that the order does not
+	 * depend on the posting list scanned nor on the history of the KB
+	 */
+	public List<Formula> getFormulasWithFeatures(int features)
+	{
+		List<Formula> result = new ArrayList<>();
+		Set<String> shortest = null;
+		for (int i = 0; i < FormulaFeatures.COUNT; i++)
+		{
+			if ((features & (1 << i)) != 0)
+			{
+				Set<String> texts = featureIndex.get(1 << i);
+				if (texts == null)
+					return result;
+				if (shortest == null || texts.size() < shortest.size())
+					shortest = texts;
+			}
+		}
+		if (shortest == null)
+			result.addAll(formulaMap.values());
+		else
+		{
+			for (String text : shortest)
+			{
+				Formula f = formulaMap.get(text);
+				if (f != null && f.hasFeatures(features))
+					result.add(f);
+			}
+		}
+		result.sort(Comparator.comparing(f -> f.text));
+		return result;
+	}
+
+	/**
+	 * Count the formulas that have a structural feature
+	 *
+	 * @param feature a FormulaFeatures bit
+	 * @return number of formulas with this feature
+	 */
+	public int getCountFormulasWithFeature(int feature)
+	{
+		Set<String> texts = featureIndex.get(feature);
+		return texts == null ? 0 : texts.size();
+	}
+
+	/**
+	 * Clausify all the formulas in the KB on a work-stealing pool.
+	 * Each formula gets a naming context of its own, scoped by the
+	 * fingerprint of its text, so that variable names and Skolem terms
+	 * depend neither on the number of threads or on scheduling, nor on
+	 * the other formulas of the KB.
+	 * The clausal form is cached in the formula and handed to the consumer
+	 * as soon as it is computed.  The persistent store of clausal forms, if
+	 * set, is consulted first.
+	 *
+	 * @param parallelism number of worker threads
+	 * @param consumer    receives each formula with its clausal form, as returned by
+	 *                    Clausifier.toNegAndPosLitsWithRenameInfo(); it is called from the
+	 *                    worker threads, in no particular order, and must be thread-safe
+	 */
+	public void clausifyFormulas(int parallelism, BiConsumer<Formula, Tuple.Triple<List<Clause>, Formula, Map<String, String>>> consumer)
+	{
+		long t1 = System.currentTimeMillis();
+		List<Formula> formulas = new ArrayList<>(formulaMap.values());
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
 		try
 		{
-			if (getCachedTransitiveRelationNames().contains(relationName))
+			pool.invoke(new ClausifyTask(formulas, 0, formulas.size(), consumer));
+		}
+		catch (Exception ex)
+		{
+			logger.warning(Arrays.toString(ex.getStackTrace()));
+			ex.printStackTrace();
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+		logger.info(formulas.size() + " formulas clausified in " + ((System.currentTimeMillis() - t1) / 1000.0) + " seconds");
+	}
+
+	/**
+	 * Preprocess all the formulas in the KB for inference, as
+	 * FormulaPreProcessor.preProcess() does, on a work-stealing pool.
+	 * Formulas are preprocessed in chunks, a bounded number of which are in
+	 * flight at a time, and the results are handed to the consumer on the
+	 * calling thread in the order of formulaMap, whatever the order in which
+	 * they are computed.  The KB caches read during preprocessing are shared;
+	 * errors are collected in the errors of each formula.  The statements
+	 * (instance &lt;Entity&gt; &lt;SetOrClass&gt;) that preprocessing adds only once
+	 * are attributed on the calling thread too, so that the results are the
+	 * same as those of preprocessing the formulas one after the other.
+	 * As in FormulaPreProcessor.preProcess(), an exception preprocessing a
+	 * formula is logged and leaves it with the formulas made so far.  An
+	 * error thrown while preprocessing, or an exception thrown by the
+	 * consumer, stops the pipeline and is thrown to the caller, so that
+	 * the consumer may have received only some of the formulas.
+	 *
+	 * @param isQuery     If true the formulas are queries, else statements
+	 * @param parallelism number of worker threads
+	 * @param consumer    receives each formula with the list of formulas it preprocesses to
+	 */
+	public void preProcessFormulas(boolean isQuery, int parallelism, BiConsumer<Formula, List<Formula>> consumer)
+	{
+		preProcessFormulas(isQuery, PreProcessOptions.fromPreferences(), parallelism, consumer);
+	}
+
+	/**
+	 * Preprocess all the formulas in the KB for inference with the given
+	 * options, as preProcessFormulas(isQuery, parallelism, consumer) does.
+	 *
+	 * @param isQuery     If true the formulas are queries, else statements
+	 * @param options     preprocessing options, resolved once for all formulas
+	 * @param parallelism number of worker threads
+	 * @param consumer    receives each formula with the list of formulas it preprocesses to
+	 */
+	public void preProcessFormulas(boolean isQuery, PreProcessOptions options, int parallelism, BiConsumer<Formula, List<Formula>> consumer)
+	{
+		final int chunkSize = 32;
+		long t1 = System.currentTimeMillis();
+		List<Formula> all = new ArrayList<>(formulaMap.values());
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try
+		{
+			Deque<ForkJoinTask<List<Tuple.Pair<List<Formula>, Map<String, Formula>>>>> inFlight = new ArrayDeque<>();
+			int next = 0;
+			int emitted = 0;
+			while (emitted < all.size())
 			{
-				RelationCache c1 = getRelationCache(relationName, 1, 2);
-				RelationCache c2 = getRelationCache(relationName, 2, 1);
-				if (c1 != null && c2 != null)
+				while (next < all.size() && inFlight.size() < 4 * parallelism)
 				{
-					RelationCache inst1 = null;
-					RelationCache inst2 = null;
-					boolean isSubrelationCache = relationName.equals("subrelation");
-					if (isSubrelationCache)
+					List<Formula> chunk = all.subList(next, Math.min(next + chunkSize, all.size()));
+					inFlight.add(pool.submit(() -> {
+						List<Tuple.Pair<List<Formula>, Map<String, Formula>>> results = new ArrayList<>(chunk.size());
+						for (Formula f : chunk)
+						{
+							Tuple.Pair<List<Formula>, Map<String, Formula>> result = new Tuple.Pair<>();
+							result.second = new HashMap<>();
+							result.first = FormulaPreProcessor.preProcess(f, isQuery, this, options, result.second);
+							results.add(result);
+						}
+						return results;
+					}));
+					next += chunk.size();
+				}
+				// Rethrows what a chunk threw, so that the consumer is not left with a prefix of the formulas
+				for (Tuple.Pair<List<Formula>, Map<String, Formula>> result : inFlight.poll().join())
+				{
+					// Keep the (instance <Entity> <SetOrClass>) statements not already added for an earlier formula.
+					for (Map.Entry<String, Formula> added : result.second.entrySet())
 					{
-						inst1 = getRelationCache("instance", 1, 2);
-						inst2 = getRelationCache("instance", 2, 1);
+						if (!addSetOrClassInstance(added.getKey()))
+							result.first.removeIf(f -> f == added.getValue());
 					}
-					Set<String> c1Keys = c1.keySet();
-
-					boolean changed = true;
-					while (changed)
+					consumer.accept(all.get(emitted++), result.first);
+				}
+			}
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+		logger.info(all.size() + " formulas preprocessed in " + ((System.currentTimeMillis() - t1) / 1000.0) + " seconds");
+	}
+
+	/**
+	 * Clausification of a range of formulas, split in halves until small enough
+	 */
+	private static class ClausifyTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 3284469612707402641L;
+
+		// Ranges at most this long are not split
+		private static final int THRESHOLD = 64;
+
+		private final List<Formula> formulas;
+
+		private final int from;
+
+		private final int to;
+
+		private final BiConsumer<Formula, Tuple.Triple<List<Clause>, Formula, Map<String, String>>> consumer;
+
+		ClausifyTask(List<Formula> formulas, int from, int to, BiConsumer<Formula, Tuple.Triple<List<Clause>, Formula, Map<String, String>>> consumer)
+		{
+			this.formulas = formulas;
+			this.from = from;
+			this.to = to;
+			this.consumer = consumer;
+		}
+
+		@Override protected void compute()
+		{
+			if (to - from <= THRESHOLD)
+			{
+				for (int i = from; i < to; i++)
+				{
+					Formula f = formulas.get(i);
+					ClausalFormStore store = Formula.getClausalFormStore();
+					Tuple.Triple<List<Clause>, Formula, Map<String, String>> clausalForm = store == null ? null : store.get(f);
+					if (clausalForm == null)
+					{
+						clausalForm = Clausifier.toNegAndPosLitsWithRenameInfo(f, Clausifier.Naming.forFormula(f.text));
+						if (store != null)
+							store.put(f, clausalForm);
+					}
+					f.setClausalForm(clausalForm);
+					consumer.accept(f, clausalForm);
+				}
+			}
+			else
+			{
+				int mid = (from + to) >>> 1;
+				invokeAll(new ClausifyTask(formulas, from, mid, consumer), new ClausifyTask(formulas, mid, to, consumer));
+			}
+		}
+	}
+
+	/**
+	 * This method computes the transitive closure for the relation
+	 * identified by relationName.  The results are stored in the
+	 * RelationCache object for the relation and "direction" (looking
+	 * from the arg1 keys toward arg2 parents, or looking from the
+	 * arg2 keys toward arg1 children).
+	 *
+	 * @param relationName The name of a relation
+	 */
+	private void computeTransitiveCacheClosure(String relationName)
+	{
+		logger.entering("KB", "computerTransitiveCacheClosure", "relationName = " + relationName);
+		long count = 0L;
+		try
+		{
+			if (getCachedTransitiveRelationNames().contains(relationName))
+			{
+				RelationCache c1 = getRelationCache(relationName, 1, 2);
+				RelationCache c2 = getRelationCache(relationName, 2, 1);
+				if (c1 != null && c2 != null)
+				{
+					RelationCache inst1 = null;
+					RelationCache inst2 = null;
+					boolean isSubrelationCache = relationName.equals("subrelation");
+					if (isSubrelationCache)
+					{
+						inst1 = getRelationCache("instance", 1, 2);
+						inst2 = getRelationCache("instance", 2, 1);
+					}
+					changes.cache(c1);
+					changes.cache(c2);
+					Set<String> c1Keys = c1.keySet();
+
+					boolean changed = true;
+					while (changed)
 					{
 						changed = false;
 						for (String keyTerm : c1Keys)
@@ -704,6 +1358,8 @@ public class KB implements Serializable
 			RelationCache ic1 = getRelationCache("instance", 1, 2);
 			RelationCache ic2 = getRelationCache("instance", 2, 1);
 			RelationCache sc1 = getRelationCache("subclass", 1, 2);
+			changes.cache(ic1);
+			changes.cache(ic2);
 
 			Set<String> ic1KeySet = ic1.keySet();
 			for (String ic1KeyTerm : ic1KeySet)
@@ -771,6 +1427,7 @@ public class KB implements Serializable
 			RelationCache sc2 = (relationName.equals("disjoint") ? getRelationCache("subclass", 2, 1) : null);
 			if (sc2 != null)
 			{
+				changes.cache(dc1);
 				// int passes = 0; 	// One pass is sufficient.
 				boolean changed = true;
 				while (changed)
@@ -915,6 +1572,9 @@ public class KB implements Serializable
 	 */
 	protected boolean[] getRelnArgSignature(String relation)
 	{
+		RelationSignature signature = getRelationSignature(relation);
+		if (signature != null)
+			return signature.getRelationArgs();
 		if (relnsWithRelnArgs != null)
 		{
 			return relnsWithRelnArgs.get(relation);
@@ -922,6 +1582,52 @@ public class KB implements Serializable
 		return null;
 	}
 
+	/**
+	 * Returns the signature of a relation, from the table built with the
+	 * relation caches.
+	 *
+	 * @param relation relation
+	 * @return signature, or null if the relation is not in the table or the
+	 * KB changed since the table was built
+	 */
+	public RelationSignature getRelationSignature(String relation)
+	{
+		Tuple.Pair<Long, Map<String, RelationSignature>> signatures = relationSignatures;
+		if (signatures == null || signatures.first != getVersion())
+			return null;
+		return signatures.second.get(relation);
+	}
+
+	/**
+	 * Relation valences, as cached by cacheRelationValences()
+	 *
+	 * @return Map from relation names to valences
+	 */
+	Map<String, int[]> getRelationValences()
+	{
+		return relationValences;
+	}
+
+	/**
+	 * Relations with relation-valued arguments, as cached by cacheRelnsWithRelnArgs()
+	 *
+	 * @return Map from relation names to argument flags, or null if not cached
+	 */
+	Map<String, boolean[]> getRelnsWithRelnArgs()
+	{
+		return relnsWithRelnArgs;
+	}
+
+	/**
+	 * Set relations with relation-valued arguments
+	 *
+	 * @param relnsWithRelnArgs Map from relation names to argument flags
+	 */
+	void setRelnsWithRelnArgs(Map<String, boolean[]> relnsWithRelnArgs)
+	{
+		this.relnsWithRelnArgs = relnsWithRelnArgs;
+	}
+
 	/**
 	 * Cache relation valences
 	 */
@@ -933,40 +1639,10 @@ public class KB implements Serializable
 			Set<String> relations = getCachedRelationValues("instance", "Relation", 2, 1);
 			if (relations != null)
 			{
-				List<String> namePrefixes = Arrays.asList("VariableArity", "Unary", "Binary", "Ternary", "Quaternary", "Quintary");
-				int npLen = namePrefixes.size();
 				RelationCache ic1 = getRelationCache("instance", 1, 2);
 				RelationCache ic2 = getRelationCache("instance", 2, 1);
-
 				for (String reln : relations)
-				{
-					// Here we evaluate getValence() to build the relationValences cache, and use its return
-					// value to fill in any info that might be missing from the "instance" cache.
-					int valence = getValence(reln);
-					if ((valence > -1) && (valence < npLen))
-					{
-						StringBuilder sb = new StringBuilder();
-						if (reln.endsWith("Fn"))
-						{
-							if ((valence > 0) && (valence < 5))
-							{
-								sb.append(namePrefixes.get(valence));
-								sb.append("Function");
-							}
-						}
-						else
-						{
-							sb.append(namePrefixes.get(valence));
-							sb.append("Relation");
-						}
-						String className = sb.toString();
-						if (!className.isEmpty())
-						{
-							addRelationCacheEntry(ic1, reln, className);
-							addRelationCacheEntry(ic2, className, reln);
-						}
-					}
-				}
+					cacheRelationValence(reln, ic1, ic2);
 			}
 		}
 		catch (Exception ex)
@@ -997,7 +1673,7 @@ public class KB implements Serializable
 		try
 		{
 			String argType = Formula.findType(argPos, reln, this);
-			if (!argType.isEmpty())
+			if (argType != null && !argType.isEmpty())
 			{
 				if (argType.endsWith("+"))
 					argType = "SetOrClass";
@@ -1032,7 +1708,7 @@ public class KB implements Serializable
 		try
 		{
 			String argType = Formula.findType(argPos, reln, this);
-			if (!argType.isEmpty())
+			if (argType != null && !argType.isEmpty())
 				className = argType;
 		}
 		catch (Exception ex)
@@ -1182,11 +1858,27 @@ public class KB implements Serializable
 	 * discarded.  New RelationCache Maps are created, and all caches
 	 * are rebuilt.
 	 *
+	 * A snapshot of the KB with the new caches is published.
+	 *
+	 * @param clearExistingCaches If true, all existing caches are
+	 *                            cleared and discarded and completely new caches are created,
+	 *                            else if false, any existing caches are used and augmented
+	 */
+	public synchronized void buildRelationCaches(boolean clearExistingCaches)
+	{
+		computeRelationCaches(clearExistingCaches);
+		updateSnapshot();
+	}
+
+	/**
+	 * Builds all of the relation caches, as buildRelationCaches() does,
+	 * without publishing a snapshot
+	 *
 	 * @param clearExistingCaches If true, all existing caches are
 	 *                            cleared and discarded and completely new caches are created,
 	 *                            else if false, any existing caches are used and augmented
 	 */
-	public void buildRelationCaches(boolean clearExistingCaches)
+	private void computeRelationCaches(boolean clearExistingCaches)
 	{
 		logger.entering("KB", "buildRelationCaches", "clearExistingCaches = " + clearExistingCaches);
 		long totalCacheEntries = 0L;
@@ -1230,10 +1922,78 @@ public class KB implements Serializable
 			if (i > 4)
 				break;
 		}
+		incrementVersion();
+		buildRelationSignatures();
 		logger.info("Caching cycles == " + i + "\n Cache entries == " + totalCacheEntries);
 		logger.exiting("KB", "buildRelationCaches");
 	}
 
+	/**
+	 * Cache the valence of a relation.  Here we evaluate getValence() to
+	 * build the relationValences cache, and use its return value to fill
+	 * in any info that might be missing from the "instance" cache.
+	 *
+	 * @param reln relation
+	 * @param ic1  instance cache, from instances to classes
+	 * @param ic2  instance cache, from classes to instances
+	 * @return the class implied by the valence, or null if none
+	 */
+	private String cacheRelationValence(String reln, RelationCache ic1, RelationCache ic2)
+	{
+		String className = getValenceClass(reln, getValence(reln));
+		if (className != null)
+		{
+			addRelationCacheEntry(ic1, reln, className);
+			addRelationCacheEntry(ic2, className, reln);
+		}
+		return className;
+	}
+
+	/**
+	 * The class a relation is an instance of by its valence, such as
+	 * BinaryRelation or UnaryFunction
+	 *
+	 * @param reln    relation
+	 * @param valence valence of the relation
+	 * @return class name, or null if none
+	 */
+	static String getValenceClass(String reln, int valence)
+	{
+		if ((valence > -1) && (valence < VALENCE_CLASS_PREFIXES.size()))
+		{
+			StringBuilder sb = new StringBuilder();
+			if (reln.endsWith("Fn"))
+			{
+				if ((valence > 0) && (valence < 5))
+				{
+					sb.append(VALENCE_CLASS_PREFIXES.get(valence));
+					sb.append("Function");
+				}
+			}
+			else
+			{
+				sb.append(VALENCE_CLASS_PREFIXES.get(valence));
+				sb.append("Relation");
+			}
+			String className = sb.toString();
+			if (!className.isEmpty())
+				return className;
+		}
+		return null;
+	}
+
+	/**
+	 * Builds the table of relation signatures from the relation caches,
+	 * valid for the current version.
+	 */
+	void buildRelationSignatures()
+	{
+		Tuple.Pair<Long, Map<String, RelationSignature>> signatures = new Tuple.Pair<>();
+		signatures.first = getVersion();
+		signatures.second = RelationSignature.build(this);
+		relationSignatures = signatures;
+	}
+
 	/**
 	 * Builds all of the relation caches for the current KB.  If
 	 * RelationCache Map objects already exist, they are cleared and
@@ -1257,97 +2017,107 @@ public class KB implements Serializable
 
 		int total = 0;
 		for (String relation : getCachedRelationNames())
-		{
-			int count = 0;
+			total += cacheGroundAssertions(relation, symmetric, reflexive);
+		logger.info("Total: " + total + " new cache entries computed");
+		logger.exiting("KB", "cacheGroundAssertionsAndPredSubsumptionEntailments");
+	}
 
-			Set<String> relationSet = new HashSet<>(getTermsViaPredicateSubsumption("subrelation", 2, relation, 1, true));
-			relationSet.add(relation);
+	/**
+	 * Populates the caches of a relation with its ground assertions and
+	 * those of its subrelations, from which closures can be computed.
+	 *
+	 * @param relation  cached relation
+	 * @param symmetric cached symmetric relations
+	 * @param reflexive cached reflexive relations
+	 * @return number of cache entries added
+	 */
+	private int cacheGroundAssertions(String relation, List<String> symmetric, List<String> reflexive)
+	{
+		int count = 0;
 
-			Set<Formula> formulae = new HashSet<>();
-			for (String value : relationSet)
-			{
-				List<Formula> forms = ask("arg", 0, value);
-				if (forms != null)
-					formulae.addAll(forms);
-			}
-			if (!formulae.isEmpty())
+		Set<String> relationSet = new HashSet<>(getTermsViaPredicateSubsumption("subrelation", 2, relation, 1, true));
+		relationSet.add(relation);
+
+		Set<Formula> formulae = new HashSet<>();
+		for (String value : relationSet)
+		{
+			List<Formula> forms = ask("arg", 0, value);
+			if (forms != null)
+				formulae.addAll(forms);
+		}
+		if (!formulae.isEmpty())
+		{
+			RelationCache c1 = getRelationCache(relation, 1, 2);
+			RelationCache c2 = getRelationCache(relation, 2, 1);
+			for (Formula f : formulae)
 			{
-				RelationCache c1 = getRelationCache(relation, 1, 2);
-				RelationCache c2 = getRelationCache(relation, 2, 1);
-				for (Formula f : formulae)
+				if ((f.text.indexOf("(", 2) == -1) && !f.sourceFile.endsWith(_cacheFileSuffix))
 				{
-					if ((f.text.indexOf("(", 2) == -1) && !f.sourceFile.endsWith(_cacheFileSuffix))
+					String arg1 = f.getArgument(1).intern();
+					String arg2 = f.getArgument(2).intern();
+
+					if (!arg1.isEmpty() && !arg2.isEmpty())
 					{
-						String arg1 = f.getArgument(1).intern();
-						String arg2 = f.getArgument(2).intern();
+						count += addRelationCacheEntry(c1, arg1, arg2);
+						count += addRelationCacheEntry(c2, arg2, arg1);
 
-						if (!arg1.isEmpty() && !arg2.isEmpty())
+						// symmetric
+						if (symmetric.contains(relation))
 						{
-							count += addRelationCacheEntry(c1, arg1, arg2);
-							count += addRelationCacheEntry(c2, arg2, arg1);
-
-							// symmetric
-							if (symmetric.contains(relation))
-							{
-								count += addRelationCacheEntry(c1, arg2, arg1);
-								count += addRelationCacheEntry(c2, arg1, arg2);
-							}
+							count += addRelationCacheEntry(c1, arg2, arg1);
+							count += addRelationCacheEntry(c2, arg1, arg2);
+						}
 
-							// reflexive
-							if (getCacheReflexiveAssertions() && reflexive.contains(relation))
-							{
-								count += addRelationCacheEntry(c1, arg1, arg1);
-								count += addRelationCacheEntry(c1, arg2, arg2);
-								count += addRelationCacheEntry(c2, arg1, arg1);
-								count += addRelationCacheEntry(c2, arg2, arg2);
-							}
+						// reflexive
+						if (getCacheReflexiveAssertions() && reflexive.contains(relation))
+						{
+							count += addRelationCacheEntry(c1, arg1, arg1);
+							count += addRelationCacheEntry(c1, arg2, arg2);
+							count += addRelationCacheEntry(c2, arg1, arg1);
+							count += addRelationCacheEntry(c2, arg2, arg2);
 						}
 					}
 				}
 			}
-			// More ways of collecting implied disjointness assertions.
-			if (relation.equals("disjoint"))
-			{
-				formulae.clear();
-				List<Formula> partitions = ask("arg", 0, "partition");
-				List<Formula> decompositions = ask("arg", 0, "disjointDecomposition");
-				if (partitions != null)
-					formulae.addAll(partitions);
-				if (decompositions != null)
-					formulae.addAll(decompositions);
-				RelationCache c1 = getRelationCache(relation, 1, 2);
-				for (Formula f : formulae)
+		}
+		// More ways of collecting implied disjointness assertions.
+		if (relation.equals("disjoint"))
+		{
+			formulae.clear();
+			List<Formula> partitions = ask("arg", 0, "partition");
+			List<Formula> decompositions = ask("arg", 0, "disjointDecomposition");
+			if (partitions != null)
+				formulae.addAll(partitions);
+			if (decompositions != null)
+				formulae.addAll(decompositions);
+			RelationCache c1 = getRelationCache(relation, 1, 2);
+			for (Formula f : formulae)
+			{
+				if ((f.text.indexOf("(", 2) == -1) && !f.sourceFile.endsWith(_cacheFileSuffix))
 				{
-					if ((f.text.indexOf("(", 2) == -1) && !f.sourceFile.endsWith(_cacheFileSuffix))
+					List<String> args = f.argumentsToList(2);
+					for (int i = 0; i < args.size(); i++)
 					{
-						List<String> args = f.argumentsToList(2);
-						for (int i = 0; i < args.size(); i++)
+						for (int j = 0; j < args.size(); j++)
 						{
-							for (int j = 0; j < args.size(); j++)
+							if (i != j)
 							{
-								if (i != j)
+								String arg1 = args.get(i).intern();
+								String arg2 = args.get(j).intern();
+								if (!arg1.isEmpty() && !arg2.isEmpty())
 								{
-									String arg1 = args.get(i).intern();
-									String arg2 = args.get(j).intern();
-									if (!arg1.isEmpty() && !arg2.isEmpty())
-									{
-										count += addRelationCacheEntry(c1, arg1, arg2);
-										count += addRelationCacheEntry(c1, arg2, arg1);
-									}
+									count += addRelationCacheEntry(c1, arg1, arg2);
+									count += addRelationCacheEntry(c1, arg2, arg1);
 								}
 							}
 						}
 					}
 				}
 			}
-			if (count > 0)
-			{
-				logger.finer(relation + ": " + count + " entries added for " + relationSet);
-				total += count;
-			}
 		}
-		logger.info("Total: " + total + " new cache entries computed");
-		logger.exiting("KB", "cacheGroundAssertionsAndPredSubsumptionEntailments");
+		if (count > 0)
+			logger.finer(relation + ": " + count + " entries added for " + relationSet);
+		return count;
 	}
 
 	/**
@@ -2078,15 +2848,7 @@ public class KB implements Serializable
 	 */
 	public int getCountRules()
 	{
-		int count = 0;
-		for (Formula f : formulaMap.values())
-		{
-			if (f.isRule())
-			{
-				count++;
-			}
-		}
-		return count;
+		return getCountFormulasWithFeature(FormulaFeatures.RULE);
 	}
 
 	/**
@@ -2248,237 +3010,1129 @@ public class KB implements Serializable
 		}
 		catch (Exception ex)
 		{
-			logger.warning(Arrays.toString(ex.getStackTrace()));
-			ex.printStackTrace();
+			logger.warning(Arrays.toString(ex.getStackTrace()));
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Clears all loaded format and termFormat maps, for all languages.
+	 */
+	protected void clearFormatMaps()
+	{
+		try
+		{
+			Map<String, String> m;
+			if (formatMap != null)
+			{
+				for (Map<String, String> stringStringMap : formatMap.values())
+				{
+					m = stringStringMap;
+					if (m != null)
+						m.clear();
+				}
+				formatMap.clear();
+			}
+			if (termFormatMap != null)
+			{
+				for (Map<String, String> stringStringMap : termFormatMap.values())
+				{
+					m = stringStringMap;
+					if (m != null)
+						m.clear();
+				}
+				termFormatMap.clear();
+			}
+			loadFormatMapsAttempted.clear();
+		}
+		catch (Exception ex)
+		{
+			logger.warning(Arrays.toString(ex.getStackTrace()));
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * This method creates a dictionary (Map) of SUO-KIF term symbols
+	 * -- the keys -- and a natural language string for each key that
+	 * is the preferred name for the term -- the values -- in the
+	 * context denoted by lang.  If the Map has already been built and
+	 * the language hasn't changed, just return the existing map.
+	 * This is a case of "lazy evaluation".
+	 *
+	 * @param lang language
+	 * @return An instance of Map where the keys are terms and the
+	 * values are format strings.
+	 */
+	public Map<String, String> getTermFormatMap(String lang)
+	{
+		if (lang == null || lang.isEmpty())
+		{
+			lang = "EnglishLanguage";
+		}
+		if ((termFormatMap == null) || termFormatMap.isEmpty())
+		{
+			loadFormatMaps(lang);
+		}
+		Map<String, String> langTermFormatMap = termFormatMap.get(lang);
+		if ((langTermFormatMap == null) || langTermFormatMap.isEmpty())
+		{
+			loadFormatMaps(lang);
+		}
+		return termFormatMap.get(lang);
+	}
+
+	/**
+	 * This method creates an association list (Map) of the natural
+	 * language format string and the relation name for which that
+	 * format string applies.  If the map has already been built and
+	 * the language hasn't changed, just return the existing map.
+	 * This is a case of "lazy evaluation".
+	 *
+	 * @param lang language
+	 * @return An instance of Map where the keys are relation names
+	 * and the values are format strings.
+	 */
+	public Map<String, String> getFormatMap(String lang)
+	{
+		logger.entering("KB", "getFormatMap", "lang = " + lang);
+		if (lang == null || lang.isEmpty())
+		{
+			lang = "EnglishLanguage";
+		}
+		if ((formatMap == null) || formatMap.isEmpty())
+		{
+			loadFormatMaps(lang);
+		}
+		Map<String, String> langFormatMap = formatMap.get(lang);
+		if ((langFormatMap == null) || langFormatMap.isEmpty())
+		{
+			loadFormatMaps(lang);
+		}
+		logger.exiting("KB", "getFormatMap", formatMap.get(lang));
+		return formatMap.get(lang);
+	}
+
+	/**
+	 * Add a new KB constituent by reading in the file, and then
+	 * merging the formulas with the existing set of formulas.  All
+	 * assertion caches are rebuilt, the current Vampire process is
+	 * destroyed, and a new one is created.
+	 *
+	 * @param filename - the full path of the file being added.
+	 */
+	public void addConstituent(String filename)
+	{
+		addConstituent(filename, true, true);
+	}
+
+	/**
+	 * Add a new KB constituent by reading in the file, and then merging
+	 * the formulas with the existing set of formulas.
+	 *
+	 * @param filename     - The full path of the file being added
+	 * @param buildCachesP - If true, forces the assertion caches to be rebuilt
+	 * @param performArity - If true, perform arity check
+	 */
+	public synchronized void addConstituent(String filename, boolean buildCachesP, boolean performArity)
+	{
+		if (logger.isLoggable(Level.FINER))
+		{
+			String[] params = { "filename = " + filename, "buildCachesP = " + buildCachesP, "performArity = " + performArity };
+			logger.entering("KB", "addConstituent", params);
+		}
+		try
+		{
+			// Should be called prior to param passing
+			//if (filename.endsWith(".owl") || filename.endsWith(".OWL") || filename.endsWith(".rdf") || filename.endsWith(".RDF"))
+			//{
+			//	OWLTranslator.read(filename);
+			//	filename = filename + ".kif";
+			//}
+			File constituent = new File(filename);
+			String canonicalPath = constituent.getCanonicalPath();
+			KIF file = new KIF();
+
+			if (constituents.contains(canonicalPath))
+				errors.add("Error: " + canonicalPath + " already loaded.");
+			logger.info("Adding " + canonicalPath + " to KB.");
+			try
+			{
+				file = readConstituent(canonicalPath);
+				errors.addAll(file.warningSet);
+			}
+			catch (Exception ex1)
+			{
+				StringBuilder error = new StringBuilder();
+				error.append(ex1.getMessage());
+				if (ex1 instanceof ParseException)
+					error.append(" at line ").append(((ParseException) ex1).getErrorOffset());
+				error.append(" in file ").append(canonicalPath);
+				logger.severe(error.toString());
+				errors.add(error.toString());
+			}
+
+			logger.info("Parsed file " + canonicalPath + " containing " + file.formulas.keySet().size() + " KIF expressions");
+			// Formulas whose text is that of a formula of another constituent, which formulaMap keeps
+			Set<Formula> duplicates = Collections.newSetFromMap(new IdentityHashMap<>());
+			int count = 0;
+			for (String key : file.formulas.keySet())
+			{
+				// Iterate through the formulas in the file, adding them to the KB, at the appropriate key.
+				// Note that this is a slow operation that needs to be improved
+				List<Formula> list = formulas.computeIfAbsent(key, k -> new ArrayList<>());
+				List<Formula> newList = file.formulas.get(key);
+				for (Formula f : newList)
+				{
+					boolean correctArity = true;
+					if (performArity)
+					{
+						if (!f.hasCorrectArity(this))
+						{
+							errors.add("The following formula rejected for incorrect arity: " + f.text);
+							System.err.println("ERROR Formula rejected for incorrect arity: " + f.text);
+							correctArity = false;
+						}
+					}
+					if (correctArity)
+					{
+						String internedFormula = f.text.intern();
+						if (!list.contains(f))
+						{
+							list.add(f);
+							changes.key(key);
+							Formula existingFormula = formulaMap.get(internedFormula);
+							if (existingFormula == null)
+							{
+								formulaMap.put(internedFormula, f);
+								indexFeatures(f);
+							}
+							else if (existingFormula != f && duplicates.add(f))
+								addDuplicateWarning(f);
+						}
+					}
+				}
+				if ((count++ % 100) == 1)
+				{
+					System.out.print(".");
+				}
+			}
+
+			synchronized (this.getTerms())
+			{
+				this.getTerms().addAll(file.terms);
+			}
+			changes.terms(file.terms);
+			if (!constituents.contains(canonicalPath))
+				constituents.add(canonicalPath);
+			incrementVersion();
+			logger.info("File " + canonicalPath + " loaded");
+
+			// Clear the formatMap and termFormatMap for this KB.
+			clearFormatMaps();
+			if (buildCachesP && !canonicalPath.endsWith(_cacheFileSuffix))
+				computeRelationCaches(true);
+		}
+		catch (Exception ex)
+		{
+			logger.severe(ex.getMessage() + "; \nStack Trace: " + Arrays.toString(ex.getStackTrace()));
+		}
+		updateSnapshot();
+
+		logger.exiting("KB", "addConstituent", "Constituent " + filename + "successfully added to KB: " + this.name);
+
+	}
+
+	/**
+	 * Add the warning that a formula read from a constituent duplicates a
+	 * formula of the KB, which is kept.
+	 *
+	 * @param f formula read
+	 */
+	private void addDuplicateWarning(Formula f)
+	{
+		StringBuilder error = new StringBuilder();
+		error.append("WARNING: Duplicate axiom in ");
+		error.append(f.sourceFile).append(" at line ").append(f.startLine).append("<br />");
+		error.append(f.text).append("<p>");
+		Formula existingFormula = formulaMap.get(f.text);
+		error.append("WARNING: Existing formula appears in ");
+		error.append(existingFormula.sourceFile).append(" at line ").append(existingFormula.startLine).append("<br />");
+		error.append("<p>");
+		System.err.println("WARNING: Duplicate detected.");
+		errors.add(error.toString());
+	}
+
+	/**
+	 * Cache of parsed constituents used by addConstituent() and
+	 * reloadConstituent()
+	 *
+	 * @return cache, or null if constituents are parsed anew
+	 */
+	public ParseCache getParseCache()
+	{
+		return parseCache;
+	}
+
+	/**
+	 * Set the cache of parsed constituents, which may be shared with
+	 * other KBs
+	 *
+	 * @param cache cache, null to parse constituents anew
+	 */
+	public void setParseCache(ParseCache cache)
+	{
+		parseCache = cache;
+	}
+
+	/**
+	 * Parse a constituent, from the parse cache if there is one
+	 *
+	 * @param canonicalPath canonical path of the constituent
+	 * @return parse, whose formulas belong to this KB
+	 * @throws Exception if the file cannot be read
+	 */
+	KIF readConstituent(String canonicalPath) throws Exception
+	{
+		ParseCache cache = parseCache;
+		if (cache != null)
+			return cache.parse(canonicalPath);
+		KIF file = new KIF();
+		file.readFile(canonicalPath);
+		return file;
+	}
+
+	// R E L O A D
+
+	/**
+	 * Reload a constituent after its file changed.  The file is parsed
+	 * anew and compared with the formulas loaded from it, by text: the
+	 * formulas no longer in the file are retracted from formulaMap and the
+	 * formula index, the new ones are added, and the line numbers of the
+	 * others are updated.  A new formula whose text is that of a formula
+	 * of another constituent is indexed with a warning, and formulaMap
+	 * keeps the other formula, as addConstituent() does.  Terms no longer
+	 * referenced are dropped.  The
+	 * relation caches are brought up to date incrementally, as retract()
+	 * and tell() do.
+	 * A constituent not yet loaded is added.  If the file cannot be read,
+	 * the formulas loaded from it are kept.
+	 *
+	 * @param filename the full path of the constituent
+	 */
+	public synchronized void reloadConstituent(String filename)
+	{
+		logger.entering("KB", "reloadConstituent", filename);
+		try
+		{
+			String canonicalPath = new File(filename).getCanonicalPath();
+			if (!constituents.contains(canonicalPath))
+			{
+				addConstituent(canonicalPath);
+				return;
+			}
+			KIF file = new KIF();
+			try
+			{
+				file = readConstituent(canonicalPath);
+				errors.addAll(file.warningSet);
+			}
+			catch (Exception ex1)
+			{
+				String error = ex1.getMessage() + " in file " + canonicalPath + ", formulas loaded from it are kept";
+				logger.severe(error);
+				errors.add(error);
+				return;
+			}
+
+			// Parsed formulas by text, in file order, with their keys
+			Map<Formula, List<String>> parsedKeys = new IdentityHashMap<>();
+			Map<String, Formula> parsed = getParsedFormulas(file, parsedKeys);
+
+			// Diff
+			List<Formula> loaded = getConstituentFormulas(canonicalPath);
+			Set<String> loadedTexts = new HashSet<>();
+			List<Formula> retracted = new ArrayList<>();
+			for (Formula f : loaded)
+			{
+				loadedTexts.add(f.text);
+				Formula g = parsed.get(f.text);
+				if (g == null)
+					retracted.add(f);
+				else
+				{
+					f.startLine = g.startLine;
+					f.endLine = g.endLine;
+				}
+			}
+			List<Formula> added = new ArrayList<>();
+			for (Formula f : parsed.values())
+			{
+				if (loadedTexts.contains(f.text))
+					continue;
+				if (!f.hasCorrectArity(this))
+				{
+					errors.add("The following formula rejected for incorrect arity: " + f.text);
+					continue;
+				}
+				if (formulaMap.containsKey(f.text))
+				{
+					// Indexed, but formulaMap keeps the formula of the other constituent
+					addDuplicateWarning(f);
+				}
+				added.add(f);
+			}
+
+			Set<String> candidateTerms = new HashSet<>();
+			for (Formula f : retracted)
+				unindexFormula(f, candidateTerms);
+			for (Formula f : added)
+				indexFormula(f, parsedKeys.get(f));
+			synchronized (getTerms())
+			{
+				getTerms().addAll(file.terms);
+			}
+			changes.terms(file.terms);
+			candidateTerms.removeAll(file.terms);
+			dropUnreferencedTerms(candidateTerms);
+			logger.info("Reloaded " + canonicalPath + ": " + retracted.size() + " formulas retracted, " + added.size() + " added");
+			constituentChanged(retracted, added);
+		}
+		catch (Exception ex)
+		{
+			logger.warning(Arrays.toString(ex.getStackTrace()));
+			ex.printStackTrace();
+		}
+		updateSnapshot();
+		logger.exiting("KB", "reloadConstituent");
+	}
+
+	/**
+	 * Remove a constituent: its formulas are retracted, as retract() does.
+	 *
+	 * @param filename the full path of the constituent
+	 */
+	public synchronized void removeConstituent(String filename)
+	{
+		logger.entering("KB", "removeConstituent", filename);
+		try
+		{
+			String canonicalPath = new File(filename).getCanonicalPath();
+			if (!constituents.remove(canonicalPath))
+				return;
+			List<Formula> retracted = getConstituentFormulas(canonicalPath);
+			retractFormulas(retracted);
+			logger.info("Removed " + canonicalPath + ": " + retracted.size() + " formulas retracted");
+		}
+		catch (Exception ex)
+		{
+			logger.warning(Arrays.toString(ex.getStackTrace()));
+			ex.printStackTrace();
+		}
+		logger.exiting("KB", "removeConstituent");
+	}
+
+	/**
+	 * The formulas of a parse, one per text, in file order
+	 *
+	 * @param file parse
+	 * @param keys receives the formula index keys of the formulas
+	 * @return formulas by text
+	 */
+	static Map<String, Formula> getParsedFormulas(KIF file, Map<Formula, List<String>> keys)
+	{
+		for (Map.Entry<String, List<Formula>> entry : file.formulas.entrySet())
+		{
+			for (Formula f : entry.getValue())
+				keys.computeIfAbsent(f, k -> new ArrayList<>()).add(entry.getKey());
+		}
+		Map<String, Formula> result = new LinkedHashMap<>();
+		for (String text : file.formulaSet)
+		{
+			for (Formula f : file.formulas.get(text))
+			{
+				if (f.text.equals(text))
+				{
+					result.put(text, f);
+					break;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The formulas loaded from a constituent, including those whose text
+	 * is also that of a formula of another constituent
+	 *
+	 * @param canonicalPath canonical path of the constituent
+	 * @return formulas
+	 */
+	private List<Formula> getConstituentFormulas(String canonicalPath)
+	{
+		List<Formula> result = new ArrayList<>();
+		for (String text : formulaMap.keySet())
+		{
+			List<Formula> list = formulas.get(text);
+			if (list == null)
+				continue;
+			for (Formula f : list)
+			{
+				if (f.text.equals(text) && canonicalPath.equals(f.sourceFile))
+					result.add(f);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The formula index keys of a formula, those KIF.createKey() makes
+	 * for it, the text and ID keys included
+	 *
+	 * @param f     formula
+	 * @param terms if not null, receives the terms of the formula
+	 * @return keys
+	 */
+	static Set<String> getFormulaKeys(Formula f, Set<String> terms)
+	{
+		KIF kif = new KIF();
+		kif.parseString(f.text, f.sourceFile);
+		if (terms != null)
+			terms.addAll(kif.terms);
+		Set<String> result = new HashSet<>(kif.formulas.keySet());
+		result.add(f.text);
+		result.add(f.createID());
+		return result;
+	}
+
+	/**
+	 * Add a formula to the formula index, and to formulaMap and the
+	 * feature posting lists unless another formula with the same text,
+	 * from another constituent, is there, as addConstituent() does
+	 *
+	 * @param f    formula
+	 * @param keys formula index keys
+	 */
+	void indexFormula(Formula f, Collection<String> keys)
+	{
+		for (String key : keys)
+		{
+			List<Formula> list = formulas.computeIfAbsent(key, k -> new ArrayList<>());
+			if (!list.contains(f))
+			{
+				list.add(f);
+				changes.key(key);
+			}
+		}
+		if (formulaMap.putIfAbsent(f.text.intern(), f) == null)
+			indexFeatures(f);
+	}
+
+	/**
+	 * Remove a formula from formulaMap, the formula index and the feature
+	 * posting lists.  Another formula with the same text, from another
+	 * constituent, then takes its place in formulaMap.
+	 *
+	 * @param f     formula
+	 * @param terms if not null, receives the terms of the formula
+	 */
+	void unindexFormula(Formula f, Set<String> terms)
+	{
+		for (String key : getFormulaKeys(f, terms))
+		{
+			List<Formula> list = formulas.get(key);
+			if (list == null)
+				continue;
+			if (list.removeIf(g -> g == f))
+				changes.key(key);
+			if (list.isEmpty())
+				formulas.remove(key);
+		}
+		if (formulaMap.get(f.text) == f)
+		{
+			changes.text(f.text);
+			formulaMap.remove(f.text);
+			unindexFeatures(f);
+			List<Formula> others = formulas.get(f.text);
+			if (others != null)
+			{
+				for (Formula g : others)
+				{
+					if (g.text.equals(f.text))
+					{
+						formulaMap.put(g.text.intern(), g);
+						indexFeatures(g);
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drop the terms no formula refers to any longer, which is found from
+	 * the formula index keys
+	 *
+	 * @param candidates terms that may no longer be referred to
+	 */
+	void dropUnreferencedTerms(Set<String> candidates)
+	{
+		if (candidates.isEmpty())
+			return;
+		Set<String> unreferenced = new HashSet<>(candidates);
+		for (Map.Entry<String, List<Formula>> entry : formulas.entrySet())
+		{
+			if (entry.getValue().isEmpty())
+				continue;
+			String term = getKeyTerm(entry.getKey());
+			if (term != null)
+				unreferenced.remove(term);
+		}
+		synchronized (terms)
+		{
+			terms.removeAll(unreferenced);
+		}
+		changes.terms(unreferenced);
+	}
+
+	/**
+	 * The term of a formula index key of the form ant-term, cons-term,
+	 * stmt-term or arg-n-term
+	 *
+	 * @param key formula index key
+	 * @return term, or null if the key is a formula text or ID
+	 */
+	private static String getKeyTerm(String key)
+	{
+		if (key.startsWith("ant-"))
+			return key.substring(4);
+		if (key.startsWith("cons-"))
+			return key.substring(5);
+		if (key.startsWith("stmt-"))
+			return key.substring(5);
+		if (key.startsWith("arg-"))
+		{
+			int dash = key.indexOf('-', 4);
+			return dash < 0 ? null : key.substring(dash + 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Bring the derived data up to date after formulas of a constituent
+	 * were retracted or added.  The retracted formulas are retracted from
+	 * the relation caches, then the added ones are added to them.
+	 *
+	 * @param retracted formulas retracted
+	 * @param added     formulas added
+	 */
+	private void constituentChanged(List<Formula> retracted, List<Formula> added)
+	{
+		incrementVersion();
+		clearFormatMaps();
+		retractFromRelationCaches(retracted);
+		addToRelationCaches(added);
+		incrementVersion();
+		buildRelationSignatures();
+	}
+
+	// R E T R A C T
+
+	/**
+	 * Retract a formula: the formulas of the KB with its text, from
+	 * whichever constituent, are removed from formulaMap and from all the
+	 * keys of the formula index, the terms no longer referenced are
+	 * dropped, and the relation caches the formula contributed to are
+	 * brought up to date.
+	 *
+	 * @param f formula
+	 * @return whether a formula was retracted
+	 */
+	public synchronized boolean retract(Formula f)
+	{
+		List<Formula> retracted = new ArrayList<>();
+		List<Formula> list = formulas.get(f.text);
+		if (list != null)
+		{
+			for (Formula g : list)
+			{
+				if (g.text.equals(f.text))
+					retracted.add(g);
+			}
 		}
+		retractFormulas(retracted);
+		return !retracted.isEmpty();
 	}
 
 	/**
-	 * Clears all loaded format and termFormat maps, for all languages.
+	 * Retract the formulas that satisfy a predicate, as retract() does
+	 *
+	 * @param predicate test of the formulas to retract
+	 * @return number of formulas retracted
 	 */
-	protected void clearFormatMaps()
+	public synchronized int retractAll(Predicate<Formula> predicate)
 	{
-		try
+		List<Formula> retracted = new ArrayList<>();
+		for (String text : formulaMap.keySet())
 		{
-			Map<String, String> m;
-			if (formatMap != null)
+			List<Formula> list = formulas.get(text);
+			if (list == null)
 			{
-				for (Map<String, String> stringStringMap : formatMap.values())
-				{
-					m = stringStringMap;
-					if (m != null)
-						m.clear();
-				}
-				formatMap.clear();
+				// Not in the formula index
+				Formula f = formulaMap.get(text);
+				if (predicate.test(f))
+					retracted.add(f);
+				continue;
 			}
-			if (termFormatMap != null)
+			for (Formula f : list)
 			{
-				for (Map<String, String> stringStringMap : termFormatMap.values())
-				{
-					m = stringStringMap;
-					if (m != null)
-						m.clear();
-				}
-				termFormatMap.clear();
+				if (f.text.equals(text) && predicate.test(f))
+					retracted.add(f);
 			}
-			loadFormatMapsAttempted.clear();
-		}
-		catch (Exception ex)
-		{
-			logger.warning(Arrays.toString(ex.getStackTrace()));
-			ex.printStackTrace();
 		}
+		retractFormulas(retracted);
+		return retracted.size();
 	}
 
 	/**
-	 * This method creates a dictionary (Map) of SUO-KIF term symbols
-	 * -- the keys -- and a natural language string for each key that
-	 * is the preferred name for the term -- the values -- in the
-	 * context denoted by lang.  If the Map has already been built and
-	 * the language hasn't changed, just return the existing map.
-	 * This is a case of "lazy evaluation".
+	 * Retract formulas of the KB and bring the derived data up to date
 	 *
-	 * @param lang language
-	 * @return An instance of Map where the keys are terms and the
-	 * values are format strings.
+	 * @param retracted formulas of the KB
 	 */
-	public Map<String, String> getTermFormatMap(String lang)
+	private void retractFormulas(List<Formula> retracted)
 	{
-		if (lang == null || lang.isEmpty())
+		if (retracted.isEmpty())
+			return;
+		Set<String> candidateTerms = new HashSet<>();
+		for (Formula f : retracted)
+			unindexFormula(f, candidateTerms);
+		dropUnreferencedTerms(candidateTerms);
+		constituentChanged(retracted, Collections.emptyList());
+		updateSnapshot();
+	}
+
+	/**
+	 * Bring the relation caches up to date after formulas were retracted.
+	 * Only ground atomic formulas contribute to the caches.  The caches of
+	 * the relations they were assertions of, or of a super-relation, are
+	 * recomputed from the remaining assertions, along with the caches that
+	 * depend on them: the instance and disjoint caches depend on the
+	 * subclass cache, and the instance cache holds entries implied by
+	 * relation valences.  The other caches are left as they are.  All
+	 * caches are rebuilt if a subrelation assertion was retracted, or if
+	 * the set of cached relations changed, as these change which
+	 * assertions feed which caches.  Valences are computed anew whenever
+	 * the instance cache is, which is whenever a valence assertion was
+	 * retracted.
+	 *
+	 * @param retracted retracted formulas
+	 */
+	private void retractFromRelationCaches(List<Formula> retracted)
+	{
+		Set<String> predicates = new HashSet<>();
+		for (Formula f : retracted)
 		{
-			lang = "EnglishLanguage";
+			if (f.text.indexOf("(", 2) == -1 && !f.sourceFile.endsWith(_cacheFileSuffix))
+				predicates.add(f.car());
 		}
-		if ((termFormatMap == null) || termFormatMap.isEmpty())
+		if (predicates.isEmpty())
+			return;
+
+		List<String> cachedRelations = getCachedRelationNames();
+		Set<String> affected = new LinkedHashSet<>();
+		for (String relation : cachedRelations)
 		{
-			loadFormatMaps(lang);
+			Set<String> relationSet = new HashSet<>(getTermsViaPredicateSubsumption("subrelation", 2, relation, 1, true));
+			relationSet.add(relation);
+			if (!Collections.disjoint(relationSet, predicates))
+				affected.add(relation);
 		}
-		Map<String, String> langTermFormatMap = termFormatMap.get(lang);
-		if ((langTermFormatMap == null) || langTermFormatMap.isEmpty())
+		if (predicates.contains("partition") || predicates.contains("disjointDecomposition"))
+			affected.add("disjoint");
+		if (predicates.contains("valence"))
 		{
-			loadFormatMaps(lang);
+			// The instance cache holds the valence classes of relations
+			affected.add("instance");
 		}
-		return termFormatMap.get(lang);
-	}
+		if (affected.contains("subrelation"))
+		{
+			relationValences.clear();
+			computeRelationCaches(true);
+			return;
+		}
+		if (affected.contains("subclass"))
+		{
+			affected.add("instance");
+			affected.add("disjoint");
+		}
+		logger.info("Recomputing relation caches of " + affected);
 
-	/**
-	 * This method creates an association list (Map) of the natural
-	 * language format string and the relation name for which that
-	 * format string applies.  If the map has already been built and
-	 * the language hasn't changed, just return the existing map.
-	 * This is a case of "lazy evaluation".
-	 *
-	 * @param lang language
-	 * @return An instance of Map where the keys are relation names
-	 * and the values are format strings.
-	 */
-	public Map<String, String> getFormatMap(String lang)
-	{
-		logger.entering("KB", "getFormatMap", "lang = " + lang);
-		if (lang == null || lang.isEmpty())
+		// Same steps as buildRelationCaches(), restricted to the affected caches
+		for (RelationCache cache : getRelationCaches())
 		{
-			lang = "EnglishLanguage";
+			if (affected.contains(cache.getRelationName()))
+			{
+				cache.clear();
+				changes.cache(cache);
+			}
 		}
-		if ((formatMap == null) || formatMap.isEmpty())
+		List<String> symmetric = getCachedSymmetricRelationNames();
+		List<String> reflexive = getCachedReflexiveRelationNames();
+		for (String relation : affected)
+			cacheGroundAssertions(relation, symmetric, reflexive);
+		for (String relation : getCachedTransitiveRelationNames())
 		{
-			loadFormatMaps(lang);
+			if (affected.contains(relation))
+				computeTransitiveCacheClosure(relation);
 		}
-		Map<String, String> langFormatMap = formatMap.get(lang);
-		if ((langFormatMap == null) || langFormatMap.isEmpty())
+		if (affected.contains("instance"))
 		{
-			loadFormatMaps(lang);
+			// Entries implied by subrelation assertions and valences
+			computeTransitiveCacheClosure("subrelation");
+			computeInstanceCacheClosure();
+			relationValences.clear();
+			cacheRelationValences();
+			computeInstanceCacheClosure();
+		}
+		if (affected.contains("disjoint") && getCachedSymmetricRelationNames().contains("disjoint"))
+			computeSymmetricCacheClosure("disjoint");
+		cacheRelnsWithRelnArgs();
+
+		if (!cachedRelations.equals(getCachedRelationNames()))
+		{
+			relationValences.clear();
+			computeRelationCaches(true);
 		}
-		logger.exiting("KB", "getFormatMap", formatMap.get(lang));
-		return formatMap.get(lang);
 	}
 
+	// T E L L
+
 	/**
-	 * Add a new KB constituent by reading in the file, and then
-	 * merging the formulas with the existing set of formulas.  All
-	 * assertion caches are rebuilt, the current Vampire process is
-	 * destroyed, and a new one is created.
+	 * The file told formulas are attributed to when they have no source
+	 * file.  It is not written.
 	 *
-	 * @param filename - the full path of the file being added.
+	 * @return the full path of the file
 	 */
-	public void addConstituent(String filename)
+	public String getUserAssertionsFile()
 	{
-		addConstituent(filename, true, true);
+		return kbDir + File.separator + name + _userAssertionsSuffix;
 	}
 
 	/**
-	 * Add a new KB constituent by reading in the file, and then merging
-	 * the formulas with the existing set of formulas.
+	 * Tell the KB formulas, without reloading a constituent.  The
+	 * formulas are parsed and validated as a constituent's are, and are
+	 * rejected as a whole if one is invalid or has a bad arity.  Those not
+	 * already in the KB are indexed under the keys KIF.createKey() makes
+	 * for them, their terms are added and the relation caches they
+	 * contribute to are brought up to date incrementally.  The formulas
+	 * are attributed to getUserAssertionsFile().
 	 *
-	 * @param filename     - The full path of the file being added
-	 * @param buildCachesP - If true, forces the assertion caches to be rebuilt
-	 * @param performArity - If true, perform arity check
+	 * @param kif formulas, in KIF
+	 * @return a message telling the outcome
 	 */
-	public void addConstituent(String filename, boolean buildCachesP, boolean performArity)
+	public synchronized String tell(String kif)
 	{
-		if (logger.isLoggable(Level.FINER))
+		KIF file = new KIF();
+		file.parseString(kif, getUserAssertionsFile());
+		return tell(file, null);
+	}
+
+	/**
+	 * Tell the KB a formula, as tell(String) does.  The formula keeps its
+	 * source file and lines, if it has a source file.
+	 *
+	 * @param f formula
+	 * @return a message telling the outcome
+	 */
+	public synchronized String tell(Formula f)
+	{
+		KIF file = new KIF();
+		file.parseString(f.text, f.sourceFile != null ? f.sourceFile : getUserAssertionsFile());
+		if (file.formulaSet.size() > 1)
+			return "Error: more than one formula in " + f.text;
+		return tell(file, f.sourceFile != null ? f : null);
+	}
+
+	/**
+	 * Tell the KB the formulas of a parse
+	 *
+	 * @param file  parse
+	 * @param given formula whose lines the parsed formula takes, or null
+	 * @return a message telling the outcome
+	 */
+	private String tell(KIF file, Formula given)
+	{
+		logger.entering("KB", "tell", file.formulaSet);
+		for (String warning : file.warningSet)
 		{
-			String[] params = { "filename = " + filename, "buildCachesP = " + buildCachesP, "performArity = " + performArity };
-			logger.entering("KB", "addConstituent", params);
+			if (warning.startsWith("Error"))
+				return warning;
 		}
-		try
-		{
-			// Should be called prior to param passing
-			//if (filename.endsWith(".owl") || filename.endsWith(".OWL") || filename.endsWith(".rdf") || filename.endsWith(".RDF"))
-			//{
-			//	OWLTranslator.read(filename);
-			//	filename = filename + ".kif";
-			//}
-			File constituent = new File(filename);
-			String canonicalPath = constituent.getCanonicalPath();
-			KIF file = new KIF();
+		if (file.formulaSet.isEmpty())
+			return "Error: no formula";
 
-			if (constituents.contains(canonicalPath))
-				errors.add("Error: " + canonicalPath + " already loaded.");
-			logger.info("Adding " + canonicalPath + " to KB.");
-			try
+		Map<Formula, List<String>> parsedKeys = new IdentityHashMap<>();
+		Map<String, Formula> parsed = getParsedFormulas(file, parsedKeys);
+		List<Formula> added = new ArrayList<>();
+		for (Formula f : parsed.values())
+		{
+			if (formulaMap.containsKey(f.text))
+				continue;
+			if (!f.hasCorrectArity(this))
+				return "The following formula rejected for incorrect arity: " + f.text;
+			if (given != null)
 			{
-				file.readFile(canonicalPath);
-				errors.addAll(file.warningSet);
+				f.startLine = given.startLine;
+				f.endLine = given.endLine;
 			}
-			catch (Exception ex1)
+			added.add(f);
+		}
+		if (added.isEmpty())
+			return "The formula is already in the KB";
+
+		for (Formula f : added)
+			indexFormula(f, parsedKeys.get(f));
+		synchronized (getTerms())
+		{
+			getTerms().addAll(file.terms);
+		}
+		changes.terms(file.terms);
+		incrementVersion();
+		clearFormatMaps();
+		boolean signaturesChanged = addToRelationCaches(added);
+		for (Formula f : added)
+			signaturesChanged |= !f.isRule() && SIGNATURE_PREDICATES.contains(f.car());
+		Tuple.Pair<Long, Map<String, RelationSignature>> signatures = relationSignatures;
+		if (signatures == null || signatures.first != getVersion())
+		{
+			if (signatures == null || signaturesChanged)
+				buildRelationSignatures();
+			else
 			{
-				StringBuilder error = new StringBuilder();
-				error.append(ex1.getMessage());
-				if (ex1 instanceof ParseException)
-					error.append(" at line ").append(((ParseException) ex1).getErrorOffset());
-				error.append(" in file ").append(canonicalPath);
-				logger.severe(error.toString());
-				errors.add(error.toString());
+				// Still valid
+				Tuple.Pair<Long, Map<String, RelationSignature>> restamped = new Tuple.Pair<>();
+				restamped.first = getVersion();
+				restamped.second = signatures.second;
+				relationSignatures = restamped;
 			}
+		}
+		updateSnapshot();
+		logger.exiting("KB", "tell", added.size());
+		return added.size() == 1 ? "The formula has been added" : added.size() + " formulas have been added";
+	}
 
-			logger.info("Parsed file " + canonicalPath + " containing " + file.formulas.keySet().size() + " KIF expressions");
-			int count = 0;
-			for (String key : file.formulas.keySet())
+	/**
+	 * Bring the relation caches up to date after formulas were added.
+	 * Only ground atomic formulas contribute to the caches.  Since caches
+	 * only grow when formulas are added, each new assertion is added to
+	 * the caches of the relations it is an assertion of, or of a
+	 * super-relation, with the entries it implies by transitivity, and
+	 * the instance cache is extended with the superclasses of the new
+	 * classes of instances.  The valences of relations whose classes
+	 * changed are computed anew.  All caches are rebuilt if a subrelation
+	 * assertion was added, or if the set of cached relations changed.
+	 *
+	 * @param added added formulas
+	 * @return whether the relations or their valences may have changed,
+	 * so that the relation signatures are to be rebuilt
+	 */
+	private boolean addToRelationCaches(List<Formula> added)
+	{
+		List<Formula> ground = new ArrayList<>();
+		for (Formula f : added)
+		{
+			if (f.text.indexOf("(", 2) == -1 && !f.sourceFile.endsWith(_cacheFileSuffix))
+				ground.add(f);
+		}
+		if (ground.isEmpty())
+			return false;
+
+		List<String> cachedRelations = getCachedRelationNames();
+		List<String> transitive = getCachedTransitiveRelationNames();
+		List<String> symmetric = getCachedSymmetricRelationNames();
+		List<String> reflexive = getCachedReflexiveRelationNames();
+		Map<String, Set<String>> relationSets = new HashMap<>();
+		Set<String> affected = new LinkedHashSet<>();
+		Set<String> valenceChanged = new LinkedHashSet<>();
+		for (Formula f : ground)
+		{
+			String predicate = f.car();
+			if (predicate.equals("partition") || predicate.equals("disjointDecomposition"))
 			{
-				// Iterate through the formulas in the file, adding them to the KB, at the appropriate key.
-				// Note that this is a slow operation that needs to be improved
-				List<Formula> list = formulas.computeIfAbsent(key, k -> new ArrayList<>());
-				List<Formula> newList = file.formulas.get(key);
-				for (Formula f : newList)
+				RelationCache c1 = getRelationCache("disjoint", 1, 2);
+				List<String> args = f.argumentsToList(2);
+				for (int i = 0; i < args.size(); i++)
 				{
-					boolean correctArity = true;
-					if (performArity)
-					{
-						if (!f.hasCorrectArity(this))
-						{
-							errors.add("The following formula rejected for incorrect arity: " + f.text);
-							System.err.println("ERROR Formula rejected for incorrect arity: " + f.text);
-							correctArity = false;
-						}
-					}
-					if (correctArity)
+					for (int j = 0; j < args.size(); j++)
 					{
-						String internedFormula = f.text.intern();
-						if (!list.contains(f))
-						{
-							list.add(f);
-							formulaMap.put(internedFormula, f);
-						}
-						else
+						String arg1 = args.get(i).intern();
+						String arg2 = args.get(j).intern();
+						if (i != j && !arg1.isEmpty() && !arg2.isEmpty())
 						{
-							StringBuilder error = new StringBuilder();
-							error.append("WARNING: Duplicate axiom in ");
-							error.append(f.sourceFile).append(" at line ").append(f.startLine).append("<br />");
-							error.append(f.text).append("<p>");
-							Formula existingFormula = formulaMap.get(internedFormula);
-							error.append("WARNING: Existing formula appears in ");
-							error.append(existingFormula.sourceFile).append(" at line ").append(existingFormula.startLine).append("<br />");
-							error.append("<p>");
-							System.err.println("WARNING: Duplicate detected.");
-							errors.add(error.toString());
+							addRelationCacheEntry(c1, arg1, arg2);
+							addRelationCacheEntry(c1, arg2, arg1);
 						}
 					}
 				}
-				if ((count++ % 100) == 1)
+				affected.add("disjoint");
+				continue;
+			}
+			String arg1 = f.getArgument(1).intern();
+			String arg2 = f.getArgument(2).intern();
+			if (arg1.isEmpty())
+				continue;
+			if (predicate.equals("valence"))
+				valenceChanged.add(arg1);
+			if (arg2.isEmpty())
+				continue;
+			for (String relation : cachedRelations)
+			{
+				Set<String> relationSet = relationSets.computeIfAbsent(relation, r -> {
+					Set<String> result = new HashSet<>(getTermsViaPredicateSubsumption("subrelation", 2, r, 1, true));
+					result.add(r);
+					return result;
+				});
+				if (!relationSet.contains(predicate))
+					continue;
+				if (relation.equals("subrelation"))
 				{
-					System.out.print(".");
+					// Changes which assertions feed which caches
+					relationValences.clear();
+					computeRelationCaches(true);
+					return false;
+				}
+				affected.add(relation);
+				boolean isTransitive = transitive.contains(relation);
+				addClosedCacheEntry(relation, arg1, arg2, isTransitive, valenceChanged);
+				if (symmetric.contains(relation))
+					addClosedCacheEntry(relation, arg2, arg1, isTransitive, valenceChanged);
+				if (getCacheReflexiveAssertions() && reflexive.contains(relation))
+				{
+					addClosedCacheEntry(relation, arg1, arg1, isTransitive, valenceChanged);
+					addClosedCacheEntry(relation, arg2, arg2, isTransitive, valenceChanged);
 				}
 			}
+		}
+		if (affected.isEmpty() && valenceChanged.isEmpty())
+			return false;
+		logger.info("Adding to relation caches of " + affected);
 
-			synchronized (this.getTerms())
+		boolean relationsChanged = false;
+		if (affected.contains("subclass"))
+		{
+			// Valences may follow from any relation class
+			relationValences.clear();
+			cacheRelationValences();
+			computeInstanceCacheClosure();
+			relationsChanged = true;
+		}
+		else
+		{
+			RelationCache ic1 = getRelationCache("instance", 1, 2);
+			RelationCache ic2 = getRelationCache("instance", 2, 1);
+			for (String term : valenceChanged)
 			{
-				this.getTerms().addAll(file.terms);
+				// The valence of a relation is that of its super-relations when not its own
+				Set<String> relations = new LinkedHashSet<>();
+				relations.add(term);
+				relations.addAll(getCachedRelationValues("subrelation", term, 2, 1));
+				for (String reln : relations)
+				{
+					Set<String> classes = ic1.get(reln);
+					if (classes == null || !classes.contains("Relation"))
+						continue;
+					relationValences.remove(reln);
+					String className = cacheRelationValence(reln, ic1, ic2);
+					if (className != null)
+						addClosedCacheEntry("instance", reln, className, false, null);
+					relationsChanged = true;
+				}
 			}
-			if (!constituents.contains(canonicalPath))
-				constituents.add(canonicalPath);
-			logger.info("File " + canonicalPath + " loaded");
-
-			// Clear the formatMap and termFormatMap for this KB.
-			clearFormatMaps();
-			if (buildCachesP && !canonicalPath.endsWith(_cacheFileSuffix))
-				buildRelationCaches();
 		}
-		catch (Exception ex)
+		if ((affected.contains("subclass") || affected.contains("disjoint")) && getCachedSymmetricRelationNames().contains("disjoint"))
+			computeSymmetricCacheClosure("disjoint");
+		if (relationsChanged)
+			cacheRelnsWithRelnArgs();
+
+		if (!cachedRelations.equals(getCachedRelationNames()))
 		{
-			logger.severe(ex.getMessage() + "; \nStack Trace: " + Arrays.toString(ex.getStackTrace()));
+			relationValences.clear();
+			computeRelationCaches(true);
+			return false;
 		}
+		return relationsChanged;
+	}
 
-		logger.exiting("KB", "addConstituent", "Constituent " + filename + "successfully added to KB: " + this.name);
+	/**
+	 * Add an assertion to the caches of a relation, with the entries it
+	 * implies: by transitivity if the relation is transitive, the
+	 * superclasses of the class if it is instance, and the new classes of
+	 * the instances of the subclasses if it is subclass.  The caches are
+	 * assumed closed.
+	 *
+	 * @param relation     cached relation
+	 * @param arg1         first argument
+	 * @param arg2         second argument
+	 * @param isTransitive whether the relation is transitive
+	 * @param instances    if not null, receives the instances whose classes changed
+	 */
+	private void addClosedCacheEntry(String relation, String arg1, String arg2, boolean isTransitive, Set<String> instances)
+	{
+		RelationCache c1 = getRelationCache(relation, 1, 2);
+		RelationCache c2 = getRelationCache(relation, 2, 1);
+
+		// What reaches arg1 now reaches what arg2 reaches
+		Set<String> sources = new LinkedHashSet<>();
+		sources.add(arg1);
+		Set<String> targets = new LinkedHashSet<>();
+		targets.add(arg2);
+		if (relation.equals("instance"))
+		{
+			Set<String> superclasses = getRelationCache("subclass", 1, 2).get(arg2);
+			if (superclasses != null)
+				targets.addAll(superclasses);
+			if (instances != null)
+				instances.add(arg1);
+		}
+		else if (isTransitive)
+		{
+			Set<String> keys = c2.get(arg1);
+			if (keys != null)
+				sources.addAll(keys);
+			Set<String> values = c1.get(arg2);
+			if (values != null)
+				targets.addAll(values);
+		}
+		for (String source : sources)
+		{
+			for (String target : targets)
+			{
+				addRelationCacheEntry(c1, source, target);
+				addRelationCacheEntry(c2, target, source);
+			}
+		}
 
+		if (relation.equals("subclass"))
+		{
+			RelationCache ic1 = getRelationCache("instance", 1, 2);
+			RelationCache ic2 = getRelationCache("instance", 2, 1);
+			for (String source : sources)
+			{
+				Set<String> members = ic2.get(source);
+				if (members == null)
+					continue;
+				for (String member : members.toArray(new String[0]))
+				{
+					for (String target : targets)
+					{
+						addRelationCacheEntry(ic1, member, target);
+						addRelationCacheEntry(ic2, target, member);
+					}
+					if (instances != null)
+						instances.add(member);
+				}
+			}
+		}
 	}
 
 	/**
@@ -3026,6 +4680,10 @@ public class KB implements Serializable
 		{
 			if (!relnName.isEmpty())
 			{
+				RelationSignature signature = getRelationSignature(relnName);
+				if (signature != null)
+					return signature.getValence();
+
 				// First, see if the valence has already been cached.
 				int[] rv = relationValences.get(relnName);
 				if (rv != null)
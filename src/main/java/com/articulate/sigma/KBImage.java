@@ -0,0 +1,552 @@
+package com.articulate.sigma;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A binary image of a built KB, so that a KB whose constituents did not
+ * change is loaded without parsing them and rebuilding its caches.
+ * The image holds the constituents, the terms, the formulas with their
+ * source file, lines and structural features, the formula index, the
+ * relation caches, the relation valences, the relations with relation
+ * arguments and the errors.  All strings are stored once, in a
+ * dictionary at the head of the image, and referred to by their rank in
+ * it.  The image ends with a CRC32 checksum of its content, which is
+ * verified before the content is decoded, so that a truncated or corrupt
+ * image is rejected rather than loaded.
+ * Images are written and read as streams; images that fit are read
+ * through a memory-mapped buffer.  The format is versioned: an image of
+ * another version is rejected, and the KB should then be built from its
+ * constituents and the image written anew.
+ */
+public class KBImage
+{
+	private static final Logger logger = Logger.getLogger(KBImage.class.getName());
+
+	private static final int MAGIC = 0x534B4249; // SKBI
+
+	private static final int VERSION = 1;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private KBImage()
+	{
+	}
+
+	// W R I T E
+
+	/**
+	 * Write the image of a KB.  The KB is expected to be built, its relation
+	 * caches included, and not to change while it is written.
+	 *
+	 * @param kb   knowledge base
+	 * @param path image file
+	 * @throws IOException if the image cannot be written
+	 */
+	public static void write(KB kb, File path) throws IOException
+	{
+		long start = System.currentTimeMillis();
+
+		Map<Formula, Integer> ordinals = new IdentityHashMap<>();
+		List<Formula> formulas = new ArrayList<>();
+		int mapped = collectFormulas(kb, formulas, ordinals);
+
+		// Dictionary
+		Dictionary dictionary = new Dictionary();
+		dictionary.add(kb.name);
+		dictionary.add(kb.kbDir);
+		dictionary.addAll(kb.constituents);
+		List<String> terms;
+		synchronized (kb.getTerms())
+		{
+			terms = new ArrayList<>(kb.getTerms());
+		}
+		dictionary.addAll(terms);
+		for (Formula f : formulas)
+		{
+			dictionary.add(f.text);
+			dictionary.add(f.sourceFile);
+		}
+		dictionary.addAll(kb.formulas.keySet());
+		List<KB.RelationCache> caches = new ArrayList<>(kb.getRelationCaches());
+		for (KB.RelationCache cache : caches)
+		{
+			dictionary.add(cache.getRelationName());
+			for (Map.Entry<String, Set<String>> entry : cache.entrySet())
+			{
+				dictionary.add(entry.getKey());
+				dictionary.addAll(entry.getValue());
+			}
+		}
+		Map<String, int[]> valences = new HashMap<>(kb.getRelationValences());
+		dictionary.addAll(valences.keySet());
+		Map<String, boolean[]> relnsWithRelnArgs = kb.getRelnsWithRelnArgs();
+		if (relnsWithRelnArgs != null)
+			dictionary.addAll(relnsWithRelnArgs.keySet());
+		dictionary.addAll(kb.errors);
+
+		CRC32 crc = new CRC32();
+		try (FileOutputStream file = new FileOutputStream(path))
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc), BUFFER_SIZE));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			out.writeInt(dictionary.strings.size());
+			for (String s : dictionary.strings)
+			{
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+
+			out.writeInt(dictionary.id(kb.name));
+			out.writeInt(dictionary.id(kb.kbDir));
+			writeStrings(out, dictionary, kb.constituents);
+			writeStrings(out, dictionary, terms);
+
+			out.writeInt(formulas.size());
+			out.writeInt(mapped);
+			for (Formula f : formulas)
+			{
+				out.writeInt(dictionary.id(f.text));
+				out.writeInt(dictionary.id(f.sourceFile));
+				out.writeInt(f.startLine);
+				out.writeInt(f.endLine);
+				out.writeInt(f.getFeatures().mask);
+			}
+
+			out.writeInt(kb.formulas.size());
+			for (Map.Entry<String, List<Formula>> entry : kb.formulas.entrySet())
+			{
+				out.writeInt(dictionary.id(entry.getKey()));
+				out.writeInt(entry.getValue().size());
+				for (Formula f : entry.getValue())
+					out.writeInt(ordinals.get(f));
+			}
+
+			out.writeInt(caches.size());
+			for (KB.RelationCache cache : caches)
+			{
+				out.writeInt(dictionary.id(cache.getRelationName()));
+				out.writeInt(cache.getKeyArgument());
+				out.writeInt(cache.getValueArgument());
+				out.writeBoolean(cache.getIsClosureComputed());
+				out.writeInt(cache.size());
+				for (Map.Entry<String, Set<String>> entry : cache.entrySet())
+				{
+					out.writeInt(dictionary.id(entry.getKey()));
+					writeStrings(out, dictionary, entry.getValue());
+				}
+			}
+
+			out.writeInt(valences.size());
+			for (Map.Entry<String, int[]> entry : valences.entrySet())
+			{
+				out.writeInt(dictionary.id(entry.getKey()));
+				out.writeInt(entry.getValue().length);
+				for (int valence : entry.getValue())
+					out.writeInt(valence);
+			}
+
+			out.writeInt(relnsWithRelnArgs == null ? -1 : relnsWithRelnArgs.size());
+			if (relnsWithRelnArgs != null)
+			{
+				for (Map.Entry<String, boolean[]> entry : relnsWithRelnArgs.entrySet())
+				{
+					out.writeInt(dictionary.id(entry.getKey()));
+					out.writeInt(entry.getValue().length);
+					for (boolean flag : entry.getValue())
+						out.writeBoolean(flag);
+				}
+			}
+
+			writeStrings(out, dictionary, kb.errors);
+			out.flush();
+
+			// The checksum is not part of the checked content.
+			DataOutputStream trailer = new DataOutputStream(file);
+			trailer.writeLong(crc.getValue());
+			trailer.flush();
+		}
+		logger.info("Wrote image of " + kb.name + " with " + formulas.size() + " formulas to " + path + " in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Collect the formulas of a KB: those of formulaMap first, then those
+	 * only in the formula index
+	 *
+	 * @param kb       knowledge base
+	 * @param formulas receives the formulas
+	 * @param ordinals receives the rank of each formula in formulas, by identity
+	 * @return number of formulas of formulaMap
+	 */
+	static int collectFormulas(KB kb, List<Formula> formulas, Map<Formula, Integer> ordinals)
+	{
+		for (Formula f : kb.formulaMap.values())
+		{
+			if (!ordinals.containsKey(f))
+			{
+				ordinals.put(f, formulas.size());
+				formulas.add(f);
+			}
+		}
+		int mapped = formulas.size();
+		for (List<Formula> list : kb.formulas.values())
+		{
+			for (Formula f : list)
+			{
+				if (!ordinals.containsKey(f))
+				{
+					ordinals.put(f, formulas.size());
+					formulas.add(f);
+				}
+			}
+		}
+		return mapped;
+	}
+
+	private static void writeStrings(DataOutputStream out, Dictionary dictionary, Collection<String> strings) throws IOException
+	{
+		out.writeInt(strings.size());
+		for (String s : strings)
+			out.writeInt(dictionary.id(s));
+	}
+
+	/**
+	 * Strings of an image, by rank of first addition
+	 */
+	private static class Dictionary
+	{
+		final Map<String, Integer> ids = new HashMap<>();
+
+		final List<String> strings = new ArrayList<>();
+
+		void add(String s)
+		{
+			if (s != null && !ids.containsKey(s))
+			{
+				ids.put(s, strings.size());
+				strings.add(s);
+			}
+		}
+
+		void addAll(Collection<String> c)
+		{
+			for (String s : c)
+				add(s);
+		}
+
+		int id(String s)
+		{
+			return s == null ? -1 : ids.get(s);
+		}
+	}
+
+	// R E A D
+
+	/**
+	 * Load a KB from its image.  The KB answers the same queries as the KB
+	 * the image was written from; its relation signatures are rebuilt from
+	 * the relation caches.
+	 *
+	 * @param path image file
+	 * @return knowledge base
+	 * @throws IOException if the image cannot be read, is of another
+	 *                     version or is corrupt
+	 */
+	public static KB read(File path) throws IOException
+	{
+		long start = System.currentTimeMillis();
+		long length = path.length();
+		if (length < 16)
+			throw new IOException("Not a KB image: " + path);
+		KB kb;
+		try (FileInputStream file = new FileInputStream(path))
+		{
+			FileChannel channel = file.getChannel();
+			MappedByteBuffer buffer = null;
+			InputStream source;
+			if (length <= Integer.MAX_VALUE)
+			{
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+				source = new ByteBufferInputStream(buffer.duplicate());
+			}
+			else
+				source = new BufferedInputStream(file, BUFFER_SIZE);
+
+			// The content is read up to the checksum.
+			DataInputStream in = new DataInputStream(new BoundedInputStream(source, length - 8));
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a KB image: " + path);
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("KB image version " + version + " is not " + VERSION + ": " + path);
+
+			// The checksum is verified before the content is decoded, so
+			// that no count of a corrupt image is used to allocate.
+			if (checksum(buffer, channel, length - 8) != readChecksum(buffer, channel, length - 8))
+				throw new IOException("Corrupt KB image: " + path);
+			kb = read(in);
+			if (in.read() != -1)
+				throw new IOException("Trailing data in KB image: " + path);
+		}
+		catch (EOFException | IndexOutOfBoundsException | NegativeArraySizeException ex)
+		{
+			throw new IOException("Truncated or corrupt KB image: " + path, ex);
+		}
+		logger.info("Read image of " + kb.name + " with " + kb.formulaMap.size() + " formulas from " + path + " in " + (System.currentTimeMillis() - start) + " ms");
+		return kb;
+	}
+
+	/**
+	 * CRC32 checksum of the content of an image
+	 *
+	 * @param buffer  image mapped in memory, or null if it is read from the channel
+	 * @param channel image file channel
+	 * @param size    size of the content, without the checksum
+	 * @return checksum
+	 * @throws IOException if the image cannot be read
+	 */
+	private static long checksum(ByteBuffer buffer, FileChannel channel, long size) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		if (buffer != null)
+		{
+			ByteBuffer content = buffer.duplicate();
+			content.position(0);
+			content.limit((int) size);
+			crc.update(content);
+			return crc.getValue();
+		}
+		ByteBuffer chunk = ByteBuffer.allocate(BUFFER_SIZE);
+		for (long position = 0; position < size; )
+		{
+			chunk.clear();
+			chunk.limit((int) Math.min(chunk.capacity(), size - position));
+			int count = channel.read(chunk, position);
+			if (count < 0)
+				throw new EOFException();
+			chunk.flip();
+			crc.update(chunk);
+			position += count;
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * The checksum written at the end of an image
+	 *
+	 * @param buffer  image mapped in memory, or null if it is read from the channel
+	 * @param channel image file channel
+	 * @param size    size of the content, without the checksum
+	 * @return checksum
+	 * @throws IOException if the image cannot be read
+	 */
+	private static long readChecksum(ByteBuffer buffer, FileChannel channel, long size) throws IOException
+	{
+		if (buffer != null)
+			return buffer.getLong((int) size);
+		ByteBuffer trailer = ByteBuffer.allocate(8);
+		while (trailer.hasRemaining())
+		{
+			if (channel.read(trailer, size + trailer.position()) < 0)
+				throw new EOFException();
+		}
+		trailer.flip();
+		return trailer.getLong();
+	}
+
+	private static KB read(DataInputStream in) throws IOException
+	{
+		String[] dictionary = new String[in.readInt()];
+		byte[] bytes = new byte[256];
+		for (int i = 0; i < dictionary.length; i++)
+		{
+			int size = in.readInt();
+			if (size > bytes.length)
+				bytes = new byte[Math.max(size, 2 * bytes.length)];
+			in.readFully(bytes, 0, size);
+			dictionary[i] = new String(bytes, 0, size, StandardCharsets.UTF_8);
+		}
+
+		String name = readString(in, dictionary);
+		String kbDir = readString(in, dictionary);
+		KB kb = new KB(name, kbDir);
+		kb.constituents.addAll(readStrings(in, dictionary, new ArrayList<>()));
+		kb.getTerms().addAll(readStrings(in, dictionary, new ArrayList<>()));
+
+		Formula[] formulas = new Formula[in.readInt()];
+		int mapped = in.readInt();
+		for (int i = 0; i < formulas.length; i++)
+		{
+			Formula f = new Formula();
+			f.text = readString(in, dictionary);
+			f.sourceFile = readString(in, dictionary);
+			f.startLine = in.readInt();
+			f.endLine = in.readInt();
+			f.setFeatures(new FormulaFeatures(f.text, in.readInt()));
+			formulas[i] = f;
+			if (i < mapped)
+			{
+				kb.formulaMap.put(f.text.intern(), f);
+				kb.indexFeatures(f);
+			}
+		}
+
+		int keyCount = in.readInt();
+		for (int i = 0; i < keyCount; i++)
+		{
+			String key = readString(in, dictionary);
+			int size = in.readInt();
+			List<Formula> list = new ArrayList<>(size);
+			for (int j = 0; j < size; j++)
+				list.add(formulas[in.readInt()]);
+			kb.formulas.put(key, list);
+		}
+
+		int cacheCount = in.readInt();
+		List<KB.RelationCache> caches = new ArrayList<>(cacheCount);
+		for (int i = 0; i < cacheCount; i++)
+		{
+			KB.RelationCache cache = new KB.RelationCache(readString(in, dictionary), in.readInt(), in.readInt());
+			if (in.readBoolean())
+				cache.setIsClosureComputed();
+			int size = in.readInt();
+			for (int j = 0; j < size; j++)
+			{
+				String key = readString(in, dictionary);
+				cache.put(key, readStrings(in, dictionary, new HashSet<>()));
+			}
+			caches.add(cache);
+		}
+		kb.getRelationCaches().addAll(caches);
+
+		int valenceCount = in.readInt();
+		for (int i = 0; i < valenceCount; i++)
+		{
+			String reln = readString(in, dictionary);
+			int[] valences = new int[in.readInt()];
+			for (int j = 0; j < valences.length; j++)
+				valences[j] = in.readInt();
+			kb.getRelationValences().put(reln, valences);
+		}
+
+		int relnCount = in.readInt();
+		if (relnCount >= 0)
+		{
+			Map<String, boolean[]> relnsWithRelnArgs = new HashMap<>();
+			for (int i = 0; i < relnCount; i++)
+			{
+				String reln = readString(in, dictionary);
+				boolean[] flags = new boolean[in.readInt()];
+				for (int j = 0; j < flags.length; j++)
+					flags[j] = in.readBoolean();
+				relnsWithRelnArgs.put(reln, flags);
+			}
+			kb.setRelnsWithRelnArgs(relnsWithRelnArgs);
+		}
+
+		kb.errors.addAll(readStrings(in, dictionary, new ArrayList<>()));
+
+		// Legacy cache variables, then signatures at the new version
+		kb.initRelationCaches(false);
+		kb.incrementVersion();
+		kb.buildRelationSignatures();
+		return kb;
+	}
+
+	private static String readString(DataInputStream in, String[] dictionary) throws IOException
+	{
+		int id = in.readInt();
+		return id < 0 ? null : dictionary[id];
+	}
+
+	private static <C extends Collection<String>> C readStrings(DataInputStream in, String[] dictionary, C result) throws IOException
+	{
+		int size = in.readInt();
+		for (int i = 0; i < size; i++)
+			result.add(readString(in, dictionary));
+		return result;
+	}
+
+	/**
+	 * An input stream over a buffer, such as a memory-mapped file
+	 */
+	private static class ByteBufferInputStream extends InputStream
+	{
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		@Override public int read()
+		{
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override public int read(byte[] bytes, int offset, int length)
+		{
+			if (length == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			int count = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, count);
+			return count;
+		}
+
+		@Override public int available()
+		{
+			return buffer.remaining();
+		}
+	}
+
+	/**
+	 * An input stream that ends after a given number of bytes of another,
+	 * which is left open
+	 */
+	private static class BoundedInputStream extends FilterInputStream
+	{
+		private long remaining;
+
+		BoundedInputStream(InputStream in, long limit)
+		{
+			super(in);
+			this.remaining = limit;
+		}
+
+		@Override public int read() throws IOException
+		{
+			if (remaining <= 0)
+				return -1;
+			int b = in.read();
+			if (b >= 0)
+				remaining--;
+			return b;
+		}
+
+		@Override public int read(byte[] bytes, int offset, int length) throws IOException
+		{
+			if (remaining <= 0)
+				return -1;
+			int count = in.read(bytes, offset, (int) Math.min(length, remaining));
+			if (count > 0)
+				remaining -= count;
+			return count;
+		}
+
+		@Override public void close()
+		{
+		}
+	}
+}
@@ -0,0 +1,347 @@
+package com.articulate.sigma;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Loads a KB in stages, so that it can be queried before all its
+ * constituents are loaded.  The core constituents are loaded first and
+ * their relation caches built, which publishes a snapshot of the KB;
+ * the other constituents are then loaded, in the background, and the
+ * caches built anew.  Each load goes through the stages parsed (the files
+ * are parsed, in parallel), indexed (their formulas are in the KB) and
+ * caches built, which listeners are told of and futures complete at.
+ * <p>
+ * Until the last stage is reached, the KB is being changed: it is to be
+ * read through KB.getSnapshot(), once the core caches are built.  The
+ * snapshots published meanwhile hold the formulas loaded so far, with the
+ * caches of the core constituents.
+ */
+public class KBLoader
+{
+	private static final Logger logger = Logger.getLogger(KBLoader.class.getName());
+
+	/**
+	 * Stages of a load, in order
+	 */
+	public enum Stage
+	{
+		/**
+		 * The core constituents are parsed
+		 */
+		CORE_PARSED,
+		/**
+		 * The formulas of the core constituents are in the KB
+		 */
+		CORE_INDEXED,
+		/**
+		 * The relation caches of the core constituents are built and a
+		 * snapshot is published: the KB can be queried
+		 */
+		CORE_CACHES_BUILT,
+		/**
+		 * All constituents are parsed
+		 */
+		PARSED,
+		/**
+		 * The formulas of all constituents are in the KB
+		 */
+		INDEXED,
+		/**
+		 * The relation caches of all constituents are built: the KB is loaded
+		 */
+		CACHES_BUILT
+	}
+
+	/**
+	 * Listener to the stages of a load
+	 */
+	public interface Listener
+	{
+		/**
+		 * A stage was reached.  This is called from the loading thread, or
+		 * from addListener() for the stages reached before.
+		 *
+		 * @param loader loader
+		 * @param stage  stage reached
+		 */
+		void stageReached(KBLoader loader, Stage stage);
+	}
+
+	private final KB kb;
+
+	private final List<String> coreFiles;
+
+	private final List<String> otherFiles;
+
+	private final int parallelism;
+
+	private final List<Listener> listeners = new ArrayList<>();
+
+	private final Map<Stage, CompletableFuture<KB>> futures = new EnumMap<>(Stage.class);
+
+	private volatile Stage stage;
+
+	private boolean started;
+
+	// C O N S T R U C T O R
+
+	/**
+	 * Make a loader
+	 *
+	 * @param kb          knowledge base to load the constituents into
+	 * @param coreFiles   full paths of the constituent files loaded first
+	 * @param otherFiles  full paths of the constituent files loaded in the background
+	 * @param parallelism number of threads parsing files
+	 */
+	public KBLoader(KB kb, List<String> coreFiles, List<String> otherFiles, int parallelism)
+	{
+		this.kb = kb;
+		this.coreFiles = new ArrayList<>(coreFiles);
+		this.otherFiles = new ArrayList<>(otherFiles);
+		this.parallelism = parallelism;
+		for (Stage s : Stage.values())
+			futures.put(s, new CompletableFuture<>());
+	}
+
+	/**
+	 * Make a loader that parses files on as many threads as there are processors
+	 *
+	 * @param kb         knowledge base to load the constituents into
+	 * @param coreFiles  full paths of the constituent files loaded first
+	 * @param otherFiles full paths of the constituent files loaded in the background
+	 */
+	public KBLoader(KB kb, List<String> coreFiles, List<String> otherFiles)
+	{
+		this(kb, coreFiles, otherFiles, Runtime.getRuntime().availableProcessors());
+	}
+
+	// S T A G E S
+
+	/**
+	 * The knowledge base being loaded
+	 *
+	 * @return knowledge base
+	 */
+	public KB getKB()
+	{
+		return kb;
+	}
+
+	/**
+	 * The last stage reached
+	 *
+	 * @return stage, or null if none yet
+	 */
+	public Stage getStage()
+	{
+		return stage;
+	}
+
+	/**
+	 * Future that completes with the KB when a stage is reached, or
+	 * exceptionally if the load fails before
+	 *
+	 * @param stage stage
+	 * @return future
+	 */
+	public CompletableFuture<KB> whenReached(Stage stage)
+	{
+		return futures.get(stage);
+	}
+
+	/**
+	 * Add a listener to the stages.  It is told at once of the stages
+	 * already reached, and of each stage reached from then on, once.
+	 *
+	 * @param listener listener
+	 */
+	public void addListener(Listener listener)
+	{
+		Stage reached;
+		synchronized (listeners)
+		{
+			listeners.add(listener);
+			reached = stage;
+		}
+		if (reached != null)
+		{
+			for (Stage s : Stage.values())
+			{
+				if (s.compareTo(reached) > 0)
+					break;
+				listener.stageReached(this, s);
+			}
+		}
+	}
+
+	/**
+	 * Reach a stage: tell the listeners and complete the future
+	 *
+	 * @param reached stage reached
+	 */
+	private void reach(Stage reached)
+	{
+		List<Listener> toTell;
+		synchronized (listeners)
+		{
+			stage = reached;
+			toTell = new ArrayList<>(listeners);
+		}
+		logger.info("KB " + kb.name + " reached stage " + reached);
+		for (Listener listener : toTell)
+		{
+			try
+			{
+				listener.stageReached(this, reached);
+			}
+			catch (Exception ex)
+			{
+				logger.warning(Arrays.toString(ex.getStackTrace()));
+				ex.printStackTrace();
+			}
+		}
+		futures.get(reached).complete(kb);
+	}
+
+	// L O A D
+
+	/**
+	 * Start loading on a daemon thread of its own
+	 *
+	 * @return this loader
+	 * @throws IllegalStateException if the load was started
+	 */
+	public KBLoader start()
+	{
+		return start(runnable -> {
+			Thread thread = new Thread(runnable, "kb-loader-" + kb.name);
+			thread.setDaemon(true);
+			thread.start();
+		});
+	}
+
+	/**
+	 * Start loading on an executor
+	 *
+	 * @param executor executor that runs the load
+	 * @return this loader
+	 * @throws IllegalStateException if the load was started
+	 */
+	public synchronized KBLoader start(Executor executor)
+	{
+		if (started)
+			throw new IllegalStateException("Loading of KB " + kb.name + " was started");
+		started = true;
+		executor.execute(this::load);
+		return this;
+	}
+
+	/**
+	 * Load the core constituents, then the others.  Files are parsed
+	 * through the parse cache of the KB, or through a cache of the load's
+	 * own if the KB has none.  If the load fails, with an Error too, the
+	 * futures of the stages not reached complete exceptionally.
+	 */
+	private void load()
+	{
+		long start = System.currentTimeMillis();
+		ParseCache previous = kb.getParseCache();
+		try
+		{
+			ParseCache cache = previous != null ? previous : new ParseCache();
+			kb.setParseCache(cache);
+			load(coreFiles, cache, Stage.CORE_PARSED, Stage.CORE_INDEXED, Stage.CORE_CACHES_BUILT, otherFiles.isEmpty());
+			logger.info("KB " + kb.name + " can be queried after " + (System.currentTimeMillis() - start) + " ms");
+			if (otherFiles.isEmpty())
+			{
+				reach(Stage.PARSED);
+				reach(Stage.INDEXED);
+				reach(Stage.CACHES_BUILT);
+			}
+			else
+				load(otherFiles, cache, Stage.PARSED, Stage.INDEXED, Stage.CACHES_BUILT, true);
+			logger.info("KB " + kb.name + " loaded in " + (System.currentTimeMillis() - start) + " ms");
+		}
+		catch (Throwable ex)
+		{
+			logger.warning(Arrays.toString(ex.getStackTrace()));
+			ex.printStackTrace();
+			for (CompletableFuture<KB> future : futures.values())
+				future.completeExceptionally(ex);
+			if (ex instanceof Error)
+				throw (Error) ex;
+		}
+		finally
+		{
+			kb.setParseCache(previous);
+		}
+	}
+
+	/**
+	 * Load constituents through the stages of parsing, indexing and
+	 * building caches.  A snapshot is published before the caches built
+	 * stage is reached, as the KB publishes none until one is asked for.
+	 * The arity of the formulas is checked by the last load only, against
+	 * the valences of all the constituents: a core formula may use a
+	 * relation whose valence is declared by another constituent.
+	 *
+	 * @param files       full paths of the constituent files
+	 * @param cache       parse cache of the KB
+	 * @param parsed      stage reached when the files are parsed
+	 * @param indexed     stage reached when their formulas are in the KB
+	 * @param cachesBuilt stage reached when the caches are built
+	 * @param last        whether no constituents are loaded after these
+	 */
+	private void load(List<String> files, ParseCache cache, Stage parsed, Stage indexed, Stage cachesBuilt, boolean last) throws Exception
+	{
+		parse(files, cache);
+		reach(parsed);
+		for (String file : files)
+			kb.addConstituent(file, false, false);
+		reach(indexed);
+		kb.buildRelationCaches();
+		if (last)
+			kb.checkArity();
+		kb.publishSnapshot();
+		reach(cachesBuilt);
+	}
+
+	/**
+	 * Parse files into the parse cache, in parallel.  A file that cannot
+	 * be parsed is left to addConstituent(), which records the error.
+	 *
+	 * @param files full paths of the constituent files
+	 * @param cache parse cache
+	 */
+	private void parse(List<String> files, ParseCache cache) throws Exception
+	{
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (String file : files)
+		{
+			String canonicalPath = new File(file).getCanonicalPath();
+			tasks.add(() -> {
+				try
+				{
+					cache.prefetch(canonicalPath);
+				}
+				catch (Exception ex)
+				{
+					logger.warning("Cannot parse " + canonicalPath + ": " + ex.getMessage());
+				}
+				return null;
+			});
+		}
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(parallelism, tasks.size())));
+		try
+		{
+			pool.invokeAll(tasks);
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+}
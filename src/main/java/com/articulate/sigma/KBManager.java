@@ -13,8 +13,11 @@ in Working Notes of the IJCAI-2003 Workshop on Ontology and Distributed Systems,
 August 9, Acapulco, Mexico. See also http://sigmakee.sourceforge.net
 */
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -22,35 +25,75 @@ import java.util.logging.Logger;
 /**
  * This is a class that manages a group of knowledge bases.  It should only
  * have one instance, contained in its own static member variable.
+ * It may be used from several threads: KBs are registered in a concurrent
+ * map, and are built in the background by loadKB(), once per name however
+ * many threads ask for them, or in stages by loadKBInStages().  The
+ * constituents the KBs share are parsed once, see getParseCache().
  */
 public class KBManager
 {
-	private static KBManager manager = new KBManager();
+	private static final KBManager manager = new KBManager();
 
-	private static Logger logger;
+	private static final Logger logger = Logger.getAnonymousLogger();
 
-	@SuppressWarnings("CanBeFinal") public Map<String, String> preferences = new HashMap<>();
+	static
+	{
+		logger.addHandler(new ConsoleHandler());
+		logger.setLevel(Level.FINEST);
+	}
 
-	public final Map<String, KB> kbs = new HashMap<>();
+	@SuppressWarnings("CanBeFinal") public Map<String, String> preferences = Collections.synchronizedMap(new HashMap<>());
 
-	private String error = "";
+	public final Map<String, KB> kbs = new ConcurrentHashMap<>();
 
-	public KBManager()
+	/**
+	 * KB builds, done or in progress, by KB name
+	 */
+	private final ConcurrentMap<String, CompletableFuture<KB>> builds = new ConcurrentHashMap<>();
+
+	/**
+	 * Loaders of the KBs being loaded in stages, by KB name
+	 */
+	private final ConcurrentMap<String, KBLoader> stagedLoads = new ConcurrentHashMap<>();
+
+	/**
+	 * Why the last build of a KB failed, by KB name
+	 */
+	private final Map<String, String> failures = new ConcurrentHashMap<>();
+
+	/**
+	 * Threads that build KBs
+	 */
+	private final ExecutorService loader = Executors.newCachedThreadPool(new ThreadFactory()
 	{
-		if (logger == null)
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override public Thread newThread(Runnable runnable)
 		{
-			logger = Logger.getAnonymousLogger();
-			logger.addHandler(new ConsoleHandler());
-			logger.setLevel(Level.FINEST);
+			Thread thread = new Thread(runnable, "kb-loader-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
 		}
+	});
+
+	/**
+	 * Parsed constituents, shared by the KBs of this manager
+	 */
+	private final ParseCache parseCache = new ParseCache();
+
+	private volatile String error = "";
+
+	public KBManager()
+	{
 	}
 
 	/**
 	 * Set an error string for file loading.
 	 *
 	 * @param er error string
+	 * @deprecated errors are reported per KB, see getErrors()
 	 */
-	public void setError(String er)
+	@Deprecated public void setError(String er)
 	{
 		error = er;
 	}
@@ -59,8 +102,9 @@ public class KBManager
 	 * Get the error string for file loading.
 	 *
 	 * @return error string
+	 * @deprecated errors are reported per KB, see getErrors()
 	 */
-	public String getError()
+	@Deprecated public String getError()
 	{
 		return error;
 	}
@@ -100,21 +144,272 @@ public class KBManager
 	public void addKB(String name, boolean isVisible)
 	{
 		KB kb = new KB(name, preferences.get("kbDir"), isVisible);
+		kb.setParseCache(parseCache);
 		kbs.put(name.intern(), kb);
+		builds.put(name.intern(), CompletableFuture.completedFuture(kb));
 		logger.info("Adding KB: " + name);
 	}
 
 	/**
-	 * Get the KB that has the given name.
+	 * Load a KB in the background, from constituent files.  The files are
+	 * added to a new KB in order, without building the relation caches,
+	 * which are built once all are added; formulas with a bad arity are
+	 * then rejected.  The KB is registered when it is built, unless it was
+	 * removed meanwhile.  If a KB of that name is registered, or is being
+	 * loaded, its build is returned and the files are ignored.  If the
+	 * build fails, for instance because a file is missing, the build
+	 * completes exceptionally, the failure is reported by getErrors() and a
+	 * later call loads the KB anew.
 	 *
-	 * @param name name
+	 * @param name  name
+	 * @param files full paths of the constituent files
+	 * @return the build of the KB
+	 */
+	public CompletableFuture<KB> loadKB(String name, List<String> files)
+	{
+		String key = name.intern();
+		CompletableFuture<KB> created = new CompletableFuture<>();
+		CompletableFuture<KB> build = builds.computeIfAbsent(key, k -> {
+			KB registered = kbs.get(k);
+			return registered != null ? CompletableFuture.completedFuture(registered) : created;
+		});
+		if (build == created)
+		{
+			failures.remove(key);
+			List<String> constituents = new ArrayList<>(files);
+			try
+			{
+				CompletableFuture.supplyAsync(() -> buildKB(key, constituents), loader).whenComplete((kb, ex) -> complete(key, created, kb, ex));
+			}
+			catch (Exception ex)
+			{
+				complete(key, created, null, ex);
+			}
+		}
+		return build;
+	}
+
+	/**
+	 * Load a KB in stages in the background, from core constituent files
+	 * then other files, so that it can be queried before all are loaded:
+	 * see KBLoader.  The KB is registered, and getKB() returns it, once
+	 * all constituents are loaded, unless it was removed meanwhile; before,
+	 * getSnapshot() returns its snapshot once the caches of the core
+	 * constituents are built.  If a KB of that name is registered, or is
+	 * being loaded, nothing is done.  If the load fails, the failure is
+	 * reported by getErrors().
+	 *
+	 * @param name       name
+	 * @param coreFiles  full paths of the constituent files loaded first
+	 * @param otherFiles full paths of the constituent files loaded in the background
+	 * @return the loader, to follow the stages of the load, or null if a
+	 * KB of that name is registered or being loaded
+	 */
+	public KBLoader loadKBInStages(String name, List<String> coreFiles, List<String> otherFiles)
+	{
+		String key = name.intern();
+		CompletableFuture<KB> created = new CompletableFuture<>();
+		CompletableFuture<KB> build = builds.computeIfAbsent(key, k -> {
+			KB registered = kbs.get(k);
+			return registered != null ? CompletableFuture.completedFuture(registered) : created;
+		});
+		if (build != created)
+			return null;
+		failures.remove(key);
+		KB kb = new KB(key, getPref("kbDir"), true);
+		kb.setParseCache(parseCache);
+		KBLoader stagedLoader = new KBLoader(kb, coreFiles, otherFiles);
+		stagedLoads.put(key, stagedLoader);
+		created.whenComplete((built, ex) -> stagedLoads.remove(key, stagedLoader));
+		stagedLoader.whenReached(KBLoader.Stage.CACHES_BUILT).whenComplete((built, ex) -> complete(key, created, built, ex));
+		try
+		{
+			stagedLoader.start(loader);
+		}
+		catch (Exception ex)
+		{
+			complete(key, created, null, ex);
+		}
+		return stagedLoader;
+	}
+
+	/**
+	 * Complete the build of a KB: register the KB if the build is still
+	 * registered, that is if the KB was not removed meanwhile, or record
+	 * that the build failed
+	 *
+	 * @param name  name
+	 * @param build build
+	 * @param kb    knowledge base built, null if the build failed
+	 * @param ex    failure, null if the build succeeded
+	 */
+	private void complete(String name, CompletableFuture<KB> build, KB kb, Throwable ex)
+	{
+		if (ex != null)
+		{
+			buildFailed(name, build, ex);
+			build.completeExceptionally(getCause(ex));
+			return;
+		}
+		// Atomic with respect to the removal of the build by removeKB()
+		builds.computeIfPresent(name, (k, registered) -> {
+			if (registered == build)
+				kbs.put(k, kb);
+			return registered;
+		});
+		build.complete(kb);
+	}
+
+	/**
+	 * Record that the build of a KB failed, so that a later call loads it anew
+	 *
+	 * @param name  name
+	 * @param build failed build
+	 * @param ex    failure
+	 */
+	private void buildFailed(String name, CompletableFuture<KB> build, Throwable ex)
+	{
+		Throwable cause = getCause(ex);
+		logger.severe("KB " + name + " failed to load: " + cause);
+		failures.put(name, cause.toString());
+		builds.remove(name, build);
+	}
+
+	private static Throwable getCause(Throwable ex)
+	{
+		return ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+	}
+
+	/**
+	 * Build a KB from constituent files
+	 *
+	 * @param name  name
+	 * @param files full paths of the constituent files
 	 * @return knowledge base
+	 * @throws CompletionException if a file is missing or cannot be read
+	 */
+	private KB buildKB(String name, List<String> files)
+	{
+		logger.info("Loading KB " + name + " from " + files.size() + " files");
+		long start = System.currentTimeMillis();
+		for (String file : files)
+		{
+			if (!new File(file).isFile() || !new File(file).canRead())
+				throw new CompletionException(new FileNotFoundException("Cannot read constituent " + file + " of KB " + name));
+		}
+		KB kb = new KB(name, getPref("kbDir"), true);
+		kb.setParseCache(parseCache);
+		for (String file : files)
+			kb.addConstituent(file, false, false);
+		kb.buildRelationCaches();
+		kb.checkArity();
+		logger.info("Loaded KB " + name + " in " + (System.currentTimeMillis() - start) + " ms");
+		return kb;
+	}
+
+	/**
+	 * Get the KB that has the given name.  If the KB is being loaded,
+	 * wait until it is built.
+	 *
+	 * @param name name
+	 * @return knowledge base, or null if there is none or its build failed
 	 */
 	public KB getKB(String name)
 	{
-		if (!kbs.containsKey(name))
+		CompletableFuture<KB> build = builds.get(name);
+		if (build != null)
+		{
+			try
+			{
+				return build.join();
+			}
+			catch (CompletionException | CancellationException ex)
+			{
+				logger.warning("KB " + name + " failed to load: " + ex.getMessage());
+				return null;
+			}
+		}
+		KB kb = kbs.get(name);
+		if (kb == null)
 			logger.warning("KB " + name + " not found.");
-		return kbs.get(name.intern());
+		return kb;
+	}
+
+	/**
+	 * Get the snapshot of the KB that has the given name.  If the KB is
+	 * being loaded in stages, wait until the caches of its core
+	 * constituents are built, and return the snapshot of what is loaded so
+	 * far; if it is being loaded otherwise, wait until it is built.
+	 *
+	 * @param name name
+	 * @return snapshot, or null if there is no KB or its build failed
+	 */
+	public KBSnapshot getSnapshot(String name)
+	{
+		KBLoader stagedLoader = stagedLoads.get(name);
+		if (stagedLoader != null)
+		{
+			try
+			{
+				return stagedLoader.whenReached(KBLoader.Stage.CORE_CACHES_BUILT).join().getSnapshot();
+			}
+			catch (CompletionException | CancellationException ex)
+			{
+				logger.warning("KB " + name + " failed to load: " + ex.getMessage());
+				return null;
+			}
+		}
+		KB kb = getKB(name);
+		return kb != null ? kb.getSnapshot() : null;
+	}
+
+	/**
+	 * Remove a KB, so that it may be loaded anew
+	 *
+	 * @param name name
+	 * @return the KB removed, or null if there was none or it was being loaded
+	 */
+	public KB removeKB(String name)
+	{
+		builds.remove(name);
+		stagedLoads.remove(name);
+		failures.remove(name);
+		return kbs.remove(name);
+	}
+
+	/**
+	 * The errors found while loading a KB
+	 *
+	 * @param name name
+	 * @return errors: why its build failed, those of the KB if it is built,
+	 * none if it is being loaded or there is no such KB
+	 */
+	public Set<String> getErrors(String name)
+	{
+		String failure = failures.get(name);
+		if (failure != null)
+			return Collections.singleton(failure);
+		CompletableFuture<KB> build = builds.get(name);
+		if (build != null && !build.isDone())
+			return Collections.emptySet();
+		KB kb = kbs.get(name);
+		if (kb == null)
+			return Collections.emptySet();
+		synchronized (kb)
+		{
+			return new TreeSet<>(kb.errors);
+		}
+	}
+
+	/**
+	 * The cache of parsed constituents shared by the KBs of this manager,
+	 * so that constituents several KBs load are parsed once
+	 *
+	 * @return cache
+	 */
+	public ParseCache getParseCache()
+	{
+		return parseCache;
 	}
 
 	/**
@@ -124,8 +419,6 @@ public class KBManager
 	 */
 	public static KBManager getMgr()
 	{
-		if (manager == null)
-			manager = new KBManager();
 		return manager;
 	}
 
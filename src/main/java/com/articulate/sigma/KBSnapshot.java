@@ -0,0 +1,592 @@
+package com.articulate.sigma;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * An immutable view of a KB at one version: its formulas, formula index,
+ * terms, relation caches and relation signatures.  Readers take the last
+ * snapshot the KB published with KB.getSnapshot() and read it without
+ * locking, while the KB is being changed.  The KB publishes a new snapshot
+ * when a change is complete; the new snapshot shares with the previous one
+ * the parts the change did not touch.
+ * The maps of a snapshot are split into shards by key hash: publishing
+ * copies the shards that hold a changed key, and makes new values for the
+ * changed keys only.  Formula objects are shared with the KB.
+ * A KB that never changes, such as a MappedKB, publishes a snapshot of
+ * its own that reads the KB, rather than copies of its data.
+ */
+public class KBSnapshot
+{
+	/**
+	 * Number of shards of a map
+	 */
+	private static final int SHARDS = 256;
+
+	/**
+	 * A map split into shards by key hash.  Shards are not changed once
+	 * made: an update makes a new map that shares the untouched shards.
+	 *
+	 * @param <V> type of values
+	 */
+	private static final class Shards<V>
+	{
+		private final Map<String, V>[] maps;
+
+		private final int size;
+
+		private Shards(Map<String, V>[] maps, int size)
+		{
+			this.maps = maps;
+			this.size = size;
+		}
+
+		private static int shard(String key)
+		{
+			int h = key.hashCode();
+			return (h ^ (h >>> 16)) & (SHARDS - 1);
+		}
+
+		V get(String key)
+		{
+			return maps[shard(key)].get(key);
+		}
+
+		int size()
+		{
+			return size;
+		}
+
+		/**
+		 * Make the map of the keys of a source, with frozen values
+		 *
+		 * @param keys   keys
+		 * @param freeze frozen value of a key, or null if the key is to be left out
+		 * @param <V>    type of values
+		 * @return map
+		 */
+		@SuppressWarnings({"unchecked", "rawtypes"}) static <V> Shards<V> build(Collection<String> keys, Function<String, V> freeze)
+		{
+			Map<String, V>[] maps = new Map[SHARDS];
+			for (int i = 0; i < SHARDS; i++)
+				maps[i] = new HashMap<>();
+			int size = 0;
+			for (String key : keys)
+			{
+				V value = freeze.apply(key);
+				if (value != null && maps[shard(key)].put(key, value) == null)
+					size++;
+			}
+			return new Shards<>(maps, size);
+		}
+
+		/**
+		 * Make the map with the values of changed keys made anew
+		 *
+		 * @param keys   changed keys
+		 * @param freeze frozen value of a key, or null if the key is to be removed
+		 * @return map
+		 */
+		Shards<V> update(Collection<String> keys, Function<String, V> freeze)
+		{
+			if (keys.isEmpty())
+				return this;
+			Map<String, V>[] newMaps = maps.clone();
+			boolean[] copied = new boolean[SHARDS];
+			int newSize = size;
+			for (String key : keys)
+			{
+				int i = shard(key);
+				if (!copied[i])
+				{
+					newMaps[i] = new HashMap<>(maps[i]);
+					copied[i] = true;
+				}
+				V value = freeze.apply(key);
+				if (value == null)
+				{
+					if (newMaps[i].remove(key) != null)
+						newSize--;
+				}
+				else if (newMaps[i].put(key, value) == null)
+					newSize++;
+			}
+			return new Shards<>(newMaps, newSize);
+		}
+	}
+
+	/**
+	 * What changed in a KB since it last published a snapshot.  The KB
+	 * records the keys it changes as it changes them; the snapshot reads
+	 * their current values when it is published.
+	 */
+	static final class Changes
+	{
+		// Everything, as before the first snapshot
+		private boolean all = true;
+
+		private final Set<String> keys = new HashSet<>();
+
+		private final Set<String> texts = new HashSet<>();
+
+		private final Set<String> terms = new HashSet<>();
+
+		// Changed keys by cache, all keys if null
+		private final Map<String, Set<String>> caches = new HashMap<>();
+
+		private boolean allCaches = false;
+
+		/**
+		 * A formula index key changed
+		 *
+		 * @param key formula index key
+		 */
+		void key(String key)
+		{
+			if (!all)
+				keys.add(key);
+		}
+
+		/**
+		 * The formula of a text changed
+		 *
+		 * @param text formula text
+		 */
+		void text(String text)
+		{
+			if (!all)
+				texts.add(text);
+		}
+
+		/**
+		 * Terms may have been added or removed
+		 *
+		 * @param changed terms
+		 */
+		void terms(Collection<String> changed)
+		{
+			if (!all)
+				terms.addAll(changed);
+		}
+
+		/**
+		 * A key of a relation cache changed
+		 *
+		 * @param cache relation cache
+		 * @param key   cache key
+		 */
+		void cacheKey(KB.RelationCache cache, String key)
+		{
+			if (all || allCaches)
+				return;
+			String id = cacheId(cache.getRelationName(), cache.getKeyArgument(), cache.getValueArgument());
+			if (caches.containsKey(id))
+			{
+				Set<String> cacheKeys = caches.get(id);
+				if (cacheKeys != null)
+					cacheKeys.add(key);
+			}
+			else
+				caches.computeIfAbsent(id, k -> new HashSet<>()).add(key);
+		}
+
+		/**
+		 * Any key of a relation cache may have changed
+		 *
+		 * @param cache relation cache
+		 */
+		void cache(KB.RelationCache cache)
+		{
+			if (cache != null && !all && !allCaches)
+				caches.put(cacheId(cache.getRelationName(), cache.getKeyArgument(), cache.getValueArgument()), null);
+		}
+
+		/**
+		 * Anything may have changed
+		 */
+		void all()
+		{
+			all = true;
+		}
+
+		/**
+		 * Any relation cache may have changed, or been replaced
+		 */
+		void allCaches()
+		{
+			allCaches = true;
+			caches.clear();
+		}
+
+		/**
+		 * Whether nothing changed
+		 *
+		 * @return whether nothing changed
+		 */
+		boolean isEmpty()
+		{
+			return !all && !allCaches && keys.isEmpty() && texts.isEmpty() && terms.isEmpty() && caches.isEmpty();
+		}
+
+		void clear()
+		{
+			all = false;
+			allCaches = false;
+			keys.clear();
+			texts.clear();
+			terms.clear();
+			caches.clear();
+		}
+	}
+
+	private final String name;
+
+	private final long version;
+
+	// Formula index, from keys to formulas
+	private final Shards<List<Formula>> index;
+
+	// Formulas by text
+	private final Shards<Formula> formulas;
+
+	// Sorted terms
+	private final String[] terms;
+
+	// Relation caches by id
+	private final Map<String, Shards<Set<String>>> caches;
+
+	// Relation signatures, or null if not built for this version
+	private final Map<String, RelationSignature> signatures;
+
+	private KBSnapshot(String name, long version, Shards<List<Formula>> index, Shards<Formula> formulas, String[] terms, Map<String, Shards<Set<String>>> caches,
+			Map<String, RelationSignature> signatures)
+	{
+		this.name = name;
+		this.version = version;
+		this.index = index;
+		this.formulas = formulas;
+		this.terms = terms;
+		this.caches = caches;
+		this.signatures = signatures;
+	}
+
+	/**
+	 * Constructor for the snapshots of KBs that never change, which read
+	 * the KB rather than the data of the snapshot
+	 *
+	 * @param name    name of the KB
+	 * @param version version of the KB
+	 */
+	KBSnapshot(String name, long version)
+	{
+		this(name, version, null, null, null, null, null);
+	}
+
+	// P U B L I S H
+
+	/**
+	 * Make the snapshot of the current state of a KB, from the previous
+	 * snapshot and what changed since.  The KB must not be changed
+	 * meanwhile.  The changes are cleared.
+	 *
+	 * @param previous   previous snapshot, or null if none
+	 * @param kb         knowledge base
+	 * @param changes    changes since the previous snapshot
+	 * @param signatures relation signatures, or null if not built for the current version
+	 * @return snapshot
+	 */
+	static KBSnapshot publish(KBSnapshot previous, KB kb, Changes changes, Map<String, RelationSignature> signatures)
+	{
+		boolean all = previous == null || changes.all;
+
+		// Formulas
+		Shards<List<Formula>> index = all || changes.keys.size() > kb.formulas.size() / 4 ?
+				Shards.build(kb.formulas.keySet(), k -> freeze(kb.formulas.get(k))) :
+				previous.index.update(changes.keys, k -> freeze(kb.formulas.get(k)));
+		Shards<Formula> formulas = all || changes.texts.size() > kb.formulaMap.size() / 4 ?
+				Shards.build(kb.formulaMap.keySet(), kb.formulaMap::get) :
+				previous.formulas.update(changes.texts, kb.formulaMap::get);
+
+		// Terms
+		String[] terms;
+		SortedSet<String> liveTerms = kb.getTerms();
+		synchronized (liveTerms)
+		{
+			if (all || changes.terms.size() > liveTerms.size() / 4)
+				terms = liveTerms.toArray(new String[0]);
+			else if (changes.terms.isEmpty())
+				terms = previous.terms;
+			else
+				terms = merge(previous.terms, changes.terms, liveTerms);
+		}
+
+		// Relation caches
+		Map<String, Shards<Set<String>>> caches = new HashMap<>();
+		for (KB.RelationCache cache : kb.getRelationCaches())
+		{
+			String id = cacheId(cache.getRelationName(), cache.getKeyArgument(), cache.getValueArgument());
+			Shards<Set<String>> frozen = all || changes.allCaches ? null : previous.caches.get(id);
+			if (frozen != null && changes.caches.containsKey(id))
+			{
+				Set<String> keys = changes.caches.get(id);
+				frozen = keys == null || keys.size() > cache.size() / 4 ? null : frozen.update(keys, k -> freeze(cache.get(k)));
+			}
+			if (frozen == null)
+				frozen = Shards.build(cache.keySet(), k -> freeze(cache.get(k)));
+			caches.put(id, frozen);
+		}
+
+		changes.clear();
+		return new KBSnapshot(kb.name, kb.getVersion(), index, formulas, terms, caches, signatures);
+	}
+
+	private static List<Formula> freeze(List<Formula> list)
+	{
+		return list == null || list.isEmpty() ? null : Collections.unmodifiableList(new ArrayList<>(list));
+	}
+
+	private static Set<String> freeze(Set<String> set)
+	{
+		return set == null || set.isEmpty() ? null : Collections.unmodifiableSet(new HashSet<>(set));
+	}
+
+	/**
+	 * Sorted terms, with changed terms added or removed as they are in the
+	 * live terms
+	 */
+	private static String[] merge(String[] previous, Set<String> changed, SortedSet<String> live)
+	{
+		Set<String> removed = new HashSet<>();
+		List<String> added = new ArrayList<>();
+		for (String term : changed)
+		{
+			boolean wasIn = Arrays.binarySearch(previous, term) >= 0;
+			boolean isIn = live.contains(term);
+			if (wasIn && !isIn)
+				removed.add(term);
+			else if (isIn && !wasIn)
+				added.add(term);
+		}
+		if (removed.isEmpty() && added.isEmpty())
+			return previous;
+		Collections.sort(added);
+		String[] result = new String[previous.length - removed.size() + added.size()];
+		int i = 0, j = 0, k = 0;
+		while (i < previous.length || j < added.size())
+		{
+			if (i < previous.length && removed.contains(previous[i]))
+				i++;
+			else if (j == added.size() || (i < previous.length && previous[i].compareTo(added.get(j)) < 0))
+				result[k++] = previous[i++];
+			else
+				result[k++] = added.get(j++);
+		}
+		return result;
+	}
+
+	static String cacheId(String relation, int keyArg, int valueArg)
+	{
+		return relation + ':' + keyArg + ':' + valueArg;
+	}
+
+	// R E A D
+
+	/**
+	 * Name of the KB
+	 *
+	 * @return name
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Version of the KB this is a snapshot of
+	 *
+	 * @return version
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * Returns the formulas that match the request, as KB.ask() does
+	 *
+	 * @param kind   May be one of "ant", "cons", "stmt", or "arg"
+	 * @param argnum The argument position of the term being asked
+	 *               for.  This parameter is ignored if the kind
+	 *               is "ant", "cons" or "stmt".
+	 * @param term   The term that appears in the statements being
+	 *               requested.
+	 * @return an unmodifiable List of Formula(s), which will be empty if no match found.
+	 */
+	public List<Formula> ask(String kind, int argnum, String term)
+	{
+		if (term == null || term.isEmpty())
+			throw new IllegalArgumentException("Error in KBSnapshot.ask(\"" + kind + "\", " + argnum + ", \"" + term + "\"): " + "search term is null, or an empty string");
+		if (term.length() > 1 && term.charAt(0) == '"' && term.charAt(term.length() - 1) == '"')
+			throw new IllegalArgumentException("Error in KBSnapshot.ask(): Strings are not indexed.  No results for " + term);
+		List<Formula> result = index.get(kind.equals("arg") ? kind + "-" + argnum + "-" + term : kind + "-" + term);
+		return result != null ? result : Collections.emptyList();
+	}
+
+	/**
+	 * Returns the formulas in which the two terms provided appear in the
+	 * indicated argument positions, as KB.askWithRestriction() does
+	 *
+	 * @param argnum1 number of args 1
+	 * @param term1   term 1
+	 * @param argnum2 number of args 2
+	 * @param term2   term 2
+	 * @return List of formulas, which will be empty if no match found.
+	 */
+	public List<Formula> askWithRestriction(int argnum1, String term1, int argnum2, String term2)
+	{
+		List<Formula> result = new ArrayList<>();
+		if (!term1.isEmpty() && !term2.isEmpty())
+		{
+			List<Formula> partial1 = ask("arg", argnum1, term1);
+			List<Formula> partial2 = ask("arg", argnum2, term2);
+			List<Formula> partial = partial1;
+			int arg = argnum2;
+			String term = term2;
+			if (partial1.size() > partial2.size())
+			{
+				partial = partial2;
+				arg = argnum1;
+				term = term1;
+			}
+			for (Formula f : partial)
+			{
+				if (f.getArgument(arg).equals(term))
+					result.add(f);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The formula with a text
+	 *
+	 * @param text formula text
+	 * @return formula, or null if none
+	 */
+	public Formula getFormula(String text)
+	{
+		return formulas.get(text);
+	}
+
+	/**
+	 * Whether there is a formula with a text
+	 *
+	 * @param text formula text
+	 * @return whether there is a formula with the text
+	 */
+	public boolean containsFormula(String text)
+	{
+		return formulas.get(text) != null;
+	}
+
+	/**
+	 * Number of formulas
+	 *
+	 * @return number of formulas
+	 */
+	public int getFormulaCount()
+	{
+		return formulas.size();
+	}
+
+	/**
+	 * The terms
+	 *
+	 * @return unmodifiable sorted List of terms
+	 */
+	public List<String> getTerms()
+	{
+		return Collections.unmodifiableList(Arrays.asList(terms));
+	}
+
+	/**
+	 * Whether a term is a term of the KB
+	 *
+	 * @param term term
+	 * @return whether the term is a term of the KB
+	 */
+	public boolean containsTerm(String term)
+	{
+		return Arrays.binarySearch(terms, term) >= 0;
+	}
+
+	/**
+	 * The cached values of a relation for a term, as
+	 * KB.getCachedRelationValues() returns them
+	 *
+	 * @param relation relation name
+	 * @param term     key term
+	 * @param keyArg   key argument position
+	 * @param valueArg value argument position
+	 * @return unmodifiable Set of values, empty if none
+	 */
+	public Set<String> getCachedRelationValues(String relation, String term, int keyArg, int valueArg)
+	{
+		Shards<Set<String>> cache = caches.get(cacheId(relation, keyArg, valueArg));
+		Set<String> result = cache != null ? cache.get(term) : null;
+		return result != null ? result : Collections.emptySet();
+	}
+
+	/**
+	 * Whether the subclass cache supports the conclusion that c1 is a subclass of c2
+	 *
+	 * @param c1 the name of a SetOrClass
+	 * @param c2 the name of a SetOrClass
+	 * @return whether c1 is a subclass of c2
+	 */
+	public boolean isSubclass(String c1, String c2)
+	{
+		return !c1.isEmpty() && !c2.isEmpty() && getCachedRelationValues("subclass", c1, 1, 2).contains(c2);
+	}
+
+	/**
+	 * Whether i is an instance of c
+	 *
+	 * @param i a String denoting an instance
+	 * @param c a String denoting a Class
+	 * @return whether i is an instance of c
+	 */
+	public boolean isInstanceOf(String i, String c)
+	{
+		return getCachedRelationValues("instance", i, 1, 2).contains(c);
+	}
+
+	/**
+	 * Whether i is c, is an instance of c, or is subclass of c
+	 *
+	 * @param i a String denoting an instance
+	 * @param c a String denoting a Class
+	 * @return whether i is c, is an instance of c, or is subclass of c
+	 */
+	public boolean isChildOf(String i, String c)
+	{
+		return i.equals(c) || isInstanceOf(i, c) || isSubclass(i, c);
+	}
+
+	/**
+	 * The signature of a relation
+	 *
+	 * @param relation relation
+	 * @return signature, or null if the relation has none or signatures
+	 * were not built for this version
+	 */
+	public RelationSignature getRelationSignature(String relation)
+	{
+		return signatures != null ? signatures.get(relation) : null;
+	}
+
+	@Override public String toString()
+	{
+		return name + "@" + version + " formulas=" + formulas.size() + " keys=" + index.size() + " terms=" + terms.length + " caches=" + caches.size();
+	}
+}
@@ -0,0 +1,987 @@
+package com.articulate.sigma;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/**
+ * A read-only KB whose strings, formulas, formula index and relation
+ * caches stay in a memory-mapped file rather than on the heap.
+ * The file is mapped read-only, so that the processes of a host that open
+ * the same file share its pages, and the garbage collector does not scan
+ * them.  The query methods ask(), askWithRestriction(), isSubclass(),
+ * isInstanceOf(), getCachedRelationValues() and getTerms() answer from the
+ * mapped file; formulas are made anew at each answer.  The formulaMap,
+ * formulas and terms fields are left empty: the KB methods that scan them
+ * rather than query the KB see an empty KB.  The KB cannot be changed.
+ * <p>
+ * In the file, all strings are stored once, in sorted order, and referred
+ * to by their rank, so that a string is found by binary search and the
+ * order of ranks is that of strings.  The formula index and each relation
+ * cache are tables of keys sorted by rank, each with a sorted list of
+ * formula ranks or value ranks, so that membership in a cached closure is
+ * a binary search.  Only the relation valences, the relations with
+ * relation arguments, the errors and the constituents are read to the heap.
+ * The file is at most 2GB.  A mapped KB is not serializable.
+ */
+public class MappedKB extends KB
+{
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger logger = Logger.getLogger(MappedKB.class.getName());
+
+	private static final int MAGIC = 0x534B424D; // SKBM
+
+	private static final int VERSION = 1;
+
+	private static final int FOOTER_SIZE = 12 * 4;
+
+	private static final int FORMULA_SIZE = 5 * 4;
+
+	private static final int ENTRY_SIZE = 3 * 4;
+
+	private static final int CACHE_SIZE = 6 * 4;
+
+	private final transient ByteBuffer buffer;
+
+	private final transient Reader strings;
+
+	// Terms: sorted ranks
+	private final int termCount;
+
+	private final int termTable;
+
+	// Formulas: fixed size records
+	private final int formulaCount;
+
+	private final int formulaTable;
+
+	// Formula index: entries of key, postings offset, postings count
+	private final int indexCount;
+
+	private final int indexTable;
+
+	// Relation caches: records of name, key argument, value argument, closure flag, entry count, entries offset
+	private final int cacheCount;
+
+	private final int cacheTable;
+
+	private final transient SortedSet<String> mappedTerms;
+
+	// Formulas sorted by text: text id in the high int, formula rank in the low int, made on first lookup
+	private transient volatile long[] formulasByText;
+
+	private transient KBSnapshot mappedSnapshot;
+
+	// C O N S T R U C T O R
+
+	private MappedKB(String name, String kbDir, Reader strings, int[] footer)
+	{
+		super(name, kbDir);
+		this.buffer = strings.buffer;
+		this.strings = strings;
+		this.termCount = footer[3];
+		this.termTable = footer[4];
+		this.formulaCount = footer[5];
+		this.formulaTable = footer[6];
+		this.indexCount = footer[7];
+		this.indexTable = footer[8];
+		this.cacheCount = footer[9];
+		this.cacheTable = footer[10];
+		this.mappedTerms = new TermSet(0, termCount);
+	}
+
+	/**
+	 * Open a mapped KB file
+	 *
+	 * @param path file written by write()
+	 * @return read-only knowledge base
+	 * @throws IOException if the file cannot be mapped, is of another
+	 *                     version or is not a mapped KB file
+	 */
+	public static MappedKB open(File path) throws IOException
+	{
+		long start = System.currentTimeMillis();
+		ByteBuffer buffer;
+		try (FileInputStream file = new FileInputStream(path))
+		{
+			FileChannel channel = file.getChannel();
+			long length = channel.size();
+			if (length < 8 + FOOTER_SIZE + 4 || length > Integer.MAX_VALUE)
+				throw new IOException("Not a mapped KB file: " + path);
+			// The mapping stays valid once the channel is closed.
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+		}
+		if (buffer.getInt(0) != MAGIC)
+			throw new IOException("Not a mapped KB file: " + path);
+		int version = buffer.getInt(4);
+		if (version != VERSION)
+			throw new IOException("Mapped KB file version " + version + " is not " + VERSION + ": " + path);
+		int footerOffset = buffer.getInt(buffer.limit() - 4);
+		if (footerOffset < 8 || footerOffset != buffer.limit() - 4 - FOOTER_SIZE)
+			throw new IOException("Corrupt mapped KB file: " + path);
+		int[] footer = new int[FOOTER_SIZE / 4];
+		for (int i = 0; i < footer.length; i++)
+		{
+			footer[i] = buffer.getInt(footerOffset + 4 * i);
+			if (footer[i] < 0 || footer[i] > footerOffset)
+				throw new IOException("Corrupt mapped KB file: " + path);
+		}
+
+		// Heap section
+		ByteBuffer heap = buffer.duplicate();
+		heap.position(footer[11]);
+		MappedKB kb;
+		try
+		{
+			Reader reader = new Reader(buffer, footer[0], footer[1], footer[2]);
+			kb = new MappedKB(reader.string(heap.getInt()), reader.string(heap.getInt()), reader, footer);
+			int count = heap.getInt();
+			for (int i = 0; i < count; i++)
+				kb.constituents.add(reader.string(heap.getInt()));
+			count = heap.getInt();
+			for (int i = 0; i < count; i++)
+			{
+				String reln = reader.string(heap.getInt());
+				int[] valences = new int[heap.getInt()];
+				for (int j = 0; j < valences.length; j++)
+					valences[j] = heap.getInt();
+				kb.getRelationValences().put(reln, valences);
+			}
+			count = heap.getInt();
+			if (count >= 0)
+			{
+				Map<String, boolean[]> relnsWithRelnArgs = new HashMap<>();
+				for (int i = 0; i < count; i++)
+				{
+					String reln = reader.string(heap.getInt());
+					boolean[] flags = new boolean[heap.getInt()];
+					for (int j = 0; j < flags.length; j++)
+						flags[j] = heap.get() != 0;
+					relnsWithRelnArgs.put(reln, flags);
+				}
+				kb.setRelnsWithRelnArgs(relnsWithRelnArgs);
+			}
+			count = heap.getInt();
+			for (int i = 0; i < count; i++)
+				kb.errors.add(reader.string(heap.getInt()));
+		}
+		catch (IndexOutOfBoundsException | BufferUnderflowException | NegativeArraySizeException ex)
+		{
+			throw new IOException("Corrupt mapped KB file: " + path, ex);
+		}
+		kb.incrementVersion();
+		kb.buildRelationSignatures();
+		logger.info("Mapped " + kb.name + " with " + kb.formulaCount + " formulas from " + path + " in " + (System.currentTimeMillis() - start) + " ms");
+		return kb;
+	}
+
+	// W R I T E
+
+	/**
+	 * Write a built KB to a file that open() maps.  The KB is expected not
+	 * to change while it is written.
+	 *
+	 * @param kb   knowledge base
+	 * @param path file
+	 * @throws IOException if the file cannot be written or the KB does
+	 *                     not fit in 2GB
+	 */
+	public static void write(KB kb, File path) throws IOException
+	{
+		long start = System.currentTimeMillis();
+		Map<Formula, Integer> ordinals = new IdentityHashMap<>();
+		List<Formula> formulas = new ArrayList<>();
+		KBImage.collectFormulas(kb, formulas, ordinals);
+		List<String> terms;
+		synchronized (kb.getTerms())
+		{
+			terms = new ArrayList<>(kb.getTerms());
+		}
+		List<KB.RelationCache> caches = new ArrayList<>(kb.getRelationCaches());
+		Map<String, int[]> valences = new HashMap<>(kb.getRelationValences());
+		Map<String, boolean[]> relnsWithRelnArgs = kb.getRelnsWithRelnArgs();
+
+		// Sorted dictionary
+		SortedSet<String> strings = new TreeSet<>();
+		addAll(strings, Arrays.asList(kb.name, kb.kbDir));
+		addAll(strings, kb.constituents);
+		addAll(strings, terms);
+		for (Formula f : formulas)
+			addAll(strings, Arrays.asList(f.text, f.sourceFile));
+		addAll(strings, kb.formulas.keySet());
+		for (KB.RelationCache cache : caches)
+		{
+			strings.add(cache.getRelationName());
+			for (Map.Entry<String, Set<String>> entry : cache.entrySet())
+			{
+				strings.add(entry.getKey());
+				addAll(strings, entry.getValue());
+			}
+		}
+		addAll(strings, valences.keySet());
+		if (relnsWithRelnArgs != null)
+			addAll(strings, relnsWithRelnArgs.keySet());
+		addAll(strings, kb.errors);
+		Map<String, Integer> ids = new HashMap<>();
+		for (String s : strings)
+			ids.put(s, ids.size());
+
+		int[] footer = new int[FOOTER_SIZE / 4];
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16)))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			// Strings
+			footer[0] = strings.size();
+			footer[2] = out.size();
+			int[] offsets = new int[strings.size() + 1];
+			int i = 0;
+			for (String s : strings)
+			{
+				offsets[i++] = out.size() - footer[2];
+				out.write(s.getBytes(StandardCharsets.UTF_8));
+				checkSize(out);
+			}
+			offsets[i] = out.size() - footer[2];
+			footer[1] = out.size();
+			for (int offset : offsets)
+				out.writeInt(offset);
+
+			// Terms
+			footer[3] = terms.size();
+			footer[4] = out.size();
+			for (int id : sortedIds(terms, ids))
+				out.writeInt(id);
+
+			// Formulas
+			footer[5] = formulas.size();
+			footer[6] = out.size();
+			for (Formula f : formulas)
+			{
+				out.writeInt(id(f.text, ids));
+				out.writeInt(id(f.sourceFile, ids));
+				out.writeInt(f.startLine);
+				out.writeInt(f.endLine);
+				out.writeInt(f.getFeatures().mask);
+			}
+
+			// Formula index
+			SortedMap<Integer, int[]> postings = new TreeMap<>();
+			for (Map.Entry<String, List<Formula>> entry : kb.formulas.entrySet())
+			{
+				int[] ranks = new int[entry.getValue().size()];
+				for (int j = 0; j < ranks.length; j++)
+					ranks[j] = ordinals.get(entry.getValue().get(j));
+				postings.put(ids.get(entry.getKey()), ranks);
+			}
+			footer[7] = postings.size();
+			footer[8] = writeTable(out, postings);
+
+			// Relation caches
+			int[][] directory = new int[caches.size()][];
+			for (int j = 0; j < directory.length; j++)
+			{
+				KB.RelationCache cache = caches.get(j);
+				SortedMap<Integer, int[]> values = new TreeMap<>();
+				for (Map.Entry<String, Set<String>> entry : cache.entrySet())
+					values.put(ids.get(entry.getKey()), sortedIds(entry.getValue(), ids));
+				int table = writeTable(out, values);
+				directory[j] = new int[] { ids.get(cache.getRelationName()), cache.getKeyArgument(), cache.getValueArgument(), cache.getIsClosureComputed() ? 1 : 0, values.size(), table };
+			}
+			footer[9] = directory.length;
+			footer[10] = out.size();
+			for (int[] record : directory)
+				for (int value : record)
+					out.writeInt(value);
+
+			// Heap section
+			footer[11] = out.size();
+			out.writeInt(id(kb.name, ids));
+			out.writeInt(id(kb.kbDir, ids));
+			writeIds(out, kb.constituents, ids);
+			out.writeInt(valences.size());
+			for (Map.Entry<String, int[]> entry : valences.entrySet())
+			{
+				out.writeInt(ids.get(entry.getKey()));
+				out.writeInt(entry.getValue().length);
+				for (int valence : entry.getValue())
+					out.writeInt(valence);
+			}
+			out.writeInt(relnsWithRelnArgs == null ? -1 : relnsWithRelnArgs.size());
+			if (relnsWithRelnArgs != null)
+			{
+				for (Map.Entry<String, boolean[]> entry : relnsWithRelnArgs.entrySet())
+				{
+					out.writeInt(ids.get(entry.getKey()));
+					out.writeInt(entry.getValue().length);
+					for (boolean flag : entry.getValue())
+						out.writeBoolean(flag);
+				}
+			}
+			writeIds(out, kb.errors, ids);
+
+			// Footer, then its offset
+			int footerOffset = out.size();
+			for (int value : footer)
+				out.writeInt(value);
+			out.writeInt(footerOffset);
+			checkSize(out);
+		}
+		logger.info("Wrote mapped KB " + kb.name + " with " + formulas.size() + " formulas to " + path + " in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Write the lists of a table, then the table entries, sorted by key
+	 *
+	 * @return offset of the entries
+	 */
+	private static int writeTable(DataOutputStream out, SortedMap<Integer, int[]> lists) throws IOException
+	{
+		int[] offsets = new int[lists.size()];
+		int i = 0;
+		for (int[] list : lists.values())
+		{
+			offsets[i++] = out.size();
+			for (int value : list)
+				out.writeInt(value);
+			checkSize(out);
+		}
+		int result = out.size();
+		i = 0;
+		for (Map.Entry<Integer, int[]> entry : lists.entrySet())
+		{
+			out.writeInt(entry.getKey());
+			out.writeInt(offsets[i++]);
+			out.writeInt(entry.getValue().length);
+		}
+		return result;
+	}
+
+	private static void writeIds(DataOutputStream out, Collection<String> strings, Map<String, Integer> ids) throws IOException
+	{
+		out.writeInt(strings.size());
+		for (String s : strings)
+			out.writeInt(id(s, ids));
+	}
+
+	private static int[] sortedIds(Collection<String> strings, Map<String, Integer> ids)
+	{
+		int[] result = new int[strings.size()];
+		int i = 0;
+		for (String s : strings)
+			result[i++] = ids.get(s);
+		Arrays.sort(result);
+		return result;
+	}
+
+	private static int id(String s, Map<String, Integer> ids)
+	{
+		return s == null ? -1 : ids.get(s);
+	}
+
+	private static void addAll(Set<String> strings, Collection<String> c)
+	{
+		for (String s : c)
+			if (s != null)
+				strings.add(s);
+	}
+
+	private static void checkSize(DataOutputStream out) throws IOException
+	{
+		// DataOutputStream.size() saturates at Integer.MAX_VALUE
+		if (out.size() >= Integer.MAX_VALUE - FOOTER_SIZE)
+			throw new IOException("KB too large to be mapped");
+	}
+
+	// S T R I N G S
+
+	/**
+	 * Access to the mapped strings: the offsets of count + 1 strings in the blob
+	 */
+	private static class Reader
+	{
+		final ByteBuffer buffer;
+
+		final int count;
+
+		final int offsets;
+
+		final int blob;
+
+		Reader(ByteBuffer buffer, int count, int offsets, int blob)
+		{
+			this.buffer = buffer;
+			this.count = count;
+			this.offsets = offsets;
+			this.blob = blob;
+		}
+
+		String string(int id)
+		{
+			if (id < 0)
+				return null;
+			if (id >= count)
+				throw new IndexOutOfBoundsException("string " + id);
+			int from = buffer.getInt(offsets + 4 * id);
+			int to = buffer.getInt(offsets + 4 * id + 4);
+			byte[] bytes = new byte[to - from];
+			ByteBuffer view = buffer.duplicate();
+			view.position(blob + from);
+			view.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		int id(String s)
+		{
+			int low = 0;
+			int high = count - 1;
+			while (low <= high)
+			{
+				int mid = (low + high) >>> 1;
+				int cmp = compare(mid, s);
+				if (cmp < 0)
+					low = mid + 1;
+				else if (cmp > 0)
+					high = mid - 1;
+				else
+					return mid;
+			}
+			return -1;
+		}
+
+		/**
+		 * Compare a mapped string with a string, as String.compareTo()
+		 * does, without decoding the mapped string to the heap
+		 *
+		 * @param id rank of the mapped string
+		 * @param s  string
+		 * @return negative, zero or positive as the mapped string is less
+		 * than, equal to or greater than s
+		 */
+		int compare(int id, String s)
+		{
+			int p = blob + buffer.getInt(offsets + 4 * id);
+			int end = blob + buffer.getInt(offsets + 4 * id + 4);
+			int length = s.length();
+			int i = 0;
+			while (p < end)
+			{
+				int b = buffer.get(p++) & 0xFF;
+				int codePoint;
+				if (b < 0x80)
+					codePoint = b;
+				else
+				{
+					int more = b >= 0xF0 ? 3 : b >= 0xE0 ? 2 : 1;
+					codePoint = b & (0x3F >> more);
+					for (int k = 0; k < more; k++)
+						codePoint = codePoint << 6 | (buffer.get(p++) & 0x3F);
+				}
+				// Compared by UTF-16 units, as strings are sorted
+				if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT)
+				{
+					if (i == length)
+						return 1;
+					int cmp = Character.highSurrogate(codePoint) - s.charAt(i++);
+					if (cmp != 0)
+						return cmp;
+					codePoint = Character.lowSurrogate(codePoint);
+				}
+				if (i == length)
+					return 1;
+				int cmp = codePoint - s.charAt(i++);
+				if (cmp != 0)
+					return cmp;
+			}
+			return i - length;
+		}
+	}
+
+	private String string(int id)
+	{
+		return strings.string(id);
+	}
+
+	private int id(String s)
+	{
+		return strings.id(s);
+	}
+
+	/**
+	 * Binary search of an int in a sorted mapped list
+	 *
+	 * @return index in the list, or -1
+	 */
+	private int search(int offset, int count, int stride, int value)
+	{
+		int low = 0;
+		int high = count - 1;
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			int midValue = buffer.getInt(offset + mid * stride);
+			if (midValue < value)
+				low = mid + 1;
+			else if (midValue > value)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	// F O R M U L A S
+
+	private Formula formula(int rank)
+	{
+		int record = formulaTable + rank * FORMULA_SIZE;
+		Formula f = new Formula();
+		f.text = string(buffer.getInt(record));
+		f.sourceFile = string(buffer.getInt(record + 4));
+		f.startLine = buffer.getInt(record + 8);
+		f.endLine = buffer.getInt(record + 12);
+		f.setFeatures(new FormulaFeatures(f.text, buffer.getInt(record + 16)));
+		return f;
+	}
+
+	/**
+	 * The formula with a text
+	 *
+	 * @param text formula text
+	 * @return formula, made anew, or null if none
+	 */
+	Formula getFormula(String text)
+	{
+		int id = id(text);
+		if (id < 0)
+			return null;
+		long[] byText = formulasByText;
+		if (byText == null)
+		{
+			byText = new long[formulaCount];
+			for (int rank = 0; rank < formulaCount; rank++)
+				byText[rank] = (long) buffer.getInt(formulaTable + rank * FORMULA_SIZE) << 32 | rank;
+			Arrays.sort(byText);
+			formulasByText = byText;
+		}
+		int index = Arrays.binarySearch(byText, (long) id << 32);
+		if (index < 0)
+			index = -index - 1;
+		return index < byText.length && (int) (byText[index] >>> 32) == id ? formula((int) byText[index]) : null;
+	}
+
+	@Override public List<Formula> ask(String kind, int argnum, String term)
+	{
+		if (term == null || term.isEmpty())
+		{
+			String msg = "Error in KB.ask(\"" + kind + "\", " + argnum + ", \"" + term + "\"): " + "search term is null, or an empty string";
+			logger.warning(msg);
+			throw new IllegalArgumentException(msg);
+		}
+		if (term.length() > 1 && term.charAt(0) == '"' && term.charAt(term.length() - 1) == '"')
+		{
+			String msg = "Error in KB.ask(): Strings are not indexed.  No results for " + term;
+			logger.warning(msg);
+			throw new IllegalArgumentException(msg);
+		}
+		List<Formula> result = new ArrayList<>();
+		int key = id(kind.equals("arg") ? kind + "-" + argnum + "-" + term : kind + "-" + term);
+		if (key < 0)
+			return result;
+		int entry = search(indexTable, indexCount, ENTRY_SIZE, key);
+		if (entry < 0)
+			return result;
+		int postings = buffer.getInt(indexTable + entry * ENTRY_SIZE + 4);
+		int count = buffer.getInt(indexTable + entry * ENTRY_SIZE + 8);
+		for (int i = 0; i < count; i++)
+			result.add(formula(buffer.getInt(postings + 4 * i)));
+		return result;
+	}
+
+	// C A C H E S
+
+	/**
+	 * Find the values of a key in a mapped relation cache
+	 *
+	 * @return offset and count of the sorted value ranks, or null if none
+	 */
+	private int[] cachedValues(String relation, String term, int keyArg, int valueArg)
+	{
+		int name = id(relation);
+		int key = id(term);
+		if (name < 0 || key < 0)
+			return null;
+		for (int i = 0; i < cacheCount; i++)
+		{
+			int record = cacheTable + i * CACHE_SIZE;
+			if (buffer.getInt(record) == name && buffer.getInt(record + 4) == keyArg && buffer.getInt(record + 8) == valueArg)
+			{
+				int table = buffer.getInt(record + 20);
+				int entry = search(table, buffer.getInt(record + 16), ENTRY_SIZE, key);
+				if (entry < 0)
+					return null;
+				return new int[] { buffer.getInt(table + entry * ENTRY_SIZE + 4), buffer.getInt(table + entry * ENTRY_SIZE + 8) };
+			}
+		}
+		return null;
+	}
+
+	@Override public Set<String> getCachedRelationValues(String relation, String term, int keyArg, int valueArg)
+	{
+		Set<String> result = new HashSet<>();
+		int[] values = cachedValues(relation, term, keyArg, valueArg);
+		if (values != null)
+		{
+			for (int i = 0; i < values[1]; i++)
+				result.add(string(buffer.getInt(values[0] + 4 * i)));
+		}
+		return result;
+	}
+
+	/**
+	 * Whether a mapped relation cache holds a value for a key
+	 */
+	private boolean isCached(String relation, String term, int keyArg, int valueArg, String value)
+	{
+		int[] values = cachedValues(relation, term, keyArg, valueArg);
+		if (values == null)
+			return false;
+		int id = id(value);
+		return id >= 0 && search(values[0], values[1], 4, id) >= 0;
+	}
+
+	@Override public boolean isSubclass(String c1, String c2)
+	{
+		return !c1.isEmpty() && !c2.isEmpty() && isCached("subclass", c1, 1, 2, c2);
+	}
+
+	@Override public boolean isInstanceOf(String i, String c)
+	{
+		return isCached("instance", i, 1, 2, c);
+	}
+
+	// T E R M S
+
+	@Override public SortedSet<String> getTerms()
+	{
+		return mappedTerms;
+	}
+
+	@Override public int getCountAxioms()
+	{
+		return formulaCount;
+	}
+
+	/**
+	 * A read-only view of a range of the mapped terms, which are sorted
+	 */
+	private class TermSet extends AbstractSet<String> implements SortedSet<String>
+	{
+		private final int from;
+
+		private final int to;
+
+		TermSet(int from, int to)
+		{
+			this.from = from;
+			this.to = to;
+		}
+
+		private String term(int index)
+		{
+			return string(buffer.getInt(termTable + 4 * index));
+		}
+
+		/**
+		 * Index of the first term not less than s, within the range
+		 */
+		private int lowerBound(String s)
+		{
+			int low = from;
+			int high = to;
+			while (low < high)
+			{
+				int mid = (low + high) >>> 1;
+				if (term(mid).compareTo(s) < 0)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		}
+
+		@Override public Iterator<String> iterator()
+		{
+			return new Iterator<String>()
+			{
+				private int next = from;
+
+				@Override public boolean hasNext()
+				{
+					return next < to;
+				}
+
+				@Override public String next()
+				{
+					if (next >= to)
+						throw new NoSuchElementException();
+					return term(next++);
+				}
+			};
+		}
+
+		@Override public int size()
+		{
+			return to - from;
+		}
+
+		@Override public boolean contains(Object o)
+		{
+			if (!(o instanceof String))
+				return false;
+			int index = lowerBound((String) o);
+			return index < to && term(index).equals(o);
+		}
+
+		@Override public Comparator<? super String> comparator()
+		{
+			return null;
+		}
+
+		@Override public SortedSet<String> subSet(String fromElement, String toElement)
+		{
+			if (fromElement.compareTo(toElement) > 0)
+				throw new IllegalArgumentException(fromElement + " > " + toElement);
+			return new TermSet(lowerBound(fromElement), lowerBound(toElement));
+		}
+
+		@Override public SortedSet<String> headSet(String toElement)
+		{
+			return new TermSet(from, lowerBound(toElement));
+		}
+
+		@Override public SortedSet<String> tailSet(String fromElement)
+		{
+			return new TermSet(lowerBound(fromElement), to);
+		}
+
+		@Override public String first()
+		{
+			if (from >= to)
+				throw new NoSuchElementException();
+			return term(from);
+		}
+
+		@Override public String last()
+		{
+			if (from >= to)
+				throw new NoSuchElementException();
+			return term(to - 1);
+		}
+	}
+
+	// R E A D - O N L Y
+
+	/**
+	 * A mapped KB cannot be changed
+	 *
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override public void addConstituent(String filename, boolean buildCachesP, boolean performArity)
+	{
+		throw readOnly("add a constituent to");
+	}
+
+	/**
+	 * A mapped KB cannot have constituents reloaded; it is left unchanged
+	 *
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override public void reloadConstituent(String filename)
+	{
+		throw readOnly("reload a constituent of");
+	}
+
+	/**
+	 * A mapped KB cannot have constituents removed; it is left unchanged
+	 *
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override public void removeConstituent(String filename)
+	{
+		throw readOnly("remove a constituent from");
+	}
+
+	/**
+	 * A mapped KB cannot be changed; its caches were built when it was written
+	 *
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override public void buildRelationCaches(boolean clearExistingCaches)
+	{
+		throw readOnly("build the caches of");
+	}
+
+	/**
+	 * A mapped KB cannot be told formulas; it is left unchanged
+	 *
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override public String tell(String kif)
+	{
+		throw readOnly("tell");
+	}
+
+	/**
+	 * A mapped KB cannot be told formulas; it is left unchanged
+	 *
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override public String tell(Formula f)
+	{
+		throw readOnly("tell");
+	}
+
+	/**
+	 * A mapped KB cannot have formulas retracted; it is left unchanged
+	 *
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override public boolean retract(Formula f)
+	{
+		throw readOnly("retract from");
+	}
+
+	/**
+	 * A mapped KB cannot have formulas retracted; it is left unchanged
+	 *
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override public int retractAll(Predicate<Formula> predicate)
+	{
+		throw readOnly("retract from");
+	}
+
+	/**
+	 * A mapped KB is not serialized: its content is in the mapped file,
+	 * which is opened anew with open()
+	 *
+	 * @return never
+	 * @throws NotSerializableException always
+	 */
+	private Object writeReplace() throws ObjectStreamException
+	{
+		throw new NotSerializableException("Mapped KB " + name + " is not serializable; open its file instead");
+	}
+
+	/**
+	 * Exception thrown by the methods that would change the KB
+	 *
+	 * @param operation operation refused
+	 * @return exception
+	 */
+	private UnsupportedOperationException readOnly(String operation)
+	{
+		return new UnsupportedOperationException("Cannot " + operation + " read-only mapped KB " + name);
+	}
+
+	// S N A P S H O T
+
+	/**
+	 * A mapped KB does not change: its snapshot, made once, reads the mapped file
+	 *
+	 * @return snapshot
+	 */
+	@Override public synchronized KBSnapshot publishSnapshot()
+	{
+		if (mappedSnapshot == null)
+			mappedSnapshot = new Snapshot();
+		return mappedSnapshot;
+	}
+
+	/**
+	 * Snapshot of a mapped KB, which reads the mapped file, as the KB does
+	 */
+	private class Snapshot extends KBSnapshot
+	{
+		Snapshot()
+		{
+			super(MappedKB.this.name, MappedKB.this.getVersion());
+		}
+
+		@Override public List<Formula> ask(String kind, int argnum, String term)
+		{
+			return Collections.unmodifiableList(MappedKB.this.ask(kind, argnum, term));
+		}
+
+		@Override public Formula getFormula(String text)
+		{
+			return MappedKB.this.getFormula(text);
+		}
+
+		@Override public boolean containsFormula(String text)
+		{
+			return MappedKB.this.getFormula(text) != null;
+		}
+
+		@Override public int getFormulaCount()
+		{
+			return formulaCount;
+		}
+
+		@Override public List<String> getTerms()
+		{
+			return new AbstractList<String>()
+			{
+				@Override public String get(int index)
+				{
+					if (index < 0 || index >= termCount)
+						throw new IndexOutOfBoundsException("term " + index);
+					return string(buffer.getInt(termTable + 4 * index));
+				}
+
+				@Override public int size()
+				{
+					return termCount;
+				}
+			};
+		}
+
+		@Override public boolean containsTerm(String term)
+		{
+			return mappedTerms.contains(term);
+		}
+
+		@Override public Set<String> getCachedRelationValues(String relation, String term, int keyArg, int valueArg)
+		{
+			return Collections.unmodifiableSet(MappedKB.this.getCachedRelationValues(relation, term, keyArg, valueArg));
+		}
+
+		@Override public boolean isSubclass(String c1, String c2)
+		{
+			return MappedKB.this.isSubclass(c1, c2);
+		}
+
+		@Override public boolean isInstanceOf(String i, String c)
+		{
+			return MappedKB.this.isInstanceOf(i, c);
+		}
+
+		@Override public RelationSignature getRelationSignature(String relation)
+		{
+			return MappedKB.this.getRelationSignature(relation);
+		}
+
+		@Override public String toString()
+		{
+			return getName() + "@" + getVersion() + " formulas=" + formulaCount + " keys=" + indexCount + " terms=" + termCount + " caches=" + cacheCount + " mapped";
+		}
+	}
+}
@@ -0,0 +1,866 @@
+package com.articulate.sigma;
+
+import com.articulate.sigma.kif.KIF;
+
+import java.io.File;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/**
+ * A KB made of a base KB and of the formulas added to it, so that many
+ * KBs that add a few formulas to the same large KB share it rather than
+ * copy it.  The base is referred to, not copied, and is not to be changed
+ * once overlays are made on it: it is then only read, and may be read by
+ * any number of overlays at once.  It may be a MappedKB.
+ * <p>
+ * The overlay holds the delta: the formulas it was told that the base does
+ * not have, in formulaMap and the formula index, the terms of these
+ * formulas that the base does not have, in terms, and the relation cache
+ * entries the delta implies that the base does not have.  Its memory thus
+ * grows with the delta, not with the base.  The query methods ask(),
+ * askWithRestriction(), getCachedRelationValues(), isSubclass(),
+ * isInstanceOf() and getTerms() merge the answers of the base and of the
+ * delta.  The KB methods that scan formulaMap or formulas rather than
+ * query the KB see the delta only.
+ * <p>
+ * Delta cache entries are computed as the base computes its own, with
+ * the closures taken over base and delta together.  The cached relations,
+ * and the subrelations that feed them, are those of the base: delta
+ * assertions that would change them are kept, but do not change the
+ * caches.  The relation signatures are those of the base.
+ * <p>
+ * The snapshots of an overlay, which KB.getSnapshot() returns, read the
+ * snapshot of the base and a copy of the delta made when the snapshot is
+ * published, so that each tenant of an overlay may read it while it is
+ * told formulas.
+ */
+public class OverlayKB extends KB
+{
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger logger = Logger.getLogger(OverlayKB.class.getName());
+
+	private final KB base;
+
+	private final SortedSet<String> mergedTerms;
+
+	// Cached relations of the base, and the relations whose assertions feed them
+	private final List<String> cachedRelations;
+
+	private final List<String> transitive;
+
+	private final List<String> symmetric;
+
+	private final List<String> reflexive;
+
+	private final Map<String, List<String>> fedRelations = new HashMap<>();
+
+	private final boolean closeDisjoint;
+
+	// Delta relation caches, by id
+	private final Map<String, RelationCache> deltaCaches = new HashMap<>();
+
+	// C O N S T R U C T O R
+
+	/**
+	 * Make an overlay on a base KB, whose relation caches are built
+	 *
+	 * @param name name of the overlay
+	 * @param base base KB, not to be changed from now on
+	 */
+	public OverlayKB(String name, KB base)
+	{
+		super(name, base.kbDir);
+		this.base = base;
+		this.mergedTerms = new TermSet(base.getTerms(), terms);
+		synchronized (base)
+		{
+			this.cachedRelations = base.getCachedRelationNames();
+			this.transitive = base.getCachedTransitiveRelationNames();
+			this.symmetric = base.getCachedSymmetricRelationNames();
+			this.reflexive = base.getCacheReflexiveAssertions() ? base.getCachedReflexiveRelationNames() : Collections.emptyList();
+			for (String relation : cachedRelations)
+			{
+				fedRelations.computeIfAbsent(relation, r -> new ArrayList<>()).add(relation);
+				for (String subrelation : base.getTermsViaPredicateSubsumption("subrelation", 2, relation, 1, true))
+				{
+					List<String> fed = fedRelations.computeIfAbsent(subrelation, r -> new ArrayList<>());
+					if (!fed.contains(relation))
+						fed.add(relation);
+				}
+			}
+		}
+		this.closeDisjoint = symmetric.contains("disjoint");
+	}
+
+	/**
+	 * The base KB
+	 *
+	 * @return base KB
+	 */
+	public KB getBase()
+	{
+		return base;
+	}
+
+	// Q U E R Y
+
+	/**
+	 * Returns the formulas of the base and of the delta that match the
+	 * request, as KB.ask() does.  askWithRestriction() and the other
+	 * methods built on ask() thus see both.
+	 */
+	@Override public List<Formula> ask(String kind, int argnum, String term)
+	{
+		List<Formula> result = new ArrayList<>(base.ask(kind, argnum, term));
+		result.addAll(super.ask(kind, argnum, term));
+		return result;
+	}
+
+	/**
+	 * Returns the cached values of the base and of the delta.
+	 * isSubclass(), isInstanceOf() and the other methods built on
+	 * getCachedRelationValues() thus see both.
+	 */
+	@Override public Set<String> getCachedRelationValues(String relation, String term, int keyArg, int valueArg)
+	{
+		Set<String> result = base.getCachedRelationValues(relation, term, keyArg, valueArg);
+		RelationCache cache = deltaCaches.get(KBSnapshot.cacheId(relation, keyArg, valueArg));
+		if (cache != null)
+		{
+			Set<String> values = cache.get(term);
+			if (values != null)
+				result.addAll(values);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the signature of a relation, from the table of the overlay if
+	 * built for the current version, else from that of the base
+	 */
+	@Override public RelationSignature getRelationSignature(String relation)
+	{
+		RelationSignature result = super.getRelationSignature(relation);
+		return result != null ? result : base.getRelationSignature(relation);
+	}
+
+	// T E R M S
+
+	/**
+	 * The terms of the base and of the delta
+	 *
+	 * @return a read-only sorted view of the terms
+	 */
+	@Override public SortedSet<String> getTerms()
+	{
+		return mergedTerms;
+	}
+
+	@Override public int getCountAxioms()
+	{
+		return base.getCountAxioms() + formulaMap.size();
+	}
+
+	@Override public SortedSet<String> getFormulas()
+	{
+		SortedSet<String> result = base.getFormulas();
+		result.addAll(formulaMap.keySet());
+		return result;
+	}
+
+	/**
+	 * A read-only view of the union of two disjoint sorted sets of terms
+	 */
+	private static class TermSet extends AbstractSet<String> implements SortedSet<String>
+	{
+		private final SortedSet<String> set1;
+
+		private final SortedSet<String> set2;
+
+		TermSet(SortedSet<String> set1, SortedSet<String> set2)
+		{
+			this.set1 = set1;
+			this.set2 = set2;
+		}
+
+		@Override public Iterator<String> iterator()
+		{
+			return new Iterator<String>()
+			{
+				private final Iterator<String> it1 = set1.iterator();
+
+				private final Iterator<String> it2 = set2.iterator();
+
+				private String next1 = it1.hasNext() ? it1.next() : null;
+
+				private String next2 = it2.hasNext() ? it2.next() : null;
+
+				@Override public boolean hasNext()
+				{
+					return next1 != null || next2 != null;
+				}
+
+				@Override public String next()
+				{
+					String result;
+					if (next1 != null && (next2 == null || next1.compareTo(next2) <= 0))
+					{
+						result = next1;
+						next1 = it1.hasNext() ? it1.next() : null;
+					}
+					else if (next2 != null)
+					{
+						result = next2;
+						next2 = it2.hasNext() ? it2.next() : null;
+					}
+					else
+						throw new NoSuchElementException();
+					return result;
+				}
+			};
+		}
+
+		@Override public int size()
+		{
+			return set1.size() + set2.size();
+		}
+
+		@Override public boolean contains(Object o)
+		{
+			return set1.contains(o) || set2.contains(o);
+		}
+
+		@Override public Comparator<? super String> comparator()
+		{
+			return null;
+		}
+
+		@Override public SortedSet<String> subSet(String fromElement, String toElement)
+		{
+			return new TermSet(set1.subSet(fromElement, toElement), set2.subSet(fromElement, toElement));
+		}
+
+		@Override public SortedSet<String> headSet(String toElement)
+		{
+			return new TermSet(set1.headSet(toElement), set2.headSet(toElement));
+		}
+
+		@Override public SortedSet<String> tailSet(String fromElement)
+		{
+			return new TermSet(set1.tailSet(fromElement), set2.tailSet(fromElement));
+		}
+
+		@Override public String first()
+		{
+			if (set1.isEmpty())
+				return set2.first();
+			if (set2.isEmpty())
+				return set1.first();
+			String first1 = set1.first();
+			String first2 = set2.first();
+			return first1.compareTo(first2) <= 0 ? first1 : first2;
+		}
+
+		@Override public String last()
+		{
+			if (set1.isEmpty())
+				return set2.last();
+			if (set2.isEmpty())
+				return set1.last();
+			String last1 = set1.last();
+			String last2 = set2.last();
+			return last1.compareTo(last2) >= 0 ? last1 : last2;
+		}
+	}
+
+	// T E L L
+
+	/**
+	 * Tell the overlay formulas, as KB.tell() does.  Formulas the base has
+	 * are not added to the delta.
+	 *
+	 * @param kif formulas, in KIF
+	 * @return a message telling the outcome
+	 */
+	@Override public synchronized String tell(String kif)
+	{
+		KIF file = new KIF();
+		file.parseString(kif, getUserAssertionsFile());
+		return tell(file, null);
+	}
+
+	/**
+	 * Tell the overlay a formula, as KB.tell() does
+	 *
+	 * @param f formula
+	 * @return a message telling the outcome
+	 */
+	@Override public synchronized String tell(Formula f)
+	{
+		KIF file = new KIF();
+		file.parseString(f.text, f.sourceFile != null ? f.sourceFile : getUserAssertionsFile());
+		if (file.formulaSet.size() > 1)
+			return "Error: more than one formula in " + f.text;
+		return tell(file, f.sourceFile != null ? f : null);
+	}
+
+	/**
+	 * Tell the overlay the formulas of a parse.  They are rejected as a
+	 * whole if one has a bad arity.
+	 *
+	 * @param file  parse
+	 * @param given formula whose lines the parsed formula takes, or null
+	 * @return a message telling the outcome
+	 */
+	private String tell(KIF file, Formula given)
+	{
+		for (String warning : file.warningSet)
+		{
+			if (warning.startsWith("Error"))
+				return warning;
+		}
+		if (file.formulaSet.isEmpty())
+			return "Error: no formula";
+
+		Map<Formula, List<String>> parsedKeys = new IdentityHashMap<>();
+		Map<String, Formula> parsed = getParsedFormulas(file, parsedKeys);
+		List<Formula> added = new ArrayList<>();
+		for (Formula f : parsed.values())
+		{
+			if (formulaMap.containsKey(f.text) || isInBase(f))
+				continue;
+			if (!f.hasCorrectArity(this))
+				return "The following formula rejected for incorrect arity: " + f.text;
+			if (given != null)
+			{
+				f.startLine = given.startLine;
+				f.endLine = given.endLine;
+			}
+			added.add(f);
+		}
+		if (added.isEmpty())
+			return "The formula is already in the KB";
+		addFormulas(file, added, parsedKeys);
+		return added.size() == 1 ? "The formula has been added" : added.size() + " formulas have been added";
+	}
+
+	/**
+	 * Add a constituent to the overlay: the formulas of the file that the
+	 * base does not have are added to the delta.  Formulas with a bad
+	 * arity are rejected one by one, as errors.  The caches are brought up
+	 * to date whatever buildCachesP.
+	 *
+	 * @param filename     the full path of the file being added
+	 * @param buildCachesP ignored
+	 * @param performArity if true, perform arity check
+	 */
+	@Override public synchronized void addConstituent(String filename, boolean buildCachesP, boolean performArity)
+	{
+		try
+		{
+			String canonicalPath = new File(filename).getCanonicalPath();
+			if (constituents.contains(canonicalPath))
+			{
+				errors.add("Error: " + canonicalPath + " already loaded.");
+				return;
+			}
+			logger.info("Adding " + canonicalPath + " to overlay KB " + name);
+			KIF file = readConstituent(canonicalPath);
+			errors.addAll(file.warningSet);
+
+			Map<Formula, List<String>> parsedKeys = new IdentityHashMap<>();
+			Map<String, Formula> parsed = getParsedFormulas(file, parsedKeys);
+			List<Formula> added = new ArrayList<>();
+			for (Formula f : parsed.values())
+			{
+				if (formulaMap.containsKey(f.text) || isInBase(f))
+					continue;
+				if (performArity && !f.hasCorrectArity(this))
+				{
+					errors.add("The following formula rejected for incorrect arity: " + f.text);
+					continue;
+				}
+				added.add(f);
+			}
+			constituents.add(canonicalPath);
+			addFormulas(file, added, parsedKeys);
+			logger.info("File " + canonicalPath + " added " + added.size() + " formulas to overlay KB " + name);
+		}
+		catch (Exception ex)
+		{
+			logger.warning(Arrays.toString(ex.getStackTrace()));
+			ex.printStackTrace();
+			errors.add(ex.getMessage() + " in file " + filename);
+		}
+	}
+
+	/**
+	 * Whether the base has a formula
+	 *
+	 * @param f formula
+	 * @return whether the base has a formula with the text of f
+	 */
+	private boolean isInBase(Formula f)
+	{
+		if (!(base instanceof MappedKB))
+			return base.formulaMap.containsKey(f.text);
+		// A mapped KB has no formulaMap
+		String predicate = f.car();
+		if (predicate.isEmpty() || KB.isVariable(predicate))
+			return false;
+		for (Formula g : base.ask("arg", 0, predicate))
+		{
+			if (g.text.equals(f.text))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Add formulas to the delta, with their terms and cache entries
+	 *
+	 * @param file       parse the formulas come from
+	 * @param added      formulas to add
+	 * @param parsedKeys formula index keys of the formulas
+	 */
+	private void addFormulas(KIF file, List<Formula> added, Map<Formula, List<String>> parsedKeys)
+	{
+		for (Formula f : added)
+			indexFormula(f, parsedKeys.get(f));
+		Set<String> baseTerms = base.getTerms();
+		synchronized (terms)
+		{
+			for (String term : file.terms)
+			{
+				if (!baseTerms.contains(term))
+					terms.add(term);
+			}
+		}
+		incrementVersion();
+		clearFormatMaps();
+		addToDeltaCaches(added);
+		updateSnapshot();
+	}
+
+	// C A C H E S
+
+	/**
+	 * Add the cache entries that added formulas imply, and that the base
+	 * and the delta do not have yet.  Only ground atomic formulas
+	 * contribute to the caches.
+	 *
+	 * @param added added formulas
+	 */
+	private void addToDeltaCaches(List<Formula> added)
+	{
+		Set<String> instances = new LinkedHashSet<>();
+		for (Formula f : added)
+		{
+			if (f.text.indexOf("(", 2) != -1 || f.sourceFile.endsWith(_cacheFileSuffix))
+				continue;
+			String predicate = f.car();
+			if (predicate.equals("partition") || predicate.equals("disjointDecomposition"))
+			{
+				if (!cachedRelations.contains("disjoint"))
+					continue;
+				List<String> args = f.argumentsToList(2);
+				for (int i = 0; i < args.size(); i++)
+				{
+					for (int j = i + 1; j < args.size(); j++)
+						addDisjoint(args.get(i).intern(), args.get(j).intern());
+				}
+				continue;
+			}
+			List<String> relations = fedRelations.get(predicate);
+			if (relations == null)
+				continue;
+			String arg1 = f.getArgument(1).intern();
+			String arg2 = f.getArgument(2).intern();
+			if (arg1.isEmpty() || arg2.isEmpty())
+				continue;
+			for (String relation : relations)
+			{
+				if (relation.equals("subrelation"))
+				{
+					logger.warning("Overlay KB " + name + " does not change which assertions feed the caches: " + f.text);
+					continue;
+				}
+				if (relation.equals("disjoint") && closeDisjoint)
+				{
+					addDisjoint(arg1, arg2);
+					continue;
+				}
+				boolean isTransitive = transitive.contains(relation);
+				addClosedEntry(relation, arg1, arg2, isTransitive, instances);
+				if (symmetric.contains(relation))
+					addClosedEntry(relation, arg2, arg1, isTransitive, instances);
+				if (reflexive.contains(relation))
+				{
+					addClosedEntry(relation, arg1, arg1, isTransitive, instances);
+					addClosedEntry(relation, arg2, arg2, isTransitive, instances);
+				}
+			}
+		}
+
+		// The valence of a relation may follow from its new classes
+		for (String term : instances)
+		{
+			getRelationValences().remove(term);
+			if (!getCachedRelationValues("instance", term, 1, 2).contains("Relation"))
+				continue;
+			String className = getValenceClass(term, getValence(term));
+			if (className != null)
+				addClosedEntry("instance", term, className, false, instances);
+		}
+	}
+
+	/**
+	 * Add an assertion to the delta caches of a relation, with the entries
+	 * it implies over base and delta: by transitivity if the relation is
+	 * transitive, the superclasses of the class if it is instance, and the
+	 * new classes and disjoint classes of the subclasses if it is subclass.
+	 *
+	 * @param relation     cached relation
+	 * @param arg1         first argument
+	 * @param arg2         second argument
+	 * @param isTransitive whether the relation is transitive
+	 * @param instances    receives the instances whose classes changed
+	 */
+	private void addClosedEntry(String relation, String arg1, String arg2, boolean isTransitive, Set<String> instances)
+	{
+		Set<String> sources = new LinkedHashSet<>();
+		sources.add(arg1);
+		Set<String> targets = new LinkedHashSet<>();
+		targets.add(arg2);
+		if (relation.equals("instance"))
+		{
+			targets.addAll(getCachedRelationValues("subclass", arg2, 1, 2));
+			instances.add(arg1);
+		}
+		else if (isTransitive)
+		{
+			sources.addAll(getCachedRelationValues(relation, arg1, 2, 1));
+			targets.addAll(getCachedRelationValues(relation, arg2, 1, 2));
+		}
+		addEntries(relation, sources, targets);
+
+		if (relation.equals("subclass"))
+		{
+			for (String source : sources)
+			{
+				for (String member : getCachedRelationValues("instance", source, 2, 1))
+				{
+					addEntries("instance", Collections.singleton(member), targets);
+					instances.add(member);
+				}
+			}
+			if (closeDisjoint)
+			{
+				for (String target : targets)
+				{
+					Set<String> disjoint = getCachedRelationValues("disjoint", target, 1, 2);
+					if (!disjoint.isEmpty())
+						addDisjointEntries(sources, disjoint);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add that two classes are disjoint, with their subclasses if the
+	 * disjoint cache is closed
+	 *
+	 * @param class1 class
+	 * @param class2 class
+	 */
+	private void addDisjoint(String class1, String class2)
+	{
+		if (class1.isEmpty() || class2.isEmpty())
+			return;
+		Set<String> classes1 = new LinkedHashSet<>();
+		classes1.add(class1);
+		Set<String> classes2 = new LinkedHashSet<>();
+		classes2.add(class2);
+		if (closeDisjoint)
+		{
+			classes1.addAll(getCachedRelationValues("subclass", class1, 2, 1));
+			classes2.addAll(getCachedRelationValues("subclass", class2, 2, 1));
+		}
+		addDisjointEntries(classes1, classes2);
+	}
+
+	private void addDisjointEntries(Set<String> classes1, Set<String> classes2)
+	{
+		for (String class1 : classes1)
+			addValues("disjoint", 1, 2, class1, classes2);
+		for (String class2 : classes2)
+			addValues("disjoint", 1, 2, class2, classes1);
+	}
+
+	/**
+	 * Add the entries from sources to targets, in both directions
+	 */
+	private void addEntries(String relation, Set<String> sources, Set<String> targets)
+	{
+		for (String source : sources)
+			addValues(relation, 1, 2, source, targets);
+		for (String target : targets)
+			addValues(relation, 2, 1, target, sources);
+	}
+
+	/**
+	 * Add to a delta cache the values of a key that the base does not have
+	 */
+	private void addValues(String relation, int keyArg, int valueArg, String key, Set<String> values)
+	{
+		if (key.isEmpty())
+			return;
+		Set<String> baseValues = base.getCachedRelationValues(relation, key, keyArg, valueArg);
+		Set<String> deltaValues = null;
+		for (String value : values)
+		{
+			if (value.isEmpty() || baseValues.contains(value))
+				continue;
+			if (deltaValues == null)
+			{
+				RelationCache cache = deltaCaches.computeIfAbsent(KBSnapshot.cacheId(relation, keyArg, valueArg), id -> new RelationCache(relation, keyArg, valueArg));
+				deltaValues = cache.computeIfAbsent(key, k -> new HashSet<>());
+			}
+			deltaValues.add(value);
+		}
+	}
+
+	/**
+	 * Rebuild the delta caches from the delta formulas.  The base caches
+	 * are not rebuilt.
+	 *
+	 * @param clearExistingCaches ignored: the delta caches are always cleared
+	 */
+	@Override public synchronized void buildRelationCaches(boolean clearExistingCaches)
+	{
+		deltaCaches.clear();
+		getRelationValences().clear();
+		addToDeltaCaches(new ArrayList<>(formulaMap.values()));
+		incrementVersion();
+		updateSnapshot();
+	}
+
+	/**
+	 * Number of delta cache entries
+	 *
+	 * @return number of values in the delta caches
+	 */
+	public synchronized int getDeltaCacheSize()
+	{
+		int result = 0;
+		for (RelationCache cache : deltaCaches.values())
+		{
+			for (Set<String> values : cache.values())
+				result += values.size();
+		}
+		return result;
+	}
+
+	// R E T R A C T
+
+	/**
+	 * Retract the delta formulas that satisfy a predicate.  The formulas
+	 * of the base cannot be retracted.  The delta caches are rebuilt.
+	 *
+	 * @param predicate test of the formulas to retract
+	 * @return number of formulas retracted
+	 */
+	@Override public synchronized int retractAll(Predicate<Formula> predicate)
+	{
+		List<Formula> retracted = new ArrayList<>();
+		for (Formula f : formulaMap.values())
+		{
+			if (predicate.test(f))
+				retracted.add(f);
+		}
+		if (retracted.isEmpty())
+			return 0;
+		Set<String> candidates = new HashSet<>();
+		for (Formula f : retracted)
+			unindexFormula(f, candidates);
+		dropUnreferencedTerms(candidates);
+		clearFormatMaps();
+		buildRelationCaches(true);
+		return retracted.size();
+	}
+
+	/**
+	 * Retract a delta formula.  The formulas of the base cannot be
+	 * retracted.
+	 *
+	 * @param f formula
+	 * @return whether a formula was retracted
+	 */
+	@Override public synchronized boolean retract(Formula f)
+	{
+		return retractAll(g -> g.text.equals(f.text)) > 0;
+	}
+
+	/**
+	 * Remove a constituent of the overlay: its formulas are retracted
+	 *
+	 * @param filename the full path of the file
+	 */
+	@Override public synchronized void removeConstituent(String filename)
+	{
+		try
+		{
+			String canonicalPath = new File(filename).getCanonicalPath();
+			if (constituents.remove(canonicalPath))
+				retractAll(f -> canonicalPath.equals(f.sourceFile));
+		}
+		catch (Exception ex)
+		{
+			logger.warning(Arrays.toString(ex.getStackTrace()));
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reload a constituent of the overlay: it is removed and added anew
+	 *
+	 * @param filename the full path of the file
+	 */
+	@Override public synchronized void reloadConstituent(String filename)
+	{
+		removeConstituent(filename);
+		addConstituent(filename, true, true);
+	}
+
+	// S N A P S H O T
+
+	/**
+	 * Make the snapshot of the overlay: the snapshot of the base, and a
+	 * copy of the delta, which is small
+	 */
+	@Override KBSnapshot makeSnapshot(KBSnapshot previous, KBSnapshot.Changes changes)
+	{
+		changes.clear();
+		return new Snapshot();
+	}
+
+	/**
+	 * Snapshot of an overlay, which merges the answers of the snapshot of
+	 * the base and of a copy of the delta, as the overlay does
+	 */
+	private class Snapshot extends KBSnapshot
+	{
+		private final KBSnapshot baseSnapshot;
+
+		// Copy of the delta formula index, formulas, terms and caches
+		private final Map<String, List<Formula>> deltaIndex = new HashMap<>();
+
+		private final Map<String, Formula> deltaFormulas;
+
+		private final String[] deltaTerms;
+
+		private final Map<String, Map<String, Set<String>>> deltaCacheValues = new HashMap<>();
+
+		// Merged terms, made on first use
+		private volatile List<String> mergedTermList;
+
+		Snapshot()
+		{
+			super(OverlayKB.this.name, OverlayKB.this.getVersion());
+			baseSnapshot = base.getSnapshot();
+			for (Map.Entry<String, List<Formula>> entry : formulas.entrySet())
+			{
+				if (!entry.getValue().isEmpty())
+					deltaIndex.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<>(entry.getValue())));
+			}
+			deltaFormulas = new HashMap<>(formulaMap);
+			synchronized (terms)
+			{
+				deltaTerms = terms.toArray(new String[0]);
+			}
+			for (Map.Entry<String, RelationCache> entry : deltaCaches.entrySet())
+			{
+				Map<String, Set<String>> values = new HashMap<>();
+				for (Map.Entry<String, Set<String>> cacheEntry : entry.getValue().entrySet())
+					values.put(cacheEntry.getKey(), new HashSet<>(cacheEntry.getValue()));
+				deltaCacheValues.put(entry.getKey(), values);
+			}
+		}
+
+		@Override public List<Formula> ask(String kind, int argnum, String term)
+		{
+			List<Formula> baseResult = baseSnapshot.ask(kind, argnum, term);
+			List<Formula> deltaResult = deltaIndex.get(kind.equals("arg") ? kind + "-" + argnum + "-" + term : kind + "-" + term);
+			if (deltaResult == null)
+				return baseResult;
+			List<Formula> result = new ArrayList<>(baseResult);
+			result.addAll(deltaResult);
+			return Collections.unmodifiableList(result);
+		}
+
+		@Override public Formula getFormula(String text)
+		{
+			Formula result = deltaFormulas.get(text);
+			return result != null ? result : baseSnapshot.getFormula(text);
+		}
+
+		@Override public boolean containsFormula(String text)
+		{
+			return deltaFormulas.containsKey(text) || baseSnapshot.containsFormula(text);
+		}
+
+		@Override public int getFormulaCount()
+		{
+			return baseSnapshot.getFormulaCount() + deltaFormulas.size();
+		}
+
+		@Override public List<String> getTerms()
+		{
+			List<String> result = mergedTermList;
+			if (result == null)
+			{
+				List<String> baseTerms = baseSnapshot.getTerms();
+				String[] merged = new String[baseTerms.size() + deltaTerms.length];
+				int i = 0, j = 0, k = 0;
+				while (i < baseTerms.size() || j < deltaTerms.length)
+				{
+					if (j == deltaTerms.length || (i < baseTerms.size() && baseTerms.get(i).compareTo(deltaTerms[j]) <= 0))
+						merged[k++] = baseTerms.get(i++);
+					else
+						merged[k++] = deltaTerms[j++];
+				}
+				mergedTermList = result = Collections.unmodifiableList(Arrays.asList(merged));
+			}
+			return result;
+		}
+
+		@Override public boolean containsTerm(String term)
+		{
+			return Arrays.binarySearch(deltaTerms, term) >= 0 || baseSnapshot.containsTerm(term);
+		}
+
+		@Override public Set<String> getCachedRelationValues(String relation, String term, int keyArg, int valueArg)
+		{
+			Set<String> baseValues = baseSnapshot.getCachedRelationValues(relation, term, keyArg, valueArg);
+			Map<String, Set<String>> cache = deltaCacheValues.get(KBSnapshot.cacheId(relation, keyArg, valueArg));
+			Set<String> deltaValues = cache != null ? cache.get(term) : null;
+			if (deltaValues == null)
+				return baseValues;
+			Set<String> result = new HashSet<>(baseValues);
+			result.addAll(deltaValues);
+			return Collections.unmodifiableSet(result);
+		}
+
+		@Override public RelationSignature getRelationSignature(String relation)
+		{
+			return baseSnapshot.getRelationSignature(relation);
+		}
+
+		@Override public String toString()
+		{
+			return getName() + "@" + getVersion() + " delta formulas=" + deltaFormulas.size() + " keys=" + deltaIndex.size() + " terms=" + deltaTerms.length + " caches=" + deltaCacheValues.size() + " over " + baseSnapshot;
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package com.articulate.sigma;
+
+import com.articulate.sigma.kif.KIF;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A cache of parsed constituent files, shared by KBs so that a file that
+ * several KBs load is parsed once.  Parses are keyed by the canonical path
+ * of the file and are valid for its content: a file whose size and
+ * modification time are those it had when parsed is taken to be
+ * unchanged, else its content hash is compared with that of the parse.
+ * Each KB gets its own copies of the parsed formulas, since a KB changes
+ * its formulas; the texts and features are shared.
+ * Hits and misses are counted.
+ */
+public class ParseCache
+{
+	private static final Logger logger = Logger.getLogger(ParseCache.class.getName());
+
+	/**
+	 * Parse of a file, and the state of the file it is valid for
+	 */
+	private static class Entry
+	{
+		long size;
+
+		long modified;
+
+		byte[] digest;
+
+		KIF parsed;
+	}
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Parse a file as KIF.readFile() does, from the cache if its content
+	 * was parsed before.  Threads parsing the same file wait for one parse.
+	 *
+	 * @param canonicalPath canonical path of the file
+	 * @return a parse of the file whose formulas belong to the caller
+	 * @throws Exception if the file cannot be read
+	 */
+	public KIF parse(String canonicalPath) throws Exception
+	{
+		return copy(getParse(canonicalPath));
+	}
+
+	/**
+	 * Parse a file into the cache, unless its content was parsed before,
+	 * so that a later parse() is a hit.  Files may be prefetched in
+	 * parallel.
+	 *
+	 * @param canonicalPath canonical path of the file
+	 * @throws Exception if the file cannot be read
+	 */
+	public void prefetch(String canonicalPath) throws Exception
+	{
+		getParse(canonicalPath);
+	}
+
+	/**
+	 * The cached parse of a file, made anew if the file changed
+	 *
+	 * @param canonicalPath canonical path of the file
+	 * @return parse, shared
+	 * @throws Exception if the file cannot be read
+	 */
+	private KIF getParse(String canonicalPath) throws Exception
+	{
+		Entry entry = entries.computeIfAbsent(canonicalPath, k -> new Entry());
+		synchronized (entry)
+		{
+			File file = new File(canonicalPath);
+			if (!file.isFile())
+			{
+				// Fails as KIF.readFile() does
+				KIF kif = new KIF();
+				kif.readFile(canonicalPath);
+				return kif;
+			}
+			long size = file.length();
+			long modified = file.lastModified();
+			if (entry.parsed == null || entry.size != size || entry.modified != modified)
+			{
+				byte[] content = Files.readAllBytes(file.toPath());
+				byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+				if (entry.parsed == null || !Arrays.equals(digest, entry.digest))
+				{
+					misses.incrementAndGet();
+					KIF kif = new KIF();
+					kif.readFile(canonicalPath, content);
+					entry.parsed = kif;
+					entry.digest = digest;
+				}
+				else
+				{
+					hits.incrementAndGet();
+					logger.fine("Unchanged content of " + canonicalPath);
+				}
+				// The state of the file is taken again after the read, and
+				// recorded only if a write did not race with the read, else
+				// the content is compared again next time.
+				boolean unchanged = file.length() == size && file.lastModified() == modified;
+				entry.size = unchanged ? size : -1;
+				entry.modified = unchanged ? modified : -1;
+			}
+			else
+				hits.incrementAndGet();
+			return entry.parsed;
+		}
+	}
+
+	/**
+	 * Copy a parse, with new formulas
+	 *
+	 * @param parsed parse
+	 * @return copy
+	 */
+	private static KIF copy(KIF parsed)
+	{
+		KIF result = new KIF();
+		Map<Formula, Formula> copies = new IdentityHashMap<>();
+		for (Map.Entry<String, List<Formula>> entry : parsed.formulas.entrySet())
+		{
+			List<Formula> list = new ArrayList<>(entry.getValue().size());
+			for (Formula f : entry.getValue())
+				list.add(copies.computeIfAbsent(f, ParseCache::copy));
+			result.formulas.put(entry.getKey(), list);
+		}
+		result.formulaSet.addAll(parsed.formulaSet);
+		result.terms.addAll(parsed.terms);
+		result.warningSet.addAll(parsed.warningSet);
+		return result;
+	}
+
+	private static Formula copy(Formula f)
+	{
+		Formula result = new Formula();
+		result.text = f.text;
+		result.setFeatures(f.getFeatures());
+		result.sourceFile = f.sourceFile;
+		result.startLine = f.startLine;
+		result.endLine = f.endLine;
+		result.errors.addAll(f.errors);
+		return result;
+	}
+
+	/**
+	 * Drop the parse of a file
+	 *
+	 * @param canonicalPath canonical path of the file
+	 */
+	public void remove(String canonicalPath)
+	{
+		entries.remove(canonicalPath);
+	}
+
+	/**
+	 * Drop all parses
+	 */
+	public void clear()
+	{
+		entries.clear();
+	}
+
+	/**
+	 * Number of files parsed
+	 *
+	 * @return number of entries
+	 */
+	public int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Number of parses that were found in the cache
+	 *
+	 * @return count
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * Number of parses that were made
+	 *
+	 * @return count
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	@Override public String toString()
+	{
+		return "entries=" + entries.size() + " hits=" + hits + " misses=" + misses;
+	}
+}
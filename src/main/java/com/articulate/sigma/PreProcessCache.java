@@ -0,0 +1,244 @@
+package com.articulate.sigma;
+
+import java.util.*;
+
+/**
+ * A bounded memo of preprocessing results, so that preprocessing the same
+ * formula again against an unchanged KB is a lookup.
+ * Results are keyed by the fingerprint of the formula text, whether it is
+ * a query and the preprocessing options, and are valid for the KB version
+ * they were computed at: the memo is emptied when the KB version changes.
+ * Entries are evicted in least recently used order beyond the capacity.
+ * The (instance &lt;Entity&gt; &lt;SetOrClass&gt;) statements that preprocessing
+ * adds only once per KB are remembered as such and checked against the KB
+ * at each lookup, so that results are those of preprocessing anew.
+ * Hits and misses are counted.
+ */
+public class PreProcessCache
+{
+	/**
+	 * Default capacity
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Cache key
+	 */
+	private static class Key
+	{
+		final long fingerprint;
+
+		final boolean isQuery;
+
+		final PreProcessOptions options;
+
+		Key(long fingerprint, boolean isQuery, PreProcessOptions options)
+		{
+			this.fingerprint = fingerprint;
+			this.isQuery = isQuery;
+			this.options = options;
+		}
+
+		@Override public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+			Key that = (Key) o;
+			return fingerprint == that.fingerprint && isQuery == that.isQuery && options.equals(that.options);
+		}
+
+		@Override public int hashCode()
+		{
+			return 31 * (31 * Long.hashCode(fingerprint) + (isQuery ? 1 : 0)) + options.hashCode();
+		}
+	}
+
+	/**
+	 * Cache entry: the texts of the resulting formulas, whether each is an
+	 * added SetOrClass statement, and the errors found
+	 */
+	private static class Entry
+	{
+		final String text;
+
+		final String[] results;
+
+		final boolean[] setOrClass;
+
+		final List<String> errors;
+
+		Entry(String text, String[] results, boolean[] setOrClass, List<String> errors)
+		{
+			this.text = text;
+			this.results = results;
+			this.setOrClass = setOrClass;
+			this.errors = errors;
+		}
+	}
+
+	private final int capacity;
+
+	// Entries in access order, least recently used first
+	private final LinkedHashMap<Key, Entry> entries;
+
+	// KB version the entries were computed at
+	private long version = -1;
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity maximum number of entries
+	 */
+	public PreProcessCache(int capacity)
+	{
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<Key, Entry>(Math.min(capacity, 256), 0.75F, true)
+		{
+			private static final long serialVersionUID = -6103870618318296207L;
+
+			@Override protected boolean removeEldestEntry(Map.Entry<Key, PreProcessCache.Entry> eldest)
+			{
+				return size() > PreProcessCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Preprocess a formula as FormulaPreProcessor.preProcess() does, from the
+	 * memo if the formula was preprocessed at the current version of the KB.
+	 *
+	 * @param f0      formula to preprocess
+	 * @param isQuery If true the Formula is a query, else a statement
+	 * @param kb      The KB to be used for processing this Formula
+	 * @param options preprocessing options
+	 * @return an List of Formula(s), which could be empty.
+	 */
+	public List<Formula> preProcess(Formula f0, boolean isQuery, KB kb, PreProcessOptions options)
+	{
+		if (f0.text == null || f0.text.isEmpty())
+			return new ArrayList<>();
+		long kbVersion = kb.getVersion();
+		Key key = new Key(ClausalFormStore.fingerprint(f0.text), isQuery, options);
+		Entry entry = get(key, f0.text, kbVersion);
+		if (entry == null)
+		{
+			int errorCount = f0.errors.size();
+			Map<String, Formula> added = new HashMap<>();
+			List<Formula> results = FormulaPreProcessor.preProcess(f0, isQuery, kb, options, added);
+			String[] texts = new String[results.size()];
+			boolean[] setOrClass = new boolean[results.size()];
+			for (int i = 0; i < texts.length; i++)
+			{
+				Formula f = results.get(i);
+				texts[i] = f.text;
+				setOrClass[i] = added.get(f.text) == f;
+			}
+			List<String> errors = new ArrayList<>(f0.errors.subList(errorCount, f0.errors.size()));
+			entry = new Entry(f0.text, texts, setOrClass, errors);
+			put(key, entry, kbVersion);
+		}
+		else
+			f0.errors.addAll(entry.errors);
+		return toFormulas(entry, f0, kb);
+	}
+
+	/**
+	 * Make the formulas of an entry, keeping the added SetOrClass statements
+	 * not already added for an earlier formula
+	 */
+	private static List<Formula> toFormulas(Entry entry, Formula f0, KB kb)
+	{
+		List<Formula> result = new ArrayList<>(entry.results.length);
+		for (int i = 0; i < entry.results.length; i++)
+		{
+			String text = entry.results[i];
+			if (entry.setOrClass[i] && !kb.addSetOrClassInstance(text))
+				continue;
+			Formula f = new Formula();
+			f.set(text);
+			f.sourceFile = f0.sourceFile;
+			result.add(f);
+		}
+		return result;
+	}
+
+	private synchronized Entry get(Key key, String text, long kbVersion)
+	{
+		if (kbVersion != version)
+		{
+			entries.clear();
+			version = kbVersion;
+		}
+		Entry entry = entries.get(key);
+		if (entry != null && entry.text.equals(text))
+		{
+			hits++;
+			return entry;
+		}
+		misses++;
+		return null;
+	}
+
+	private synchronized void put(Key key, Entry entry, long kbVersion)
+	{
+		if (kbVersion == version)
+			entries.put(key, entry);
+	}
+
+	/**
+	 * Drop all entries
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+	}
+
+	/**
+	 * Number of entries
+	 *
+	 * @return number of entries
+	 */
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Capacity
+	 *
+	 * @return maximum number of entries
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Number of lookups that found a result
+	 *
+	 * @return count
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * Number of lookups that found no result
+	 *
+	 * @return count
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	@Override public synchronized String toString()
+	{
+		return "entries=" + entries.size() + "/" + capacity + " version=" + version + " hits=" + hits + " misses=" + misses;
+	}
+}
@@ -0,0 +1,117 @@
+package com.articulate.sigma;
+
+/**
+ * Options of formula preprocessing.  They are resolved once, typically
+ * from the KBManager preferences, and passed down the preprocessing
+ * pipeline, so that the recursion does not look preferences up.
+ * Instances are immutable and can be shared by threads; they compare
+ * equal when all their options are equal.
+ */
+public final class PreProcessOptions
+{
+	/**
+	 * Prepend 'holds_' (or 'apply_' for functional terms) and the argument
+	 * count to predicates (preference "holdsPrefix")
+	 */
+	public final boolean holdsPrefix;
+
+	/**
+	 * Add sortal type restrictions to statements with variables (preference "typePrefix")
+	 */
+	public final boolean typePrefix;
+
+	/**
+	 * Ignore strings
+	 */
+	public final boolean ignoreStrings;
+
+	/**
+	 * Translate inequalities
+	 */
+	public final boolean translateIneq;
+
+	/**
+	 * Translate mathematical operators
+	 */
+	public final boolean translateMath;
+
+	/**
+	 * Options with neither holds prefix nor type restrictions
+	 */
+	public static final PreProcessOptions DEFAULT = new PreProcessOptions(false, false, false, true, true);
+
+	/**
+	 * Constructor
+	 *
+	 * @param holdsPrefix   prepend 'holds_' and argument counts to predicates
+	 * @param typePrefix    add sortal type restrictions
+	 * @param ignoreStrings ignore strings
+	 * @param translateIneq translate inequalities
+	 * @param translateMath translate mathematical operators
+	 */
+	public PreProcessOptions(boolean holdsPrefix, boolean typePrefix, boolean ignoreStrings, boolean translateIneq, boolean translateMath)
+	{
+		this.holdsPrefix = holdsPrefix;
+		this.typePrefix = typePrefix;
+		this.ignoreStrings = ignoreStrings;
+		this.translateIneq = translateIneq;
+		this.translateMath = translateMath;
+	}
+
+	/**
+	 * Resolve options from the KBManager preferences "holdsPrefix" and "typePrefix"
+	 *
+	 * @return options
+	 */
+	public static PreProcessOptions fromPreferences()
+	{
+		KBManager mgr = KBManager.getMgr();
+		boolean holdsPrefix = mgr.getPref("holdsPrefix").equalsIgnoreCase("yes");
+		boolean typePrefix = mgr.getPref("typePrefix").equalsIgnoreCase("yes");
+		return new PreProcessOptions(holdsPrefix, typePrefix, DEFAULT.ignoreStrings, DEFAULT.translateIneq, DEFAULT.translateMath);
+	}
+
+	/**
+	 * Copy with another holds prefix option
+	 *
+	 * @param holdsPrefix prepend 'holds_' and argument counts to predicates
+	 * @return options
+	 */
+	public PreProcessOptions withHoldsPrefix(boolean holdsPrefix)
+	{
+		return new PreProcessOptions(holdsPrefix, typePrefix, ignoreStrings, translateIneq, translateMath);
+	}
+
+	/**
+	 * Copy with another type prefix option
+	 *
+	 * @param typePrefix add sortal type restrictions
+	 * @return options
+	 */
+	public PreProcessOptions withTypePrefix(boolean typePrefix)
+	{
+		return new PreProcessOptions(holdsPrefix, typePrefix, ignoreStrings, translateIneq, translateMath);
+	}
+
+	@Override public boolean equals(Object o)
+	{
+		if (this == o)
+			return true;
+		if (!(o instanceof PreProcessOptions))
+			return false;
+		PreProcessOptions that = (PreProcessOptions) o;
+		return holdsPrefix == that.holdsPrefix && typePrefix == that.typePrefix && ignoreStrings == that.ignoreStrings && translateIneq == that.translateIneq
+				&& translateMath == that.translateMath;
+	}
+
+	@Override public int hashCode()
+	{
+		return (holdsPrefix ? 1 : 0) | (typePrefix ? 2 : 0) | (ignoreStrings ? 4 : 0) | (translateIneq ? 8 : 0) | (translateMath ? 16 : 0);
+	}
+
+	@Override public String toString()
+	{
+		return "holdsPrefix=" + holdsPrefix + " typePrefix=" + typePrefix + " ignoreStrings=" + ignoreStrings + " translateIneq=" + translateIneq + " translateMath="
+				+ translateMath;
+	}
+}
@@ -0,0 +1,237 @@
+package com.articulate.sigma;
+
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * A join engine for predicate variable instantiation.
+ * The query literals gathered for the predicate variables of a formula,
+ * such as (instance ?REL TransitiveRelation) or (subrelation ?REL1 ?REL2),
+ * are treated as a conjunctive query over the KB.  Each literal is asked
+ * once; its answers are the ground literals that match it, constants and
+ * repeated variables included.  Literals are then joined smallest first,
+ * each next literal being the smallest one that shares a variable with
+ * those already joined, by probing a hash index of its answers on the
+ * shared variables.  Substitutions are produced lazily as a stream, so
+ * that the variables of several literals are bound together rather than
+ * by a cross product of the answers of each literal.
+ * A literal with no answers makes the query unsatisfiable if it has one
+ * variable; one with several variables is left out of the join, as the
+ * KB indexes may not answer it.
+ */
+class PredVarJoin
+{
+	/**
+	 * A planned join step: a literal, its answers indexed by the values of
+	 * the variables bound by the preceding steps
+	 */
+	private static class Step
+	{
+		final List<String> literal;
+
+		// Variables bound by preceding steps, and their positions in the literal
+		final List<String> boundVars = new ArrayList<>();
+
+		final List<Integer> boundPositions = new ArrayList<>();
+
+		// Variables bound by this step, and their positions in the literal
+		final List<String> newVars = new ArrayList<>();
+
+		final List<Integer> newPositions = new ArrayList<>();
+
+		// Answers by values of the bound variables
+		final Map<List<String>, List<List<String>>> index = new HashMap<>();
+
+		Step(List<String> literal)
+		{
+			this.literal = literal;
+		}
+	}
+
+	private final List<Step> steps = new ArrayList<>();
+
+	private final List<List<String>> satisfiedLiterals = new ArrayList<>();
+
+	private boolean satisfiable = true;
+
+	/**
+	 * Constructor, which asks the KB and plans the join
+	 *
+	 * @param kb        knowledge base
+	 * @param queryLits query literals, as lists of a predicate followed by
+	 *                  constants and variables
+	 */
+	PredVarJoin(KB kb, Collection<List<String>> queryLits)
+	{
+		// Ask each literal once.
+		Map<List<String>, List<List<String>>> answers = new LinkedHashMap<>();
+		for (List<String> queryLit : queryLits)
+		{
+			if (answers.containsKey(queryLit))
+				continue;
+			List<List<String>> matches = new ArrayList<>();
+			for (List<String> answer : KB.formulasToLists(kb.askWithLiteral(queryLit)))
+			{
+				if (matches(queryLit, answer))
+					matches.add(answer);
+			}
+			if (matches.isEmpty())
+			{
+				if (variables(queryLit).size() <= 1)
+				{
+					satisfiable = false;
+					return;
+				}
+				continue;
+			}
+			answers.put(queryLit, matches);
+		}
+		satisfiedLiterals.addAll(answers.keySet());
+
+		// Order the literals: the smallest first, then the smallest connected to those before it.
+		Set<String> bound = new HashSet<>();
+		List<List<String>> remaining = new ArrayList<>(answers.keySet());
+		while (!remaining.isEmpty())
+		{
+			List<String> next = null;
+			boolean nextConnected = false;
+			for (List<String> queryLit : remaining)
+			{
+				boolean connected = !Collections.disjoint(bound, variables(queryLit));
+				if (next == null || (connected && !nextConnected) || (connected == nextConnected && answers.get(queryLit).size() < answers.get(next).size()))
+				{
+					next = queryLit;
+					nextConnected = connected;
+				}
+			}
+			remaining.remove(next);
+			steps.add(plan(next, answers.get(next), bound));
+		}
+	}
+
+	/**
+	 * Plan a step, indexing the answers of the literal on the variables already bound
+	 */
+	private static Step plan(List<String> literal, List<List<String>> answers, Set<String> bound)
+	{
+		Step step = new Step(literal);
+		for (int i = 1; i < literal.size(); i++)
+		{
+			String term = literal.get(i);
+			if (!Formula.isVariable(term))
+				continue;
+			if (bound.contains(term))
+			{
+				if (!step.boundVars.contains(term))
+				{
+					step.boundVars.add(term);
+					step.boundPositions.add(i);
+				}
+			}
+			else if (!step.newVars.contains(term))
+			{
+				step.newVars.add(term);
+				step.newPositions.add(i);
+			}
+		}
+		for (List<String> answer : answers)
+			step.index.computeIfAbsent(values(answer, step.boundPositions), k -> new ArrayList<>()).add(answer);
+		bound.addAll(step.newVars);
+		return step;
+	}
+
+	/**
+	 * Whether the query may have answers
+	 *
+	 * @return false if a literal with a single variable has no answers
+	 */
+	boolean isSatisfiable()
+	{
+		return satisfiable && !steps.isEmpty();
+	}
+
+	/**
+	 * Literals that have answers, which substitutions make true
+	 *
+	 * @return query literals
+	 */
+	List<List<String>> getSatisfiedLiterals()
+	{
+		return satisfiedLiterals;
+	}
+
+	/**
+	 * Substitutions that satisfy all the literals joined
+	 *
+	 * @return stream of maps from variables to terms
+	 */
+	Stream<Map<String, String>> stream()
+	{
+		if (!isSatisfiable())
+			return Stream.empty();
+		return extend(0, new HashMap<>());
+	}
+
+	private Stream<Map<String, String>> extend(int depth, Map<String, String> binding)
+	{
+		if (depth == steps.size())
+			return Stream.of(binding);
+		Step step = steps.get(depth);
+		List<String> key = new ArrayList<>(step.boundVars.size());
+		for (String var : step.boundVars)
+			key.add(binding.get(var));
+		List<List<String>> answers = step.index.get(key);
+		if (answers == null)
+			return Stream.empty();
+		return answers.stream().flatMap(answer -> {
+			Map<String, String> extended = new HashMap<>(binding);
+			for (int i = 0; i < step.newVars.size(); i++)
+				extended.put(step.newVars.get(i), answer.get(step.newPositions.get(i)));
+			return extend(depth + 1, extended);
+		});
+	}
+
+	/**
+	 * Whether a ground literal is an answer to a query literal: same
+	 * length, same constants, same terms for repeated variables
+	 */
+	private static boolean matches(List<String> queryLit, List<String> answer)
+	{
+		if (queryLit.size() != answer.size())
+			return false;
+		Map<String, String> binding = new HashMap<>();
+		for (int i = 0; i < queryLit.size(); i++)
+		{
+			String term = queryLit.get(i);
+			String value = answer.get(i);
+			if (Formula.isVariable(term))
+			{
+				String previous = binding.putIfAbsent(term, value);
+				if (previous != null && !previous.equals(value))
+					return false;
+			}
+			else if (!term.equals(value))
+				return false;
+		}
+		return true;
+	}
+
+	private static Set<String> variables(List<String> literal)
+	{
+		Set<String> result = new LinkedHashSet<>();
+		for (int i = 1; i < literal.size(); i++)
+		{
+			if (Formula.isVariable(literal.get(i)))
+				result.add(literal.get(i));
+		}
+		return result;
+	}
+
+	private static List<String> values(List<String> answer, List<Integer> positions)
+	{
+		List<String> result = new ArrayList<>(positions.size());
+		for (int position : positions)
+			result.add(answer.get(position));
+		return result;
+	}
+}
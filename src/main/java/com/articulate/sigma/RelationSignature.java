@@ -0,0 +1,227 @@
+package com.articulate.sigma;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * The signature of a relation: its valence, the types of its arguments
+ * and which of its arguments are relations.  Argument types are given
+ * both as declared for the relation itself by domain, domainSubclass,
+ * range and rangeSubclass statements, and as inherited from its nearest
+ * super-relations when not declared.  A '+' is appended to a type if the
+ * argument must be a subclass of the type rather than an instance;
+ * argument 0 is the range of a function.
+ * Signatures are immutable.  They are built for all the relations of a
+ * KB at once, after the relation caches, so that looking them up does not
+ * query the KB.
+ */
+public final class RelationSignature
+{
+	private static final Logger logger = Logger.getLogger(RelationSignature.class.getName());
+
+	/**
+	 * Relation name
+	 */
+	public final String name;
+
+	private final int valence;
+
+	private final List<String> declaredTypes;
+
+	private final String[] argTypes;
+
+	private final boolean[] relationArgs;
+
+	private RelationSignature(String name, int valence, List<String> declaredTypes, String[] argTypes, boolean[] relationArgs)
+	{
+		this.name = name;
+		this.valence = valence;
+		this.declaredTypes = declaredTypes;
+		this.argTypes = argTypes;
+		this.relationArgs = relationArgs;
+	}
+
+	/**
+	 * Valence, as KB.getValence() computes it
+	 *
+	 * @return valence, 0 for a variable arity relation, -1 if unknown
+	 */
+	public int getValence()
+	{
+		return valence;
+	}
+
+	/**
+	 * Argument type, declared or inherited from the nearest super-relation
+	 * that declares it, as Formula.findType() computes it
+	 *
+	 * @param argIdx argument index, 0 for the range of a function
+	 * @return type, with a '+' appended for a subclass, or null if none
+	 */
+	public String getArgType(int argIdx)
+	{
+		return argIdx >= 0 && argIdx < argTypes.length ? argTypes[argIdx] : null;
+	}
+
+	/**
+	 * Argument types declared for this relation itself
+	 *
+	 * @return unmodifiable List, indexed by argument, of types with a '+'
+	 * appended for a subclass, null where none is declared; its length
+	 * is the valence plus one, or allows for the maximum arity if the valence is unknown
+	 */
+	public List<String> getDeclaredTypes()
+	{
+		return declaredTypes;
+	}
+
+	/**
+	 * Relation-valued arguments
+	 *
+	 * @return array indexed by argument, true where the argument must be a relation,
+	 * or null if no argument must be
+	 */
+	public boolean[] getRelationArgs()
+	{
+		return relationArgs;
+	}
+
+	@Override public String toString()
+	{
+		return name + " valence=" + valence + " types=" + Arrays.toString(argTypes) + " relationArgs=" + Arrays.toString(relationArgs);
+	}
+
+	// B U I L D
+
+	/**
+	 * Build the signatures of the relations of a KB: the instances of
+	 * Relation, the relations with declared argument types and those with
+	 * relation-valued arguments.  The relation caches must have been built.
+	 * Conflicting or out of range type declarations are reported in the
+	 * KB errors.
+	 *
+	 * @param kb knowledge base
+	 * @return unmodifiable Map from relation names to signatures
+	 */
+	static Map<String, RelationSignature> build(KB kb)
+	{
+		// Declared types, by relation and argument index
+		Map<String, Map<Integer, String>> declared = new HashMap<>();
+		Map<String, List<String[]>> declarations = new LinkedHashMap<>();
+		String[] typePreds = { "domain", "domainSubclass", "range", "rangeSubclass" };
+		for (String typePred : typePreds)
+		{
+			boolean isDomain = typePred.startsWith("domain");
+			boolean isSubclass = typePred.endsWith("Subclass");
+			for (Formula f : kb.ask("arg", 0, typePred))
+			{
+				String reln = f.getArgument(1);
+				try
+				{
+					int argIdx = isDomain ? Integer.parseInt(f.getArgument(2)) : 0;
+					String type = f.getArgument(isDomain ? 3 : 2);
+					declarations.computeIfAbsent(reln, k -> new ArrayList<>()).add(new String[] { Integer.toString(argIdx), type, isSubclass ? "+" : "" });
+					if (isDomain == argIdx > 0)
+						declared.computeIfAbsent(reln, k -> new HashMap<>()).putIfAbsent(argIdx, isSubclass ? type + "+" : type);
+				}
+				catch (NumberFormatException ex)
+				{
+					logger.warning("Bad argument number in " + f.text);
+				}
+			}
+		}
+
+		// Direct super-relations
+		Map<String, List<String>> parents = new HashMap<>();
+		for (Formula f : kb.ask("arg", 0, "subrelation"))
+			parents.computeIfAbsent(f.getArgument(1), k -> new ArrayList<>()).add(f.getArgument(2));
+
+		Set<String> relations = new TreeSet<>(kb.getCachedRelationValues("instance", "Relation", 2, 1));
+		relations.addAll(declarations.keySet());
+		// "format" is given a relation argument without a domain statement.
+		if (kb.getRelnArgSignature("format") != null)
+			relations.add("format");
+
+		Map<String, RelationSignature> result = new HashMap<>();
+		for (String reln : relations)
+		{
+			if (reln.isEmpty())
+				continue;
+			int valence = kb.getValence(reln);
+			List<String> declaredTypes = declaredTypes(reln, valence, declarations.get(reln), kb);
+			String[] argTypes = inheritedTypes(reln, declared, parents);
+			result.put(reln, new RelationSignature(reln, valence, declaredTypes, argTypes, kb.getRelnArgSignature(reln)));
+		}
+		logger.info(result.size() + " relation signatures");
+		return Collections.unmodifiableMap(result);
+	}
+
+	/**
+	 * Declared types, as Formula.getTypeList() computes them: the first
+	 * declaration of an argument is kept, other ones are reported.
+	 */
+	private static List<String> declaredTypes(String reln, int valence, List<String[]> declarations, KB kb)
+	{
+		int len = Formula.MAX_PREDICATE_ARITY + 1;
+		if (valence == 0)
+			len = 2;
+		else if (valence > 0)
+			len = valence + 1;
+		String[] result = new String[len];
+		if (declarations != null)
+		{
+			for (String[] declaration : declarations)
+			{
+				int argIdx = Integer.parseInt(declaration[0]);
+				String type = declaration[1];
+				if (argIdx < 0 || argIdx >= len)
+					kb.errors.add("Possible arity confusion for " + reln);
+				else if (result[argIdx] == null || result[argIdx].isEmpty())
+					result[argIdx] = type + declaration[2];
+				else if (!type.equals(result[argIdx]))
+					kb.errors.add("Multiple types asserted for argument " + argIdx + " of " + reln + ": " + type + ", " + result[argIdx]);
+			}
+		}
+		return Collections.unmodifiableList(Arrays.asList(result));
+	}
+
+	/**
+	 * Inherited types, as Formula.findType() computes them: for each
+	 * argument, the type declared by the relation or else by the
+	 * super-relations nearest to it, searched breadth first.
+	 */
+	private static String[] inheritedTypes(String reln, Map<String, Map<Integer, String>> declared, Map<String, List<String>> parents)
+	{
+		Map<Integer, String> types = new HashMap<>();
+		int max = -1;
+		Set<String> visited = new HashSet<>();
+		Set<String> level = new LinkedHashSet<>();
+		level.add(reln);
+		while (!level.isEmpty())
+		{
+			Set<String> next = new LinkedHashSet<>();
+			for (String relation : level)
+			{
+				if (!visited.add(relation))
+					continue;
+				Map<Integer, String> relationTypes = declared.get(relation);
+				if (relationTypes != null)
+				{
+					for (Map.Entry<Integer, String> entry : relationTypes.entrySet())
+					{
+						if (entry.getKey() >= 0 && types.putIfAbsent(entry.getKey(), entry.getValue()) == null)
+							max = Math.max(max, entry.getKey());
+					}
+				}
+				List<String> relationParents = parents.get(relation);
+				if (relationParents != null)
+					next.addAll(relationParents);
+			}
+			level = next;
+		}
+		String[] result = new String[max + 1];
+		for (Map.Entry<Integer, String> entry : types.entrySet())
+			result[entry.getKey()] = entry.getValue();
+		return result;
+	}
+}
@@ -0,0 +1,288 @@
+package com.articulate.sigma;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A concurrent, bounded cache of sortal type data, such as the argument
+ * types computed by Formula.findType() and Formula.getTypeList(), shared
+ * by the threads that preprocess formulas of a KB.
+ * Entries are valid for the KB version they were cached at: the cache
+ * empties itself when it is accessed after the KB, and so its domain and
+ * subclass caches, changed.  Entries are changed under a read lock, and
+ * checked to be for the current version, while the cache empties itself
+ * under the write lock, so that no entry of a former version survives.
+ * Data computed from the KB is to be put with put(key, value, version),
+ * with the version the computation started at, so that it is dropped if
+ * the KB changed meanwhile.  Beyond the capacity, entries are evicted in
+ * no particular order until the cache is three quarters full.
+ * Hits, misses and evictions are counted.
+ */
+public class SortalTypeCache extends AbstractMap<String, List<String>>
+{
+	/**
+	 * Default capacity
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	private final ConcurrentHashMap<String, List<String>> entries = new ConcurrentHashMap<>();
+
+	private final int capacity;
+
+	private final LongSupplier kbVersion;
+
+	// KB version the entries were cached at
+	private volatile long version;
+
+	// Read lock to change entries, write lock to empty the cache for a new version
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity  maximum number of entries
+	 * @param kbVersion supplier of the current KB version
+	 */
+	public SortalTypeCache(int capacity, LongSupplier kbVersion)
+	{
+		this.capacity = capacity;
+		this.kbVersion = kbVersion;
+		this.version = kbVersion.getAsLong();
+	}
+
+	/**
+	 * Drop the entries if the KB changed since they were cached
+	 *
+	 * @return KB version the entries are for
+	 */
+	private long validate()
+	{
+		long current = kbVersion.getAsLong();
+		if (current != version)
+		{
+			lock.writeLock().lock();
+			try
+			{
+				if (current != version)
+				{
+					entries.clear();
+					version = current;
+				}
+			}
+			finally
+			{
+				lock.writeLock().unlock();
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Change the entries, once they are for the current version
+	 *
+	 * @param change change
+	 * @param <T>    type of the result of the change
+	 * @return result of the change
+	 */
+	private <T> T change(Supplier<T> change)
+	{
+		while (true)
+		{
+			long current = validate();
+			lock.readLock().lock();
+			try
+			{
+				if (version == current)
+					return change.get();
+			}
+			finally
+			{
+				lock.readLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * The KB version the entries are for, which is the current version.
+	 * Read it before computing data from the KB, to put the data with.
+	 *
+	 * @return version
+	 */
+	public long getVersion()
+	{
+		return validate();
+	}
+
+	/**
+	 * Put data computed from the KB, unless the KB changed since the
+	 * computation started
+	 *
+	 * @param key     key
+	 * @param value   data
+	 * @param version KB version when the computation started, as returned by getVersion()
+	 * @return whether the data was put
+	 */
+	public boolean put(String key, List<String> value, long version)
+	{
+		validate();
+		lock.readLock().lock();
+		try
+		{
+			if (this.version != version)
+				return false;
+			entries.put(key, value);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		evict();
+		return true;
+	}
+
+	/**
+	 * Evict entries beyond the capacity, one thread at a time
+	 */
+	private void evict()
+	{
+		if (entries.size() <= capacity || !evicting.compareAndSet(false, true))
+			return;
+		try
+		{
+			int target = capacity / 4 * 3;
+			Iterator<String> it = entries.keySet().iterator();
+			while (entries.size() > target && it.hasNext())
+			{
+				it.next();
+				it.remove();
+				evictions.increment();
+			}
+		}
+		finally
+		{
+			evicting.set(false);
+		}
+	}
+
+	@Override public List<String> get(Object key)
+	{
+		validate();
+		List<String> result = entries.get(key);
+		if (result != null)
+			hits.increment();
+		else
+			misses.increment();
+		return result;
+	}
+
+	@Override public boolean containsKey(Object key)
+	{
+		validate();
+		return entries.containsKey(key);
+	}
+
+	@Override public List<String> put(String key, List<String> value)
+	{
+		List<String> result = change(() -> entries.put(key, value));
+		evict();
+		return result;
+	}
+
+	@Override public List<String> putIfAbsent(String key, List<String> value)
+	{
+		List<String> result = change(() -> entries.putIfAbsent(key, value));
+		if (result == null)
+			evict();
+		return result;
+	}
+
+	@Override public List<String> remove(Object key)
+	{
+		return change(() -> entries.remove(key));
+	}
+
+	@Override public void clear()
+	{
+		lock.writeLock().lock();
+		try
+		{
+			entries.clear();
+			version = kbVersion.getAsLong();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override public int size()
+	{
+		validate();
+		return entries.size();
+	}
+
+	@Override public Set<Entry<String, List<String>>> entrySet()
+	{
+		validate();
+		return entries.entrySet();
+	}
+
+	/**
+	 * Capacity
+	 *
+	 * @return maximum number of entries
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Number of lookups that found data
+	 *
+	 * @return count
+	 */
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	/**
+	 * Number of lookups that found no data
+	 *
+	 * @return count
+	 */
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	/**
+	 * Number of entries evicted to stay within the capacity
+	 *
+	 * @return count
+	 */
+	public long getEvictions()
+	{
+		return evictions.sum();
+	}
+
+	@Override public String toString()
+	{
+		return "entries=" + entries.size() + "/" + capacity + " version=" + version + " hits=" + getHits() + " misses=" + getMisses() + " evictions=" + getEvictions();
+	}
+}
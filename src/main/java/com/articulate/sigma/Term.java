@@ -0,0 +1,343 @@
+package com.articulate.sigma;
+
+import com.articulate.sigma.kif.KifTokenizer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * An immutable in-memory tree for a SUO-KIF expression: either an atom
+ * (constant, variable, number or quoted string) or a list of terms.
+ * Formula manipulates its text with car() and cdr(), which rescans the
+ * string at every step; algorithms that walk or rewrite a whole formula,
+ * such as clausification, parse it once into a Term, work on the tree and
+ * serialize the result with toString().
+ */
+public final class Term
+{
+	/**
+	 * The empty list
+	 */
+	public static final Term EMPTY = new Term(null, Collections.emptyList());
+
+	/**
+	 * Atom text, null for a list
+	 */
+	private final String atom;
+
+	/**
+	 * Elements, null for an atom
+	 */
+	private final List<Term> elements;
+
+	/**
+	 * Cached hash code
+	 */
+	private int hash;
+
+	private Term(String atom, List<Term> elements)
+	{
+		this.atom = atom;
+		this.elements = elements;
+	}
+
+	// C O N S T R U C T
+
+	/**
+	 * Make an atom
+	 *
+	 * @param text atom text
+	 * @return atom
+	 */
+	public static Term atom(String text)
+	{
+		return new Term(text, null);
+	}
+
+	/**
+	 * Make a list
+	 *
+	 * @param elements elements, which the list takes ownership of
+	 * @return list
+	 */
+	public static Term list(List<Term> elements)
+	{
+		return elements.isEmpty() ? EMPTY : new Term(null, Collections.unmodifiableList(elements));
+	}
+
+	/**
+	 * Make a list
+	 *
+	 * @param elements elements
+	 * @return list
+	 */
+	public static Term list(Term... elements)
+	{
+		return list(new ArrayList<>(Arrays.asList(elements)));
+	}
+
+	/**
+	 * Make a list whose head is an atom, as in (not x) or (and x y)
+	 *
+	 * @param head     head atom
+	 * @param elements other elements
+	 * @return list
+	 */
+	public static Term list(String head, List<Term> elements)
+	{
+		List<Term> list = new ArrayList<>(elements.size() + 1);
+		list.add(atom(head));
+		list.addAll(elements);
+		return list(list);
+	}
+
+	/**
+	 * Parse the text of a formula.  Unbalanced lists are closed at
+	 * the end of the text and extra closing parentheses are ignored.
+	 *
+	 * @param text formula text
+	 * @return term, or null if the text has no token
+	 */
+	public static Term parse(String text)
+	{
+		KifTokenizer st = new KifTokenizer(text);
+		Deque<List<Term>> stack = new ArrayDeque<>();
+		Term result = null;
+		while (st.nextToken() != KifTokenizer.TT_EOF)
+		{
+			Term term = null;
+			switch (st.ttype)
+			{
+				case KifTokenizer.TT_OPEN:
+					stack.push(new ArrayList<>());
+					break;
+				case KifTokenizer.TT_CLOSE:
+					if (!stack.isEmpty())
+						term = list(stack.pop());
+					break;
+				default:
+					term = atom(st.sval);
+					break;
+			}
+			if (term != null)
+			{
+				if (stack.isEmpty())
+				{
+					if (result == null)
+						result = term;
+				}
+				else
+					stack.peek().add(term);
+			}
+		}
+		while (!stack.isEmpty())
+		{
+			Term term = list(stack.pop());
+			if (stack.isEmpty())
+			{
+				if (result == null)
+					result = term;
+			}
+			else
+				stack.peek().add(term);
+		}
+		return result;
+	}
+
+	// A C C E S S
+
+	/**
+	 * Whether this is an atom
+	 *
+	 * @return true if atom
+	 */
+	public boolean isAtom()
+	{
+		return atom != null;
+	}
+
+	/**
+	 * Whether this is a list
+	 *
+	 * @return true if list
+	 */
+	public boolean isList()
+	{
+		return atom == null;
+	}
+
+	/**
+	 * Whether this is the empty list
+	 *
+	 * @return true if empty list
+	 */
+	public boolean isEmpty()
+	{
+		return atom == null && elements.isEmpty();
+	}
+
+	/**
+	 * Whether this is a variable or row variable
+	 *
+	 * @return true if variable
+	 */
+	public boolean isVariable()
+	{
+		return atom != null && Formula.isVariable(atom);
+	}
+
+	/**
+	 * Atom text
+	 *
+	 * @return atom text, null if this is a list
+	 */
+	public String getAtom()
+	{
+		return atom;
+	}
+
+	/**
+	 * Head atom, as in car()
+	 *
+	 * @return the text of the first element if it is an atom, else null
+	 */
+	public String head()
+	{
+		if (atom != null || elements.isEmpty())
+			return null;
+		return elements.get(0).atom;
+	}
+
+	/**
+	 * Whether this is a list whose first element is the given atom
+	 *
+	 * @param op atom
+	 * @return true if this list has op as head
+	 */
+	public boolean isHead(String op)
+	{
+		return op.equals(head());
+	}
+
+	/**
+	 * Number of elements
+	 *
+	 * @return number of elements of a list, 0 for an atom
+	 */
+	public int size()
+	{
+		return atom != null ? 0 : elements.size();
+	}
+
+	/**
+	 * Element
+	 *
+	 * @param i index, 0 being the head
+	 * @return element, or null if there is none
+	 */
+	public Term get(int i)
+	{
+		if (atom != null || i >= elements.size())
+			return null;
+		return elements.get(i);
+	}
+
+	/**
+	 * Elements
+	 *
+	 * @return elements of a list, empty for an atom
+	 */
+	public List<Term> elements()
+	{
+		return atom != null ? Collections.emptyList() : elements;
+	}
+
+	/**
+	 * Elements but the first, as in cdr()
+	 *
+	 * @return elements following the head
+	 */
+	public List<Term> rest()
+	{
+		return size() < 2 ? Collections.emptyList() : elements.subList(1, elements.size());
+	}
+
+	/**
+	 * Make a Formula from this term
+	 *
+	 * @return formula
+	 */
+	public Formula toFormula()
+	{
+		Formula f = new Formula();
+		f.set(toString());
+		return f;
+	}
+
+	// S E R I A L I Z E
+
+	/**
+	 * Append the text to a buffer
+	 *
+	 * @param sb buffer
+	 */
+	public void appendTo(StringBuilder sb)
+	{
+		if (atom != null)
+			sb.append(atom);
+		else
+		{
+			sb.append(Formula.LP);
+			for (int i = 0; i < elements.size(); i++)
+			{
+				if (i > 0)
+					sb.append(Formula.SPACE);
+				elements.get(i).appendTo(sb);
+			}
+			sb.append(Formula.RP);
+		}
+	}
+
+	/**
+	 * Single-spaced text, as built by Formula.cons()
+	 *
+	 * @return text
+	 */
+	@Override public String toString()
+	{
+		if (atom != null)
+			return atom;
+		StringBuilder sb = new StringBuilder();
+		appendTo(sb);
+		return sb.toString();
+	}
+
+	// I D E N T I T Y
+
+	@Override public boolean equals(Object o)
+	{
+		if (this == o)
+			return true;
+		if (!(o instanceof Term))
+			return false;
+		Term that = (Term) o;
+		if (hashCode() != that.hashCode())
+			return false;
+		return atom != null ? atom.equals(that.atom) : that.atom == null && elements.equals(that.elements);
+	}
+
+	@Override public int hashCode()
+	{
+		int h = hash;
+		if (h == 0)
+		{
+			h = atom != null ? atom.hashCode() : 31 + elements.hashCode();
+			hash = h;
+		}
+		return h;
+	}
+}
@@ -13,7 +13,8 @@ August 9, Acapulco, Mexico.  See also http://sigmakee.sourceforget.net
 package com.articulate.sigma.kif;
 
 import com.articulate.sigma.Formula;
-import com.articulate.sigma.KBManager;
+import com.articulate.sigma.FormulaFeatures;
+import com.articulate.sigma.FormulaValidator;
 import com.articulate.sigma.StringUtil;
 
 import java.io.*;
@@ -178,6 +179,7 @@ public class KIF implements Serializable
 			boolean inAntecedent = false;
 			boolean inConsequent = false;
 			Formula f = new Formula();
+			FormulaFeatures.Builder features = new FormulaFeatures.Builder();
 			Set<String> keySet = new HashSet<>();
 			boolean isEOL = false;
 			do
@@ -223,7 +225,9 @@ public class KIF implements Serializable
 						f = new Formula();
 						f.startLine = st.lineno() + totalLinesForComments;
 						f.sourceFile = filename;
+						features.reset();
 					}
+					features.open();
 					parenLevel++;
 					if (inRule && !inAntecedent && !inConsequent)
 						inAntecedent = true;
@@ -243,12 +247,14 @@ public class KIF implements Serializable
 				{
 					// )  - Close paren
 					parenLevel--;
+					features.close();
 					expression.append(")");
 					if (parenLevel == 0)
 					{
 						// The end of the statement...
 						String fStr = StringUtil.normalizeSpaceChars(expression.toString());
 						f.text = StringUtil.replaceDateTime(fStr).intern();
+						f.setFeatures(features.build(f.text));
 						if (formulaSet.contains(f.text))
 						{
 							String warning = ("WARNING: Duplicate formula at line " + f.startLine + " of " + f.sourceFile + ": " + expression);
@@ -260,20 +266,20 @@ public class KIF implements Serializable
 						// Check argument validity ONLY if we are in NORMAL_PARSE_MODE.
 						if (mode == NORMAL_PARSE_MODE)
 						{
-							String validArgs = f.validArgs((file != null ? file.getName() : null), (file != null ? f.startLine : null));
-							if (validArgs == null || validArgs.isEmpty())
-								validArgs = f.badQuantification();
-							if (!validArgs.isEmpty())
+							List<FormulaValidator.Problem> invalid = f.validate((file != null ? file.getName() : null), (file != null ? f.startLine : null));
+							if (!invalid.isEmpty())
 							{
-								String errStr = errStart + ": Invalid number of arguments near line " + f.startLine;
-								logger.warning(errStr);
+								StringBuilder errStr = new StringBuilder(errStart + ": Invalid formula near line " + f.startLine);
+								for (FormulaValidator.Problem problem : invalid)
+									errStr.append("; ").append(problem);
+								logger.warning(errStr.toString());
 								logger.fine("st.sval = " + st.sval);
 								int eLen = expression.length();
 								if (eLen > 300)
 									logger.fine("expression == ... " + expression.substring(eLen - 300));
 								else
 									logger.fine("expression == " + expression.toString());
-								throw new ParseException(errStr, f.startLine);
+								throw new ParseException(errStr.toString(), f.startLine);
 							}
 						}
 						// Make the formula itself a key
@@ -331,6 +337,7 @@ public class KIF implements Serializable
 					totalLinesForComments += countChar(com, (char) 0X0A);
 					expression.append(com);
 					expression.append("\"");
+					features.string("\"" + com + "\"");
 					if (parenLevel < 2)   // Don't care if parenLevel > 1
 						argumentNum = argumentNum + 1;
 				}
@@ -340,9 +347,15 @@ public class KIF implements Serializable
 					if (lastVal != 40) // add back whitespace that ST removes
 						expression.append(" ");
 					if (st.nval == 0)
+					{
 						expression.append(st.sval);
+						features.atom(st.sval);
+					}
 					else
+					{
 						expression.append(st.nval);
+						features.atom(String.valueOf(st.nval));
+					}
 					if (parenLevel < 2) // Don't care if parenLevel > 1
 						argumentNum = argumentNum + 1; // RAP - added on 11/27/04
 				}
@@ -358,6 +371,7 @@ public class KIF implements Serializable
 					if (lastVal != 40) // Add back whitespace that ST removes
 						expression.append(" ");
 					expression.append(st.sval);
+					features.atom(st.sval);
 					if (expression.length() > 64000)
 					{
 						String errStr = errStart + ": Sentence over 64000 characters new line " + f.startLine;
@@ -490,6 +504,21 @@ public class KIF implements Serializable
 		return (key);
 	}
 
+	/**
+	 * Parse KIF text, such as a single formula, as if it were read from a file.
+	 * The formulas are attributed to the file, so that their keys, the ID key
+	 * included, are those a parse of the file would produce.
+	 *
+	 * @param text     - KIF text.
+	 * @param fileName - the full pathname of the file the text is attributed to, or null.
+	 * @return a Set of warnings that may indicate syntax errors.
+	 */
+	public Set<String> parseString(String text, String fileName)
+	{
+		this.filename = fileName;
+		return parse(new StringReader(text));
+	}
+
 	/**
 	 * Count the number of appearances of a certain character in a string.
 	 *
@@ -515,13 +544,25 @@ public class KIF implements Serializable
 	 * @throws Exception exception
 	 */
 	public void readFile(String fileName) throws Exception
+	{
+		readFile(fileName, null);
+	}
+
+	/**
+	 * Read a KIF file whose content was already read.
+	 *
+	 * @param fileName - the full pathname of the file.
+	 * @param content  - the content of the file, or null to read it.
+	 * @throws Exception exception
+	 */
+	public void readFile(String fileName, byte[] content) throws Exception
 	{
 		logger.entering("KIF", "readFile", fileName);
 
 		Exception exThr = null;
 		this.file = new File(fileName);
 		this.filename = file.getCanonicalPath();
-		try (FileReader fr = new FileReader(this.file))
+		try (Reader fr = content != null ? new InputStreamReader(new ByteArrayInputStream(content)) : new FileReader(this.file))
 		{
 			parse(fr);
 		}
@@ -530,7 +571,6 @@ public class KIF implements Serializable
 			exThr = ex;
 			String er = ex.getMessage();
 			logger.severe("ERROR in KIF.readFile(\"" + fileName + "\"):" + "  " + er);
-			KBManager.getMgr().setError(KBManager.getMgr().getError() + "\n<br/>" + er + " in file " + fileName + "\n<br/>");
 		}
 		logger.exiting("KIF", "readFile");
 		if (exThr != null)
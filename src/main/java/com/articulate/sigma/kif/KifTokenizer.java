@@ -0,0 +1,149 @@
+package com.articulate.sigma.kif;
+
+/**
+ * A light-weight tokenizer for the text of a single SUO-KIF formula.
+ * Unlike StreamTokenizer_s it works directly on a String and reports
+ * the offset of every token, so that callers can walk a formula once
+ * without building intermediate strings with car() and cdr().
+ * Tokens are parentheses, quoted strings (with backslash escaped
+ * quotes) and atoms, which are maximal runs of characters that are
+ * neither whitespace, parentheses nor double quotes.
+ */
+public class KifTokenizer
+{
+	/**
+	 * End of input
+	 */
+	public static final int TT_EOF = -1;
+
+	/**
+	 * Atom (constant, variable, row variable, number)
+	 */
+	public static final int TT_ATOM = -3;
+
+	/**
+	 * Open parenthesis
+	 */
+	public static final int TT_OPEN = '(';
+
+	/**
+	 * Close parenthesis
+	 */
+	public static final int TT_CLOSE = ')';
+
+	/**
+	 * Quoted string
+	 */
+	public static final int TT_STRING = '"';
+
+	/**
+	 * Input
+	 */
+	private final String input;
+
+	/**
+	 * Current position in input
+	 */
+	private int pos = 0;
+
+	/**
+	 * Type of the last token read
+	 */
+	public int ttype = TT_EOF;
+
+	/**
+	 * Text of the last atom or string token, including the quotes for strings. Null for parentheses.
+	 */
+	public String sval;
+
+	/**
+	 * Offset of the first character of the last token
+	 */
+	public int start;
+
+	/**
+	 * Whether the last string token was closed by a double quote
+	 */
+	private boolean terminated;
+
+	/**
+	 * Constructor
+	 *
+	 * @param input formula text
+	 */
+	public KifTokenizer(String input)
+	{
+		this.input = input == null ? "" : input;
+	}
+
+	/**
+	 * Read the next token
+	 *
+	 * @return type of the token read, TT_EOF when the input is exhausted.
+	 * An unterminated string is returned as TT_STRING running to the end of the input.
+	 */
+	public int nextToken()
+	{
+		int len = input.length();
+		while (pos < len && Character.isWhitespace(input.charAt(pos)))
+			pos++;
+		start = pos;
+		sval = null;
+		if (pos >= len)
+			return ttype = TT_EOF;
+
+		char c = input.charAt(pos);
+		if (c == '(' || c == ')')
+		{
+			pos++;
+			return ttype = c;
+		}
+		if (c == '"')
+		{
+			pos++;
+			terminated = false;
+			while (pos < len)
+			{
+				char c2 = input.charAt(pos++);
+				if (c2 == '\\' && pos < len)
+					pos++;
+				else if (c2 == '"')
+				{
+					terminated = true;
+					break;
+				}
+			}
+			sval = input.substring(start, pos);
+			return ttype = TT_STRING;
+		}
+		while (pos < len)
+		{
+			c = input.charAt(pos);
+			if (c == '(' || c == ')' || c == '"' || Character.isWhitespace(c))
+				break;
+			pos++;
+		}
+		sval = input.substring(start, pos);
+		return ttype = TT_ATOM;
+	}
+
+	/**
+	 * Whether the last string token was closed by a double quote
+	 *
+	 * @return true if the last token is a properly terminated string
+	 */
+	public boolean isTerminatedString()
+	{
+		return ttype == TT_STRING && terminated;
+	}
+
+	/**
+	 * Current position
+	 *
+	 * @return offset of the character following the last token
+	 */
+	public int getPosition()
+	{
+		return pos;
+	}
+}
@@ -0,0 +1,197 @@
+package com.articulate.sigma;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Knowledge bases made from the KIF files of the test resources, and
+ * dumps of their contents, to compare a KB changed incrementally with a
+ * KB built afresh.
+ */
+public class KBFixture
+{
+	/**
+	 * Make a directory holding copies of KIF test resources
+	 *
+	 * @param resources names of the resources
+	 * @return directory
+	 * @throws IOException if a resource cannot be copied
+	 */
+	public static File makeDir(final String... resources) throws IOException
+	{
+		final File dir = Files.createTempDirectory("kb").toFile();
+		dir.deleteOnExit();
+		for (final String resource : resources)
+		{
+			try (InputStream in = KBFixture.class.getResourceAsStream("/" + resource))
+			{
+				if (in == null)
+					throw new IOException("No resource " + resource);
+				final File file = new File(dir, resource);
+				Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				file.deleteOnExit();
+			}
+		}
+		return dir;
+	}
+
+	/**
+	 * Write a KIF file in a directory
+	 *
+	 * @param dir      directory
+	 * @param filename file name
+	 * @param kif      contents
+	 * @return file
+	 * @throws IOException if the file cannot be written
+	 */
+	public static File write(final File dir, final String filename, final String kif) throws IOException
+	{
+		final File file = new File(dir, filename);
+		Files.write(file.toPath(), kif.getBytes(StandardCharsets.UTF_8));
+		file.deleteOnExit();
+		return file;
+	}
+
+	/**
+	 * Make a KB of constituents of a directory
+	 *
+	 * @param dir       directory
+	 * @param filenames file names of the constituents
+	 * @return knowledge base
+	 */
+	public static KB makeKB(final File dir, final String... filenames)
+	{
+		final KB kb = new KB("Test", dir.getPath());
+		for (final String filename : filenames)
+		{
+			kb.addConstituent(new File(dir, filename).getPath());
+		}
+		return kb;
+	}
+
+	/**
+	 * Dump the contents of a KB: its terms, formulas, formula index,
+	 * relation caches, feature index, valences and signatures
+	 *
+	 * @param kb knowledge base
+	 * @return dump, the same for KBs of the same contents
+	 */
+	public static String dump(final KB kb)
+	{
+		final StringBuilder sb = new StringBuilder();
+		sb.append(kb.getTerms()).append('\n');
+		sb.append(new TreeSet<>(kb.formulaMap.keySet())).append('\n');
+		for (final String key : new TreeSet<>(kb.formulas.keySet()))
+		{
+			final List<String> texts = new ArrayList<>();
+			for (final Formula f : kb.formulas.get(key))
+			{
+				texts.add(f.text);
+			}
+			Collections.sort(texts);
+			sb.append(key).append(texts).append('\n');
+		}
+		sb.append(dumpCaches(kb)).append('\n');
+		for (int feature = 1; feature < 256; feature <<= 1)
+		{
+			sb.append(kb.getFormulasWithFeatures(feature).size()).append(' ');
+		}
+		sb.append('\n');
+		for (final String term : kb.getTerms())
+		{
+			sb.append(term).append(' ').append(kb.getValence(term)).append(' ').append(kb.getRelationSignature(term)).append(' ').append(Arrays.toString(kb.getRelnArgSignature(term))).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Dump the relation caches of a KB
+	 *
+	 * @param kb knowledge base
+	 * @return dump, the same for KBs of the same caches
+	 */
+	public static String dumpCaches(final KB kb)
+	{
+		final Map<String, String> caches = new TreeMap<>();
+		for (final KB.RelationCache cache : kb.getRelationCaches())
+		{
+			final Map<String, Set<String>> entries = new TreeMap<>();
+			for (final Map.Entry<String, Set<String>> entry : cache.entrySet())
+			{
+				if (!entry.getValue().isEmpty())
+					entries.put(entry.getKey(), new TreeSet<>(entry.getValue()));
+			}
+			if (!entries.isEmpty())
+				caches.put(cache.getRelationName() + cache.getKeyArgument() + cache.getValueArgument(), entries.toString());
+		}
+		return caches.toString();
+	}
+
+	/**
+	 * Dump the answers of a KB to queries on terms
+	 *
+	 * @param kb    knowledge base
+	 * @param terms terms
+	 * @return dump, the same for KBs that answer the same
+	 */
+	public static String dumpAnswers(final KB kb, final Collection<String> terms)
+	{
+		final StringBuilder sb = new StringBuilder();
+		for (final String term : terms)
+		{
+			sb.append(term);
+			for (int i = 0; i < 3; i++)
+			{
+				sb.append(' ').append(texts(kb.ask("arg", i, term)));
+			}
+			for (final String relation : new String[] { "instance", "subclass", "subrelation", "disjoint" })
+			{
+				sb.append(' ').append(new TreeSet<>(kb.getCachedRelationValues(relation, term, 1, 2))).append(new TreeSet<>(kb.getCachedRelationValues(relation, term, 2, 1)));
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Dump the answers of a snapshot to queries on terms
+	 *
+	 * @param snapshot snapshot
+	 * @param terms    terms
+	 * @return dump, the same for snapshots that answer the same, and the
+	 * same as dumpAnswers() for a KB that answers the same
+	 */
+	public static String dumpAnswers(final KBSnapshot snapshot, final Collection<String> terms)
+	{
+		final StringBuilder sb = new StringBuilder();
+		for (final String term : terms)
+		{
+			sb.append(term);
+			for (int i = 0; i < 3; i++)
+			{
+				sb.append(' ').append(texts(snapshot.ask("arg", i, term)));
+			}
+			for (final String relation : new String[] { "instance", "subclass", "subrelation", "disjoint" })
+			{
+				sb.append(' ').append(new TreeSet<>(snapshot.getCachedRelationValues(relation, term, 1, 2))).append(new TreeSet<>(snapshot.getCachedRelationValues(relation, term, 2, 1)));
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	private static Set<String> texts(final List<Formula> formulas)
+	{
+		final Set<String> result = new TreeSet<>();
+		for (final Formula f : formulas)
+		{
+			result.add(f.text);
+		}
+		return result;
+	}
+}
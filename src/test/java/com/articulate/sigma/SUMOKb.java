@@ -33,6 +33,22 @@ public class SUMOKb extends KB implements Serializable
 		return true;
 	}
 
+	public KBLoader makeInStages(final boolean full)
+	{
+		this.filenames = SUMOKb.getFiles(this.kbDir, full);
+		final List<String> coreFilePaths = new ArrayList<>();
+		final List<String> otherFilePaths = new ArrayList<>();
+		for (final String filename : this.filenames)
+		{
+			final String filePath = this.kbDir + File.separatorChar + filename;
+			if (Arrays.asList(SUMOKb.CORE_FILES).contains(filename))
+				coreFilePaths.add(filePath);
+			else
+				otherFilePaths.add(filePath);
+		}
+		return new KBLoader(this, coreFilePaths, otherFilePaths).start();
+	}
+
 	private static void makeKB(final KB kb, final String[] filePaths)
 	{
 		for (final String filePath : filePaths)
@@ -0,0 +1,219 @@
+package com.articulate.sigma;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestClausalFormStore
+{
+	private static final String KIF = "(subclass Human Animal)\n" + "(=> (instance ?X Human) (exists (?Y) (mother ?X ?Y)))\n";
+
+	// Sorts before the formulas of KIF
+	private static final String ADDED = "(=> (instance ?X Animal) (exists (?Y) (parent ?X ?Y)))";
+
+	private static final Pattern SKOLEM = Pattern.compile("(?:SkFn\\s+|\\bSk)(\\d[^\\s()]*)");
+
+	private File dir;
+
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Before public void makeKif() throws IOException
+	{
+		dir = Files.createTempDirectory("kb").toFile();
+		Files.write(new File(dir, "Test.kif").toPath(), KIF.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@After public void noStore()
+	{
+		Formula.setClausalFormStore(null);
+		Formula.setDerivedDataCache(null);
+	}
+
+	@Test public void reloadAfterAdding() throws IOException
+	{
+		File path = new File(dir, "clausal.store");
+		try (ClausalFormStore store = new ClausalFormStore(path))
+		{
+			Formula.setClausalFormStore(store);
+			KB kb = makeKB();
+			kb.clausifyFormulas(2, (f, clausalForm) -> {
+			});
+			assertEquals(2, store.size());
+		}
+
+		try (ClausalFormStore store = new ClausalFormStore(path))
+		{
+			Formula.setClausalFormStore(store);
+			assertEquals(2, store.size());
+			KB kb = makeKB();
+			kb.tell(ADDED);
+			Map<String, Set<String>> skolems = new ConcurrentHashMap<>();
+			kb.clausifyFormulas(2, (f, clausalForm) -> skolems.put(f.text, getSkolems(clausalForm)));
+			assertEquals(3, store.size());
+			assertEquals(3, skolems.size());
+
+			// No Skolem symbol is shared by the stored formulas and the added one
+			Map<String, String> formulaOfSkolem = new HashMap<>();
+			for (Map.Entry<String, Set<String>> entry : skolems.entrySet())
+				for (String skolem : entry.getValue())
+				{
+					String other = formulaOfSkolem.put(skolem, entry.getKey());
+					assertTrue(skolem + " in " + entry.getKey() + " and " + other, other == null || other.equals(entry.getKey()));
+				}
+			assertEquals(2, formulaOfSkolem.size());
+
+			// Stored clausal forms are those computed afresh
+			for (Formula f : kb.formulaMap.values())
+				assertEquals(f.text, toString(Clausifier.toNegAndPosLitsWithRenameInfo(f)), toString(store.get(f)));
+		}
+	}
+
+	@Test public void sameClausalForm()
+	{
+		Formula f = new Formula();
+		f.set(ADDED);
+		Formula g = new Formula();
+		g.set(ADDED);
+		assertNull(Formula.getClausalFormStore());
+		assertEquals(toString(f.getClausalForm()), toString(g.getClausalForm()));
+		assertEquals(toString(f.getClausalForm()), toString(Clausifier.toNegAndPosLitsWithRenameInfo(g)));
+	}
+
+	@Test public void storeHit() throws IOException
+	{
+		File path = new File(dir, "clausal.store");
+		Formula other = new Formula();
+		other.set("(or (P ?X) (Q ?X))");
+		Tuple.Triple<List<Clause>, Formula, Map<String, String>> planted = Clausifier.toNegAndPosLitsWithRenameInfo(other);
+		Formula f = new Formula();
+		f.set(ADDED);
+		try (ClausalFormStore store = new ClausalFormStore(path))
+		{
+			store.put(f, planted);
+			// Not replaced once stored
+			store.put(f, Clausifier.toNegAndPosLitsWithRenameInfo(f));
+			assertEquals(1, store.size());
+		}
+
+		try (ClausalFormStore store = new ClausalFormStore(path))
+		{
+			Formula.setClausalFormStore(store);
+			// Found with whitespace normalized, and not clausified
+			Formula g = new Formula();
+			g.set(ADDED.replace(" ", "  ").replace("(exists", "\n  (exists"));
+			assertEquals(toString(planted), toString(g.getClausalForm()));
+			assertEquals(g.text, g.getClausalForm().second.text);
+			assertEquals(1, store.size());
+		}
+	}
+
+	@Test public void storeInvalidation() throws IOException
+	{
+		File path = new File(dir, "clausal.store");
+		Formula f = new Formula();
+		f.set(ADDED);
+		Formula g = new Formula();
+		g.set("(=> (instance ?X Animal) (exists (?Y) (mother ?X ?Y)))");
+		try (ClausalFormStore store = new ClausalFormStore(path))
+		{
+			Formula.setClausalFormStore(store);
+			f.getClausalForm();
+			// Another text is a miss, clausified and stored
+			assertNull(store.get(g));
+			assertEquals(toString(Clausifier.toNegAndPosLitsWithRenameInfo(g)), toString(g.getClausalForm()));
+			assertEquals(2, store.size());
+		}
+
+		// A record cut short by an interrupted write is discarded
+		try (RandomAccessFile file = new RandomAccessFile(path, "rw"))
+		{
+			file.setLength(file.length() - 3);
+		}
+		try (ClausalFormStore store = new ClausalFormStore(path))
+		{
+			assertEquals(1, store.size());
+			assertNull(store.get(g));
+			assertEquals(toString(f.getClausalForm()), toString(store.get(f)));
+		}
+
+		// The clausal form of a formula whose text changes is derived anew
+		Formula.setClausalFormStore(null);
+		Formula.setDerivedDataCache(new DerivedDataCache(1 << 20));
+		Formula h = new Formula();
+		h.set(ADDED);
+		String before = toString(h.getClausalForm());
+		h.set(g.text);
+		assertEquals(toString(Clausifier.toNegAndPosLitsWithRenameInfo(g)), toString(h.getClausalForm()));
+		assertFalse(before.equals(toString(h.getClausalForm())));
+	}
+
+	@Test public void definitionalForm() throws IOException
+	{
+		Formula f = new Formula();
+		f.set("(or (and (P1 ?X) (P2 ?X) (P3 ?X)) (and (Q1 ?X) (Q2 ?X) (Q3 ?X)) (and (R1 ?X) (R2 ?X) (R3 ?X)))");
+		try (ClausalFormStore store = new ClausalFormStore(new File(dir, "clausal.store")))
+		{
+			Formula.setClausalFormStore(store);
+			Tuple.Triple<List<Clause>, Formula, Map<String, String>> definitional = Clausifier.toNegAndPosLitsWithRenameInfo(f, Clausifier.Naming.forFormula(f.text), 8);
+			assertEquals(9, definitional.first.size());
+			// Two conjunctions are replaced by definitional literals
+			assertTrue(definitional.third.containsValue("(and (P1 ?X1) (P2 ?X1) (P3 ?X1))"));
+			assertTrue(definitional.third.containsValue("(and (Q1 ?X1) (Q2 ?X1) (Q3 ?X1))"));
+			// Stored clausal forms are those distributed fully
+			assertEquals(0, store.size());
+			assertEquals(27, f.getClausalForm().first.size());
+			assertEquals(27, store.get(f).first.size());
+		}
+	}
+
+	private KB makeKB()
+	{
+		KB kb = new KB("Test", dir.getPath());
+		kb.addConstituent(new File(dir, "Test.kif").getPath());
+		return kb;
+	}
+
+	private static Set<String> getSkolems(Tuple.Triple<List<Clause>, Formula, Map<String, String>> clausalForm)
+	{
+		Set<String> result = new TreeSet<>();
+		Matcher matcher = SKOLEM.matcher(toString(clausalForm));
+		while (matcher.find())
+			result.add(matcher.group(1));
+		return result;
+	}
+
+	private static String toString(Tuple.Triple<List<Clause>, Formula, Map<String, String>> clausalForm)
+	{
+		if (clausalForm == null)
+			return null;
+		StringBuilder sb = new StringBuilder();
+		for (Clause clause : clausalForm.first)
+		{
+			for (Formula literal : clause.negativeLits)
+				sb.append("-").append(literal.text).append(' ');
+			for (Formula literal : clause.positiveLits)
+				sb.append("+").append(literal.text).append(' ');
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+}
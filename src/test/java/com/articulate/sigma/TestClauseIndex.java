@@ -0,0 +1,100 @@
+package com.articulate.sigma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestClauseIndex
+{
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Test public void subsumes()
+	{
+		assertTrue(ClauseIndex.subsumes(clause("", "(P ?X)"), clause("(Q b)", "(P a)")));
+		assertFalse(ClauseIndex.subsumes(clause("(Q b)", "(P a)"), clause("", "(P ?X)")));
+		// Signs must agree
+		assertFalse(ClauseIndex.subsumes(clause("(P ?X)", ""), clause("", "(P a)")));
+		// Variables are bound consistently
+		assertTrue(ClauseIndex.subsumes(clause("", "(R ?X ?X)"), clause("", "(R a a)")));
+		assertFalse(ClauseIndex.subsumes(clause("", "(R ?X ?X)"), clause("", "(R a b)")));
+		// Literals are mapped as a multiset
+		assertFalse(ClauseIndex.subsumes(clause("", "(P ?X) (P ?Y)"), clause("", "(P a)")));
+		assertTrue(ClauseIndex.subsumes(clause("", "(P (F ?X))"), clause("", "(P (F a)) (Q a)")));
+		assertFalse(ClauseIndex.subsumes(clause("", "(P (F ?X))"), clause("", "(P (G a))")));
+	}
+
+	@Test public void index()
+	{
+		ClauseIndex index = new ClauseIndex();
+		ClauseIndex.Entry general = index.add(null, clause("", "(P ?X)"));
+		ClauseIndex.Entry specific = index.add(null, clause("(Q b)", "(P a)"));
+		ClauseIndex.Entry other = index.add(null, clause("", "(R a b)"));
+		assertEquals(3, index.size());
+
+		assertEquals(Arrays.asList(general), index.getSubsuming(clause("", "(P b)")));
+		assertEquals(2, index.getSubsuming(clause("(Q b)", "(P a) (R c d)")).size());
+		assertEquals(Arrays.asList(specific), index.getSubsumed(clause("(Q ?Y)", "(P ?X)")));
+		assertEquals(Arrays.asList(other), index.getSubsumed(clause("", "(R ?X ?Y)")));
+		assertTrue(index.getSubsuming(clause("", "(S a)")).isEmpty());
+
+		// Variants of a clause, up to renaming of variables
+		assertEquals(Arrays.asList(general), index.getDuplicates(clause("", "(P ?Z)")));
+		assertTrue(index.getDuplicates(clause("", "(P a)")).isEmpty());
+
+		assertTrue(index.remove(general));
+		assertFalse(index.remove(general));
+		assertEquals(2, index.size());
+		assertTrue(index.getSubsuming(clause("", "(P b)")).isEmpty());
+		assertEquals(Arrays.asList(specific), index.getSubsuming(clause("(Q b)", "(P a)")));
+	}
+
+	@Test public void reduce() throws IOException
+	{
+		File dir = KBFixture.makeDir("Mini.kif");
+		KB kb = KBFixture.makeKB(dir, "Mini.kif");
+		kb.tell("(=> (instance ?X Dog) (instance ?X Animal)) (=> (instance ?Y Dog) (instance ?Y Animal))");
+
+		List<ClauseIndex.Entry> entries = ClauseIndex.reduce(kb);
+		assertFalse(entries.isEmpty());
+		List<Formula> formulas = new ArrayList<>();
+		for (ClauseIndex.Entry entry : entries)
+			formulas.add(entry.formula);
+		// One of the two variants is kept
+		assertEquals(1, Collections.frequency(formulas, kb.formulaMap.get("(=> (instance ?X Dog) (instance ?X Animal))"))
+				+ Collections.frequency(formulas, kb.formulaMap.get("(=> (instance ?Y Dog) (instance ?Y Animal))")));
+		for (ClauseIndex.Entry c : entries)
+		{
+			for (ClauseIndex.Entry d : entries)
+				assertTrue(c + " subsumes " + d, c == d || !ClauseIndex.subsumes(c.clause, d.clause));
+		}
+		assertTrue(formulas.contains(kb.formulaMap.get("(instance Fido Dog)")));
+	}
+
+	private static Clause clause(String negativeLits, String positiveLits)
+	{
+		return new Clause(literals(negativeLits), literals(positiveLits));
+	}
+
+	private static List<Formula> literals(String lits)
+	{
+		List<Formula> result = new ArrayList<>();
+		Term term = Term.parse("(" + lits + ")");
+		for (Term lit : term.elements())
+			result.add(lit.toFormula());
+		return result;
+	}
+}
@@ -0,0 +1,93 @@
+package com.articulate.sigma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TestClausifierNaming
+{
+	private static final String MOTHER = "(=> (instance ?X Human) (exists (?Y) (mother ?X ?Y)))";
+
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Test public void names()
+	{
+		Clausifier.Naming naming = new Clausifier.Naming();
+		assertEquals("?X1", naming.newVar());
+		assertEquals("?X2", naming.newVar());
+		assertEquals("Sk1", naming.newSkolemTerm(new TreeSet<>()).toString());
+		assertEquals("(SkFn 2 ?A ?B)", naming.newSkolemTerm(new TreeSet<>(Arrays.asList("?B", "?A"))).toString());
+
+		Clausifier.Naming scoped = new Clausifier.Naming("7");
+		assertEquals("?X1", scoped.newVar());
+		assertEquals("Sk7_1", scoped.newSkolemTerm(null).toString());
+		assertEquals("(SkFn 7_2 ?A)", scoped.newSkolemTerm(new TreeSet<>(Collections.singleton("?A"))).toString());
+	}
+
+	@Test public void clausalForm()
+	{
+		Tuple.Triple<List<Clause>, Formula, Map<String, String>> clausalForm = Clausifier.toNegAndPosLitsWithRenameInfo(formula(MOTHER), new Clausifier.Naming("7"));
+		assertEquals("-(instance ?X3 Human) +(mother ?X3 (SkFn 7_1 ?X3))\n", toString(clausalForm));
+		assertEquals("?X", clausalForm.third.get("?X1"));
+		assertEquals("?Y", clausalForm.third.get("?X2"));
+
+		assertEquals("+(mother John Sk1)\n", toString(Clausifier.toNegAndPosLitsWithRenameInfo(formula("(exists (?Y) (mother John ?Y))"), new Clausifier.Naming())));
+	}
+
+	@Test public void formulaScope()
+	{
+		String scope = Long.toUnsignedString(ClausalFormStore.fingerprint(ClausalFormStore.key(MOTHER)));
+		assertEquals("-(instance ?X3 Human) +(mother ?X3 (SkFn " + scope + "_1 ?X3))\n", toString(Clausifier.toNegAndPosLitsWithRenameInfo(formula(MOTHER))));
+		// Whitespace does not change the scope, other texts do
+		assertEquals(toString(Clausifier.toNegAndPosLitsWithRenameInfo(formula(MOTHER))), toString(Clausifier.toNegAndPosLitsWithRenameInfo(formula(MOTHER.replace(" ", "  ")))));
+		assertFalse(toString(Clausifier.toNegAndPosLitsWithRenameInfo(formula(MOTHER.replace("mother", "father")))).contains(scope));
+	}
+
+	@Test public void independentOfThreads() throws IOException
+	{
+		File dir = KBFixture.makeDir("Mini.kif");
+		KB kb = KBFixture.makeKB(dir, "Mini.kif");
+		kb.tell(MOTHER + " (=> (instance ?X Animal) (exists (?Y ?Z) (and (lover ?X ?Y) (lover ?Y ?Z))))");
+
+		Map<String, String> sequential = new HashMap<>();
+		for (Formula f : kb.formulaMap.values())
+			sequential.put(f.text, toString(Clausifier.toNegAndPosLitsWithRenameInfo(f)));
+		Map<String, String> parallel = new ConcurrentHashMap<>();
+		kb.clausifyFormulas(4, (f, clausalForm) -> parallel.put(f.text, toString(clausalForm)));
+
+		assertEquals(sequential, parallel);
+	}
+
+	private static Formula formula(String text)
+	{
+		Formula f = new Formula();
+		f.set(text);
+		return f;
+	}
+
+	private static String toString(Tuple.Triple<List<Clause>, Formula, Map<String, String>> clausalForm)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Clause clause : clausalForm.first)
+		{
+			List<String> literals = new ArrayList<>();
+			for (Formula literal : clause.negativeLits)
+				literals.add("-" + literal.text);
+			for (Formula literal : clause.positiveLits)
+				literals.add("+" + literal.text);
+			sb.append(String.join(" ", literals)).append('\n');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,80 @@
+package com.articulate.sigma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestConstituentWatcher
+{
+	private static final String KIF = "(subclass Human Animal)\n";
+
+	private static final long TIMEOUT = 10000;
+
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Test public void goOnAfterFailedReload() throws IOException, InterruptedException
+	{
+		File dir = KBFixture.makeDir();
+		File file = KBFixture.write(dir, "Test.kif", KIF);
+		AtomicInteger reloads = new AtomicInteger();
+		KB kb = new KB("Test", dir.getPath())
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override public synchronized void reloadConstituent(String filename)
+			{
+				if (reloads.incrementAndGet() == 1)
+					throw new IllegalStateException("first reload fails");
+				super.reloadConstituent(filename);
+			}
+		};
+		kb.addConstituent(file.getPath());
+
+		ConstituentWatcher watcher = new ConstituentWatcher(kb, 50);
+		try
+		{
+			KBFixture.write(dir, "Test.kif", KIF + "(subclass Dog Animal)\n");
+			assertTrue("first change not seen", waitFor(() -> reloads.get() >= 1));
+			assertTrue(kb.isSubclass("Human", "Animal"));
+
+			KBFixture.write(dir, "Test.kif", KIF + "(subclass Cat Animal)\n");
+			assertTrue("second change not reloaded", waitFor(() -> {
+				synchronized (kb)
+				{
+					return kb.getTerms().contains("Cat");
+				}
+			}));
+			synchronized (kb)
+			{
+				assertEquals(KBFixture.dump(KBFixture.makeKB(dir, "Test.kif")), KBFixture.dump(kb));
+			}
+		}
+		finally
+		{
+			watcher.close();
+		}
+	}
+
+	private static boolean waitFor(BooleanSupplier condition) throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (System.currentTimeMillis() < end)
+		{
+			if (condition.getAsBoolean())
+				return true;
+			Thread.sleep(20);
+		}
+		return false;
+	}
+}
@@ -0,0 +1,71 @@
+package com.articulate.sigma;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestDerivedDataCache
+{
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@After public void noCache()
+	{
+		Formula.setDerivedDataCache(null);
+	}
+
+	@Test public void recomputeAfterEviction()
+	{
+		DerivedDataCache cache = new DerivedDataCache(2048);
+		Formula.setDerivedDataCache(cache);
+
+		Formula f = new Formula();
+		f.set("(=> (instance ?X Human) (exists (?Y) (mother ?X ?Y)))");
+		String clauses = toString(f.getClausalForm());
+		assertTrue(clauses.contains("SkFn"));
+		for (int i = 0; i < 20; i++)
+		{
+			Formula g = new Formula();
+			g.set("(=> (instance ?X Human" + i + ") (exists (?Y) (mother ?X ?Y)))");
+			g.getClausalForm();
+		}
+		assertTrue(cache.getEvictions() > 0);
+		assertEquals(clauses, toString(f.getClausalForm()));
+	}
+
+	@Test public void hashCodeWithoutCache()
+	{
+		Formula f = new Formula();
+		f.set("(instance ?X Human)");
+		Formula g = new Formula();
+		g.set("(instance ?Y Human)");
+		int hashCode = f.hashCode();
+		Formula.setDerivedDataCache(new DerivedDataCache(1 << 20));
+		assertEquals(hashCode, f.hashCode());
+		assertEquals(hashCode, g.hashCode());
+		assertEquals(0, Formula.getDerivedDataCache().size());
+	}
+
+	private static String toString(Tuple.Triple<List<Clause>, Formula, Map<String, String>> clausalForm)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Clause clause : clausalForm.first)
+		{
+			for (Formula literal : clause.negativeLits)
+				sb.append("-").append(literal.text).append(' ');
+			for (Formula literal : clause.positiveLits)
+				sb.append("+").append(literal.text).append(' ');
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,69 @@
+package com.articulate.sigma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestFormulaFeatures
+{
+	private KB kb;
+
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Before public void makeKB() throws IOException
+	{
+		File dir = KBFixture.makeDir("Mini.kif");
+		kb = KBFixture.makeKB(dir, "Mini.kif");
+	}
+
+	@Test public void withFeatures()
+	{
+		List<String> expected = new ArrayList<>();
+		for (Formula f : kb.formulaMap.values())
+			if (f.hasFeatures(FormulaFeatures.RULE | FormulaFeatures.QUANTIFIERS))
+				expected.add(f.text);
+		expected.sort(null);
+
+		assertEquals(expected, texts(kb.getFormulasWithFeatures(FormulaFeatures.RULE | FormulaFeatures.QUANTIFIERS)));
+		assertFalse(expected.isEmpty());
+		assertEquals(kb.formulaMap.size(), kb.getFormulasWithFeatures(0).size());
+	}
+
+	@Test public void orderAfterChanges()
+	{
+		List<String> ground = texts(kb.getFormulasWithFeatures(FormulaFeatures.GROUND));
+		List<String> all = texts(kb.getFormulasWithFeatures(0));
+
+		// The formula comes back at the end of formulaMap and of the posting lists
+		Formula f = new Formula();
+		f.set("(subclass Dog Animal)");
+		assertTrue(kb.retract(f));
+		kb.tell("(subclass Dog Animal)");
+
+		assertEquals(ground, texts(kb.getFormulasWithFeatures(FormulaFeatures.GROUND)));
+		assertEquals(all, texts(kb.getFormulasWithFeatures(0)));
+		List<String> sorted = new ArrayList<>(ground);
+		sorted.sort(null);
+		assertEquals(sorted, ground);
+	}
+
+	private static List<String> texts(List<Formula> formulas)
+	{
+		List<String> result = new ArrayList<>();
+		for (Formula f : formulas)
+			result.add(f.text);
+		return result;
+	}
+}
@@ -0,0 +1,64 @@
+package com.articulate.sigma;
+
+import com.articulate.sigma.kif.KIF;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestFormulaValidator
+{
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Test public void stringInVariableList()
+	{
+		List<FormulaValidator.Problem> problems = FormulaValidator.validate("(exists (\"x\") (names \"x\" ?Y))").getProblems();
+		assertEquals(1, problems.size());
+		assertEquals(FormulaValidator.QUANTIFIER, problems.get(0).kind);
+		assertEquals(9, problems.get(0).position);
+	}
+
+	@Test public void stringArguments()
+	{
+		FormulaValidator validator = FormulaValidator.validate("(=> (names \"a (b\" ?X) (instance ?X Human))");
+		assertTrue(validator.getProblems().isEmpty());
+
+		validator = FormulaValidator.validate("(names \"unterminated ?X)");
+		assertFalse(validator.isBalanced());
+	}
+
+	@Test public void messages()
+	{
+		List<FormulaValidator.Problem> problems = FormulaValidator.validate("(=> (and (instance ?X Foo)) (exists (?Y) (p ?X ?Y) (q ?Y)))").getProblems();
+		assertEquals(2, problems.size());
+		assertEquals("Too few arguments for 'and' or 'or' in formula: \n(and (instance ?X Foo)) (at character 4)", problems.get(0).toString());
+		assertEquals("Wrong number of arguments for 'exists' or 'forall' in formula: \n(exists (?Y) (p ?X ?Y) (q ?Y)) (at character 28)", problems.get(1).toString());
+	}
+
+	@Test public void parseMessage()
+	{
+		KIF kif = new KIF();
+		kif.parseString("(and (instance ?X Foo))", "Test.kif");
+		assertEquals(1, kif.warningSet.size());
+		assertEquals("Error in KIF.parse(): Parsing error in Test.kif: Invalid formula near line 1; Too few arguments for 'and' or 'or' in formula: \n(and (instance ?X Foo)) (at character 0)", kif.warningSet.iterator().next());
+	}
+
+	@Test public void balancedOnce()
+	{
+		Formula f = new Formula();
+		f.set("(instance John Human)");
+		assertTrue(f.validate(null, null).isEmpty());
+		assertTrue(f.isBalancedList());
+
+		f.text = "(instance John Human";
+		assertFalse(f.isBalancedList());
+	}
+}
@@ -0,0 +1,109 @@
+package com.articulate.sigma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestKBImage
+{
+	private File dir;
+
+	private KB kb;
+
+	private File image;
+
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Before public void makeImage() throws IOException
+	{
+		dir = KBFixture.makeDir("Mini.kif", "Extra.kif");
+		kb = KBFixture.makeKB(dir, "Mini.kif", "Extra.kif");
+		image = new File(dir, "Test.img");
+		image.deleteOnExit();
+		KBImage.write(kb, image);
+	}
+
+	@Test public void readBack() throws IOException
+	{
+		KB read = KBImage.read(image);
+		assertEquals(kb.name, read.name);
+		assertEquals(kb.constituents, read.constituents);
+		assertEquals(kb.getTerms(), read.getTerms());
+		assertEquals(kb.formulaMap.size(), read.formulaMap.size());
+
+		Formula f = read.formulaMap.get("(instance Mary Student)");
+		assertEquals(new File(dir, "Extra.kif").getCanonicalPath(), f.sourceFile);
+		assertEquals(kb.formulaMap.get(f.text).startLine, f.startLine);
+		assertEquals(kb.formulaMap.get(f.text).getFeatures().mask, f.getFeatures().mask);
+		assertTrue(read.ask("arg", 1, "Mary").contains(f));
+		assertTrue(read.isInstanceOf("Mary", "Animal"));
+		assertTrue(read.isSubclass("Student", "Entity"));
+		assertTrue(read.getCachedRelationValues("disjoint", "Cat", 1, 2).contains("Dog"));
+		assertEquals(2, read.getValence("lover"));
+		assertEquals(kb.getValence("ListFn"), read.getValence("ListFn"));
+
+		// The KB read changes as a KB built from constituents
+		read.removeConstituent(new File(dir, "Extra.kif").getPath());
+		assertNull(read.formulaMap.get("(instance Mary Student)"));
+		assertFalse(read.getTerms().contains("Mary"));
+		assertFalse(read.isSubclass("Student", "Entity"));
+	}
+
+	@Test public void corruptImage() throws IOException
+	{
+		try (RandomAccessFile file = new RandomAccessFile(image, "rw"))
+		{
+			file.seek(100);
+			int b = file.read();
+			file.seek(100);
+			file.write(b ^ 1);
+		}
+		assertRejected("Corrupt KB image");
+	}
+
+	@Test public void corruptCount() throws IOException
+	{
+		// The size of the dictionary follows the magic number and the version
+		try (RandomAccessFile file = new RandomAccessFile(image, "rw"))
+		{
+			file.seek(8);
+			file.writeInt(Integer.MAX_VALUE);
+		}
+		assertRejected("Corrupt KB image");
+	}
+
+	@Test public void truncatedImage() throws IOException
+	{
+		try (RandomAccessFile file = new RandomAccessFile(image, "rw"))
+		{
+			file.setLength(file.length() / 2);
+		}
+		assertRejected("Corrupt KB image");
+	}
+
+	private void assertRejected(String message)
+	{
+		try
+		{
+			KBImage.read(image);
+			fail("damaged image accepted");
+		}
+		catch (IOException ex)
+		{
+			assertTrue(ex.getMessage(), ex.getMessage().startsWith(message));
+		}
+	}
+}
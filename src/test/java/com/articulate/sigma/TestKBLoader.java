@@ -0,0 +1,155 @@
+package com.articulate.sigma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestKBLoader
+{
+	private static final long TIMEOUT = 10000;
+
+	private File dir;
+
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Before public void makeDir() throws IOException
+	{
+		dir = KBFixture.makeDir("Mini.kif", "Extra.kif");
+	}
+
+	@Test public void queryAtCoreStage() throws InterruptedException, ExecutionException, TimeoutException
+	{
+		KB kb = new KB("Test", dir.getPath());
+		KBLoader loader = new KBLoader(kb, paths("Mini.kif"), paths("Extra.kif"));
+		List<KBLoader.Stage> stages = Collections.synchronizedList(new ArrayList<>());
+		loader.addListener((l, stage) -> stages.add(stage));
+
+		// Hold the loader at the core stage while the snapshot is read
+		CountDownLatch coreReached = new CountDownLatch(1);
+		CountDownLatch resume = new CountDownLatch(1);
+		loader.addListener((l, stage) -> {
+			if (stage != KBLoader.Stage.CORE_CACHES_BUILT)
+				return;
+			coreReached.countDown();
+			try
+			{
+				resume.await();
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+		});
+
+		KBSnapshot snapshot;
+		ExecutorService reader = Executors.newSingleThreadExecutor();
+		try
+		{
+			loader.start();
+			assertTrue("core stage not reached", coreReached.await(TIMEOUT, TimeUnit.MILLISECONDS));
+			// The snapshot is published, so it is read without the KB lock
+			synchronized (kb)
+			{
+				snapshot = reader.submit(kb::getSnapshot).get(TIMEOUT, TimeUnit.MILLISECONDS);
+			}
+		}
+		finally
+		{
+			resume.countDown();
+			reader.shutdown();
+		}
+
+		KB core = KBFixture.makeKB(dir, "Mini.kif");
+		TreeSet<String> terms = new TreeSet<>(core.getTerms());
+		assertEquals(terms, new TreeSet<>(snapshot.getTerms()));
+		assertFalse(snapshot.containsTerm("Mary"));
+		assertEquals(KBFixture.dumpAnswers(core, terms), KBFixture.dumpAnswers(snapshot, terms));
+
+		assertSame(kb, loader.whenReached(KBLoader.Stage.CACHES_BUILT).get(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals(Arrays.asList(KBLoader.Stage.values()), stages);
+		KB full = KBFixture.makeKB(dir, "Mini.kif", "Extra.kif");
+		assertEquals(KBFixture.dump(full), KBFixture.dump(kb));
+		terms = new TreeSet<>(full.getTerms());
+		assertTrue(kb.getSnapshot().containsTerm("Mary"));
+		assertEquals(KBFixture.dumpAnswers(full, terms), KBFixture.dumpAnswers(kb.getSnapshot(), terms));
+	}
+
+	@Test public void arityOfAllConstituents() throws IOException, InterruptedException, ExecutionException, TimeoutException
+	{
+		// The valence is 3 in the core constituents, any in all of them
+		KBFixture.write(dir, "Core.kif", "(instance meets TernaryRelation)\n\n(meets A B C D)\n\n(lover A B C)\n");
+		KBFixture.write(dir, "Other.kif", "(instance meets VariableArityRelation)\n");
+		KB kb = new KB("Test", dir.getPath());
+		KBLoader loader = new KBLoader(kb, paths("Mini.kif", "Core.kif"), paths("Other.kif"));
+
+		loader.start().whenReached(KBLoader.Stage.CACHES_BUILT).get(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertEquals(0, kb.getValence("meets"));
+		assertTrue(kb.formulaMap.containsKey("(meets A B C D)"));
+		assertFalse(kb.formulaMap.containsKey("(lover A B C)"));
+		int arityErrors = 0;
+		for (String error : kb.errors)
+		{
+			assertFalse(error, error.contains("(meets A B C D)"));
+			if (error.contains("(lover A B C)"))
+				arityErrors++;
+		}
+		assertEquals(1, arityErrors);
+	}
+
+	@Test public void failure() throws InterruptedException
+	{
+		KB kb = new KB("Test", dir.getPath());
+		KBLoader loader = new KBLoader(kb, paths("Mini.kif"), paths("Extra.kif"));
+		Error failure = new StackOverflowError();
+		loader.addListener((l, stage) -> {
+			if (stage == KBLoader.Stage.CORE_INDEXED)
+				throw failure;
+		});
+		try
+		{
+			loader.start(Runnable::run);
+			fail("failure not thrown");
+		}
+		catch (StackOverflowError ex)
+		{
+			assertSame(failure, ex);
+		}
+
+		assertTrue(loader.whenReached(KBLoader.Stage.CORE_PARSED).isDone());
+		assertFalse(loader.whenReached(KBLoader.Stage.CORE_PARSED).isCompletedExceptionally());
+		for (KBLoader.Stage stage : EnumSet.range(KBLoader.Stage.CORE_INDEXED, KBLoader.Stage.CACHES_BUILT))
+		{
+			try
+			{
+				loader.whenReached(stage).getNow(null);
+				fail(stage + " reached");
+			}
+			catch (CompletionException ex)
+			{
+				assertSame(failure, ex.getCause());
+			}
+		}
+	}
+
+	private List<String> paths(String... filenames)
+	{
+		List<String> result = new ArrayList<>();
+		for (String filename : filenames)
+			result.add(new File(dir, filename).getPath());
+		return result;
+	}
+}
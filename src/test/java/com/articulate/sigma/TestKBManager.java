@@ -0,0 +1,119 @@
+package com.articulate.sigma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestKBManager
+{
+	private File dir;
+
+	private KBManager manager;
+
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Before public void makeManager() throws IOException
+	{
+		dir = KBFixture.makeDir("Mini.kif", "Extra.kif");
+		manager = new KBManager();
+		manager.preferences.put("kbDir", dir.getPath());
+	}
+
+	@Test public void loadOnce() throws InterruptedException, ExecutionException
+	{
+		List<String> files = paths("Mini.kif", "Extra.kif");
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try
+		{
+			List<Future<KB>> loaded = new ArrayList<>();
+			for (int i = 0; i < 8; i++)
+				loaded.add(pool.submit(() -> manager.loadKB("Test", files).join()));
+			KB kb = loaded.get(0).get();
+			assertNotNull(kb);
+			for (Future<KB> future : loaded)
+				assertSame(kb, future.get());
+			assertSame(kb, manager.getKB("Test"));
+			assertSame(kb, manager.kbs.get("Test"));
+			assertEquals(KBFixture.dump(KBFixture.makeKB(dir, "Mini.kif", "Extra.kif")), KBFixture.dump(kb));
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	@Test public void missingFile()
+	{
+		CompletableFuture<KB> build = manager.loadKB("Test", paths("Mini.kif", "Missing.kif"));
+		try
+		{
+			build.join();
+			fail("load of a missing file completed normally");
+		}
+		catch (CompletionException ex)
+		{
+			assertTrue(ex.getCause() instanceof java.io.FileNotFoundException);
+		}
+		assertNull(manager.getKB("Test"));
+		assertNull(manager.kbs.get("Test"));
+		assertEquals(1, manager.getErrors("Test").size());
+		assertTrue(manager.getErrors("Test").iterator().next().contains("Missing.kif"));
+
+		// A later call loads the KB anew
+		KB kb = manager.loadKB("Test", paths("Mini.kif")).join();
+		assertSame(kb, manager.getKB("Test"));
+		assertTrue(manager.getErrors("Test").isEmpty());
+	}
+
+	@Test public void removeWhileLoading()
+	{
+		CompletableFuture<KB> build = manager.loadKB("Test", paths("Mini.kif", "Extra.kif"));
+		manager.removeKB("Test");
+		assertNotNull(build.join());
+		assertNull(manager.kbs.get("Test"));
+		assertNull(manager.getKB("Test"));
+
+		KB kb = manager.loadKB("Test", paths("Mini.kif")).join();
+		assertSame(kb, manager.getKB("Test"));
+	}
+
+	@Test public void loadInStages()
+	{
+		KBLoader loader = manager.loadKBInStages("Test", paths("Mini.kif"), paths("Extra.kif"));
+		assertNotNull(loader);
+		assertNull(manager.loadKBInStages("Test", paths("Mini.kif"), paths("Extra.kif")));
+
+		KBSnapshot snapshot = manager.getSnapshot("Test");
+		assertNotNull(snapshot);
+		assertTrue(snapshot.containsTerm("John"));
+
+		KB kb = manager.getKB("Test");
+		assertSame(KBLoader.Stage.CACHES_BUILT, loader.getStage());
+		assertSame(loader.getKB(), kb);
+		assertEquals(KBFixture.dump(KBFixture.makeKB(dir, "Mini.kif", "Extra.kif")), KBFixture.dump(kb));
+		assertTrue(manager.getSnapshot("Test").containsTerm("Mary"));
+	}
+
+	private List<String> paths(String... filenames)
+	{
+		List<String> result = new ArrayList<>();
+		for (String filename : filenames)
+			result.add(new File(dir, filename).getPath());
+		return result;
+	}
+}
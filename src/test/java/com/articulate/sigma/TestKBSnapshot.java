@@ -0,0 +1,97 @@
+package com.articulate.sigma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestKBSnapshot
+{
+	private File dir;
+
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Before public void makeDir() throws IOException
+	{
+		dir = KBFixture.makeDir("Mini.kif", "Extra.kif");
+	}
+
+	@Test public void unchangedByLaterChanges()
+	{
+		KB kb = KBFixture.makeKB(dir, "Mini.kif");
+		KBSnapshot before = kb.getSnapshot();
+		int count = before.getFormulaCount();
+
+		kb.addConstituent(new File(dir, "Extra.kif").getPath());
+		kb.tell("(instance Rex Dog)");
+		kb.retractAll(f -> f.text.equals("(instance Fido Dog)"));
+		KBSnapshot after = kb.getSnapshot();
+
+		assertEquals(count, before.getFormulaCount());
+		assertFalse(before.containsTerm("Mary"));
+		assertFalse(before.containsFormula("(instance Rex Dog)"));
+		assertTrue(before.containsFormula("(instance Fido Dog)"));
+		assertFalse(before.isSubclass("Student", "Human"));
+		assertTrue(before.isInstanceOf("Fido", "Animal"));
+
+		assertTrue(after.containsTerm("Mary"));
+		assertTrue(after.containsFormula("(instance Rex Dog)"));
+		assertFalse(after.containsFormula("(instance Fido Dog)"));
+		assertTrue(after.isSubclass("Student", "Human"));
+		assertTrue(after.isInstanceOf("Rex", "Animal"));
+		assertFalse(after.isInstanceOf("Fido", "Animal"));
+		assertEquals(1, after.ask("arg", 1, "Rex").size());
+		assertTrue(after.ask("arg", 1, "Fido").isEmpty());
+	}
+
+	@Test public void directChangeOfFormulaMap()
+	{
+		KB kb = KBFixture.makeKB(dir, "Mini.kif");
+		KBSnapshot before = kb.getSnapshot();
+		Formula f = new Formula();
+		f.set("(instance Rex Dog)");
+		kb.formulaMap.put(f.text, f);
+		kb.formulaMap.remove("(instance Fido Dog)");
+
+		KBSnapshot after = kb.publishSnapshot();
+		assertNotSame(before, after);
+		assertEquals(kb.getVersion(), after.getVersion());
+		assertEquals(f, after.getFormula("(instance Rex Dog)"));
+		assertNull(after.getFormula("(instance Fido Dog)"));
+		assertEquals(kb.formulaMap.size(), after.getFormulaCount());
+	}
+
+	@Test public void tellAfterSerialization() throws IOException, ClassNotFoundException
+	{
+		KB kb = KBFixture.makeKB(dir, "Mini.kif");
+		kb.getSnapshot();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+		{
+			out.writeObject(kb);
+		}
+		KB read;
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())))
+		{
+			read = (KB) in.readObject();
+		}
+
+		read.tell("(instance Rex Dog)");
+		KBSnapshot snapshot = read.publishSnapshot();
+		assertTrue(snapshot.containsFormula("(instance Rex Dog)"));
+		assertTrue(snapshot.containsTerm("Rex"));
+		assertTrue(snapshot.isInstanceOf("Rex", "Animal"));
+		assertEquals(read.formulaMap.size(), snapshot.getFormulaCount());
+		assertFalse(kb.getSnapshot().containsTerm("Rex"));
+	}
+}
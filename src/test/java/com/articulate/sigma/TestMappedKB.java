@@ -0,0 +1,163 @@
+package com.articulate.sigma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestMappedKB
+{
+	private File dir;
+
+	private KB kb;
+
+	private MappedKB mapped;
+
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Before public void makeKB() throws IOException
+	{
+		dir = KBFixture.makeDir("Mini.kif");
+		kb = KBFixture.makeKB(dir, "Mini.kif");
+		File path = new File(dir, "Test.map");
+		path.deleteOnExit();
+		MappedKB.write(kb, path);
+		mapped = MappedKB.open(path);
+	}
+
+	@Test public void sameAnswers()
+	{
+		assertEquals(new TreeSet<>(kb.getTerms()), new TreeSet<>(mapped.getTerms()));
+		assertTrue(mapped.getTerms().contains("Fido"));
+		assertFalse(mapped.getTerms().contains("Nope"));
+		assertEquals(texts(kb.ask("arg", 1, "John")), texts(mapped.ask("arg", 1, "John")));
+		assertTrue(texts(mapped.ask("arg", 1, "Human")).contains("(subclass Human Animal)"));
+		assertTrue(texts(mapped.ask("arg", 2, "Dog")).contains("(instance Fido Dog)"));
+		assertTrue(mapped.ask("arg", 1, "Nope").isEmpty());
+		assertTrue(mapped.getCachedRelationValues("instance", "John", 1, 2).contains("Animal"));
+		assertTrue(mapped.getCachedRelationValues("subclass", "Animal", 2, 1).contains("Human"));
+		assertTrue(mapped.getCachedRelationValues("disjoint", "Dog", 1, 2).contains("Cat"));
+		assertTrue(mapped.isSubclass("Dog", "Entity"));
+		assertFalse(mapped.isInstanceOf("Fido", "Human"));
+		assertEquals(kb.getCountAxioms(), mapped.getCountAxioms());
+	}
+
+	@Test public void sameSnapshot()
+	{
+		KBSnapshot snapshot = kb.getSnapshot();
+		KBSnapshot mappedSnapshot = mapped.getSnapshot();
+		assertSame(mappedSnapshot, mapped.getSnapshot());
+		assertEquals(snapshot.getTerms(), mappedSnapshot.getTerms());
+		assertEquals(snapshot.getFormulaCount(), mappedSnapshot.getFormulaCount());
+		for (String term : snapshot.getTerms())
+		{
+			assertTrue(mappedSnapshot.containsTerm(term));
+			for (int i = 0; i < 3; i++)
+			{
+				assertEquals(texts(snapshot.ask("arg", i, term)), texts(mappedSnapshot.ask("arg", i, term)));
+			}
+			for (String relation : new String[] { "instance", "subclass", "disjoint" })
+			{
+				assertEquals(snapshot.getCachedRelationValues(relation, term, 1, 2), mappedSnapshot.getCachedRelationValues(relation, term, 1, 2));
+			}
+		}
+		assertFalse(mappedSnapshot.containsTerm("Nope"));
+		for (String text : kb.formulaMap.keySet())
+		{
+			assertEquals(text, mappedSnapshot.getFormula(text).text);
+		}
+		assertNull(mappedSnapshot.getFormula("(instance Nope Human)"));
+		assertTrue(mappedSnapshot.isSubclass("Human", "Entity"));
+		assertTrue(mappedSnapshot.isInstanceOf("John", "Animal"));
+	}
+
+	@Test public void changesRefused()
+	{
+		Formula f = new Formula();
+		f.set("(instance Foo Human)");
+		Formula g = new Formula();
+		g.set("(instance John Human)");
+
+		assertRefused(() -> mapped.tell("(instance Foo Human)"));
+		assertRefused(() -> mapped.tell(f));
+		assertRefused(() -> mapped.retract(g));
+		assertRefused(() -> mapped.retractAll(h -> true));
+		assertRefused(() -> mapped.addConstituent(new File(dir, "Mini.kif").getPath()));
+		assertRefused(() -> mapped.reloadConstituent(new File(dir, "Mini.kif").getPath()));
+		assertRefused(() -> mapped.removeConstituent(new File(dir, "Mini.kif").getPath()));
+
+		assertTrue(mapped.formulaMap.isEmpty());
+		assertTrue(mapped.formulas.isEmpty());
+		assertFalse(mapped.getTerms().contains("Foo"));
+		assertTrue(mapped.ask("arg", 1, "Foo").isEmpty());
+		assertTrue(texts(mapped.ask("arg", 1, "John")).contains("(instance John Human)"));
+		assertTrue(mapped.isInstanceOf("John", "Human"));
+		assertEquals(kb.getCountAxioms(), mapped.getCountAxioms());
+	}
+
+	@Test public void nonAsciiStrings() throws IOException
+	{
+		// Strings whose order by UTF-16 units is not that of their UTF-8 bytes
+		KB source = KBFixture.makeKB(dir, "Mini.kif");
+		source.tell("(documentation Dog EnglishLanguage \"chien \uFB01\") (documentation Cat EnglishLanguage \"chat \uD834\uDD1E\") (documentation Human EnglishLanguage \"homme \u00E9\")");
+		File path = new File(dir, "Strings.map");
+		path.deleteOnExit();
+		MappedKB.write(source, path);
+		MappedKB strings = MappedKB.open(path);
+
+		KBSnapshot snapshot = strings.getSnapshot();
+		for (String text : source.formulaMap.keySet())
+			assertEquals(text, snapshot.getFormula(text).text);
+		assertTrue(texts(strings.ask("arg", 1, "Cat")).contains("(documentation Cat EnglishLanguage \"chat \uD834\uDD1E\")"));
+		assertNull(snapshot.getFormula("(documentation Cat EnglishLanguage \"chat \uD834\")"));
+		assertNull(snapshot.getFormula("(documentation Cat EnglishLanguage \"chat \uFB01\")"));
+	}
+
+	@Test public void notSerializable() throws IOException
+	{
+		try (ObjectOutputStream out = new ObjectOutputStream(new ByteArrayOutputStream()))
+		{
+			out.writeObject(mapped);
+			fail("mapped KB serialized");
+		}
+		catch (NotSerializableException ex)
+		{
+			assertTrue(ex.getMessage(), ex.getMessage().contains("Mapped KB"));
+		}
+	}
+
+	private static Set<String> texts(List<Formula> formulas)
+	{
+		Set<String> result = new TreeSet<>();
+		for (Formula f : formulas)
+			result.add(f.text);
+		return result;
+	}
+
+	private static void assertRefused(Runnable change)
+	{
+		try
+		{
+			change.run();
+			fail("change to a mapped KB not refused");
+		}
+		catch (UnsupportedOperationException ex)
+		{
+			assertTrue(ex.getMessage(), ex.getMessage().contains("read-only mapped KB"));
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.articulate.sigma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestOverlayKB
+{
+	private File dir;
+
+	private KB base;
+
+	private KB full;
+
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Before public void makeKBs() throws IOException
+	{
+		dir = KBFixture.makeDir("Mini.kif", "Extra.kif");
+		base = KBFixture.makeKB(dir, "Mini.kif");
+		full = KBFixture.makeKB(dir, "Mini.kif", "Extra.kif");
+	}
+
+	@Test public void addConstituent()
+	{
+		OverlayKB overlay = new OverlayKB("Overlay", base);
+		overlay.addConstituent(new File(dir, "Extra.kif").getPath());
+		assertSameAsFull(overlay);
+	}
+
+	@Test public void tellAndRetract()
+	{
+		OverlayKB overlay = new OverlayKB("Overlay", base);
+		List<String> told = new ArrayList<>();
+		for (Formula f : full.formulaMap.values())
+		{
+			if (!base.formulaMap.containsKey(f.text))
+			{
+				overlay.tell(f.text);
+				told.add(f.text);
+			}
+		}
+		assertSameAsFull(overlay);
+
+		for (String text : told)
+		{
+			Formula f = new Formula();
+			f.set(text);
+			assertTrue(overlay.retract(f));
+		}
+		TreeSet<String> terms = new TreeSet<>(full.getTerms());
+		assertEquals(new ArrayList<>(base.getTerms()), new ArrayList<>(overlay.getTerms()));
+		assertEquals(KBFixture.dumpAnswers(base, terms), KBFixture.dumpAnswers(overlay, terms));
+		assertEquals(0, overlay.getDeltaCacheSize());
+	}
+
+	@Test public void snapshots()
+	{
+		OverlayKB overlay = new OverlayKB("Overlay", base);
+		TreeSet<String> terms = new TreeSet<>(full.getTerms());
+		KBSnapshot before = overlay.getSnapshot();
+		String baseAnswers = KBFixture.dumpAnswers(base.getSnapshot(), terms);
+		assertEquals(baseAnswers, KBFixture.dumpAnswers(before, terms));
+
+		overlay.tell("(instance Mary Student)");
+		overlay.addConstituent(new File(dir, "Extra.kif").getPath());
+		KBSnapshot after = overlay.getSnapshot();
+		assertNotSame(before, after);
+		assertEquals(baseAnswers, KBFixture.dumpAnswers(before, terms));
+		assertEquals(KBFixture.dumpAnswers(full.getSnapshot(), terms), KBFixture.dumpAnswers(after, terms));
+		assertEquals(full.getSnapshot().getTerms(), after.getTerms());
+		assertEquals(full.getSnapshot().getFormulaCount(), after.getFormulaCount());
+		assertTrue(after.containsFormula("(instance Mary Student)"));
+		assertFalse(before.containsFormula("(instance Mary Student)"));
+		assertTrue(after.isInstanceOf("Mary", "Animal"));
+		assertFalse(before.isInstanceOf("Mary", "Animal"));
+	}
+
+	private void assertSameAsFull(OverlayKB overlay)
+	{
+		TreeSet<String> terms = new TreeSet<>(full.getTerms());
+		assertEquals(new ArrayList<>(full.getTerms()), new ArrayList<>(overlay.getTerms()));
+		assertEquals(full.getCountAxioms(), overlay.getCountAxioms());
+		assertEquals(KBFixture.dumpAnswers(full, terms), KBFixture.dumpAnswers(overlay, terms));
+	}
+}
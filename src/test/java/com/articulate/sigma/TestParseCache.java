@@ -0,0 +1,107 @@
+package com.articulate.sigma;
+
+import com.articulate.sigma.kif.KIF;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestParseCache
+{
+	private File dir;
+
+	private File file;
+
+	private String path;
+
+	private ParseCache cache;
+
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Before public void makeCache() throws IOException
+	{
+		dir = KBFixture.makeDir("Mini.kif");
+		file = KBFixture.write(dir, "Test.kif", "(subclass Reptile Animal)\n\n(instance Rex Reptile)\n");
+		file.setLastModified(1000000000000L);
+		path = file.getCanonicalPath();
+		cache = new ParseCache();
+	}
+
+	@Test public void unchangedFile() throws Exception
+	{
+		KIF first = cache.parse(path);
+		KIF second = cache.parse(path);
+
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.size());
+		assertEquals(first.formulaSet, second.formulaSet);
+		assertTrue(second.formulaSet.contains("(instance Rex Reptile)"));
+	}
+
+	@Test public void changedContent() throws Exception
+	{
+		cache.parse(path);
+		KBFixture.write(dir, "Test.kif", "(subclass Reptile Animal)\n\n(instance Rex Reptile)\n\n(subclass Lizard Reptile)\n");
+		file.setLastModified(1000000002000L);
+		KIF kif = cache.parse(path);
+
+		assertEquals(2, cache.getMisses());
+		assertEquals(0, cache.getHits());
+		assertTrue(kif.formulaSet.contains("(subclass Lizard Reptile)"));
+	}
+
+	@Test public void changedTimeOnly() throws Exception
+	{
+		cache.parse(path);
+		file.setLastModified(1000000002000L);
+		KIF kif = cache.parse(path);
+
+		// The content is read again, and its digest is that of the parse
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+		assertEquals(2, kif.formulaSet.size());
+
+		cache.parse(path);
+		assertEquals(1, cache.getMisses());
+		assertEquals(2, cache.getHits());
+	}
+
+	@Test public void copies() throws Exception
+	{
+		Formula first = cache.parse(path).formulas.get("arg-1-Rex").get(0);
+		Formula second = cache.parse(path).formulas.get("arg-1-Rex").get(0);
+		assertNotSame(first, second);
+		assertEquals(first.text, second.text);
+
+		KB kb = KBFixture.makeKB(dir, "Mini.kif");
+		kb.setParseCache(cache);
+		kb.addConstituent(file.getPath());
+		KB other = KBFixture.makeKB(dir, "Mini.kif");
+		other.setParseCache(cache);
+		other.addConstituent(file.getPath());
+
+		Set<Formula> formulas = Collections.newSetFromMap(new IdentityHashMap<>());
+		formulas.addAll(kb.formulaMap.values());
+		for (Formula f : other.formulaMap.values())
+			assertFalse(f.text, formulas.contains(f));
+		List<Formula> asked = other.ask("arg", 1, "Rex");
+		assertEquals(1, asked.size());
+		assertNotSame(kb.formulaMap.get("(instance Rex Reptile)"), asked.get(0));
+		assertTrue(cache.getHits() >= 2);
+	}
+}
@@ -0,0 +1,93 @@
+package com.articulate.sigma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestPreProcessCache
+{
+	private static final PreProcessOptions OPTIONS = new PreProcessOptions(false, true, false, false, false);
+
+	private KB kb;
+
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Before public void makeKB() throws IOException
+	{
+		File dir = KBFixture.makeDir("Mini.kif");
+		kb = KBFixture.makeKB(dir, "Mini.kif");
+	}
+
+	@Test public void directChanges()
+	{
+		PreProcessCache cache = kb.getPreProcessCache();
+		Formula f = new Formula();
+		f.set("(=> (lover ?X ?Y) (instance ?Y Animal))");
+		List<String> results = preProcess(f);
+		assertEquals(1, cache.getMisses());
+		assertEquals(results, preProcess(f));
+		assertEquals(1, cache.getHits());
+
+		Formula g = new Formula();
+		g.set("(instance Rex Dog)");
+		long version = kb.getVersion();
+		kb.formulaMap.put(g.text, g);
+		assertTrue(kb.getVersion() > version);
+		assertEquals(results, preProcess(f));
+		assertEquals(2, cache.getMisses());
+
+		version = kb.getVersion();
+		kb.formulaMap.remove(g.text);
+		assertTrue(kb.getVersion() > version);
+		assertEquals(results, preProcess(f));
+		assertEquals(3, cache.getMisses());
+		assertEquals(1, cache.getHits());
+	}
+
+	@Test public void noOpChanges()
+	{
+		PreProcessCache cache = kb.getPreProcessCache();
+		Formula f = new Formula();
+		f.set("(=> (lover ?X ?Y) (instance ?Y Animal))");
+		List<String> results = preProcess(f);
+		Formula g = kb.formulaMap.get("(instance Fido Dog)");
+		long version = kb.getVersion();
+
+		kb.formulaMap.put(g.text, g);
+		kb.formulaMap.putIfAbsent(g.text, new Formula());
+		kb.formulaMap.remove("(instance Rex Dog)");
+		kb.formulaMap.remove(g.text, new Formula());
+		kb.formulaMap.replace("(instance Rex Dog)", g);
+		kb.formulaMap.computeIfAbsent(g.text, k -> new Formula());
+		kb.formulaMap.computeIfPresent("(instance Rex Dog)", (k, v) -> g);
+		kb.formulaMap.replaceAll((k, v) -> v);
+		assertEquals(version, kb.getVersion());
+		assertEquals(results, preProcess(f));
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+
+		kb.formulaMap.compute(g.text, (k, v) -> null);
+		assertTrue(kb.getVersion() > version);
+		assertFalse(kb.formulaMap.containsKey(g.text));
+	}
+
+	private List<String> preProcess(Formula f)
+	{
+		List<String> result = new ArrayList<>();
+		for (Formula g : FormulaPreProcessor.preProcess(f, false, kb, OPTIONS))
+			result.add(g.text);
+		return result;
+	}
+}
@@ -0,0 +1,77 @@
+package com.articulate.sigma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class TestPreProcessFormulas
+{
+	private static final PreProcessOptions OPTIONS = new PreProcessOptions(false, true, false, false, false);
+
+	private File dir;
+
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Before public void makeDir() throws IOException
+	{
+		dir = KBFixture.makeDir("Mini.kif", "Extra.kif");
+	}
+
+	@Test public void sameAsSequential()
+	{
+		KB kb = KBFixture.makeKB(dir, "Mini.kif", "Extra.kif");
+		kb.setPreProcessCache(null);
+		List<String> sequential = new ArrayList<>();
+		for (Formula f : kb.formulaMap.values())
+			sequential.add(f.text + " " + texts(FormulaPreProcessor.preProcess(f, false, kb, OPTIONS)));
+
+		KB other = KBFixture.makeKB(dir, "Mini.kif", "Extra.kif");
+		other.setPreProcessCache(null);
+		List<String> parallel = new ArrayList<>();
+		other.preProcessFormulas(false, OPTIONS, 4, (f, results) -> parallel.add(f.text + " " + texts(results)));
+
+		assertEquals(sequential, parallel);
+		assertFalse(parallel.isEmpty());
+	}
+
+	@Test public void consumerFailure()
+	{
+		KB kb = KBFixture.makeKB(dir, "Mini.kif", "Extra.kif");
+		IllegalStateException failure = new IllegalStateException("consumer fails");
+		AtomicInteger count = new AtomicInteger();
+		try
+		{
+			kb.preProcessFormulas(false, OPTIONS, 4, (f, results) -> {
+				if (count.incrementAndGet() == 40)
+					throw failure;
+			});
+			fail("failure of the consumer not thrown");
+		}
+		catch (IllegalStateException ex)
+		{
+			assertSame(failure, ex);
+		}
+		assertEquals(40, count.get());
+	}
+
+	private static List<String> texts(List<Formula> formulas)
+	{
+		List<String> result = new ArrayList<>();
+		for (Formula f : formulas)
+			result.add(f.text);
+		return result;
+	}
+}
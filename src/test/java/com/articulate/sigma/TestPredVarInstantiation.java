@@ -0,0 +1,67 @@
+package com.articulate.sigma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestPredVarInstantiation
+{
+	private static final String RELATIONS = "(instance domainOf BinaryPredicate)\n" + //
+			"(instance rangeOf BinaryPredicate)\n" + //
+			"(domain domainOf 1 Relation)\n" + //
+			"(domain domainOf 2 SetOrClass)\n" + //
+			"(domain rangeOf 1 Relation)\n" + //
+			"(domain rangeOf 2 SetOrClass)\n" + //
+			"(domainOf lover Animal)\n" + //
+			"(rangeOf lover Human)\n" + //
+			"(domainOf part Object)\n" + //
+			"(rangeOf part Object)\n";
+
+	private KB kb;
+
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Before public void makeKB() throws IOException
+	{
+		File dir = KBFixture.makeDir("Mini.kif");
+		KBFixture.write(dir, "Relations.kif", RELATIONS);
+		kb = KBFixture.makeKB(dir, "Mini.kif", "Relations.kif");
+	}
+
+	@Test public void transitiveRelations() throws Exception
+	{
+		assertEquals(Arrays.asList( //
+				"(=> (and (part ?A ?B) (part ?B ?C)) (part ?A ?C))", //
+				"(=> (and (subclass ?A ?B) (subclass ?B ?C)) (subclass ?A ?C))"), //
+				instantiate("(=> (and (instance ?REL TransitiveRelation) (?REL ?A ?B) (?REL ?B ?C)) (?REL ?A ?C))"));
+	}
+
+	@Test public void joinBoundVariables() throws Exception
+	{
+		// ?C1 and ?C2 are bound with ?REL, by two literals: both are replaced
+		assertEquals(Arrays.asList( //
+				"(=> (lover ?X ?Y) (and (instance ?X Animal) (instance ?Y Human)))", //
+				"(=> (part ?X ?Y) (and (instance ?X Object) (instance ?Y Object)))"), //
+				instantiate("(=> (and (domainOf ?REL ?C1) (rangeOf ?REL ?C2) (?REL ?X ?Y)) (and (instance ?X ?C1) (instance ?Y ?C2)))"));
+	}
+
+	private List<String> instantiate(String text) throws Exception
+	{
+		Formula f = new Formula();
+		f.set(text);
+		List<String> result = new ArrayList<>();
+		for (Formula instance : f.instantiatePredVars(kb))
+			result.add(instance.text.replaceAll("\\s+", " "));
+		Collections.sort(result);
+		return result;
+	}
+}
@@ -0,0 +1,71 @@
+package com.articulate.sigma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestRelationSignature
+{
+	private KB kb;
+
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Before public void makeKB() throws IOException
+	{
+		File dir = KBFixture.makeDir("Mini.kif");
+		kb = KBFixture.makeKB(dir, "Mini.kif");
+	}
+
+	@Test public void signature()
+	{
+		RelationSignature signature = kb.getRelationSignature("lover");
+		assertEquals(2, signature.getValence());
+		assertEquals("Animal", signature.getArgType(1));
+		assertEquals("Animal", signature.getArgType(2));
+		assertNull(signature.getArgType(3));
+		assertEquals(3, signature.getDeclaredTypes().size());
+		assertEquals("Human", kb.getRelationSignature("FatherFn").getArgType(0));
+		assertEquals("SetOrClass", kb.getRelationSignature("subclass").getArgType(1));
+	}
+
+	@Test public void domainChanges()
+	{
+		kb.tell("(instance likes BinaryPredicate) (subrelation likes lover)");
+		RelationSignature signature = kb.getRelationSignature("likes");
+		assertEquals("Animal", signature.getArgType(1));
+		assertNull(signature.getDeclaredTypes().get(1));
+
+		// Declared for the relation itself
+		kb.tell("(domain likes 1 Human)");
+		signature = kb.getRelationSignature("likes");
+		assertEquals("Human", signature.getArgType(1));
+		assertEquals("Human", signature.getDeclaredTypes().get(1));
+		assertEquals("Animal", signature.getArgType(2));
+
+		// Inherited from the super-relation
+		assertTrue(kb.retract(formula("(domain lover 2 Animal)")));
+		assertNull(kb.getRelationSignature("likes").getArgType(2));
+		assertNull(kb.getRelationSignature("lover").getArgType(2));
+
+		assertTrue(kb.retract(formula("(domain likes 1 Human)")));
+		assertEquals("Animal", kb.getRelationSignature("likes").getArgType(1));
+		assertEquals(kb.getRelationSignature("likes").getArgType(1), Formula.findType(1, "likes", kb));
+	}
+
+	private static Formula formula(String text)
+	{
+		Formula f = new Formula();
+		f.set(text);
+		return f;
+	}
+}
@@ -0,0 +1,98 @@
+package com.articulate.sigma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestReloadConstituent
+{
+	private static final String KIF = "(subclass Reptile Animal)\n\n(instance Rex Reptile)\n\n(instance meets Relation)\n\n(valence meets 3)\n";
+
+	private File dir;
+
+	private File file;
+
+	private KB kb;
+
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Before public void makeKB() throws IOException
+	{
+		dir = KBFixture.makeDir("Mini.kif", "Extra.kif");
+		file = KBFixture.write(dir, "Test.kif", KIF);
+		kb = KBFixture.makeKB(dir, "Mini.kif", "Test.kif");
+	}
+
+	@Test public void reloadChanged() throws IOException
+	{
+		assertEquals(3, kb.formulaMap.get("(instance Rex Reptile)").startLine);
+		KBFixture.write(dir, "Test.kif", "\n;; shifted\n\n(subclass Reptile Animal)\n\n(instance Rex Reptile)\n\n(subclass Lizard Reptile)\n\n(instance meets Relation)\n");
+		kb.reloadConstituent(file.getPath());
+
+		assertEquals(6, kb.formulaMap.get("(instance Rex Reptile)").startLine);
+		assertTrue(kb.isSubclass("Lizard", "Animal"));
+		assertTrue(kb.getTerms().contains("Lizard"));
+		assertNull(kb.formulaMap.get("(valence meets 3)"));
+		assertEquals(-1, kb.getValence("meets"));
+		assertFalse(kb.isInstanceOf("meets", "TernaryRelation"));
+		assertTrue(kb.isInstanceOf("Rex", "Animal"));
+
+		KBFixture.write(dir, "Test.kif", "(subclass Lizard Animal)\n");
+		kb.reloadConstituent(file.getPath());
+		assertFalse(kb.getTerms().contains("Rex"));
+		assertFalse(kb.getTerms().contains("Reptile"));
+		assertTrue(kb.ask("arg", 1, "Rex").isEmpty());
+		assertFalse(kb.isSubclass("Lizard", "Reptile"));
+		assertTrue(kb.isSubclass("Lizard", "Animal"));
+	}
+
+	@Test public void reloadDuplicate() throws IOException
+	{
+		String mini = new File(dir, "Mini.kif").getCanonicalPath();
+		kb.errors.clear();
+		KBFixture.write(dir, "Test.kif", KIF + "\n(instance Fido Dog)\n");
+		kb.reloadConstituent(file.getPath());
+
+		assertEquals(mini, kb.formulaMap.get("(instance Fido Dog)").sourceFile);
+		assertEquals(1, kb.errors.size());
+		assertTrue(kb.errors.first().startsWith("WARNING: Duplicate axiom in " + file.getCanonicalPath()));
+
+		// As when the constituent is added
+		KB fresh = KBFixture.makeKB(dir, "Mini.kif", "Test.kif");
+		assertEquals(mini, fresh.formulaMap.get("(instance Fido Dog)").sourceFile);
+		assertEquals(fresh.errors, kb.errors);
+
+		// The formula of Test.kif takes its place
+		kb.removeConstituent(new File(dir, "Mini.kif").getPath());
+		assertEquals(file.getCanonicalPath(), kb.formulaMap.get("(instance Fido Dog)").sourceFile);
+		assertTrue(kb.isInstanceOf("Fido", "Dog"));
+	}
+
+	@Test public void remove()
+	{
+		kb.addConstituent(new File(dir, "Extra.kif").getPath());
+		assertTrue(kb.isSubclass("Student", "Animal"));
+		kb.removeConstituent(new File(dir, "Extra.kif").getPath());
+
+		assertEquals(2, kb.constituents.size());
+		assertFalse(kb.getTerms().contains("Mary"));
+		assertFalse(kb.isSubclass("Student", "Animal"));
+		assertNull(kb.formulaMap.get("(lover Mary John)"));
+		assertTrue(kb.ask("arg", 2, "Student").isEmpty());
+		assertFalse(kb.isSubclass("Cat", "Animal"));
+		// Still in the partition of Mini.kif
+		assertTrue(kb.getTerms().contains("Cat"));
+		assertTrue(kb.isInstanceOf("Rex", "Animal"));
+	}
+}
@@ -0,0 +1,90 @@
+package com.articulate.sigma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestRetract
+{
+	private static final String VALENCE = "(instance meets Relation)\n\n(valence meets 3)\n";
+
+	private File dir;
+
+	private KB kb;
+
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Before public void makeKB() throws IOException
+	{
+		dir = KBFixture.makeDir("Mini.kif");
+		kb = KBFixture.makeKB(dir, "Mini.kif");
+	}
+
+	@Test public void retractInstance()
+	{
+		assertTrue(kb.isInstanceOf("Fido", "Animal"));
+		assertTrue(kb.retract(formula("(instance Fido Dog)")));
+
+		assertNull(kb.formulaMap.get("(instance Fido Dog)"));
+		assertTrue(kb.ask("arg", 1, "Fido").isEmpty());
+		assertFalse(kb.getTerms().contains("Fido"));
+		assertFalse(kb.isInstanceOf("Fido", "Animal"));
+		assertTrue(kb.getCachedRelationValues("instance", "Dog", 2, 1).isEmpty());
+		assertFalse(kb.retract(formula("(instance Fido Dog)")));
+	}
+
+	@Test public void retractSubclass()
+	{
+		assertTrue(kb.retract(formula("(subclass Dog Animal)")));
+
+		assertFalse(kb.isSubclass("Dog", "Animal"));
+		assertFalse(kb.isSubclass("Dog", "Entity"));
+		assertFalse(kb.getCachedRelationValues("instance", "Fido", 1, 2).contains("Animal"));
+		assertTrue(kb.getCachedRelationValues("instance", "Fido", 1, 2).contains("Dog"));
+		assertTrue(kb.isSubclass("Human", "Entity"));
+		assertTrue(kb.getTerms().contains("Dog"));
+	}
+
+	@Test public void retractAll()
+	{
+		int count = kb.formulaMap.size();
+		assertEquals(2, kb.retractAll(f -> f.text.contains("Fido") || f.text.startsWith("(disjoint")));
+
+		assertEquals(count - 2, kb.formulaMap.size());
+		assertFalse(kb.getTerms().contains("Fido"));
+		assertTrue(kb.getCachedRelationValues("disjoint", "Human", 1, 2).isEmpty());
+		// Still disjoint by partition
+		assertTrue(kb.getCachedRelationValues("disjoint", "Dog", 1, 2).contains("Cat"));
+	}
+
+	@Test public void retractValence() throws IOException
+	{
+		KBFixture.write(dir, "Valence.kif", VALENCE);
+		kb.addConstituent(new File(dir, "Valence.kif").getPath());
+		assertEquals(3, kb.getValence("meets"));
+		assertTrue(kb.isInstanceOf("meets", "TernaryRelation"));
+
+		assertTrue(kb.retract(formula("(valence meets 3)")));
+		assertEquals(-1, kb.getValence("meets"));
+		assertFalse(kb.isInstanceOf("meets", "TernaryRelation"));
+		assertTrue(kb.isInstanceOf("meets", "Relation"));
+	}
+
+	private static Formula formula(String text)
+	{
+		Formula f = new Formula();
+		f.set(text);
+		return f;
+	}
+}
@@ -0,0 +1,67 @@
+package com.articulate.sigma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestRowVarExpansion
+{
+	private KB kb;
+
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Before public void makeKB() throws IOException
+	{
+		File dir = KBFixture.makeDir("Mini.kif");
+		kb = KBFixture.makeKB(dir, "Mini.kif");
+	}
+
+	@Test public void prefixRowVar()
+	{
+		// @ROW is a prefix of @ROW2, whose variables must not be rewritten with those of @ROW
+		assertEquals(Arrays.asList("(=> (lover ?ROW1 ?ROW2) (lover ?ROW21 ?ROW22))"), texts(formula("(=> (lover @ROW) (lover @ROW2))").expandRowVars(kb)));
+	}
+
+	@Test public void variableArity()
+	{
+		List<String> texts = texts(formula("(=> (ListFn @ROW) (lover @ROW2))").expandRowVars(kb));
+
+		assertEquals(7, texts.size());
+		assertEquals("(=> (ListFn ?ROW1) (lover ?ROW21 ?ROW22))", texts.get(0));
+		assertEquals("(=> (ListFn ?ROW1 ?ROW2 ?ROW3 ?ROW4 ?ROW5 ?ROW6 ?ROW7) (lover ?ROW21 ?ROW22))", texts.get(6));
+	}
+
+	@Test public void budget()
+	{
+		Formula f = formula("(=> (ListFn @ROW) (lover @ROW2))");
+
+		assertEquals(texts(f.expandRowVars(kb)).subList(0, 3), f.streamRowVarExpansions(kb, 3).map(g -> g.text).collect(Collectors.toList()));
+	}
+
+	private static Formula formula(String text)
+	{
+		Formula f = new Formula();
+		f.set(text);
+		return f;
+	}
+
+	private static List<String> texts(List<Formula> formulas)
+	{
+		List<String> result = new ArrayList<>();
+		for (Formula f : formulas)
+			result.add(f.text);
+		return result;
+	}
+}
@@ -0,0 +1,109 @@
+package com.articulate.sigma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestSortalTypeCache
+{
+	private final AtomicLong kbVersion = new AtomicLong();
+
+	private SortalTypeCache cache;
+
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Before public void makeCache()
+	{
+		cache = new SortalTypeCache(SortalTypeCache.DEFAULT_CAPACITY, kbVersion::get);
+	}
+
+	@Test public void invalidation()
+	{
+		cache.put("a", Collections.singletonList("A"));
+		assertEquals(Collections.singletonList("A"), cache.get("a"));
+
+		kbVersion.incrementAndGet();
+		assertNull(cache.remove("a"));
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.size());
+
+		cache.put("b", Collections.singletonList("B"));
+		kbVersion.incrementAndGet();
+		cache.clear();
+		assertEquals(kbVersion.get(), cache.getVersion());
+		assertTrue(cache.put("c", Collections.singletonList("C"), kbVersion.get()));
+		assertEquals(Collections.singletonList("C"), cache.get("c"));
+	}
+
+	@Test public void stalePut()
+	{
+		long version = cache.getVersion();
+		kbVersion.incrementAndGet();
+		assertFalse(cache.put("a", Collections.singletonList("A"), version));
+		assertNull(cache.get("a"));
+
+		// Even if the cache was emptied for the new version meanwhile
+		version = cache.getVersion();
+		kbVersion.incrementAndGet();
+		cache.getVersion();
+		assertFalse(cache.put("a", Collections.singletonList("A"), version));
+		assertTrue(cache.isEmpty());
+	}
+
+	@Test public void concurrentPuts() throws InterruptedException, ExecutionException
+	{
+		AtomicBoolean done = new AtomicBoolean();
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try
+		{
+			List<Future<?>> writers = new ArrayList<>();
+			for (int t = 0; t < 3; t++)
+			{
+				int thread = t;
+				writers.add(pool.submit(() -> {
+					for (int i = 0; !done.get(); i++)
+					{
+						long version = cache.getVersion();
+						cache.put(thread + ":" + i % 100, Collections.singletonList(Long.toString(version)), version);
+					}
+				}));
+			}
+			for (int i = 0; i < 1000; i++)
+			{
+				kbVersion.incrementAndGet();
+				cache.getVersion();
+			}
+			done.set(true);
+			for (Future<?> writer : writers)
+				writer.get();
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+		String current = Long.toString(kbVersion.get());
+		for (Map.Entry<String, List<String>> entry : cache.entrySet())
+			assertEquals(entry.getKey(), current, entry.getValue().get(0));
+	}
+
+	@Test public void kbAccessors()
+	{
+		KB kb = new KB("Test", ".");
+		Map<String, List<String>> map = kb.getSortalTypeCache();
+		assertSame(kb.getSortalTypeCacheInstance(), map);
+	}
+}
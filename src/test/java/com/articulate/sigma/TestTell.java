@@ -0,0 +1,81 @@
+package com.articulate.sigma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestTell
+{
+	private KB kb;
+
+	@Before public void noLogging()
+	{
+		String loggingPath = "logging.properties";
+		System.setProperty("java.util.logging.config.file", loggingPath);
+	}
+
+	@Before public void makeKB() throws IOException
+	{
+		File dir = KBFixture.makeDir("Mini.kif");
+		kb = KBFixture.makeKB(dir, "Mini.kif");
+	}
+
+	@Test public void tellInstance()
+	{
+		assertEquals("The formula has been added", kb.tell("(instance Rex Dog)"));
+
+		Formula f = kb.formulaMap.get("(instance Rex Dog)");
+		assertEquals(kb.getUserAssertionsFile(), f.sourceFile);
+		assertTrue(kb.getTerms().contains("Rex"));
+		assertEquals(1, kb.ask("arg", 1, "Rex").size());
+		assertTrue(kb.isInstanceOf("Rex", "Animal"));
+		assertTrue(kb.getCachedRelationValues("instance", "Dog", 2, 1).contains("Rex"));
+		assertEquals("The formula is already in the KB", kb.tell("(instance Rex Dog)"));
+	}
+
+	@Test public void tellSubclass()
+	{
+		assertEquals("2 formulas have been added", kb.tell("(subclass Puppy Dog) (instance Rex Puppy)"));
+
+		assertTrue(kb.isSubclass("Puppy", "Entity"));
+		assertTrue(kb.getCachedRelationValues("subclass", "Animal", 2, 1).contains("Puppy"));
+		assertTrue(kb.isInstanceOf("Rex", "Dog"));
+		assertTrue(kb.isInstanceOf("Rex", "Object"));
+	}
+
+	@Test public void tellValence()
+	{
+		kb.tell("(instance meets Relation) (valence meets 3)");
+		assertEquals(3, kb.getValence("meets"));
+		assertTrue(kb.isInstanceOf("meets", "TernaryRelation"));
+	}
+
+	@Test public void tellRejected()
+	{
+		int count = kb.formulaMap.size();
+		assertTrue(kb.tell("(instance Rex Dog) (lover John)").startsWith("The following formula rejected for incorrect arity"));
+		assertEquals(count, kb.formulaMap.size());
+		assertNull(kb.formulaMap.get("(instance Rex Dog)"));
+		assertFalse(kb.getTerms().contains("Rex"));
+	}
+
+	@Test public void tellWithSource() throws IOException
+	{
+		Formula f = new Formula();
+		f.set("(instance Rex Dog)");
+		f.sourceFile = new File("Dogs.kif").getCanonicalPath();
+		f.startLine = 7;
+		kb.tell(f);
+
+		Formula g = kb.formulaMap.get("(instance Rex Dog)");
+		assertEquals(f.sourceFile, g.sourceFile);
+		assertEquals(7, g.startLine);
+	}
+}